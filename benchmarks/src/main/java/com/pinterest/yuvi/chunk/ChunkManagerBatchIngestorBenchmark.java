@@ -0,0 +1,108 @@
+package com.pinterest.yuvi.chunk;
+
+import com.pinterest.yuvi.utils.MetricUtils;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.Blackhole;
+import org.openjdk.jmh.runner.Runner;
+import org.openjdk.jmh.runner.RunnerException;
+import org.openjdk.jmh.runner.options.Options;
+import org.openjdk.jmh.runner.options.OptionsBuilder;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Compares ingesting metrics one at a time with addMetric to ingesting them in batches with
+ * addMetrics. A batch size of 0 ingests each metric with addMetric. If newSeries is false, the
+ * series are created before each invocation, so only appending points to existing series is
+ * measured.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 1, timeUnit = TimeUnit.SECONDS)
+@Measurement(iterations = 5, time = 1, timeUnit = TimeUnit.SECONDS)
+@Fork(1)
+@State(Scope.Thread)
+public class ChunkManagerBatchIngestorBenchmark {
+
+  private static final long START_TIME = 1488499200;  // Fri, 03 Mar 2017 00:00:00 UTC
+  private static final int NUM_METRIC_NAMES = 100;
+  private static final int NUM_HOSTS = 100;
+  private static final int NUM_POINTS = 20;
+
+  @Param({"0", "10", "100", "1000", "10000"})
+  private int batchSize;
+
+  @Param({"true", "false"})
+  private boolean newSeries;
+
+  private List<String> firstMetrics;
+  private List<String> metrics;
+  private ChunkManager chunkManager;
+
+  public static void main(String[] args) throws RunnerException {
+    Options opt = new OptionsBuilder()
+        .include(ChunkManagerBatchIngestorBenchmark.class.getSimpleName())
+        .build();
+    new Runner(opt).run();
+  }
+
+  @Setup(Level.Trial)
+  public void setupMetrics() {
+    // The metrics arrive in rounds, with one point for every series in each round.
+    firstMetrics = new ArrayList<>(NUM_METRIC_NAMES * NUM_HOSTS);
+    metrics = new ArrayList<>(NUM_METRIC_NAMES * NUM_HOSTS * NUM_POINTS);
+    for (int i = 0; i <= NUM_POINTS; i++) {
+      List<String> round = i == 0 ? firstMetrics : metrics;
+      for (int j = 0; j < NUM_METRIC_NAMES; j++) {
+        for (int k = 0; k < NUM_HOSTS; k++) {
+          round.add(MetricUtils.makeMetricString("metric" + j,
+              "host=h" + k + " dc=dc" + (k % 3), START_TIME + 60 * i, i * k));
+        }
+      }
+    }
+  }
+
+  @Setup(Level.Invocation)
+  public void setup() {
+    chunkManager = new ChunkManager("test", NUM_METRIC_NAMES * NUM_HOSTS);
+    if (!newSeries) {
+      chunkManager.addMetrics(firstMetrics);
+    }
+  }
+
+  @Benchmark
+  public void ingest(Blackhole bh) {
+    if (newSeries) {
+      ingest(firstMetrics, bh);
+    }
+    ingest(metrics, bh);
+    bh.consume(chunkManager);
+  }
+
+  private void ingest(List<String> metrics, Blackhole bh) {
+    if (batchSize == 0) {
+      for (String metric : metrics) {
+        chunkManager.addMetric(metric);
+      }
+    } else {
+      for (int i = 0; i < metrics.size(); i += batchSize) {
+        bh.consume(chunkManager.addMetrics(
+            metrics.subList(i, Math.min(i + batchSize, metrics.size()))));
+      }
+    }
+  }
+}
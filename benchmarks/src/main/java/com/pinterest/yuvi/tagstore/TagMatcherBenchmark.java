@@ -0,0 +1,127 @@
+package com.pinterest.yuvi.tagstore;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.runner.Runner;
+import org.openjdk.jmh.runner.RunnerException;
+import org.openjdk.jmh.runner.options.Options;
+import org.openjdk.jmh.runner.options.OptionsBuilder;
+
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Measures the time taken by the slow path tag matchers on a tag key with a large number of
+ * distinct values, like a host name. The host names are of the form
+ * "web-00042.us-east-1.example.com", with a few different prefixes, so the prefix matchers only
+ * match a small range of the values.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 2, time = 1, timeUnit = TimeUnit.SECONDS)
+@Measurement(iterations = 5, time = 1, timeUnit = TimeUnit.SECONDS)
+@Fork(1)
+@State(Scope.Thread)
+public class TagMatcherBenchmark {
+
+  private static final String METRIC_NAME = "the.metric.name.is.very.very.very.very.very.long";
+  private static final String HOST_TAG = "host";
+  private static final List<String> HOST_PREFIXES = Arrays.asList("api", "cache", "db", "web");
+
+  @Param({"10000", "100000"})
+  public int numHosts;
+
+  private InvertedIndexTagStore store;
+
+  public static void main(String[] args) throws RunnerException {
+    Options opt = new OptionsBuilder()
+        .include(TagMatcherBenchmark.class.getSimpleName())
+        .build();
+
+    new Runner(opt).run();
+  }
+
+  private static String hostName(int i) {
+    return String.format("%s-%05d.us-east-1.example.com",
+        HOST_PREFIXES.get(i % HOST_PREFIXES.size()), i);
+  }
+
+  @Setup(Level.Trial)
+  public void setup() {
+    store = new InvertedIndexTagStore(numHosts, numHosts);
+    for (int i = 0; i < numHosts; i++) {
+      store.getOrCreate(new Metric(METRIC_NAME,
+          Arrays.asList(HOST_TAG + "=" + hostName(i), "dc=dc" + (i % 3))));
+    }
+  }
+
+  @TearDown(Level.Trial)
+  public void tearDown() {
+    store.close();
+  }
+
+  private List<Integer> lookup(TagMatcher tagMatcher) {
+    return store.lookup(new Query(METRIC_NAME, Collections.singletonList(tagMatcher)));
+  }
+
+  @Benchmark
+  public List<Integer> exactMatch() {
+    return lookup(TagMatcher.exactMatch(new Tag(HOST_TAG, hostName(42))));
+  }
+
+  @Benchmark
+  public List<Integer> literalOrMatch() {
+    return lookup(TagMatcher.literalOrMatch(HOST_TAG,
+        hostName(42) + "|" + hostName(43) + "|" + hostName(44), false));
+  }
+
+  @Benchmark
+  public List<Integer> notLiteralOrMatch() {
+    return lookup(TagMatcher.notLiteralOrMatch(HOST_TAG, hostName(42) + "|" + hostName(43), false));
+  }
+
+  @Benchmark
+  public List<Integer> prefixWildcardMatch() {
+    return lookup(TagMatcher.wildcardMatch(HOST_TAG, "web-0001*"));
+  }
+
+  @Benchmark
+  public List<Integer> suffixWildcardMatch() {
+    return lookup(TagMatcher.wildcardMatch(HOST_TAG, "*7.us-east-1.example.com"));
+  }
+
+  @Benchmark
+  public List<Integer> infixWildcardMatch() {
+    return lookup(TagMatcher.wildcardMatch(HOST_TAG, "*-0001*"));
+  }
+
+  @Benchmark
+  public List<Integer> anchoredRegExMatch() {
+    return lookup(TagMatcher.regExMatch(HOST_TAG, "^web-0001\\d\\..*"));
+  }
+
+  @Benchmark
+  public List<Integer> unanchoredRegExMatch() {
+    return lookup(TagMatcher.regExMatch(HOST_TAG, "web-0001\\d\\..*"));
+  }
+
+  @Benchmark
+  public List<Integer> exactAndRegExMatch() {
+    return store.lookup(new Query(METRIC_NAME, Arrays.asList(
+        TagMatcher.exactMatch(new Tag("dc", "dc1")),
+        TagMatcher.regExMatch(HOST_TAG, "web-0001\\d\\..*"))));
+  }
+}
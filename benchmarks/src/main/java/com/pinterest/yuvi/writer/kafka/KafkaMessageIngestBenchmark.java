@@ -0,0 +1,183 @@
+package com.pinterest.yuvi.writer.kafka;
+
+import com.pinterest.yuvi.chunk.ChunkManager;
+import com.pinterest.yuvi.metricandtagstore.MetricBatch;
+import com.pinterest.yuvi.thrift.PointMessage;
+import com.pinterest.yuvi.thrift.TextMessage;
+import com.pinterest.yuvi.utils.MetricUtils;
+import com.pinterest.yuvi.writer.OpenTsdbLineParser;
+
+import org.apache.thrift.TException;
+import org.apache.thrift.TSerializer;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.Blackhole;
+import org.openjdk.jmh.runner.Runner;
+import org.openjdk.jmh.runner.RunnerException;
+import org.openjdk.jmh.runner.options.Options;
+import org.openjdk.jmh.runner.options.OptionsBuilder;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Compares decoding and ingesting Kafka messages in the text format, a TextMessage of OpenTSDB
+ * put strings, to the binary format, a PointMessage. Both formats carry the same points. The text
+ * format is either deserialized into Strings (text) or scanned and parsed from the bytes
+ * (scannedText). The series are created before each invocation, so only appending points to
+ * existing series is measured.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 1, timeUnit = TimeUnit.SECONDS)
+@Measurement(iterations = 5, time = 1, timeUnit = TimeUnit.SECONDS)
+@Fork(1)
+@State(Scope.Thread)
+public class KafkaMessageIngestBenchmark {
+
+  private static final long START_TIME = 1488499200;  // Fri, 03 Mar 2017 00:00:00 UTC
+  private static final int NUM_METRIC_NAMES = 100;
+  private static final int NUM_HOSTS = 100;
+  private static final int NUM_POINTS = 10;
+
+  @Param({"text", "scannedText", "binary"})
+  private String format;
+
+  @Param({"1000"})
+  private int pointsPerMessage;
+
+  private List<byte[]> firstMessages;
+  private List<byte[]> messages;
+  private ChunkManager chunkManager;
+  private final ThriftTextMessageDeserializer textDeserializer =
+      new ThriftTextMessageDeserializer();
+  private final ThriftPointMessageDeserializer pointDeserializer =
+      new ThriftPointMessageDeserializer();
+  private final OpenTsdbLineParser lineParser = new OpenTsdbLineParser();
+
+  public static void main(String[] args) throws RunnerException {
+    Options opt = new OptionsBuilder()
+        .include(KafkaMessageIngestBenchmark.class.getSimpleName())
+        .build();
+    new Runner(opt).run();
+  }
+
+  @Setup(Level.Trial)
+  public void setupMessages() throws TException {
+    // The metrics arrive in rounds, with one point for every series in each round.
+    firstMessages = new ArrayList<>();
+    messages = new ArrayList<>();
+    for (int i = 0; i <= NUM_POINTS; i++) {
+      List<byte[]> round = i == 0 ? firstMessages : messages;
+      List<String> seriesKeys = new ArrayList<>();
+      List<Long> timestamps = new ArrayList<>();
+      List<Double> values = new ArrayList<>();
+      for (int j = 0; j < NUM_METRIC_NAMES; j++) {
+        for (int k = 0; k < NUM_HOSTS; k++) {
+          seriesKeys.add("metric" + j + " host=h" + k + " dc=dc" + (k % 3));
+          timestamps.add(START_TIME + 60 * i);
+          values.add((double) i * k);
+          if (seriesKeys.size() == pointsPerMessage) {
+            round.add(serialize(seriesKeys, timestamps, values));
+            seriesKeys.clear();
+            timestamps.clear();
+            values.clear();
+          }
+        }
+      }
+      if (!seriesKeys.isEmpty()) {
+        round.add(serialize(seriesKeys, timestamps, values));
+      }
+    }
+  }
+
+  private byte[] serialize(List<String> seriesKeys, List<Long> timestamps, List<Double> values)
+      throws TException {
+    TSerializer serializer = new TSerializer();
+    if (!format.equals("binary")) {
+      List<String> metrics = new ArrayList<>(seriesKeys.size());
+      for (int i = 0; i < seriesKeys.size(); i++) {
+        String[] seriesKeyParts = seriesKeys.get(i).split(" ", 2);
+        metrics.add(MetricUtils.makeMetricString(seriesKeyParts[0], seriesKeyParts[1],
+            timestamps.get(i), values.get(i)));
+      }
+      return serializer.serialize(new TextMessage().setMessages(metrics));
+    } else {
+      // Dictionary encode the series keys of the message.
+      Map<String, Integer> seriesIndexes = new HashMap<>();
+      PointMessage pointMessage = new PointMessage()
+          .setSeriesKeys(new ArrayList<>())
+          .setSeriesIndexes(new ArrayList<>())
+          .setTimestamps(timestamps)
+          .setValues(values);
+      for (String seriesKey : seriesKeys) {
+        Integer seriesIndex = seriesIndexes.get(seriesKey);
+        if (seriesIndex == null) {
+          seriesIndex = seriesIndexes.size();
+          seriesIndexes.put(seriesKey, seriesIndex);
+          pointMessage.addToSeriesKeys(seriesKey);
+        }
+        pointMessage.addToSeriesIndexes(seriesIndex);
+      }
+      return serializer.serialize(pointMessage);
+    }
+  }
+
+  @Setup(Level.Invocation)
+  public void setup() {
+    chunkManager = new ChunkManager("test", NUM_METRIC_NAMES * NUM_HOSTS);
+    for (byte[] message : firstMessages) {
+      ingest(message);
+    }
+  }
+
+  @Benchmark
+  public void decode(Blackhole bh) {
+    for (byte[] message : messages) {
+      bh.consume(decode(message));
+    }
+  }
+
+  @Benchmark
+  public void decodeAndIngest(Blackhole bh) {
+    for (byte[] message : messages) {
+      bh.consume(ingest(message));
+    }
+  }
+
+  private Object decode(byte[] message) {
+    switch (format) {
+      case "text":
+        return textDeserializer.deserialize("test", message);
+      case "scannedText":
+        MetricBatch batch = new MetricBatch();
+        ThriftTextMessageScanner.scan(message,
+            (data, offset, length) -> lineParser.parse(data, offset, length, batch));
+        return batch;
+      default:
+        return pointDeserializer.deserialize("test", message);
+    }
+  }
+
+  private Object ingest(byte[] message) {
+    Object decodedMessage = decode(message);
+    if (decodedMessage instanceof TextMessage) {
+      return chunkManager.addMetrics(((TextMessage) decodedMessage).getMessages());
+    } else {
+      return chunkManager.addPoints((MetricBatch) decodedMessage);
+    }
+  }
+}
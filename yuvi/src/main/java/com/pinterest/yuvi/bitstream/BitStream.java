@@ -44,10 +44,17 @@ public class BitStream {
    * Return the number of bits that have been written.
    * @return number of bits written.
    */
-  int bitOffset() {
+  public int bitOffset() {
     return index * 64 + shift;
   }
 
+  /**
+   * @return the number of bytes allocated for the bit stream.
+   */
+  public long getAllocatedByteSize() {
+    return (long) capacity * Long.BYTES;
+  }
+
   private long bitCapacity() {
     return capacity * 64;
   }
@@ -151,6 +158,13 @@ public class BitStream {
         Long.BYTES * getLastDataIndex();  // Size of long valid data
   }
 
+  /**
+   * @return the serialized size of a bit stream holding the given number of bits.
+   */
+  public static int getSerializedByteSize(int bits) {
+    return Ints.BYTES + Byte.BYTES + Long.BYTES * ((bits + 63) / 64);
+  }
+
   private int getLastDataIndex() {
     return shift == 0 ? index : index + 1;
   }
@@ -0,0 +1,27 @@
+package com.pinterest.yuvi.chunk;
+
+/**
+ * The number of metrics in a batch that were ingested, were invalid or were delayed. A metric is
+ * delayed if it belongs to a read only chunk.
+ */
+public class AddMetricsResult {
+
+  public final int validMetrics;
+  public final int invalidMetrics;
+  public final int delayedMetrics;
+
+  public AddMetricsResult(int validMetrics, int invalidMetrics, int delayedMetrics) {
+    this.validMetrics = validMetrics;
+    this.invalidMetrics = invalidMetrics;
+    this.delayedMetrics = delayedMetrics;
+  }
+
+  @Override
+  public String toString() {
+    return "AddMetricsResult{"
+        + "validMetrics=" + validMetrics
+        + ", invalidMetrics=" + invalidMetrics
+        + ", delayedMetrics=" + delayedMetrics
+        + '}';
+  }
+}
@@ -1,11 +1,15 @@
 package com.pinterest.yuvi.chunk;
 
+import com.pinterest.yuvi.metricandtagstore.MetricBatch;
 import com.pinterest.yuvi.models.TimeSeries;
 import com.pinterest.yuvi.tagstore.Metric;
 import com.pinterest.yuvi.tagstore.Query;
 
+import org.roaringbitmap.RoaringBitmap;
+
 import java.util.List;
 import java.util.Map;
+import java.util.function.IntFunction;
 
 /**
  * A chunk stores time series data for a specific time range. It can concurrently store metrics and
@@ -20,6 +24,14 @@ public interface Chunk {
    */
   List<TimeSeries> query(Query query);
 
+  /**
+   * Return the time series of the given ids that have data in this chunk.
+   * @param ids the metric ids matching a query. The bitmap is not modified.
+   * @param metricNames returns the metric name of an id.
+   * @return a list of time series.
+   */
+  List<TimeSeries> query(RoaringBitmap ids, IntFunction<String> metricNames);
+
   /**
    * add a point to an existing time-series, or create a new time-series with the given metric.
    * @param metric a metric object.
@@ -28,6 +40,12 @@ public interface Chunk {
    */
   void addPoint(Metric metric, long ts, double value);
 
+  /**
+   * add a batch of points to existing time-series, or create new time-series for their metrics.
+   * @param batch a batch of points.
+   */
+  void addPoints(MetricBatch batch);
+
   /**
    * A chunk contains some metadata like the list of chunks it can contain.
    */
@@ -44,6 +62,16 @@ public interface Chunk {
    */
   boolean containsDataInTimeRange(long startTs, long endTs);
 
+  /**
+   * Return a copy of the ids of the time series in this chunk.
+   */
+  RoaringBitmap getSeriesIds();
+
+  /**
+   * Return true if no time series was added to this chunk.
+   */
+  boolean isEmpty();
+
   Map<String, Object> getStats();
 
   /**
@@ -0,0 +1,134 @@
+package com.pinterest.yuvi.chunk;
+
+import com.google.common.annotations.VisibleForTesting;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.List;
+import java.util.stream.Collectors;
+
+/**
+ * Once a chunk is moved off heap, it stays a separate off heap store until it is deleted. So, a
+ * query over a day of data looks up and decodes each series in every chunk of the day. This task
+ * merges the adjacent read only chunks of a block, like 6 or 12 hours, into a single chunk, so
+ * long range queries touch fewer stores and the fixed overhead of each chunk is paid once per
+ * block.
+ *
+ * A block is only compacted once all the chunks that start before its end time are read only and
+ * moved off heap, so the chunks of a block are compacted once, after the last of them is moved off
+ * heap. A chunk that is still being moved off heap is never compacted, since compaction closes the
+ * chunks it merges. Blocks start at multiples of the block duration. Compaction is tiered: the
+ * chunks of a block can themselves be blocks compacted by a task with a smaller block duration, so
+ * a 6 hour task and a 12 hour task can run on the same chunk manager.
+ */
+public class ChunkCompactionTask implements Runnable {
+
+  private static final Logger LOG = LoggerFactory.getLogger(ChunkCompactionTask.class);
+
+  public static final Duration DEFAULT_BLOCK_DURATION = Duration.ofHours(6);
+
+  private final ChunkManager chunkManager;
+  private final long blockDurationSecs;
+
+  public ChunkCompactionTask(ChunkManager chunkManager) {
+    this(chunkManager, DEFAULT_BLOCK_DURATION);
+  }
+
+  public ChunkCompactionTask(ChunkManager chunkManager, Duration blockDuration) {
+    long chunkDurationSecs = chunkManager.getChunkDuration().getSeconds();
+    if (blockDuration.getSeconds() <= chunkDurationSecs
+        || blockDuration.getSeconds() % chunkDurationSecs != 0) {
+      throw new IllegalArgumentException("Block duration " + blockDuration
+          + " should be a multiple of the chunk duration " + chunkManager.getChunkDuration());
+    }
+    this.chunkManager = chunkManager;
+    this.blockDurationSecs = blockDuration.getSeconds();
+  }
+
+  @Override
+  public void run() {
+    try {
+      compactChunks();
+    } catch (Exception e) {
+      LOG.error("Chunk compaction task failed with an error", e);
+    }
+  }
+
+  /**
+   * Compact the adjacent read only chunks of every block whose chunks are all moved off heap.
+   * @return the number of compacted blocks.
+   */
+  @VisibleForTesting
+  int compactChunks() {
+    LOG.info("Starting chunk compaction task for blocks of {} seconds.", blockDurationSecs);
+    List<Chunk> chunks = chunkManager.getChunkMap().values().stream()
+        .sorted(Comparator.comparingLong(chunk -> chunk.info().startTimeSecs))
+        .collect(Collectors.toList());
+    // Only the blocks that end before the first chunk that accepts writes or is still being moved
+    // off heap are compacted.
+    long compactionCutoffSecs = chunks.stream()
+        .filter(chunk -> !ChunkManager.isSealed(chunk))
+        .mapToLong(chunk -> chunk.info().startTimeSecs)
+        .min()
+        .orElse(Long.MAX_VALUE);
+
+    int compactedBlocks = 0;
+    for (List<Chunk> adjacentChunks : getAdjacentChunksInBlocks(chunks, compactionCutoffSecs)) {
+      try {
+        if (chunkManager.compactChunks(adjacentChunks) != null) {
+          compactedBlocks++;
+        }
+      } catch (Exception e) {
+        LOG.error("Failed to compact chunks {}.", adjacentChunks, e);
+      }
+    }
+    LOG.info("Finished chunk compaction task. Compacted {} blocks.", compactedBlocks);
+    return compactedBlocks;
+  }
+
+  /**
+   * Group the sealed chunks, sorted by start time, into runs of adjacent chunks that are in the
+   * same block. The runs with a single chunk are skipped unless there are sealed head chunks or
+   * sealed late chunks to merge into it.
+   */
+  private List<List<Chunk>> getAdjacentChunksInBlocks(List<Chunk> chunks,
+                                                      long compactionCutoffSecs) {
+    List<List<Chunk>> result = new ArrayList<>();
+    List<Chunk> run = new ArrayList<>();
+    for (Chunk chunk : chunks) {
+      ChunkInfo info = chunk.info();
+      long blockStartSecs = info.startTimeSecs - info.startTimeSecs % blockDurationSecs;
+      boolean isCompactable = ChunkManager.isSealed(chunk)
+          && info.endTimeSecs <= blockStartSecs + blockDurationSecs
+          && blockStartSecs + blockDurationSecs <= compactionCutoffSecs;
+      if (!isCompactable) {
+        addRun(result, run);
+        run = new ArrayList<>();
+        continue;
+      }
+
+      if (!run.isEmpty()) {
+        ChunkInfo lastInfo = run.get(run.size() - 1).info();
+        if (lastInfo.endTimeSecs != info.startTimeSecs
+            || lastInfo.startTimeSecs - lastInfo.startTimeSecs % blockDurationSecs
+            != blockStartSecs) {
+          addRun(result, run);
+          run = new ArrayList<>();
+        }
+      }
+      run.add(chunk);
+    }
+    addRun(result, run);
+    return result;
+  }
+
+  private void addRun(List<List<Chunk>> result, List<Chunk> run) {
+    if (run.size() > 1
+        || (run.size() == 1 && chunkManager.hasSealedChunksInTimeRange(run.get(0)))) {
+      result.add(run);
+    }
+  }
+}
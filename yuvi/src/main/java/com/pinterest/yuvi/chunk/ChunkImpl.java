@@ -1,15 +1,18 @@
 package com.pinterest.yuvi.chunk;
 
 import com.pinterest.yuvi.metricandtagstore.MetricAndTagStore;
+import com.pinterest.yuvi.metricandtagstore.MetricBatch;
 import com.pinterest.yuvi.models.TimeSeries;
 import com.pinterest.yuvi.tagstore.Metric;
 import com.pinterest.yuvi.tagstore.Query;
 
+import org.roaringbitmap.RoaringBitmap;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
 import java.util.List;
 import java.util.Map;
+import java.util.function.IntFunction;
 
 public class ChunkImpl implements Chunk {
 
@@ -29,11 +32,21 @@ public class ChunkImpl implements Chunk {
     return store.getSeries(query);
   }
 
+  @Override
+  public List<TimeSeries> query(RoaringBitmap ids, IntFunction<String> metricNames) {
+    return store.getSeries(ids, metricNames);
+  }
+
   @Override
   public void addPoint(Metric metric, long ts, double value) {
     store.addPoint(metric, ts, value);
   }
 
+  @Override
+  public void addPoints(MetricBatch batch) {
+    store.addPoints(batch);
+  }
+
   @Override
   public ChunkInfo info() {
     return chunkInfo;
@@ -51,6 +64,16 @@ public class ChunkImpl implements Chunk {
         || (chunkInfo.startTimeSecs >= startTs && chunkInfo.endTimeSecs <= endTs);
   }
 
+  @Override
+  public RoaringBitmap getSeriesIds() {
+    return store.getSeriesIds();
+  }
+
+  @Override
+  public boolean isEmpty() {
+    return store.isEmpty();
+  }
+
   @Override
   public Map<String, Object> getStats() {
     return store.getStats();
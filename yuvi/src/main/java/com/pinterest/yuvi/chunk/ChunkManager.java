@@ -5,10 +5,16 @@ import static java.util.stream.Collectors.mapping;
 import static java.util.stream.Collectors.toList;
 
 import com.pinterest.yuvi.metricandtagstore.MetricAndTagStore;
+import com.pinterest.yuvi.metricandtagstore.MetricBatch;
 import com.pinterest.yuvi.metricandtagstore.MetricsAndTagStoreImpl;
 import com.pinterest.yuvi.metricstore.MetricStore;
 import com.pinterest.yuvi.metricstore.VarBitMetricStore;
+import com.pinterest.yuvi.metricstore.VarBitTimeSeries;
 import com.pinterest.yuvi.metricstore.offheap.OffHeapVarBitMetricStore;
+import com.pinterest.yuvi.metricstore.offheap.SealingMetricStore;
+import com.pinterest.yuvi.metrics.Counter;
+import com.pinterest.yuvi.metrics.LatencyHistogram;
+import com.pinterest.yuvi.metrics.MetricsRegistry;
 import com.pinterest.yuvi.models.Point;
 import com.pinterest.yuvi.models.Points;
 import com.pinterest.yuvi.models.TimeSeries;
@@ -18,22 +24,39 @@ import com.pinterest.yuvi.tagstore.Query;
 import com.pinterest.yuvi.tagstore.TagStore;
 
 import com.google.common.annotations.VisibleForTesting;
+import com.google.common.base.Supplier;
+import com.google.common.base.Suppliers;
+import org.roaringbitmap.RoaringBitmap;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
 import java.time.Duration;
 import java.time.Instant;
 import java.util.AbstractMap;
+import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.Collection;
+import java.util.Comparator;
+import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
 import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+import java.util.concurrent.locks.ReadWriteLock;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+import java.util.function.Consumer;
+import java.util.function.IntFunction;
 import java.util.stream.Collectors;
+import java.util.stream.Stream;
 
 /**
  * Each instance of yuvi stores the last N hours of time series data. That data is broken down
- * into 2 hours worth of time series data called a chunk. So, if the ChunkManager stores a day worth
- * of data there will be 12 chunks in a yuvi instance. The ChunkManager is a class that manages
+ * into chunks of time series data, 2 hours worth by default. So, if the ChunkManager stores a day
+ * worth of data there will be 12 chunks in a yuvi instance. The chunk duration can be configured
+ * per ChunkManager: smaller chunks can be moved off heap sooner, while larger chunks have less
+ * per chunk overhead. The ChunkManager is a class that manages
  * the chunks in a yuvi instance.
  */
 @SuppressWarnings("unchecked")
@@ -41,66 +64,325 @@ public class ChunkManager {
 
   private static final Logger LOG = LoggerFactory.getLogger(ChunkManager.class);
 
-  public static Duration DEFAULT_CHUNK_DURATION = Duration.ofMinutes(120);  // 2 hours.
+  public static final Duration DEFAULT_CHUNK_DURATION = Duration.ofMinutes(120);  // 2 hours.
+
+  // The chunk duration is the block size of the time series in a chunk, so the first timestamp
+  // of a series always fits in its block header.
+  public static final Duration MAX_CHUNK_DURATION =
+      Duration.ofSeconds(VarBitTimeSeries.MAX_BLOCK_HEADER_OFFSET_SECS);
+
+  public static final long DEFAULT_QUERY_CACHE_SIZE_BYTES = 64 * 1024 * 1024;  // 64MB.
+
+  // The number of series moved off heap at a time when a chunk is made read only.
+  public static final int DEFAULT_SEAL_SLICE_SIZE = 10_000;
+
+  private static final int MAX_CHUNK_BATCH_SIZE = 1000;
+
+  private static final int LATE_METRIC_STORE_SIZE = 16;
+
+  // Number of slots in the chunk lookup ring. It should be larger than the number of chunks that
+  // accept writes at the same time.
+  private static final int CHUNK_RING_SIZE = 64;
+
+  private static final LatencyHistogram ADD_METRIC_LATENCY =
+      MetricsRegistry.getDefault().histogram("chunkManager.addMetric");
+  private static final LatencyHistogram ADD_METRICS_LATENCY =
+      MetricsRegistry.getDefault().histogram("chunkManager.addMetrics");
+  private static final Counter CHUNK_RING_HITS =
+      MetricsRegistry.getDefault().counter("chunkManager.getChunk.ringHits");
+  private static final Counter CHUNK_RING_MISSES =
+      MetricsRegistry.getDefault().counter("chunkManager.getChunk.ringMisses");
+  private static final LatencyHistogram QUERY_LATENCY =
+      MetricsRegistry.getDefault().histogram("chunkManager.query");
+  private static final LatencyHistogram SEAL_CHUNK_LATENCY =
+      MetricsRegistry.getDefault().histogram("chunkManager.sealChunk");
+  private static final LatencyHistogram DELETE_CHUNK_LATENCY =
+      MetricsRegistry.getDefault().histogram("chunkManager.deleteChunk");
+  private static final LatencyHistogram DELETE_STALE_SERIES_LATENCY =
+      MetricsRegistry.getDefault().histogram("chunkManager.deleteStaleSeries");
 
   private Object chunkMapSync = new Object();
 
   private final String dataDirectory;
 
   /**
-   * Each chunk contains 2 hours worth of data. The chunk map is a map whose key is start time of a
-   * 2 hours timestamp and value is a chunk for those 2 hours.
+   * Each chunk contains chunkDuration worth of data. The chunk map is a map whose key is the start
+   * time of a chunk and value is the chunk for that duration.
    */
   private final Map<Long, Chunk> chunkMap;
 
+  /**
+   * A lock free cache of the chunks in chunkMap, indexed by timestamp / chunk duration modulo the
+   * ring size. getChunk checks the ring before the chunk map, so looking up an existing chunk
+   * doesn't box the chunk start time or take a lock. A compacted chunk is cached in the slots of
+   * all the chunk durations it covers. A slot is cleared whenever its chunk is replaced or removed
+   * from the chunk map.
+   */
+  private final AtomicReferenceArray<Chunk> chunkRing = new AtomicReferenceArray<>(CHUNK_RING_SIZE);
+
   private final String chunkDataPrefix;
 
+  private final Duration chunkDuration;
+
+  private final long chunkDurationSecs;
+
   private final TagStore tagStore;
 
+  /**
+   * The tag store is shared by all chunks. When a chunk is removed, the metrics that are not in
+   * any other chunk are deleted from the tag store. Adding a point takes the read lock and
+   * deleting the metrics takes the write lock, so a metric can't be deleted between looking up its
+   * id and adding it to a chunk.
+   */
+  private final ReadWriteLock tagStoreLock = new ReentrantReadWriteLock();
+
+  /**
+   * Caches the query results of read only chunks.
+   */
+  private final ChunkQueryCache queryCache;
+
+  /**
+   * The points of a series are sorted within this window before they are encoded.
+   */
+  private final int reorderWindowSecs;
+
+  /**
+   * If storeLatePoints is set, the points for read only chunks are stored in late chunks instead
+   * of being rejected. A late chunk is an on heap chunk that covers the same time range as a
+   * regular chunk and is keyed by its start time. Queries merge the points of the late chunks
+   * with the points of the other chunks, and a late chunk is deleted with the stale chunk that
+   * contains its time range. Once a late chunk is past the off heap cut off, sealLateChunks moves
+   * it to sealedLateChunkMap and off heap, and the later late points of its time range are added
+   * to a new late chunk.
+   */
+  private final boolean storeLatePoints;
+
+  private final Map<Long, Chunk> lateChunkMap = new ConcurrentHashMap<>();
+
+  /**
+   * The late chunks that were sealed, keyed by their chunk info. Like the sealed head chunks, they
+   * are merged into the compacted chunk of their time range, or deleted with the stale chunk that
+   * contains their time range.
+   */
+  private final Map<ChunkInfo, Chunk> sealedLateChunkMap = new ConcurrentHashMap<>();
+
+  private final AtomicInteger lateChunks = new AtomicInteger();
+
+  /**
+   * The head chunks that were sealed before their end time, keyed by their chunk info. The time
+   * range of a sealed head chunk is also covered by the head chunk that replaced it in the chunk
+   * map, so queries merge the points of both. A sealed head chunk is merged into the compacted
+   * chunk of its time range, or like a late chunk, deleted with the stale chunk that contains its
+   * time range.
+   */
+  private final Map<ChunkInfo, Chunk> sealedHeadChunkMap = new ConcurrentHashMap<>();
+
+  private final AtomicInteger sealedHeadChunks = new AtomicInteger();
+
+  // Numbers the compacted chunks that replace a compacted chunk of the same time range, so each
+  // compacted chunk has its own data set.
+  private final AtomicInteger compactedChunkVersions = new AtomicInteger();
+
+  /**
+   * The number of queries running on this chunk manager. Background tasks use it as a hint to
+   * back off when the query load is high.
+   */
+  private final AtomicInteger activeQueries = new AtomicInteger();
+
   public ChunkManager(String chunkDataPrefix, int expectedTagStoreSize) {
     this(chunkDataPrefix, expectedTagStoreSize, "");
   }
 
   public ChunkManager(String chunkDataPrefix, int expectedTagStoreSize, String dataDirectory) {
+    this(chunkDataPrefix, expectedTagStoreSize, dataDirectory, DEFAULT_QUERY_CACHE_SIZE_BYTES);
+  }
+
+  public ChunkManager(String chunkDataPrefix, int expectedTagStoreSize, String dataDirectory,
+                      long queryCacheSizeBytes) {
+    this(chunkDataPrefix, expectedTagStoreSize, dataDirectory, queryCacheSizeBytes,
+        DEFAULT_CHUNK_DURATION);
+  }
+
+  public ChunkManager(String chunkDataPrefix, int expectedTagStoreSize, String dataDirectory,
+                      long queryCacheSizeBytes, Duration chunkDuration) {
+    this(chunkDataPrefix, expectedTagStoreSize, dataDirectory, queryCacheSizeBytes, chunkDuration,
+        Duration.ZERO, false);
+  }
+
+  /**
+   * @param reorderWindow the points of a series within the reorder window of its latest point are
+   *                      sorted before they are encoded. Duration.ZERO disables the reordering.
+   * @param storeLatePoints store the points for read only chunks in late chunks instead of
+   *                        rejecting them.
+   */
+  public ChunkManager(String chunkDataPrefix, int expectedTagStoreSize, String dataDirectory,
+                      long queryCacheSizeBytes, Duration chunkDuration, Duration reorderWindow,
+                      boolean storeLatePoints) {
+    if (chunkDuration == null || chunkDuration.getSeconds() <= 0 || chunkDuration.getNano() != 0
+        || chunkDuration.compareTo(MAX_CHUNK_DURATION) > 0) {
+      throw new IllegalArgumentException("Chunk duration should be a whole number of seconds "
+          + "between 1 second and " + MAX_CHUNK_DURATION + ": " + chunkDuration);
+    }
+    if (reorderWindow == null || reorderWindow.isNegative() || reorderWindow.getNano() != 0
+        || reorderWindow.compareTo(chunkDuration) >= 0) {
+      throw new IllegalArgumentException("Reorder window should be a whole number of seconds "
+          + "shorter than the chunk duration: " + reorderWindow);
+    }
+    this.chunkDuration = chunkDuration;
+    this.chunkDurationSecs = chunkDuration.getSeconds();
+    this.reorderWindowSecs = (int) reorderWindow.getSeconds();
+    this.storeLatePoints = storeLatePoints;
     this.dataDirectory = dataDirectory;
     chunkMap = new ConcurrentHashMap<>();
     this.chunkDataPrefix = chunkDataPrefix;
     this.tagStore =
         new InvertedIndexTagStore(expectedTagStoreSize, expectedTagStoreSize, dataDirectory);
-    LOG.info("Created a chunk manager with prefix {}, initial tag store size {} and dataDirectory {}",
-        chunkDataPrefix, expectedTagStoreSize, dataDirectory);
+    this.queryCache = new ChunkQueryCache(queryCacheSizeBytes);
+    LOG.info("Created a chunk manager with prefix {}, initial tag store size {}, dataDirectory {}, "
+            + "query cache size {}, chunk duration {}, reorder window {} and storeLatePoints {}",
+        chunkDataPrefix, expectedTagStoreSize, dataDirectory, queryCacheSizeBytes, chunkDuration,
+        reorderWindow, storeLatePoints);
+  }
+
+  public Duration getChunkDuration() {
+    return chunkDuration;
   }
 
   private Chunk makeChunk(long startTime) {
-    Instant endTime = Instant.ofEpochSecond(startTime)
-        .plusMillis(DEFAULT_CHUNK_DURATION.toMillis());
+    return makeChunk(startTime, chunkDataPrefix + "_" + startTime);
+  }
+
+  private Chunk makeChunk(long startTime, String dataSet) {
+    Instant endTime = Instant.ofEpochSecond(startTime).plus(chunkDuration);
 
     return new ChunkImpl(
-        new MetricsAndTagStoreImpl(tagStore, new VarBitMetricStore()),
-        new ChunkInfo(chunkDataPrefix + "_" + startTime, startTime, endTime.getEpochSecond()));
+        new MetricsAndTagStoreImpl(tagStore, new VarBitMetricStore(
+            VarBitMetricStore.DEFAULT_METRIC_STORE_SIZE, (int) chunkDurationSecs,
+            reorderWindowSecs)),
+        new ChunkInfo(dataSet, startTime, endTime.getEpochSecond()));
+  }
+
+  private Chunk makeLateChunk(long startTime) {
+    Instant endTime = Instant.ofEpochSecond(startTime).plus(chunkDuration);
+
+    // Late points are rare, so start with a small metric store. A time range can have several
+    // late chunks over time, since a late chunk is replaced once it's sealed, so each late chunk
+    // has its own data set.
+    return new ChunkImpl(
+        new MetricsAndTagStoreImpl(tagStore, new VarBitMetricStore(
+            LATE_METRIC_STORE_SIZE, (int) chunkDurationSecs, reorderWindowSecs)),
+        new ChunkInfo(chunkDataPrefix + "_late_" + startTime + "_" + lateChunks.incrementAndGet(),
+            startTime, endTime.getEpochSecond()));
+  }
+
+  /**
+   * Get the chunk that a point at the timestamp should be written to. If the chunk of the
+   * timestamp is read only and late points are stored, the late chunk of the timestamp is
+   * returned.
+   */
+  private Chunk getChunkForWrite(long timestamp) {
+    Chunk chunk = getChunk(timestamp);
+    if (chunk.isReadOnly() && storeLatePoints) {
+      return lateChunkMap.computeIfAbsent(timestamp - timestamp % chunkDurationSecs,
+          this::makeLateChunk);
+    }
+    return chunk;
+  }
+
+  /**
+   * Add points to the chunk of the timestamp. The chunk is looked up under the tag store read lock,
+   * and the chunk manager only makes a chunk read only under the write lock, so the chunk can't
+   * become read only while the points are added. If the chunk was made read only some other way
+   * after it was looked up, it is looked up again, so the points go to the late chunk if late
+   * points are stored.
+   *
+   * @throws ReadOnlyChunkInsertionException if the chunk of the timestamp is read only.
+   */
+  private void addToChunk(long timestamp, Consumer<Chunk> addPoints) {
+    tagStoreLock.readLock().lock();
+    try {
+      Chunk chunk = getChunkForWrite(timestamp);
+      try {
+        addPoints.accept(checkWritable(chunk));
+      } catch (ReadOnlyChunkInsertionException e) {
+        Chunk retryChunk = getChunkForWrite(timestamp);
+        if (retryChunk == chunk) {
+          throw e;
+        }
+        addPoints.accept(checkWritable(retryChunk));
+      }
+    } finally {
+      tagStoreLock.readLock().unlock();
+    }
+  }
+
+  private static Chunk checkWritable(Chunk chunk) {
+    if (chunk.isReadOnly()) {
+      throw new ReadOnlyChunkInsertionException("Inserting metrics into a read only store: "
+          + chunk.info());
+    }
+    return chunk;
   }
 
   /**
    * Get or create a chunk for a specific timestamp from chunkMap.
    */
   public Chunk getChunk(long timestamp) {
-    // Check current chunk range.
-    long twoHourTimestampOverage = timestamp % DEFAULT_CHUNK_DURATION.getSeconds();
-    long blockHeaderTimestamp = timestamp - twoHourTimestampOverage;
-    if (chunkMap.containsKey(blockHeaderTimestamp)) {
-      return chunkMap.get(blockHeaderTimestamp);
-    } else {
-      // Since multiple points may be inserted at the same time and map updated sync here.
-      synchronized (chunkMapSync) {
-        Chunk newChunk = makeChunk(blockHeaderTimestamp);
-        Chunk prevChunk = chunkMap.putIfAbsent(blockHeaderTimestamp, newChunk);
-        if (prevChunk == null) {
-          return newChunk;
-        } else {
-          // Because of the synchronized lock only one thread can create a chunk once.
-          LOG.warn("Possible race condition in Chunk Manager.");
-          return prevChunk;
-        }
+    long chunkIndex = timestamp / chunkDurationSecs;
+    long blockHeaderTimestamp = chunkIndex * chunkDurationSecs;
+    int slot = getRingSlot(chunkIndex);
+    Chunk chunk = chunkRing.get(slot);
+    if (chunk != null && chunk.info().startTimeSecs <= timestamp
+        && timestamp < chunk.info().endTimeSecs) {
+      CHUNK_RING_HITS.increment();
+      return chunk;
+    }
+
+    CHUNK_RING_MISSES.increment();
+    chunk = chunkMap.get(blockHeaderTimestamp);
+    if (chunk == null) {
+      // The chunks of a compacted block are only stored under the start time of the block, so
+      // a late point for the block finds the compacted chunk instead of creating a new chunk.
+      chunk = getCompactedChunk(timestamp);
+      if (chunk == null) {
+        chunk = chunkMap.computeIfAbsent(blockHeaderTimestamp, this::makeChunk);
+      }
+    }
+    chunkRing.set(slot, chunk);
+    // If the chunk was replaced or removed while it was cached, clear the slot, so the ring
+    // never returns a chunk that is not in the chunk map.
+    if (chunkMap.get(chunk.info().startTimeSecs) != chunk) {
+      chunkRing.compareAndSet(slot, chunk, null);
+    }
+    return chunk;
+  }
+
+  /**
+   * @return the compacted chunk whose time range contains the timestamp or null.
+   */
+  private Chunk getCompactedChunk(long timestamp) {
+    for (Chunk chunk : chunkMap.values()) {
+      if (chunk.info().startTimeSecs <= timestamp && timestamp < chunk.info().endTimeSecs) {
+        return chunk;
+      }
+    }
+    return null;
+  }
+
+  private static int getRingSlot(long chunkIndex) {
+    return (int) (chunkIndex & (CHUNK_RING_SIZE - 1));
+  }
+
+  /**
+   * Clear the ring slots of the chunk starting at the given time. It should be called after the
+   * chunk is replaced or removed from the chunk map. A compacted chunk can be cached in several
+   * slots, so all the slots are checked. The ring is small and chunks are rarely replaced.
+   */
+  private void uncacheChunk(long chunkStartTime) {
+    for (int slot = 0; slot < CHUNK_RING_SIZE; slot++) {
+      Chunk chunk = chunkRing.get(slot);
+      if (chunk != null && chunk.info().startTimeSecs == chunkStartTime) {
+        chunkRing.compareAndSet(slot, chunk, null);
       }
     }
   }
@@ -117,6 +399,7 @@ public class ChunkManager {
    * handle metrics in multiple formats in future, we can make this logic more pluggable.
    */
   public void addMetric(final String metricString) {
+    long startNs = System.nanoTime();
     try {
       String[] metricParts = metricString.split(" ");
       if (metricParts.length > 1 && metricParts[0].equals("put")) {
@@ -126,13 +409,7 @@ public class ChunkManager {
         long ts = Long.parseLong(metricParts[2].trim());
         double value = Double.parseDouble(metricParts[3].trim());
 
-        Chunk chunk = getChunk(ts);
-        if (!chunk.isReadOnly()) {
-          chunk.addPoint(metric, ts, value);
-        } else {
-          throw new ReadOnlyChunkInsertionException("Inserting metric into a read only store:"
-              + metricString);
-        }
+        addToChunk(ts, chunk -> chunk.addPoint(metric, ts, value));
       } else {
         throw new IllegalArgumentException("Metric doesn't start with a put: " + metricString);
       }
@@ -141,13 +418,72 @@ public class ChunkManager {
     } catch (Exception e) {
       LOG.error("metric failed with exception: ", e);
       throw new IllegalArgumentException("Invalid metric string " + metricString, e);
+    } finally {
+      ADD_METRIC_LATENCY.recordSince(startNs);
+    }
+  }
+
+  /**
+   * Parse and ingest a batch of metric strings in the same format as addMetric. The points are
+   * grouped by chunk, so each chunk is looked up once and the new metrics of a chunk are created
+   * together in the tag store. The points are added in the order of the batch. A large batch is
+   * added to a chunk in parts of at most MAX_CHUNK_BATCH_SIZE points, so the parsed metrics don't
+   * outlive the young generation.
+   *
+   * Unlike addMetric, the invalid and delayed metrics don't throw an exception, but are counted in
+   * the result.
+   */
+  public AddMetricsResult addMetrics(final List<String> metricStrings) {
+    long startNs = System.nanoTime();
+    ChunkBatcher batcher = new ChunkBatcher();
+    for (String metricString : metricStrings) {
+      try {
+        String[] metricParts = metricString.split(" ");
+        if (metricParts.length > 1 && metricParts[0].equals("put")) {
+          String metricName = metricParts[1].trim();
+          List<String> rawTags = Arrays.asList(metricParts).subList(4, metricParts.length);
+          Metric metric = new Metric(metricName, rawTags);
+          long ts = Long.parseLong(metricParts[2].trim());
+          double value = Double.parseDouble(metricParts[3].trim());
+          batcher.add(metric, ts, value);
+        } else {
+          throw new IllegalArgumentException("Metric doesn't start with a put: " + metricString);
+        }
+      } catch (Exception e) {
+        LOG.error("Invalid metric string {}", metricString, e);
+        batcher.addInvalid(1);
+      }
+    }
+    AddMetricsResult result = batcher.finish();
+    ADD_METRICS_LATENCY.recordSince(startNs);
+    return result;
+  }
+
+  /**
+   * Ingest a batch of points that are already parsed, like the points decoded from a binary
+   * message. The points are grouped by chunk like in addMetrics.
+   */
+  public AddMetricsResult addPoints(final MetricBatch points) {
+    long startNs = System.nanoTime();
+    ChunkBatcher batcher = new ChunkBatcher();
+    for (int i = 0; i < points.size(); i++) {
+      try {
+        batcher.add(points.getMetric(i), points.getTimestamp(i), points.getValue(i));
+      } catch (Exception e) {
+        LOG.error("Invalid point {} {} {}", points.getMetric(i), points.getTimestamp(i),
+            points.getValue(i), e);
+        batcher.addInvalid(1);
+      }
     }
+    AddMetricsResult result = batcher.finish();
+    ADD_METRICS_LATENCY.recordSince(startNs);
+    return result;
   }
 
   /**
    * Query multiple chunks that contain data between startTs and endTs, merge their results. Return
    * a single list of time series events. This query assumes that the startTs and endTs align with
-   * 2 hour boundaries. Otherwise, we return data that aligns at 2 hour boundaries.
+   * chunk boundaries. Otherwise, we return data that aligns at chunk boundaries.
    *
    * Currently, the underlying time series store has to decode the entire time series to get the
    * values at the end of the series. So, it's better to return the entire range. Statsboard and
@@ -164,15 +500,32 @@ public class ChunkManager {
                                                      long endTsSecs,
                                                      QueryAggregation queryAggregation) {
 
-    // Select relavent chunks
-    List<Chunk> chunksContainingData = chunkMap.values().stream()
-        .filter(chunk -> chunk.containsDataInTimeRange(startTsSecs, endTsSecs))
-        .collect(toList());
+    // Select relavent chunks. Compacting and sealing move chunks between the maps under
+    // chunkMapSync, so the chunks are selected under it too, and a chunk is never seen both before
+    // and after it is merged into a compacted chunk. The points of the chunks are merged below,
+    // where a later point with the same timestamp wins. So, the chunks are ordered from the oldest
+    // writes to the latest: a sealed head chunk before the head chunk that replaced it, and the
+    // late chunks after the chunks of their time range.
+    List<Chunk> chunksContainingData = new ArrayList<>();
+    synchronized (chunkMapSync) {
+      Stream.of(sealedHeadChunkMap, chunkMap, sealedLateChunkMap, lateChunkMap)
+          .flatMap(chunks -> chunks.values().stream())
+          .filter(chunk -> chunk.containsDataInTimeRange(startTsSecs, endTsSecs))
+          .forEach(chunksContainingData::add);
+    }
+
+    // Since the tag store is shared by the chunks, the query is resolved to ids once and the name
+    // of each id is looked up once for all the chunks. The ids are looked up lazily, so a query
+    // that is answered from the query cache doesn't evaluate the query.
+    Supplier<RoaringBitmap> ids = Suppliers.memoize(() -> tagStore.lookupIds(query));
+    Map<Integer, String> metricNames = new ConcurrentHashMap<>();
+    IntFunction<String> metricNameLookup =
+        id -> metricNames.computeIfAbsent(id, tagStore::getMetricName);
 
     // TODO: Replace parallelStream with a dedicated thread pool.
     // Query the chunks in parallel.
     List<List<TimeSeries>> pointsFromChunks = chunksContainingData.parallelStream()
-        .map(chunk -> chunk.query(query))
+        .map(chunk -> queryChunk(chunk, query, ids, metricNameLookup))
         .collect(toList());
 
     // Group results by metric name
@@ -208,13 +561,43 @@ public class ChunkManager {
     }
   }
 
+  /**
+   * Query a single chunk. Since a read only chunk can't change, its results are served from the
+   * query cache when possible. The chunks that accept writes are always queried.
+   */
+  private List<TimeSeries> queryChunk(Chunk chunk, Query query, Supplier<RoaringBitmap> ids,
+                                      IntFunction<String> metricNames) {
+    if (!queryCache.isEnabled() || !chunk.isReadOnly()) {
+      return chunk.query(ids.get(), metricNames);
+    }
+
+    List<TimeSeries> cachedResult = queryCache.get(chunk.info(), query);
+    if (cachedResult != null) {
+      return cachedResult;
+    }
+    List<TimeSeries> result = chunk.query(ids.get(), metricNames);
+    queryCache.put(chunk.info(), query, result);
+    return result;
+  }
+
   /*
    * Query multiple chunks that contain data between scartTs and endTs, merge their results. Return
    * a single list of time series events.
    */
   public List<TimeSeries> query(Query query, long startTsSecs, long endTsSecs,
                                 QueryAggregation queryAggregation) {
-    return queryAroundChunkBoundaries(query, startTsSecs, endTsSecs, queryAggregation);
+    long startNs = System.nanoTime();
+    activeQueries.incrementAndGet();
+    try {
+      return queryAroundChunkBoundaries(query, startTsSecs, endTsSecs, queryAggregation);
+    } finally {
+      activeQueries.decrementAndGet();
+      QUERY_LATENCY.recordSince(startNs);
+    }
+  }
+
+  public int getActiveQueries() {
+    return activeQueries.get();
   }
 
   @VisibleForTesting
@@ -222,6 +605,31 @@ public class ChunkManager {
     return chunkMap;
   }
 
+  @VisibleForTesting
+  Map<Long, Chunk> getLateChunkMap() {
+    return lateChunkMap;
+  }
+
+  @VisibleForTesting
+  Map<ChunkInfo, Chunk> getSealedHeadChunkMap() {
+    return sealedHeadChunkMap;
+  }
+
+  @VisibleForTesting
+  Map<ChunkInfo, Chunk> getSealedLateChunkMap() {
+    return sealedLateChunkMap;
+  }
+
+  @VisibleForTesting
+  ChunkQueryCache getQueryCache() {
+    return queryCache;
+  }
+
+  @VisibleForTesting
+  TagStore getTagStore() {
+    return tagStore;
+  }
+
   /**
    * This code is only called during tests and benchmarks. So, the big sync lock is not an issue
    * in practice.
@@ -239,6 +647,7 @@ public class ChunkManager {
 
       chunkMap.clear();
       chunkMap.putAll(offHeapChunkMap);
+      offHeapChunkMap.keySet().forEach(this::uncacheChunk);
       LOG.info("Moved all chunks to off heap.");
     }
   }
@@ -251,42 +660,260 @@ public class ChunkManager {
     MetricStore offHeapMetricStore =
         OffHeapVarBitMetricStore.toOffHeapStore(seriesMap, chunk.info().dataSet, dataDirectory);
 
-    MetricAndTagStore newMetricAndTagStore =
-        new MetricsAndTagStoreImpl(metricsAndTagStore.getTagStore(), offHeapMetricStore);
+    MetricAndTagStore newMetricAndTagStore = new MetricsAndTagStoreImpl(
+        metricsAndTagStore.getTagStore(), offHeapMetricStore, metricsAndTagStore.getSeriesIds());
 
     return new ChunkImpl(newMetricAndTagStore, chunkImpl.info());
   }
 
   public void toReadOnlyChunks(List<Map.Entry<Long, Chunk>> expiredChunks) {
+    toReadOnlyChunks(expiredChunks, DEFAULT_SEAL_SLICE_SIZE);
+  }
+
+  public void toReadOnlyChunks(List<Map.Entry<Long, Chunk>> expiredChunks, int sealSliceSize) {
+    toReadOnlyChunks(expiredChunks, sealSliceSize, Thread::yield);
+  }
+
+  /**
+   * Mark the chunks read only and move them off heap. A chunk is moved off heap sealSliceSize
+   * series at a time through a SealingMetricStore, which serves queries from the series that are
+   * already off heap and the series that are still on heap. So, the heap memory of a chunk is
+   * freed as its series are moved, and the chunk is never unavailable to queries.
+   *
+   * @param sealThrottle is called before every slice except the first one of a chunk. It can
+   *                     block to limit the cost of moving the chunks off heap.
+   */
+  public void toReadOnlyChunks(List<Map.Entry<Long, Chunk>> expiredChunks, int sealSliceSize,
+                               Runnable sealThrottle) {
+    if (sealSliceSize <= 0) {
+      throw new IllegalArgumentException("Invalid seal slice size " + sealSliceSize);
+    }
     LOG.info("Chunks past on heap cut off are: {}", expiredChunks);
 
     expiredChunks.forEach(entry -> {
       try {
-        if (chunkMap.containsKey(entry.getKey())) {
-          final Chunk chunk = entry.getValue();
+        final Chunk chunk = entry.getValue();
+        // Set the chunk to read only before moving it off heap so it can't be changed. Take the
+        // write lock, so the points being added to the chunk are added before it is made read
+        // only and the later points see that it is read only. The chunk is only sealed if it is
+        // still in the chunk map, since sealHeadChunk may have replaced it with a new head chunk.
+        final boolean isInChunkMap;
+        tagStoreLock.writeLock().lock();
+        try {
+          synchronized (chunkMapSync) {
+            isInChunkMap = chunkMap.get(entry.getKey()) == chunk;
+            if (isInChunkMap) {
+              chunk.setReadOnly(true);
+            }
+          }
+        } finally {
+          tagStoreLock.writeLock().unlock();
+        }
+
+        if (isInChunkMap) {
           LOG.info("Moving chunk {} to off heap.", chunk.info());
+          AtomicReference<Chunk> currentChunk = new AtomicReference<>(chunk);
+          sealChunk(chunk, sealSliceSize, sealThrottle, sealedChunk -> {
+            if (replaceChunk(entry.getKey(), currentChunk.get(), sealedChunk)) {
+              currentChunk.set(sealedChunk);
+            } else {
+              LOG.warn("Chunk {} was replaced or removed while it was moved off heap.",
+                  chunk.info());
+            }
+          });
+          LOG.info("Moved chunk {} to off heap.", chunk.info());
+        } else {
+          LOG.warn("Possible bug or race condition! Chunk {} was replaced or removed from chunk "
+              + "map {}.", entry, chunkMap);
+        }
+      } catch (Exception e) {
+        LOG.error("Exception when moving a chunk {} off heap.", entry.getKey(), e);
+      }
+    });
+  }
+
+  /**
+   * Seal the head chunk, the chunk that accepts writes with the latest start time, before its end
+   * time and move it off heap, so the heap memory of its series is freed. A new head chunk is
+   * started for the same time range, so the points for the rest of the time range are added to
+   * the new head chunk and queries merge the points of both chunks. Since the series of the time
+   * range are split across two chunks, the compression ratio is a bit worse, but the heap usage
+   * drops without waiting for the end of the chunk.
+   *
+   * @return the info of the sealed chunk or null if there is no head chunk with data.
+   */
+  public ChunkInfo sealHeadChunk() {
+    final Chunk headChunk;
+    // Take the write lock, so the points being added to the head chunk are added before it is
+    // made read only.
+    tagStoreLock.writeLock().lock();
+    try {
+      synchronized (chunkMapSync) {
+        headChunk = chunkMap.values().stream()
+            .filter(chunk -> !chunk.isReadOnly())
+            .max(Comparator.comparingLong(chunk -> chunk.info().startTimeSecs))
+            .orElse(null);
+        if (headChunk == null || headChunk.isEmpty()) {
+          LOG.info("There is no head chunk with data to seal.");
+          return null;
+        }
+
+        // The new head chunk has its own data set, so it doesn't share the query cache entries
+        // and the off heap files of the sealed chunk.
+        long startTime = headChunk.info().startTimeSecs;
+        sealedHeadChunkMap.put(headChunk.info(), headChunk);
+        chunkMap.put(startTime, makeChunk(startTime,
+            chunkDataPrefix + "_" + startTime + "_part" + sealedHeadChunks.incrementAndGet()));
+        uncacheChunk(startTime);
+      }
+      headChunk.setReadOnly(true);
+    } finally {
+      tagStoreLock.writeLock().unlock();
+    }
 
-          // Set the chunk to read only before moving it off heap so it can't be changed.
-          chunk.setReadOnly(true);
-          Chunk readOnlyChunk = toOffHeapChunk(chunk);
+    LOG.info("Sealing head chunk {} before its end time.", headChunk.info());
+    sealChunk(sealedHeadChunkMap, headChunk, DEFAULT_SEAL_SLICE_SIZE, Thread::yield);
+    return headChunk.info();
+  }
 
+  /**
+   * Seal the late chunks past the off heap cut off and move them off heap like toReadOnlyChunks,
+   * so the late points of a long backfill don't stay on heap until their time range is deleted.
+   * A sealed late chunk is moved to sealedLateChunkMap, so the late points that arrive after it
+   * is made read only are added to a new late chunk.
+   *
+   * @param lateChunks entries of the late chunk map.
+   * @param sealThrottle is called before every slice except the first one of a chunk.
+   */
+  public void sealLateChunks(List<Map.Entry<Long, Chunk>> lateChunks, int sealSliceSize,
+                             Runnable sealThrottle) {
+    if (sealSliceSize <= 0) {
+      throw new IllegalArgumentException("Invalid seal slice size " + sealSliceSize);
+    }
+    LOG.info("Late chunks past on heap cut off are: {}", lateChunks);
+
+    lateChunks.forEach(entry -> {
+      try {
+        final Chunk chunk = entry.getValue();
+        // Take the write lock, so the late points being added to the chunk are added before it is
+        // made read only and the later late points start a new late chunk.
+        final boolean isLateChunk;
+        tagStoreLock.writeLock().lock();
+        try {
           synchronized (chunkMapSync) {
-            Chunk oldChunk = chunkMap.put(entry.getKey(), readOnlyChunk);
-            // Close the old chunk to free up memory faster.
-            oldChunk.close();
+            isLateChunk = lateChunkMap.remove(entry.getKey(), chunk);
+            if (isLateChunk) {
+              sealedLateChunkMap.put(chunk.info(), chunk);
+              chunk.setReadOnly(true);
+            }
           }
+        } finally {
+          tagStoreLock.writeLock().unlock();
+        }
 
-          LOG.info("Moved chunk {} to off heap.", chunk.info());
+        if (isLateChunk) {
+          LOG.info("Moving late chunk {} to off heap.", chunk.info());
+          sealChunk(sealedLateChunkMap, chunk, sealSliceSize, sealThrottle);
         } else {
-          LOG.warn("Possible bug or race condition! Chunk {} doesn't exist in chunk map {}.",
-              entry, chunkMap);
+          LOG.warn("Possible bug or race condition! Late chunk {} was replaced or removed from "
+              + "late chunk map {}.", entry, lateChunkMap);
         }
       } catch (Exception e) {
-        LOG.error("Exception when moving a chunk {} off heap.", entry.getKey(), e);
+        LOG.error("Exception when moving a late chunk {} off heap.", entry.getKey(), e);
+      }
+    });
+  }
+
+  /**
+   * Move a read only chunk that is stored in a map of sealed chunks off heap.
+   */
+  private void sealChunk(Map<ChunkInfo, Chunk> sealedChunkMap, Chunk chunk, int sealSliceSize,
+                         Runnable sealThrottle) {
+    AtomicReference<Chunk> currentChunk = new AtomicReference<>(chunk);
+    sealChunk(chunk, sealSliceSize, sealThrottle, sealedChunk -> {
+      if (sealedChunkMap.replace(chunk.info(), currentChunk.get(), sealedChunk)) {
+        currentChunk.set(sealedChunk);
       }
     });
   }
 
+  /**
+   * Move a read only chunk off heap a slice of series at a time.
+   * @param replaceChunk swaps the chunk being sealed with the given chunk where it is stored.
+   */
+  private void sealChunk(Chunk chunk, int sealSliceSize, Runnable sealThrottle,
+                         Consumer<Chunk> replaceChunk) {
+    long startNs = System.nanoTime();
+    MetricsAndTagStoreImpl metricsAndTagStore =
+        (MetricsAndTagStoreImpl) ((ChunkImpl) chunk).getStore();
+    VarBitMetricStore heapStore = (VarBitMetricStore) metricsAndTagStore.getMetricStore();
+    // An empty chunk can be compacted as soon as it is read only, so only check its series ids,
+    // which are still there after it is closed.
+    if (metricsAndTagStore.isEmpty()) {
+      LOG.info("Chunk {} is empty. Keeping the read only chunk on heap.", chunk.info());
+      return;
+    }
+
+    RoaringBitmap seriesIds = metricsAndTagStore.getSeriesIds();
+    SealingMetricStore sealingStore =
+        new SealingMetricStore(heapStore, chunk.info().dataSet, dataDirectory);
+    replaceChunk.accept(
+        new ChunkImpl(new MetricsAndTagStoreImpl(tagStore, sealingStore, seriesIds), chunk.info()));
+    int sealedSlices = 0;
+    while (!sealingStore.isSealed()) {
+      if (sealedSlices > 0) {
+        sealThrottle.run();
+      }
+      sealingStore.sealSeries(sealSliceSize);
+      sealedSlices++;
+    }
+    if (sealingStore.getFailedSeries() > 0) {
+      // Keep the sealing store, so the series that failed to move are still read from the heap.
+      LOG.error("Failed to move {} series of chunk {} off heap. Keeping them on heap.",
+          sealingStore.getFailedSeries(), chunk.info());
+      return;
+    }
+    // The heap store is empty by now, so only the off heap store is kept.
+    replaceChunk.accept(new ChunkImpl(
+        new MetricsAndTagStoreImpl(tagStore, sealingStore.getOffHeapStore(), seriesIds),
+        chunk.info()));
+    SEAL_CHUNK_LATENCY.recordSince(startNs);
+    LOG.info("Moved chunk {} off heap in {} slices.", chunk.info(), sealedSlices);
+  }
+
+  /**
+   * @return true if the chunk is read only and is done moving off heap, so sealing won't replace
+   * or read its store anymore. An empty chunk is kept on heap once it is read only, and a chunk
+   * whose series failed to move off heap keeps its sealing store.
+   */
+  static boolean isSealed(Chunk chunk) {
+    if (!chunk.isReadOnly() || !(chunk instanceof ChunkImpl)
+        || !(((ChunkImpl) chunk).getStore() instanceof MetricsAndTagStoreImpl)) {
+      return false;
+    }
+    MetricsAndTagStoreImpl store = (MetricsAndTagStoreImpl) ((ChunkImpl) chunk).getStore();
+    MetricStore metricStore = store.getMetricStore();
+    if (metricStore instanceof SealingMetricStore) {
+      SealingMetricStore sealingStore = (SealingMetricStore) metricStore;
+      return sealingStore.isSealed() && sealingStore.getFailedSeries() > 0;
+    }
+    return metricStore instanceof OffHeapVarBitMetricStore || store.isEmpty();
+  }
+
+  /**
+   * Replace the expected chunk in the chunk map with the given chunk.
+   * @return false if the chunk map no longer holds the expected chunk.
+   */
+  private boolean replaceChunk(long chunkStartTime, Chunk expectedChunk, Chunk chunk) {
+    synchronized (chunkMapSync) {
+      if (!chunkMap.replace(chunkStartTime, expectedChunk, chunk)) {
+        return false;
+      }
+      uncacheChunk(chunkStartTime);
+      return true;
+    }
+  }
+
   public void removeStaleChunks(List<Map.Entry<Long, Chunk>> staleChunks) {
     LOG.info("Stale chunks to be removed are: {}", staleChunks);
 
@@ -294,26 +921,313 @@ public class ChunkManager {
       LOG.warn("Possible bug or race condition. There are no chunks in chunk map.");
     }
 
+    List<RoaringBitmap> staleSeriesIds = new ArrayList<>();
     staleChunks.forEach(entry -> {
       try {
-        if (chunkMap.containsKey(entry.getKey())) {
+        // The chunk under the key may have been replaced since the stale chunks were listed, for
+        // example by a compacted chunk, so only the listed chunk is removed.
+        final boolean removed;
+        synchronized (chunkMapSync) {
+          removed = chunkMap.remove(entry.getKey(), entry.getValue());
+          if (removed) {
+            uncacheChunk(entry.getKey());
+          }
+        }
+        if (removed) {
+          long startNs = System.nanoTime();
           final Chunk chunk = entry.getValue();
           String chunkInfo = chunk.info().toString();
           LOG.info("Deleting chunk {}.", chunkInfo);
 
-          synchronized (chunkMapSync) {
-            chunkMap.remove(entry.getKey());
-          }
+          staleSeriesIds.add(chunk.getSeriesIds());
+          queryCache.invalidate(chunk.info());
           // Close the chunk to free up resources.
           chunk.close();
           LOG.info("Deleted chunk {}.", chunkInfo);
+          removeChunksInTimeRange(lateChunkMap.values(), chunk.info(), staleSeriesIds);
+          removeChunksInTimeRange(sealedHeadChunkMap.values(), chunk.info(), staleSeriesIds);
+          removeChunksInTimeRange(sealedLateChunkMap.values(), chunk.info(), staleSeriesIds);
+          DELETE_CHUNK_LATENCY.recordSince(startNs);
         } else {
-          LOG.warn("Possible bug or race condition! Chunk {} doesn't exist in chunk map {}.",
-              entry, chunkMap);
+          LOG.warn("Possible bug or race condition! Chunk {} was replaced or removed from chunk map "
+              + "{}.", entry, chunkMap);
         }
       } catch (Exception e) {
         LOG.error("Exception when deleting chunk.", e);
       }
     });
+
+    deleteStaleSeries(staleSeriesIds);
+  }
+
+  /**
+   * Merge adjacent read only chunks into a single read only chunk that spans all of them. Each
+   * series is re-encoded as one continuous time series, so a query over the time range of the
+   * chunks looks up and decodes each series once instead of once per chunk. Only sealed chunks
+   * can be compacted, so a chunk is never closed while its series are moved off heap.
+   *
+   * The sealed head chunks and sealed late chunks in the time range of the chunks are merged into
+   * the compacted chunk too, so queries over a compacted block don't merge them separately. The
+   * compaction is skipped until they are moved off heap. A single chunk is only compacted when
+   * there are sealed chunks to merge into it, for example when late points arrive for a block that
+   * is already compacted.
+   *
+   * The compacted chunk is stored under the start time of the first chunk and the chunks are
+   * removed from the chunk map after the compacted chunk is added, so a query sees the points of
+   * the chunks at all times. The compaction is skipped if any of the chunks is no longer in the
+   * chunk map, for example when it was deleted as stale while the chunks were being merged.
+   *
+   * @param chunks sealed chunks sorted by start time, where each chunk ends when the next one
+   *               starts.
+   * @return the compacted chunk or null if the chunks were not compacted.
+   */
+  public Chunk compactChunks(List<Chunk> chunks) {
+    if (chunks.isEmpty()) {
+      throw new IllegalArgumentException("At least 1 chunk is needed for compaction.");
+    }
+    for (int i = 0; i < chunks.size(); i++) {
+      if (!isSealed(chunks.get(i))) {
+        throw new IllegalArgumentException("Only read only chunks that are moved off heap can be "
+            + "compacted: " + chunks.get(i).info());
+      }
+      if (i > 0 && chunks.get(i - 1).info().endTimeSecs != chunks.get(i).info().startTimeSecs) {
+        throw new IllegalArgumentException("Chunks are not adjacent: " + chunks.get(i - 1).info()
+            + " " + chunks.get(i).info());
+      }
+    }
+
+    long startTime = chunks.get(0).info().startTimeSecs;
+    long endTime = chunks.get(chunks.size() - 1).info().endTimeSecs;
+    List<Chunk> sealedHeadChunks = getChunksInTimeRange(sealedHeadChunkMap, startTime, endTime);
+    List<Chunk> sealedLateChunks = getChunksInTimeRange(sealedLateChunkMap, startTime, endTime);
+    if (chunks.size() < 2 && sealedHeadChunks.isEmpty() && sealedLateChunks.isEmpty()) {
+      LOG.info("Skipped compacting chunk {} since there are no chunks to merge into it.", chunks);
+      return null;
+    }
+    for (Chunk chunk : sealedHeadChunks) {
+      if (!isSealed(chunk)) {
+        LOG.info("Skipped compacting chunks {} since sealed head chunk {} is not off heap yet.",
+            chunks, chunk.info());
+        return null;
+      }
+    }
+    for (Chunk chunk : sealedLateChunks) {
+      if (!isSealed(chunk)) {
+        LOG.info("Skipped compacting chunks {} since sealed late chunk {} is not off heap yet.",
+            chunks, chunk.info());
+        return null;
+      }
+    }
+
+    // A single chunk is already compacted or replaces nothing, so the compacted chunk gets its own
+    // data set instead of sharing the query cache entries and the off heap files of the chunk.
+    String dataSet = chunkDataPrefix + "_" + startTime + "_" + endTime;
+    if (chunks.size() == 1) {
+      dataSet += "_v" + compactedChunkVersions.incrementAndGet();
+    }
+    ChunkInfo compactedChunkInfo = new ChunkInfo(dataSet, startTime, endTime);
+    LOG.info("Compacting chunks {} into {}.", chunks, compactedChunkInfo);
+
+    // The points of a sealed head chunk are older than the points of the chunk that replaced it,
+    // and the late points are newer than the points of the chunks, so the sealed head chunks go
+    // first and the sealed late chunks go last.
+    List<Chunk> sourceChunks = new ArrayList<>(sealedHeadChunks);
+    sourceChunks.addAll(chunks);
+    sourceChunks.addAll(sealedLateChunks);
+
+    RoaringBitmap seriesIds =
+        RoaringBitmap.or(sourceChunks.stream().map(Chunk::getSeriesIds).iterator());
+    if (seriesIds.isEmpty()) {
+      LOG.info("Skipped compacting chunks {} since they have no data.", chunks);
+      return null;
+    }
+    List<MetricStore> metricStores = sourceChunks.stream()
+        .map(chunk -> ((MetricsAndTagStoreImpl) ((ChunkImpl) chunk).getStore()).getMetricStore())
+        .collect(toList());
+    Map<Long, VarBitTimeSeries> compactedSeries = new HashMap<>(seriesIds.getCardinality());
+    for (int id : seriesIds) {
+      List<Point> points = new ArrayList<>();
+      for (MetricStore metricStore : metricStores) {
+        points.addAll(metricStore.getSeries(id));
+      }
+      // The points of the chunks are in order, but the time range of a sealed head chunk or a
+      // sealed late chunk overlaps with the chunks.
+      if (sourceChunks.size() > chunks.size()) {
+        points = Points.dedup(points);
+      }
+      VarBitTimeSeries series = new VarBitTimeSeries((int) chunkDurationSecs);
+      for (Point point : points) {
+        series.append(point.getTs(), point.getVal());
+      }
+      compactedSeries.put((long) id, series);
+    }
+    MetricStore compactedMetricStore = OffHeapVarBitMetricStore.toOffHeapStore(compactedSeries,
+        compactedChunkInfo.dataSet, dataDirectory);
+    Chunk compactedChunk = new ChunkImpl(
+        new MetricsAndTagStoreImpl(tagStore, compactedMetricStore, seriesIds), compactedChunkInfo);
+
+    synchronized (chunkMapSync) {
+      for (Chunk chunk : chunks) {
+        if (chunkMap.get(chunk.info().startTimeSecs) != chunk) {
+          LOG.warn("Chunk {} was removed during compaction. Skipped compacting chunks {}.",
+              chunk.info(), chunks);
+          compactedChunk.close();
+          return null;
+        }
+      }
+      for (Chunk chunk : sealedHeadChunks) {
+        if (sealedHeadChunkMap.get(chunk.info()) != chunk) {
+          LOG.warn("Sealed head chunk {} was removed during compaction. Skipped compacting chunks "
+              + "{}.", chunk.info(), chunks);
+          compactedChunk.close();
+          return null;
+        }
+      }
+      for (Chunk chunk : sealedLateChunks) {
+        if (sealedLateChunkMap.get(chunk.info()) != chunk) {
+          LOG.warn("Sealed late chunk {} was removed during compaction. Skipped compacting chunks "
+              + "{}.", chunk.info(), chunks);
+          compactedChunk.close();
+          return null;
+        }
+      }
+      chunkMap.put(startTime, compactedChunk);
+      uncacheChunk(startTime);
+      for (Chunk chunk : chunks.subList(1, chunks.size())) {
+        chunkMap.remove(chunk.info().startTimeSecs);
+        uncacheChunk(chunk.info().startTimeSecs);
+      }
+      sealedHeadChunks.forEach(chunk -> sealedHeadChunkMap.remove(chunk.info(), chunk));
+      sealedLateChunks.forEach(chunk -> sealedLateChunkMap.remove(chunk.info(), chunk));
+    }
+
+    for (Chunk chunk : sourceChunks) {
+      queryCache.invalidate(chunk.info());
+      // Close the old chunks to free up memory faster.
+      chunk.close();
+    }
+    LOG.info("Compacted {} chunks, {} sealed head chunks and {} sealed late chunks into {}.",
+        chunks.size(), sealedHeadChunks.size(), sealedLateChunks.size(), compactedChunkInfo);
+    return compactedChunk;
+  }
+
+  private static List<Chunk> getChunksInTimeRange(Map<ChunkInfo, Chunk> chunkMap, long startTime,
+                                                  long endTime) {
+    return chunkMap.values().stream()
+        .filter(chunk -> startTime <= chunk.info().startTimeSecs
+            && chunk.info().endTimeSecs <= endTime)
+        .collect(toList());
+  }
+
+  /**
+   * @return true if there are sealed head chunks or sealed late chunks to merge into the chunk,
+   * so compactChunks compacts it even on its own.
+   */
+  boolean hasSealedChunksInTimeRange(Chunk chunk) {
+    long startTime = chunk.info().startTimeSecs;
+    long endTime = chunk.info().endTimeSecs;
+    return !getChunksInTimeRange(sealedHeadChunkMap, startTime, endTime).isEmpty()
+        || !getChunksInTimeRange(sealedLateChunkMap, startTime, endTime).isEmpty();
+  }
+
+  /**
+   * Remove the late chunks, sealed head chunks or sealed late chunks in the time range of a stale
+   * chunk and add their series to the stale series ids.
+   */
+  private void removeChunksInTimeRange(Collection<Chunk> chunks, ChunkInfo staleChunkInfo,
+                                       List<RoaringBitmap> staleSeriesIds) {
+    chunks.removeIf(chunk -> {
+      if (chunk.info().startTimeSecs >= staleChunkInfo.startTimeSecs
+          && chunk.info().endTimeSecs <= staleChunkInfo.endTimeSecs) {
+        LOG.info("Deleting chunk {}.", chunk.info());
+        staleSeriesIds.add(chunk.getSeriesIds());
+        queryCache.invalidate(chunk.info());
+        chunk.close();
+        return true;
+      }
+      return false;
+    });
+  }
+
+  /**
+   * Delete the series of the removed chunks that are not in any live chunk from the tag store, so
+   * the tag store only grows with the number of series in the live chunks.
+   */
+  private void deleteStaleSeries(List<RoaringBitmap> staleSeriesIds) {
+    if (staleSeriesIds.isEmpty()) {
+      return;
+    }
+
+    long startNs = System.nanoTime();
+    tagStoreLock.writeLock().lock();
+    try {
+      RoaringBitmap deletedSeriesIds = RoaringBitmap.or(staleSeriesIds.iterator());
+      for (Map<?, Chunk> liveChunks
+          : Arrays.asList(chunkMap, lateChunkMap, sealedHeadChunkMap, sealedLateChunkMap)) {
+        for (Chunk chunk : liveChunks.values()) {
+          if (deletedSeriesIds.isEmpty()) {
+            break;
+          }
+          deletedSeriesIds.andNot(chunk.getSeriesIds());
+        }
+      }
+      LOG.info("Deleting {} stale series from the tag store.", deletedSeriesIds.getCardinality());
+      tagStore.delete(deletedSeriesIds);
+    } catch (Exception e) {
+      LOG.error("Exception when deleting stale series from the tag store.", e);
+    } finally {
+      tagStoreLock.writeLock().unlock();
+      DELETE_STALE_SERIES_LATENCY.recordSince(startNs);
+    }
+  }
+
+  /**
+   * Groups the points of a batch by chunk and adds each group to its chunk. The invalid and
+   * delayed points are counted instead of throwing an exception.
+   */
+  private final class ChunkBatcher {
+
+    private final Map<Long, MetricBatch> batchesByChunk = new HashMap<>();
+    private int validMetrics = 0;
+    private int invalidMetrics = 0;
+    private int delayedMetrics = 0;
+
+    void add(Metric metric, long ts, double value) {
+      if (ts < 0 || ts > VarBitTimeSeries.MAX_UNIX_TIMESTAMP) {
+        throw new IllegalArgumentException("Timestamp is not a valid unix timestamp: " + ts);
+      }
+
+      long chunkStartTime = ts - ts % chunkDurationSecs;
+      MetricBatch batch = batchesByChunk.computeIfAbsent(chunkStartTime, k -> new MetricBatch());
+      batch.add(metric, ts, value);
+      if (batch.size() >= MAX_CHUNK_BATCH_SIZE) {
+        batchesByChunk.remove(chunkStartTime);
+        addBatch(chunkStartTime, batch);
+      }
+    }
+
+    void addInvalid(int count) {
+      invalidMetrics = invalidMetrics + count;
+    }
+
+    AddMetricsResult finish() {
+      for (Map.Entry<Long, MetricBatch> chunkBatch : batchesByChunk.entrySet()) {
+        addBatch(chunkBatch.getKey(), chunkBatch.getValue());
+      }
+      batchesByChunk.clear();
+      return new AddMetricsResult(validMetrics, invalidMetrics, delayedMetrics);
+    }
+
+    private void addBatch(long chunkStartTime, MetricBatch batch) {
+      try {
+        addToChunk(chunkStartTime, chunk -> chunk.addPoints(batch));
+        validMetrics = validMetrics + batch.size();
+      } catch (ReadOnlyChunkInsertionException re) {
+        delayedMetrics = delayedMetrics + batch.size();
+      } catch (Exception e) {
+        LOG.error("Failed to add metrics to the chunk starting at {}", chunkStartTime, e);
+        invalidMetrics = invalidMetrics + batch.size();
+      }
+    }
   }
 }
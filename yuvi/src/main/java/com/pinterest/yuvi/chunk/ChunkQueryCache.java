@@ -0,0 +1,175 @@
+package com.pinterest.yuvi.chunk;
+
+import com.pinterest.yuvi.models.TimeSeries;
+import com.pinterest.yuvi.tagstore.Query;
+import com.pinterest.yuvi.tagstore.TagMatcher;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * A read only chunk is immutable, so the result of a query on a read only chunk doesn't change
+ * until the chunk is deleted. Since dashboards refresh the same queries every few seconds, this
+ * class caches the result of a query on a read only chunk so the tag lookup and the decoding of
+ * the time series can be skipped for repeated queries.
+ *
+ * The cache is keyed by the chunk info and the query. It is bounded by the estimated heap size of
+ * the cached time series and evicts the least recently used entries when it is full. The results
+ * for a chunk should be invalidated when the chunk is deleted.
+ *
+ * The query aggregation is not part of the key, since the aggregation is applied after the results
+ * from all the chunks are merged.
+ */
+public class ChunkQueryCache {
+
+  private static final Logger LOG = LoggerFactory.getLogger(ChunkQueryCache.class);
+
+  // Rough estimates of the heap used by the objects in a cached result.
+  private static final int ENTRY_OVERHEAD_BYTES = 128;
+  private static final int TIME_SERIES_OVERHEAD_BYTES = 64;
+  private static final int POINT_SIZE_BYTES = 32;
+
+  private final long maxSizeBytes;
+  private final LinkedHashMap<CacheKey, CacheEntry> cache;
+  private long sizeBytes;
+  private long hits;
+  private long misses;
+  private long evictions;
+
+  public ChunkQueryCache(long maxSizeBytes) {
+    if (maxSizeBytes < 0) {
+      throw new IllegalArgumentException("Query cache size can't be negative: " + maxSizeBytes);
+    }
+    this.maxSizeBytes = maxSizeBytes;
+    // An access ordered linked hash map keeps the least recently used entry at the head.
+    this.cache = new LinkedHashMap<>(16, 0.75f, true);
+    LOG.info("Created a chunk query cache with max size {} bytes.", maxSizeBytes);
+  }
+
+  public boolean isEnabled() {
+    return maxSizeBytes > 0;
+  }
+
+  /**
+   * Return the cached result of the query on the chunk or null if the result is not cached.
+   */
+  public synchronized List<TimeSeries> get(ChunkInfo chunkInfo, Query query) {
+    CacheEntry entry = cache.get(new CacheKey(chunkInfo, query));
+    if (entry == null) {
+      misses++;
+      return null;
+    }
+    hits++;
+    return entry.result;
+  }
+
+  /**
+   * Cache the result of a query on a read only chunk. Results larger than the cache are not cached.
+   */
+  public synchronized void put(ChunkInfo chunkInfo, Query query, List<TimeSeries> result) {
+    long resultSizeBytes = estimateSizeBytes(query, result);
+    if (resultSizeBytes > maxSizeBytes) {
+      return;
+    }
+
+    CacheEntry oldEntry = cache.put(new CacheKey(chunkInfo, query),
+        new CacheEntry(Collections.unmodifiableList(result), resultSizeBytes));
+    if (oldEntry != null) {
+      sizeBytes -= oldEntry.sizeBytes;
+    }
+    sizeBytes += resultSizeBytes;
+
+    Iterator<CacheEntry> lruEntries = cache.values().iterator();
+    while (sizeBytes > maxSizeBytes && lruEntries.hasNext()) {
+      sizeBytes -= lruEntries.next().sizeBytes;
+      lruEntries.remove();
+      evictions++;
+    }
+  }
+
+  /**
+   * Remove all the cached results for a chunk.
+   */
+  public synchronized void invalidate(ChunkInfo chunkInfo) {
+    Iterator<Map.Entry<CacheKey, CacheEntry>> entries = cache.entrySet().iterator();
+    while (entries.hasNext()) {
+      Map.Entry<CacheKey, CacheEntry> entry = entries.next();
+      if (entry.getKey().chunkInfo.equals(chunkInfo)) {
+        sizeBytes -= entry.getValue().sizeBytes;
+        entries.remove();
+      }
+    }
+  }
+
+  public synchronized Map<String, Object> getStats() {
+    Map<String, Object> stats = new HashMap<>();
+    stats.put("entries", cache.size());
+    stats.put("sizeBytes", sizeBytes);
+    stats.put("maxSizeBytes", maxSizeBytes);
+    stats.put("hits", hits);
+    stats.put("misses", misses);
+    stats.put("evictions", evictions);
+    return stats;
+  }
+
+  private static long estimateSizeBytes(Query query, List<TimeSeries> result) {
+    long size = ENTRY_OVERHEAD_BYTES + 2 * query.metricName.length();
+    for (TagMatcher tagMatcher : query.tagMatchers) {
+      size += 2 * (tagMatcher.tag.key.length() + tagMatcher.tag.value.length());
+    }
+    for (TimeSeries series : result) {
+      size += TIME_SERIES_OVERHEAD_BYTES
+          + 2 * series.getMetric().length()
+          + POINT_SIZE_BYTES * series.getPoints().size();
+    }
+    return size;
+  }
+
+  private static final class CacheKey {
+
+    private final ChunkInfo chunkInfo;
+    private final Query query;
+
+    CacheKey(ChunkInfo chunkInfo, Query query) {
+      this.chunkInfo = chunkInfo;
+      this.query = query;
+    }
+
+    @Override
+    public boolean equals(Object o) {
+      if (this == o) {
+        return true;
+      }
+      if (o == null || getClass() != o.getClass()) {
+        return false;
+      }
+
+      CacheKey cacheKey = (CacheKey) o;
+
+      return chunkInfo.equals(cacheKey.chunkInfo) && query.equals(cacheKey.query);
+    }
+
+    @Override
+    public int hashCode() {
+      return 31 * chunkInfo.hashCode() + query.hashCode();
+    }
+  }
+
+  private static final class CacheEntry {
+
+    private final List<TimeSeries> result;
+    private final long sizeBytes;
+
+    CacheEntry(List<TimeSeries> result, long sizeBytes) {
+      this.result = result;
+      this.sizeBytes = sizeBytes;
+    }
+  }
+}
@@ -0,0 +1,114 @@
+package com.pinterest.yuvi.chunk;
+
+import com.google.common.annotations.VisibleForTesting;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.lang.management.ManagementFactory;
+import java.lang.management.MemoryUsage;
+import java.time.Instant;
+import java.util.function.DoubleSupplier;
+import java.util.function.LongSupplier;
+
+/**
+ * OffHeapChunkManagerTask only moves a chunk off heap after its end time, so a burst of new series
+ * can fill up the heap long before the head chunk ends. This task checks the heap usage reported
+ * by the MemoryMXBean and, once it is above the heap usage threshold, seals the head chunk early
+ * using ChunkManager.sealHeadChunk. The points for the rest of the time range of the head chunk
+ * are added to a new head chunk. So, a cardinality burst costs a slightly worse compression ratio
+ * instead of an out of memory error.
+ *
+ * Since the heap memory freed by sealing a chunk is only reclaimed by the next GC, the task waits
+ * at least minSealIntervalSecs between two early seals.
+ */
+public class HeapPressureSealTask implements Runnable {
+
+  private static final Logger LOG = LoggerFactory.getLogger(HeapPressureSealTask.class);
+
+  public static final double DEFAULT_HEAP_USAGE_THRESHOLD = 0.8;
+  public static final int DEFAULT_MIN_SEAL_INTERVAL_SECS = 5 * 60;  // 5 minutes.
+
+  private final ChunkManager chunkManager;
+  private final double heapUsageThreshold;
+  private final int minSealIntervalSecs;
+  private final DoubleSupplier heapUsage;
+  private final LongSupplier clockSecs;
+  private long lastSealTimeSecs = Long.MIN_VALUE;
+
+  public HeapPressureSealTask(ChunkManager chunkManager) {
+    this(chunkManager, DEFAULT_HEAP_USAGE_THRESHOLD, DEFAULT_MIN_SEAL_INTERVAL_SECS);
+  }
+
+  /**
+   * @param heapUsageThreshold the fraction of the maximum heap size above which the head chunk
+   *                           is sealed.
+   * @param minSealIntervalSecs the minimum time between two early seals.
+   */
+  public HeapPressureSealTask(ChunkManager chunkManager, double heapUsageThreshold,
+                              int minSealIntervalSecs) {
+    this(chunkManager, heapUsageThreshold, minSealIntervalSecs,
+        HeapPressureSealTask::getHeapUsage, () -> Instant.now().getEpochSecond());
+  }
+
+  @VisibleForTesting
+  HeapPressureSealTask(ChunkManager chunkManager, double heapUsageThreshold,
+                       int minSealIntervalSecs, DoubleSupplier heapUsage,
+                       LongSupplier clockSecs) {
+    if (heapUsageThreshold <= 0 || heapUsageThreshold > 1 || minSealIntervalSecs < 0) {
+      throw new IllegalArgumentException("Invalid heap pressure seal task params: "
+          + "heapUsageThreshold " + heapUsageThreshold
+          + " minSealIntervalSecs " + minSealIntervalSecs);
+    }
+    this.chunkManager = chunkManager;
+    this.heapUsageThreshold = heapUsageThreshold;
+    this.minSealIntervalSecs = minSealIntervalSecs;
+    this.heapUsage = heapUsage;
+    this.clockSecs = clockSecs;
+  }
+
+  @Override
+  public void run() {
+    try {
+      sealIfHeapIsFull();
+    } catch (Exception e) {
+      LOG.error("Heap pressure seal task failed with an error", e);
+    }
+  }
+
+  /**
+   * Seal the head chunk if the heap usage is above the threshold.
+   * @return the info of the sealed chunk or null if no chunk was sealed.
+   */
+  @VisibleForTesting
+  ChunkInfo sealIfHeapIsFull() {
+    double usage = heapUsage.getAsDouble();
+    if (usage < heapUsageThreshold) {
+      return null;
+    }
+
+    long nowSecs = clockSecs.getAsLong();
+    if (lastSealTimeSecs != Long.MIN_VALUE && nowSecs - lastSealTimeSecs < minSealIntervalSecs) {
+      LOG.info("Heap usage {} is above {}, but the last chunk was sealed at {}.", usage,
+          heapUsageThreshold, lastSealTimeSecs);
+      return null;
+    }
+
+    LOG.warn("Heap usage {} is above {}. Sealing the head chunk early.", usage,
+        heapUsageThreshold);
+    ChunkInfo sealedChunkInfo = chunkManager.sealHeadChunk();
+    if (sealedChunkInfo != null) {
+      lastSealTimeSecs = nowSecs;
+    }
+    return sealedChunkInfo;
+  }
+
+  /**
+   * @return the used fraction of the maximum heap size, or of the committed heap size if the
+   *         maximum heap size is undefined.
+   */
+  static double getHeapUsage() {
+    MemoryUsage usage = ManagementFactory.getMemoryMXBean().getHeapMemoryUsage();
+    long maxBytes = usage.getMax() > 0 ? usage.getMax() : usage.getCommitted();
+    return (double) usage.getUsed() / maxBytes;
+  }
+}
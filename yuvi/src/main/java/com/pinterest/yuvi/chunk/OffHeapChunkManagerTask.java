@@ -1,6 +1,7 @@
 package com.pinterest.yuvi.chunk;
 
 import com.google.common.annotations.VisibleForTesting;
+import com.google.common.util.concurrent.RateLimiter;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
@@ -8,6 +9,7 @@ import java.time.Instant;
 import java.util.ArrayList;
 import java.util.List;
 import java.util.Map;
+import java.util.Random;
 
 /**
  * Yuvi stores all the metrics data in memory, but there is a GC overhead to storing all the metrics
@@ -19,6 +21,17 @@ import java.util.Map;
  * off heap if the current time is greater than the chunk end time. However, sometimes metrics may
  * be delayed because of transient issues. To ingest late arriving metrics, we wait a metricsDelay
  * amount of time before we start marking the chunk read-only and moving it to off heap.
+ *
+ * The cut offs are compared with the end time in the ChunkInfo of each chunk, so they follow the
+ * chunk duration of the chunk manager: with shorter chunks, data is moved off heap sooner. The
+ * late chunks that hold the late points of read only chunks are moved off heap once they pass
+ * the same cut off.
+ *
+ * Since all hosts cross a chunk boundary at the same time, the task can add a random jitter of up
+ * to maxJitterSecs to the delays, which is picked once per task, so the hosts of a cluster don't
+ * move chunks off heap at the same time. Moving a chunk off heap can also be limited to a number
+ * of series per second, and it waits for up to MAX_QUERY_WAIT_MS between slices of series while
+ * the chunk manager runs more than maxActiveQueries queries, so it yields to queries.
  */
 public class OffHeapChunkManagerTask implements Runnable {
 
@@ -27,10 +40,18 @@ public class OffHeapChunkManagerTask implements Runnable {
   public static final int DEFAULT_METRICS_DELAY_SECS = 15 * 60;  // 15 minutes.
   public static final int DEFAULT_STALE_DATA_DELAY_SECS = 6 * 60 * 60;  // 6 hours.
 
+  @VisibleForTesting
+  static final long MAX_QUERY_WAIT_MS = 1000;
+  private static final long QUERY_WAIT_INTERVAL_MS = 10;
+
   // The time after the end time after which a chunk will be marked as read only
   private final int metricsDelay;
   private final int staleDataDelaySecs;
   private ChunkManager chunkManager;
+  private final int jitterSecs;
+  // Limits the number of series moved off heap per second. Null if it's not limited.
+  private final RateLimiter sealRateLimiter;
+  private final int maxActiveQueries;
 
   public OffHeapChunkManagerTask(ChunkManager chunkManager) {
     this(chunkManager, DEFAULT_METRICS_DELAY_SECS, DEFAULT_STALE_DATA_DELAY_SECS);
@@ -39,10 +60,51 @@ public class OffHeapChunkManagerTask implements Runnable {
   public OffHeapChunkManagerTask(ChunkManager chunkManager,
                                  int metricsDelaySecs,
                                  int staleDataDelaySecs) {
+    this(chunkManager, metricsDelaySecs, staleDataDelaySecs, 0, 0, 0);
+  }
+
+  /**
+   * @param maxJitterSecs the maximum random delay added to the metrics and stale data delays.
+   * @param maxSealedSeriesPerSec the maximum number of series moved off heap per second. 0 if
+   *                              it's not limited.
+   * @param maxActiveQueries moving chunks off heap waits while the chunk manager runs this many
+   *                         queries. 0 if it shouldn't wait for queries.
+   */
+  public OffHeapChunkManagerTask(ChunkManager chunkManager,
+                                 int metricsDelaySecs,
+                                 int staleDataDelaySecs,
+                                 int maxJitterSecs,
+                                 double maxSealedSeriesPerSec,
+                                 int maxActiveQueries) {
+    this(chunkManager, metricsDelaySecs, staleDataDelaySecs, maxJitterSecs,
+        maxSealedSeriesPerSec, maxActiveQueries, new Random());
+  }
+
+  @VisibleForTesting
+  OffHeapChunkManagerTask(ChunkManager chunkManager,
+                          int metricsDelaySecs,
+                          int staleDataDelaySecs,
+                          int maxJitterSecs,
+                          double maxSealedSeriesPerSec,
+                          int maxActiveQueries,
+                          Random random) {
+    if (maxJitterSecs < 0 || maxSealedSeriesPerSec < 0 || maxActiveQueries < 0) {
+      throw new IllegalArgumentException("Invalid off heap task params: maxJitterSecs "
+          + maxJitterSecs + " maxSealedSeriesPerSec " + maxSealedSeriesPerSec
+          + " maxActiveQueries " + maxActiveQueries);
+    }
 
     this.chunkManager = chunkManager;
     this.metricsDelay = metricsDelaySecs;
     this.staleDataDelaySecs = staleDataDelaySecs;
+    this.jitterSecs = maxJitterSecs == 0 ? 0 : random.nextInt(maxJitterSecs + 1);
+    this.sealRateLimiter =
+        maxSealedSeriesPerSec == 0 ? null : RateLimiter.create(maxSealedSeriesPerSec);
+    this.maxActiveQueries = maxActiveQueries;
+    LOG.info("Created an off heap chunk manager task with metrics delay {}, stale data delay {}, "
+            + "jitter {}, max sealed series per sec {} and max active queries {}",
+        metricsDelaySecs, staleDataDelaySecs, jitterSecs, maxSealedSeriesPerSec,
+        maxActiveQueries);
   }
 
   @Override
@@ -70,7 +132,7 @@ public class OffHeapChunkManagerTask implements Runnable {
 
   @VisibleForTesting
   int detectReadOnlyChunks(Instant startInstant) {
-    int secondsToSubtract = this.metricsDelay;
+    int secondsToSubtract = this.metricsDelay + jitterSecs;
     // cutOffTime = chunk end time + metrics delay.
     final long offHeapCutoffSecs = startInstant.minusSeconds(secondsToSubtract).getEpochSecond();
     return detectChunksPastCutOff(offHeapCutoffSecs);
@@ -92,15 +154,59 @@ public class OffHeapChunkManagerTask implements Runnable {
     }
 
     LOG.info("Number of chunks past cut off: {}.", readOnlyChunks.size());
-    chunkManager.toReadOnlyChunks(readOnlyChunks);
-    return readOnlyChunks.size();
+    chunkManager.toReadOnlyChunks(readOnlyChunks, ChunkManager.DEFAULT_SEAL_SLICE_SIZE,
+        this::throttleSealing);
+
+    // The late chunks past the cut off are sealed the same way, so the late points of a backfill
+    // don't stay on heap.
+    List<Map.Entry<Long, Chunk>> lateChunks = new ArrayList<>();
+    for (Map.Entry<Long, Chunk> chunkEntry: chunkManager.getLateChunkMap().entrySet()) {
+      if (offHeapCutoffSecs >= chunkEntry.getValue().info().endTimeSecs) {
+        lateChunks.add(chunkEntry);
+      }
+    }
+    if (!lateChunks.isEmpty()) {
+      LOG.info("Number of late chunks past cut off: {}.", lateChunks.size());
+      chunkManager.sealLateChunks(lateChunks, ChunkManager.DEFAULT_SEAL_SLICE_SIZE,
+          this::throttleSealing);
+    }
+    return readOnlyChunks.size() + lateChunks.size();
+  }
+
+  /**
+   * Called between the slices of series moved off heap. Waits for the rate limit, then waits
+   * while the query load is high, for at most MAX_QUERY_WAIT_MS so sealing always progresses.
+   */
+  @VisibleForTesting
+  void throttleSealing() {
+    if (sealRateLimiter != null) {
+      sealRateLimiter.acquire(ChunkManager.DEFAULT_SEAL_SLICE_SIZE);
+    }
+    long waitedMs = 0;
+    while (maxActiveQueries > 0 && chunkManager.getActiveQueries() >= maxActiveQueries
+        && waitedMs < MAX_QUERY_WAIT_MS) {
+      try {
+        Thread.sleep(QUERY_WAIT_INTERVAL_MS);
+      } catch (InterruptedException e) {
+        Thread.currentThread().interrupt();
+        return;
+      }
+      waitedMs = waitedMs + QUERY_WAIT_INTERVAL_MS;
+    }
+    Thread.yield();
+  }
+
+  @VisibleForTesting
+  int getJitterSecs() {
+    return jitterSecs;
   }
 
   /**
    * Delete stale data when running at startInstant.
    */
   int deleteStaleData(Instant startInstant) {
-    final long staleCutoffSecs = startInstant.minusSeconds(this.staleDataDelaySecs).getEpochSecond();
+    final long staleCutoffSecs =
+        startInstant.minusSeconds(this.staleDataDelaySecs + jitterSecs).getEpochSecond();
     return deleteStaleChunks(staleCutoffSecs);
   }
 
@@ -4,8 +4,11 @@ import com.pinterest.yuvi.models.TimeSeries;
 import com.pinterest.yuvi.tagstore.Metric;
 import com.pinterest.yuvi.tagstore.Query;
 
+import org.roaringbitmap.RoaringBitmap;
+
 import java.util.List;
 import java.util.Map;
+import java.util.function.IntFunction;
 
 /**
  * This interface provides a higher level interface over the metric and tag store. The interface
@@ -21,6 +24,15 @@ public interface MetricAndTagStore {
    */
   List<TimeSeries> getSeries(Query query);
 
+  /**
+   * Return the time series of the given ids that have data in this store. Since the tag store is
+   * shared, a caller querying multiple stores can look up the ids and the metric names once.
+   * @param ids the metric ids matching a query. The bitmap is not modified.
+   * @param metricNames returns the metric name of an id.
+   * @return a list of time series.
+   */
+  List<TimeSeries> getSeries(RoaringBitmap ids, IntFunction<String> metricNames);
+
   /**
    * add a point to an existing time-series, or create a new time-series with the given uuid.
    * @param metric a metric object.
@@ -29,6 +41,24 @@ public interface MetricAndTagStore {
    */
   void addPoint(Metric metric, long ts, double val);
 
+  /**
+   * add a batch of points to existing time-series, or create new time-series for their metrics.
+   * The new metrics in the batch are created together. The points of a metric are added in the
+   * order of the batch.
+   * @param batch a batch of points.
+   */
+  void addPoints(MetricBatch batch);
+
+  /**
+   * Return a copy of the ids of the time series added to this store.
+   */
+  RoaringBitmap getSeriesIds();
+
+  /**
+   * Return true if no time series was added to this store, without copying the series ids.
+   */
+  boolean isEmpty();
+
   Map<String, Object> getStats();
 
   /**
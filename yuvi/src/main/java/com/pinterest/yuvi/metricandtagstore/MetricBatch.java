@@ -0,0 +1,60 @@
+package com.pinterest.yuvi.metricandtagstore;
+
+import com.pinterest.yuvi.tagstore.Metric;
+
+import java.util.Arrays;
+
+/**
+ * A batch of points in the order they were received. The points are stored in arrays, so a batch
+ * doesn't create an object per point.
+ */
+public class MetricBatch {
+
+  private static final int INITIAL_SIZE = 16;
+
+  private Metric[] metrics;
+  private long[] timestamps;
+  private double[] values;
+  private int size;
+
+  public MetricBatch() {
+    this.metrics = new Metric[INITIAL_SIZE];
+    this.timestamps = new long[INITIAL_SIZE];
+    this.values = new double[INITIAL_SIZE];
+    this.size = 0;
+  }
+
+  /**
+   * Add a point to the batch.
+   * @param metric a metric object.
+   * @param ts unix timestamp in seconds.
+   * @param val value for the point.
+   */
+  public void add(Metric metric, long ts, double val) {
+    if (size == metrics.length) {
+      metrics = Arrays.copyOf(metrics, 2 * size);
+      timestamps = Arrays.copyOf(timestamps, 2 * size);
+      values = Arrays.copyOf(values, 2 * size);
+    }
+    metrics[size] = metric;
+    timestamps[size] = ts;
+    values[size] = val;
+    size++;
+  }
+
+  public Metric getMetric(int i) {
+    return metrics[i];
+  }
+
+  public long getTimestamp(int i) {
+    return timestamps[i];
+  }
+
+  public double getValue(int i) {
+    return values[i];
+  }
+
+  public int size() {
+    return size;
+  }
+}
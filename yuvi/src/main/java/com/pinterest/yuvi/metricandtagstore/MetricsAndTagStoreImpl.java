@@ -1,46 +1,98 @@
 package com.pinterest.yuvi.metricandtagstore;
 
 import com.pinterest.yuvi.metricstore.MetricStore;
+import com.pinterest.yuvi.metrics.LatencyHistogram;
+import com.pinterest.yuvi.metrics.MetricsRegistry;
 import com.pinterest.yuvi.models.TimeSeries;
 import com.pinterest.yuvi.tagstore.Metric;
 import com.pinterest.yuvi.tagstore.Query;
 import com.pinterest.yuvi.tagstore.TagStore;
 
+import org.roaringbitmap.PeekableIntIterator;
+import org.roaringbitmap.RoaringBitmap;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
+import java.util.ArrayList;
+import java.util.Collections;
 import java.util.HashMap;
 import java.util.List;
+import java.util.HashSet;
 import java.util.Map;
-import java.util.stream.Collectors;
+import java.util.Optional;
+import java.util.Set;
+import java.util.function.IntFunction;
 
 /**
  * MetricAndTagStore stores the metrics in gorilla format and the tags in an inverted index.
  *
- * TODO: Batch insert API
  * TODO: synchronization?
  * TODO: error handling
  */
 public class MetricsAndTagStoreImpl implements MetricAndTagStore {
 
   private static final Logger LOG = LoggerFactory.getLogger(MetricsAndTagStoreImpl.class);
+
+  // The series of a query are read too fast to be timed one at a time, so the reads are timed
+  // once per store.
+  private static final LatencyHistogram GET_SERIES_LATENCY =
+      MetricsRegistry.getDefault().histogram("metricAndTagStore.getSeries");
+
   private final TagStore tagStore;
   private final MetricStore metricStore;
 
+  /**
+   * The ids of the time series in this store. Since the tag store is shared among chunks, the
+   * chunk manager uses them to delete the metrics that are no longer in any chunk from the tag
+   * store. All access is synchronized on the bitmap.
+   */
+  private final RoaringBitmap seriesIds;
+
   public MetricsAndTagStoreImpl(TagStore tagStore, MetricStore metricStore) {
+    this(tagStore, metricStore, new RoaringBitmap());
+  }
+
+  public MetricsAndTagStoreImpl(TagStore tagStore, MetricStore metricStore,
+                                RoaringBitmap seriesIds) {
     this.tagStore = tagStore;
     this.metricStore = metricStore;
+    this.seriesIds = seriesIds;
     LOG.info("Created a new metric store {} and tag store {}.", metricStore, tagStore);
   }
 
+  /**
+   * Since the tag store is shared among chunks, the ids that match the query include the series
+   * of other chunks. So, the ids are intersected with the series in this store before looking up
+   * their points, and only the series with data in this store are returned.
+   */
   @Override
   public List<TimeSeries> getSeries(Query query) {
-    List<Integer> ids = tagStore.lookup(query);
-    // Get an iterator instead?
+    return getSeries(tagStore.lookupIds(query), tagStore::getMetricName);
+  }
+
+  @Override
+  public List<TimeSeries> getSeries(RoaringBitmap ids, IntFunction<String> metricNames) {
+    RoaringBitmap idsInStore;
+    synchronized (seriesIds) {
+      idsInStore = RoaringBitmap.and(ids, seriesIds);
+    }
+    if (idsInStore.isEmpty()) {
+      return Collections.emptyList();
+    }
+
     // Catch exceptions and make it easy to debug.
-    return ids.stream()
-        .map(id -> new TimeSeries(tagStore.getMetricName(id), metricStore.getSeries(id)))
-        .collect(Collectors.toList());
+    long startNs = System.nanoTime();
+    try {
+      List<TimeSeries> result = new ArrayList<>(idsInStore.getCardinality());
+      PeekableIntIterator idIterator = idsInStore.getIntIterator();
+      while (idIterator.hasNext()) {
+        int id = idIterator.next();
+        result.add(new TimeSeries(metricNames.apply(id), metricStore.getSeries(id)));
+      }
+      return result;
+    } finally {
+      GET_SERIES_LATENCY.recordSince(startNs);
+    }
   }
 
   public MetricStore getMetricStore() {
@@ -55,7 +107,67 @@ public class MetricsAndTagStoreImpl implements MetricAndTagStore {
   public void addPoint(Metric metric, long ts, double val) {
     int metricId = tagStore.getOrCreate(metric);
     metricStore.addPoint(metricId, ts, val);
+    synchronized (seriesIds) {
+      seriesIds.add(metricId);
+    }
+  }
+
+  /**
+   * The points of the existing metrics are added as they are read from the batch. The points of
+   * the new metrics are held back until all the new metrics in the batch are created together, so
+   * the posting lists of the tag store are only updated once per batch.
+   */
+  @Override
+  public void addPoints(MetricBatch batch) {
+    int[] metricIds = new int[batch.size()];
+    List<Integer> newMetricPositions = new ArrayList<>();
+    Set<String> newMetricNames = new HashSet<>();
+    for (int i = 0; i < batch.size(); i++) {
+      Metric metric = batch.getMetric(i);
+      // Once a metric is held back, hold back its later points too, so they stay in order.
+      Optional<Integer> metricId = newMetricNames.isEmpty()
+          || !newMetricNames.contains(metric.fullMetricName)
+          ? tagStore.get(metric) : Optional.empty();
+      if (metricId.isPresent()) {
+        metricIds[i] = metricId.get();
+        metricStore.addPoint(metricIds[i], batch.getTimestamp(i), batch.getValue(i));
+      } else {
+        newMetricPositions.add(i);
+        newMetricNames.add(metric.fullMetricName);
+      }
+    }
+
+    if (!newMetricPositions.isEmpty()) {
+      List<Metric> newMetrics = new ArrayList<>(newMetricPositions.size());
+      for (int position : newMetricPositions) {
+        newMetrics.add(batch.getMetric(position));
+      }
+      int[] newMetricIds = tagStore.getOrCreate(newMetrics);
+      for (int j = 0; j < newMetricIds.length; j++) {
+        int position = newMetricPositions.get(j);
+        metricIds[position] = newMetricIds[j];
+        metricStore.addPoint(newMetricIds[j], batch.getTimestamp(position),
+            batch.getValue(position));
+      }
+    }
 
+    synchronized (seriesIds) {
+      seriesIds.add(metricIds);
+    }
+  }
+
+  @Override
+  public RoaringBitmap getSeriesIds() {
+    synchronized (seriesIds) {
+      return seriesIds.clone();
+    }
+  }
+
+  @Override
+  public boolean isEmpty() {
+    synchronized (seriesIds) {
+      return seriesIds.isEmpty();
+    }
   }
 
   @Override
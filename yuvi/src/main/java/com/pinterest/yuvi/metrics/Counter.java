@@ -0,0 +1,23 @@
+package com.pinterest.yuvi.metrics;
+
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * A counter that can be incremented by many threads without contention.
+ */
+public class Counter {
+
+  private final LongAdder count = new LongAdder();
+
+  public void increment() {
+    count.increment();
+  }
+
+  public void add(long n) {
+    count.add(n);
+  }
+
+  public long get() {
+    return count.sum();
+  }
+}
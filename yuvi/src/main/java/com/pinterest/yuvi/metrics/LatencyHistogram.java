@@ -0,0 +1,119 @@
+package com.pinterest.yuvi.metrics;
+
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.LongAccumulator;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * A lock free histogram of latencies in nanoseconds, with log linear buckets like an HDR
+ * histogram. The values below 16 have a bucket each. Above that, every power of 2 is split into
+ * 16 buckets, so a percentile is accurate to within 1/16th of its value. The buckets are a fixed
+ * array of atomic longs, so recording a value is an increment without any allocation.
+ *
+ * A snapshot read while values are recorded may miss the latest values, but it is never corrupt.
+ */
+public class LatencyHistogram {
+
+  private static final int SUB_BUCKET_BITS = 4;
+  private static final int SUB_BUCKETS = 1 << SUB_BUCKET_BITS;
+  // The buckets of the values below SUB_BUCKETS and SUB_BUCKETS buckets for each power of 2 up
+  // to 2^62.
+  private static final int NUM_BUCKETS = (Long.SIZE - SUB_BUCKET_BITS) * SUB_BUCKETS;
+
+  private final AtomicLongArray buckets = new AtomicLongArray(NUM_BUCKETS);
+  private final LongAdder count = new LongAdder();
+  private final LongAdder sum = new LongAdder();
+  private final LongAccumulator max = new LongAccumulator(Math::max, 0);
+
+  /**
+   * Record a latency. Negative values are recorded as 0.
+   */
+  public void record(long valueNs) {
+    long value = Math.max(0, valueNs);
+    buckets.incrementAndGet(getBucket(value));
+    count.increment();
+    sum.add(value);
+    max.accumulate(value);
+  }
+
+  /**
+   * Record the time elapsed since startNs, a value returned by System.nanoTime.
+   */
+  public void recordSince(long startNs) {
+    record(System.nanoTime() - startNs);
+  }
+
+  public long getCount() {
+    return count.sum();
+  }
+
+  public long getMax() {
+    return max.get();
+  }
+
+  public double getMean() {
+    long n = count.sum();
+    return n == 0 ? 0 : (double) sum.sum() / n;
+  }
+
+  /**
+   * @param percentile a percentile between 0 and 100.
+   * @return the highest value of the bucket of the percentile or 0 if there are no values.
+   */
+  public long getPercentile(double percentile) {
+    if (percentile < 0 || percentile > 100) {
+      throw new IllegalArgumentException("Invalid percentile " + percentile);
+    }
+    long[] counts = new long[NUM_BUCKETS];
+    long total = 0;
+    for (int i = 0; i < NUM_BUCKETS; i++) {
+      counts[i] = buckets.get(i);
+      total = total + counts[i];
+    }
+    if (total == 0) {
+      return 0;
+    }
+
+    long rank = Math.max(1, (long) Math.ceil(total * percentile / 100));
+    long seen = 0;
+    for (int i = 0; i < NUM_BUCKETS; i++) {
+      seen = seen + counts[i];
+      if (seen >= rank) {
+        return Math.min(getBucketMax(i), getMax());
+      }
+    }
+    return getMax();
+  }
+
+  public Map<String, Object> getStats() {
+    Map<String, Object> stats = new HashMap<>();
+    stats.put("count", getCount());
+    stats.put("meanNs", getMean());
+    stats.put("p50Ns", getPercentile(50));
+    stats.put("p90Ns", getPercentile(90));
+    stats.put("p99Ns", getPercentile(99));
+    stats.put("p999Ns", getPercentile(99.9));
+    stats.put("maxNs", getMax());
+    return stats;
+  }
+
+  static int getBucket(long value) {
+    if (value < SUB_BUCKETS) {
+      return (int) value;
+    }
+    int exponent = Long.SIZE - 1 - Long.numberOfLeadingZeros(value);
+    int subBucket = (int) (value >>> (exponent - SUB_BUCKET_BITS)) & (SUB_BUCKETS - 1);
+    return (exponent - SUB_BUCKET_BITS + 1) * SUB_BUCKETS + subBucket;
+  }
+
+  static long getBucketMax(int bucket) {
+    if (bucket < SUB_BUCKETS) {
+      return bucket;
+    }
+    int shift = bucket / SUB_BUCKETS - 1;
+    long subBucket = bucket % SUB_BUCKETS;
+    return ((SUB_BUCKETS + subBucket + 1) << shift) - 1;
+  }
+}
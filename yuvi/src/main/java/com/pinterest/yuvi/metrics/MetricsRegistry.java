@@ -0,0 +1,51 @@
+package com.pinterest.yuvi.metrics;
+
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * A registry of the counters and latency histograms of the ingest and query paths. The hot paths
+ * look up their counters and histograms once and keep them in static fields, so updating a metric
+ * never touches the registry. Since the counters and histograms are lock free, the registry can
+ * be read while they are updated.
+ *
+ * The classes of yuvi register their metrics in the default registry, so all the metrics of a
+ * process are read with a single snapshot of the default registry.
+ */
+public class MetricsRegistry {
+
+  private static final MetricsRegistry DEFAULT_REGISTRY = new MetricsRegistry();
+
+  private final Map<String, Counter> counters = new ConcurrentHashMap<>();
+  private final Map<String, LatencyHistogram> histograms = new ConcurrentHashMap<>();
+
+  public static MetricsRegistry getDefault() {
+    return DEFAULT_REGISTRY;
+  }
+
+  /**
+   * @return the counter with the given name. It is created the first time it is looked up.
+   */
+  public Counter counter(String name) {
+    return counters.computeIfAbsent(name, k -> new Counter());
+  }
+
+  /**
+   * @return the latency histogram with the given name. It is created the first time it is looked
+   * up.
+   */
+  public LatencyHistogram histogram(String name) {
+    return histograms.computeIfAbsent(name, k -> new LatencyHistogram());
+  }
+
+  /**
+   * @return the value of each counter and the stats of each histogram, sorted by name.
+   */
+  public Map<String, Object> snapshot() {
+    Map<String, Object> snapshot = new TreeMap<>();
+    counters.forEach((name, counter) -> snapshot.put(name, counter.get()));
+    histograms.forEach((name, histogram) -> snapshot.put(name, histogram.getStats()));
+    return snapshot;
+  }
+}
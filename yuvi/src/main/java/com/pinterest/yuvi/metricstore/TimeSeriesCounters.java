@@ -0,0 +1,68 @@
+package com.pinterest.yuvi.metricstore;
+
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Counters of the points and the heap memory of a group of time series, like the series of a
+ * VarBitMetricStore. A time series adds its changes to the counters as points are appended, so the
+ * totals are read in constant time instead of walking all the series. The counters are LongAdders,
+ * since they are updated for every point by many writer threads and read rarely.
+ */
+public class TimeSeriesCounters {
+
+  // The heap memory of a point in a reorder buffer.
+  private static final int BUFFERED_POINT_BYTES = Long.BYTES + Double.BYTES;
+
+  private final LongAdder points = new LongAdder();
+  private final LongAdder bufferedPoints = new LongAdder();
+  private final LongAdder encodedBits = new LongAdder();
+  private final LongAdder allocatedBytes = new LongAdder();
+
+  /**
+   * Add the change in the size of a time series to the counters. The deltas are negative when a
+   * time series is removed.
+   */
+  void add(long pointsDelta, long bufferedPointsDelta, long encodedBitsDelta,
+           long allocatedBytesDelta) {
+    if (pointsDelta != 0) {
+      points.add(pointsDelta);
+    }
+    if (bufferedPointsDelta != 0) {
+      bufferedPoints.add(bufferedPointsDelta);
+    }
+    if (encodedBitsDelta != 0) {
+      encodedBits.add(encodedBitsDelta);
+    }
+    if (allocatedBytesDelta != 0) {
+      allocatedBytes.add(allocatedBytesDelta);
+    }
+  }
+
+  /**
+   * @return the number of points, including the points in the reorder buffers.
+   */
+  public long getPoints() {
+    return points.sum();
+  }
+
+  /**
+   * @return the number of bytes of the encoded points.
+   */
+  public long getEncodedBytes() {
+    return (encodedBits.sum() + Byte.SIZE - 1) / Byte.SIZE;
+  }
+
+  /**
+   * @return the number of bytes allocated for the bit streams and the reorder buffers.
+   */
+  public long getAllocatedBytes() {
+    return allocatedBytes.sum();
+  }
+
+  /**
+   * @return the number of allocated bytes that are not used by the encoded or buffered points.
+   */
+  public long getSlackBytes() {
+    return getAllocatedBytes() - getEncodedBytes() - bufferedPoints.sum() * BUFFERED_POINT_BYTES;
+  }
+}
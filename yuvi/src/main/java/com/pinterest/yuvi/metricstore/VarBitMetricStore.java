@@ -1,6 +1,8 @@
 package com.pinterest.yuvi.metricstore;
 
 import com.pinterest.yuvi.chunk.ReadOnlyChunkInsertionException;
+import com.pinterest.yuvi.metrics.Counter;
+import com.pinterest.yuvi.metrics.MetricsRegistry;
 import com.pinterest.yuvi.models.Point;
 
 import org.slf4j.Logger;
@@ -18,17 +20,32 @@ import java.util.stream.Collectors;
 
 /**
  * Implementation of MetricsStore that stores the time-series in compressed byte-arrays.
+ *
+ * The points and the memory of the series are counted as the points are added, so getStats is
+ * cheap enough to be exported often. getSizeDistribution walks all the series instead.
  */
 public class VarBitMetricStore implements MetricStore {
 
   private static Logger LOG = LoggerFactory.getLogger(VarBitMetricStore.class);
 
   // TODO: Tune the default metrics size
-  private static final int DEFAULT_METRIC_STORE_SIZE = 10_000;
+  public static final int DEFAULT_METRIC_STORE_SIZE = 10_000;
+
+  // Adding a point and reading a series are too fast to be timed, so they are only counted. The
+  // series reads of a query are timed per chunk by MetricsAndTagStoreImpl.
+  private static final Counter ADDED_POINTS =
+      MetricsRegistry.getDefault().counter("metricStore.addPoint");
+  private static final Counter SERIES_READS =
+      MetricsRegistry.getDefault().counter("metricStore.getSeries");
+
+  private final int blockHeaderOffsetSecs;
+  private final int reorderWindowSecs;
 
   private HashMap<Long, VarBitTimeSeries> series;
   private final ReentrantReadWriteLock mu;
   private boolean readOnly;
+  private final TimeSeriesCounters counters = new TimeSeriesCounters();
+
   public VarBitMetricStore() {
     this(DEFAULT_METRIC_STORE_SIZE);
   }
@@ -37,6 +54,30 @@ public class VarBitMetricStore implements MetricStore {
    * Create an empty metric store.
    */
   public VarBitMetricStore(int initialSize) {
+    this(initialSize, VarBitTimeSeries.BLOCK_HEADER_OFFSET_SECS);
+  }
+
+  /**
+   * Create an empty metric store whose time series use blocks of blockHeaderOffsetSecs.
+   */
+  public VarBitMetricStore(int initialSize, int blockHeaderOffsetSecs) {
+    this(initialSize, blockHeaderOffsetSecs, 0);
+  }
+
+  /**
+   * Create an empty metric store whose time series sort the points within reorderWindowSecs of
+   * the latest point of the series before encoding them.
+   */
+  public VarBitMetricStore(int initialSize, int blockHeaderOffsetSecs, int reorderWindowSecs) {
+    if (blockHeaderOffsetSecs <= 0
+        || blockHeaderOffsetSecs > VarBitTimeSeries.MAX_BLOCK_HEADER_OFFSET_SECS) {
+      throw new IllegalArgumentException("Invalid block header offset " + blockHeaderOffsetSecs);
+    }
+    if (reorderWindowSecs < 0) {
+      throw new IllegalArgumentException("Invalid reorder window " + reorderWindowSecs);
+    }
+    this.blockHeaderOffsetSecs = blockHeaderOffsetSecs;
+    this.reorderWindowSecs = reorderWindowSecs;
     series = new HashMap<>(initialSize);
     mu = new ReentrantReadWriteLock();
     readOnly = false;
@@ -46,6 +87,7 @@ public class VarBitMetricStore implements MetricStore {
 
   @Override
   public List<Point> getSeries(long uuid) {
+    SERIES_READS.increment();
     mu.readLock().lock();
     try {
       VarBitTimeSeries s = series.get(uuid);
@@ -75,21 +117,52 @@ public class VarBitMetricStore implements MetricStore {
         try {
           s = series.get(uuid);
           if (s == null) {
-            s = new VarBitTimeSeries();
+            s = new VarBitTimeSeries(blockHeaderOffsetSecs, reorderWindowSecs);
             series.put(uuid, s);
+            s.addTo(counters);
           }
         } finally {
           mu.writeLock().unlock();
         }
       }
-      s.append(ts, val);
+      s.append(ts, val, counters);
+      ADDED_POINTS.increment();
     } else {
       throw new ReadOnlyChunkInsertionException("Inserting a metric into a read only store for "
           + "uuid " + uuid + " ts " + ts + " val " + val);
     }
   }
 
-  private ArrayList<Long> getUuids() throws Exception {
+  /**
+   * @return the time series of the uuid or null if the store doesn't have it.
+   */
+  public VarBitTimeSeries getTimeSeries(long uuid) {
+    mu.readLock().lock();
+    try {
+      return series.get(uuid);
+    } finally {
+      mu.readLock().unlock();
+    }
+  }
+
+  /**
+   * Remove a time series from the store, so its memory can be freed once it's moved elsewhere.
+   * @return the removed time series or null if the store doesn't have it.
+   */
+  public VarBitTimeSeries removeSeries(long uuid) {
+    mu.writeLock().lock();
+    try {
+      VarBitTimeSeries removedSeries = series.remove(uuid);
+      if (removedSeries != null) {
+        removedSeries.removeFrom(counters);
+      }
+      return removedSeries;
+    } finally {
+      mu.writeLock().unlock();
+    }
+  }
+
+  public List<Long> getUuids() {
     // Copy the keys so that we don't hold the readLock for too long.
     mu.readLock().lock();
     try {
@@ -102,7 +175,25 @@ public class VarBitMetricStore implements MetricStore {
   @Override
   public Map<String, Object> getStats() {
     Map<String, Object> stats = new HashMap<>();
-    stats.put("MetricCount", new Double(series.size()));
+    mu.readLock().lock();
+    try {
+      stats.put("MetricCount", new Double(series.size()));
+    } finally {
+      mu.readLock().unlock();
+    }
+    stats.put("PointCount", counters.getPoints());
+    stats.put("EncodedByteSize", counters.getEncodedBytes());
+    stats.put("HeapByteSize", counters.getAllocatedBytes());
+    stats.put("SlackByteSize", counters.getSlackBytes());
+    return stats;
+  }
+
+  /**
+   * Walk all the series to compute the distribution of their sizes. Unlike getStats, it is too
+   * expensive to be called often.
+   */
+  public Map<String, Object> getSizeDistribution() {
+    Map<String, Object> stats = new HashMap<>();
     List<Map<String, Double>> tsStats =
         series.values().stream().map(ts -> ts.getStats()).collect(Collectors.toList());
 
@@ -133,8 +224,20 @@ public class VarBitMetricStore implements MetricStore {
     this.series = null;
   }
 
+  /**
+   * Once the store is read only, the points in the reorder buffers of the series are encoded,
+   * since no later point can be reordered with them.
+   */
   public void setReadOnly(boolean readOnly) {
     this.readOnly = readOnly;
+    if (readOnly) {
+      mu.readLock().lock();
+      try {
+        series.values().forEach(s -> s.flush(counters));
+      } finally {
+        mu.readLock().unlock();
+      }
+    }
     LOG.info("Chunk readOnly status is {}", this.readOnly);
   }
 
@@ -1,12 +1,16 @@
 package com.pinterest.yuvi.metricstore;
 
 import com.pinterest.yuvi.bitstream.BitStream;
+import com.pinterest.yuvi.models.Point;
 
 import com.google.common.annotations.VisibleForTesting;
 
 import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.Collections;
 import java.util.HashMap;
+import java.util.List;
 import java.util.Map;
 
 /**
@@ -20,6 +24,12 @@ import java.util.Map;
  *
  * TODO: Merge timestamps and values into a single stream to improve data locality.
  *
+ * A time series can hold back the last points in a small reorder buffer that is sorted by
+ * timestamp. A point is only encoded once it is older than the reorder window compared to the
+ * latest point, so the points of a jittery producer are encoded in order, which keeps the delta of
+ * deltas small. The buffered points are returned by read and are encoded before the series is
+ * serialized.
+ *
  * Use the append interface to append the points and @CachingVarBitTimeSeriesIterator to read
  * them back.
  * @see CachingVarBitTimeSeriesIterator
@@ -29,11 +39,33 @@ public class VarBitTimeSeries {
 
   public static final long MAX_UNIX_TIMESTAMP = Integer.MAX_VALUE;
   public static final int BLOCK_HEADER_OFFSET_SECS = 120 * 60; // 2 hour blocks.
+  // The first timestamp is encoded as a 14 bit delta from the block header.
+  public static final int MAX_BLOCK_HEADER_OFFSET_SECS = (1 << 14) - 1;
 
   // Picking good initial sizes for these values will reduce GC overhead.
   public static final short DEFAULT_TIMESTAMP_BITSTREAM_SIZE = 1;
   public static final short DEFAULT_VALUE_BITSTREAM_SIZE = 1;
 
+  // The reorder buffer encodes its oldest point when it is full, so jittery points can't use too
+  // much memory.
+  public static final int MAX_REORDER_BUFFER_SIZE = 64;
+
+  // The largest encodings of a point after the first one, used to bound the size of the points
+  // that are not encoded yet.
+  private static final int MAX_TIMESTAMP_BITS = 4 + 32;
+  private static final int MAX_VALUE_BITS = 2 + 5 + 6 + 64;
+
+  private final int blockHeaderOffsetSecs;
+
+  private final int reorderWindowSecs;
+
+  // Points that are not encoded yet, sorted by timestamp. Only allocated if the reorder window is
+  // enabled.
+  private long[] bufferTimestamps;
+  private double[] bufferValues;
+  private int bufferSize;
+  private long maxTimestamp;
+
   private int size;
 
   private long prevTimestamp;
@@ -47,6 +79,33 @@ public class VarBitTimeSeries {
   private final BitStream values;
 
   public VarBitTimeSeries() {
+    this(BLOCK_HEADER_OFFSET_SECS);
+  }
+
+  /**
+   * Create a time series whose block header is aligned to blockHeaderOffsetSecs. The header doesn't
+   * change the encoding of the points, so series with different block sizes are read the same way.
+   * @param blockHeaderOffsetSecs the size of a block in seconds, usually the chunk duration.
+   */
+  public VarBitTimeSeries(int blockHeaderOffsetSecs) {
+    this(blockHeaderOffsetSecs, 0);
+  }
+
+  /**
+   * Create a time series that sorts the points within reorderWindowSecs of the latest point
+   * before encoding them.
+   * @param reorderWindowSecs the reorder window in seconds. 0 disables the reorder buffer.
+   */
+  public VarBitTimeSeries(int blockHeaderOffsetSecs, int reorderWindowSecs) {
+    if (blockHeaderOffsetSecs <= 0 || blockHeaderOffsetSecs > MAX_BLOCK_HEADER_OFFSET_SECS) {
+      throw new IllegalArgumentException("Block header offset should be between 1 and "
+          + MAX_BLOCK_HEADER_OFFSET_SECS + " seconds: " + blockHeaderOffsetSecs);
+    }
+    if (reorderWindowSecs < 0) {
+      throw new IllegalArgumentException("Invalid reorder window " + reorderWindowSecs);
+    }
+    this.blockHeaderOffsetSecs = blockHeaderOffsetSecs;
+    this.reorderWindowSecs = reorderWindowSecs;
     timestamps = new BitStream(DEFAULT_TIMESTAMP_BITSTREAM_SIZE);
     values = new BitStream(DEFAULT_VALUE_BITSTREAM_SIZE);
   }
@@ -62,6 +121,30 @@ public class VarBitTimeSeries {
       throw new IllegalArgumentException("Timestamp is not a valid unix timestamp: " + timestamp);
     }
 
+    if (reorderWindowSecs == 0) {
+      encodePoint(timestamp, value);
+    } else {
+      bufferPoint(timestamp, value);
+    }
+  }
+
+  /**
+   * Append a single point to the time series and add the change in the size of the series to the
+   * counters.
+   */
+  public synchronized void append(long timestamp, double value, TimeSeriesCounters counters) {
+    int oldSize = size;
+    int oldBufferSize = bufferSize;
+    int oldEncodedBits = getEncodedBits();
+    long oldAllocatedBytes = getAllocatedBytes();
+    try {
+      append(timestamp, value);
+    } finally {
+      addChanges(counters, oldSize, oldBufferSize, oldEncodedBits, oldAllocatedBytes);
+    }
+  }
+
+  private void encodePoint(long timestamp, double value) {
     if (size == 0) {
       appendFirstPoint(timestamp, value);
     } else {
@@ -70,6 +153,117 @@ public class VarBitTimeSeries {
     size++;
   }
 
+  /**
+   * Insert the point into the reorder buffer after the points with the same or a smaller
+   * timestamp, and encode the points that are older than the reorder window.
+   */
+  private void bufferPoint(long timestamp, double value) {
+    if (bufferTimestamps == null) {
+      bufferTimestamps = new long[4];
+      bufferValues = new double[4];
+    }
+    if (bufferSize == MAX_REORDER_BUFFER_SIZE) {
+      encodeBufferedPoints(1);
+    } else if (bufferSize == bufferTimestamps.length) {
+      bufferTimestamps = Arrays.copyOf(bufferTimestamps, 2 * bufferSize);
+      bufferValues = Arrays.copyOf(bufferValues, 2 * bufferSize);
+    }
+
+    int i = bufferSize;
+    while (i > 0 && bufferTimestamps[i - 1] > timestamp) {
+      bufferTimestamps[i] = bufferTimestamps[i - 1];
+      bufferValues[i] = bufferValues[i - 1];
+      i--;
+    }
+    bufferTimestamps[i] = timestamp;
+    bufferValues[i] = value;
+    bufferSize++;
+    maxTimestamp = Math.max(maxTimestamp, timestamp);
+
+    int expiredPoints = 0;
+    while (expiredPoints < bufferSize
+        && bufferTimestamps[expiredPoints] <= maxTimestamp - reorderWindowSecs) {
+      expiredPoints++;
+    }
+    encodeBufferedPoints(expiredPoints);
+  }
+
+  private void encodeBufferedPoints(int count) {
+    if (count == 0) {
+      return;
+    }
+    // Remove a point from the buffer even if it fails to encode, so an invalid point is dropped
+    // instead of failing all the later appends.
+    int removed = 0;
+    try {
+      while (removed < count) {
+        removed++;
+        encodePoint(bufferTimestamps[removed - 1], bufferValues[removed - 1]);
+      }
+    } finally {
+      System.arraycopy(bufferTimestamps, removed, bufferTimestamps, 0, bufferSize - removed);
+      System.arraycopy(bufferValues, removed, bufferValues, 0, bufferSize - removed);
+      bufferSize = bufferSize - removed;
+    }
+  }
+
+  /**
+   * Encode all the points in the reorder buffer. The series is flushed before it is serialized,
+   * so a point appended after a flush is encoded after the flushed points.
+   */
+  public synchronized void flush() {
+    encodeBufferedPoints(bufferSize);
+  }
+
+  /**
+   * Encode all the points in the reorder buffer and add the change in the size of the series to
+   * the counters.
+   */
+  public synchronized void flush(TimeSeriesCounters counters) {
+    int oldSize = size;
+    int oldBufferSize = bufferSize;
+    int oldEncodedBits = getEncodedBits();
+    long oldAllocatedBytes = getAllocatedBytes();
+    try {
+      flush();
+    } finally {
+      addChanges(counters, oldSize, oldBufferSize, oldEncodedBits, oldAllocatedBytes);
+    }
+  }
+
+  /**
+   * Add the size of the series to the counters, when the series is added to them.
+   */
+  public synchronized void addTo(TimeSeriesCounters counters) {
+    counters.add(getSize(), bufferSize, getEncodedBits(), getAllocatedBytes());
+  }
+
+  /**
+   * Subtract the size of the series from the counters, when the series is removed from them.
+   */
+  public synchronized void removeFrom(TimeSeriesCounters counters) {
+    counters.add(-getSize(), -bufferSize, -getEncodedBits(), -getAllocatedBytes());
+  }
+
+  private void addChanges(TimeSeriesCounters counters, int oldSize, int oldBufferSize,
+                          int oldEncodedBits, long oldAllocatedBytes) {
+    counters.add(size + bufferSize - oldSize - oldBufferSize, bufferSize - oldBufferSize,
+        getEncodedBits() - oldEncodedBits, getAllocatedBytes() - oldAllocatedBytes);
+  }
+
+  private int getEncodedBits() {
+    return timestamps.bitOffset() + values.bitOffset();
+  }
+
+  /**
+   * @return the number of bytes allocated for the bit streams and the reorder buffer.
+   */
+  private long getAllocatedBytes() {
+    long bufferBytes = bufferTimestamps == null
+        ? 0 : (long) bufferTimestamps.length * (Long.BYTES + Double.BYTES);
+    return timestamps.getAllocatedByteSize() + values.getAllocatedByteSize() + bufferBytes;
+  }
+
   private void appendNextPoint(long timestamp, double value) {
     appendTimestamp(timestamp);
     appendValue(value);
@@ -141,12 +335,12 @@ public class VarBitTimeSeries {
   }
 
   /**
-   * Starting timestamp is at the 2 hour starting window of the current timestamp. The first
+   * Starting timestamp is at the start of the block of the current timestamp. The first
    * timestamp is encoded as a delta from the starting timestamp in 14 bits.
    */
   private void appendFirstPoint(long timestamp, double value) {
-    long twoHourTimestampOverage = timestamp % BLOCK_HEADER_OFFSET_SECS;
-    long blockHeaderTimestamp = timestamp - twoHourTimestampOverage;
+    long blockTimestampOverage = timestamp % blockHeaderOffsetSecs;
+    long blockHeaderTimestamp = timestamp - blockTimestampOverage;
     timestamps.write(32, blockHeaderTimestamp);
     prevTimestamp = timestamp;
     prevTimestampDelta = prevTimestamp - blockHeaderTimestamp;
@@ -167,17 +361,33 @@ public class VarBitTimeSeries {
   public synchronized TimeSeriesIterator read() {
     //TODO: The read object returns the values at a point instead of returning all values when
     // called. Change it.
-    return new CachingVarBitTimeSeriesIterator(size, timestamps.read(), values.read());
+    TimeSeriesIterator encodedPoints =
+        new CachingVarBitTimeSeriesIterator(size, timestamps.read(), values.read());
+    if (bufferSize == 0) {
+      return encodedPoints;
+    }
+
+    List<Point> bufferedPoints = new ArrayList<>(bufferSize);
+    for (int i = 0; i < bufferSize; i++) {
+      bufferedPoints.add(new Point(bufferTimestamps[i], bufferValues[i]));
+    }
+    return () -> {
+      List<Point> points = new ArrayList<>(encodedPoints.getPoints());
+      points.addAll(bufferedPoints);
+      return points;
+    };
   }
 
-  @VisibleForTesting
-  int getSize() {
-    return size;
+  /**
+   * @return the number of points in the series, including the points in the reorder buffer.
+   */
+  public synchronized int getSize() {
+    return size + bufferSize;
   }
 
   public Map<String, Double> getStats() {
     Map<String, Double> stats = new HashMap<>();
-    stats.put("pointsCount", new Double(size));
+    stats.put("pointsCount", new Double(getSize()));
     timestamps.getStats().entrySet().forEach(
         entry -> stats.put("timestamps_" + entry.getKey(), entry.getValue()));
     values.getStats().entrySet().forEach(
@@ -195,13 +405,26 @@ public class VarBitTimeSeries {
     return values;
   }
 
-  public int getSerializedByteSize() {
+  /**
+   * @return the number of bytes written by serialize. The series is not flushed, so the points in
+   * the reorder buffer are counted with the largest encoding of a point. The size is exact once the
+   * series is flushed, which VarBitMetricStore.setReadOnly does before a store is serialized.
+   */
+  public synchronized int getSerializedByteSize() {
+    int timestampBits = timestamps.bitOffset();
+    int valueBits = values.bitOffset();
+    if (bufferSize > 0) {
+      int nextPoints = size == 0 ? bufferSize - 1 : bufferSize;
+      timestampBits += (size == 0 ? 32 + 14 : 0) + nextPoints * MAX_TIMESTAMP_BITS;
+      valueBits += (size == 0 ? 64 : 0) + nextPoints * MAX_VALUE_BITS;
+    }
     return Integer.BYTES  // Size of counter
-        + timestamps.getSerializedByteSize()  // Size of timestamps bit stream
-        + values.getSerializedByteSize();  // Size of values
+        + BitStream.getSerializedByteSize(timestampBits)  // Size of timestamps bit stream
+        + BitStream.getSerializedByteSize(valueBits);  // Size of values
   }
 
-  public void serialize(ByteBuffer buffer) throws Exception {
+  public synchronized void serialize(ByteBuffer buffer) throws Exception {
+    flush();
     buffer.putInt(size);
     timestamps.serialize(buffer);
     values.serialize(buffer);
@@ -3,6 +3,8 @@ package com.pinterest.yuvi.metricstore.offheap;
 import com.pinterest.yuvi.metricstore.MetricStore;
 import com.pinterest.yuvi.metricstore.TimeSeriesIterator;
 import com.pinterest.yuvi.metricstore.VarBitTimeSeries;
+import com.pinterest.yuvi.metrics.Counter;
+import com.pinterest.yuvi.metrics.MetricsRegistry;
 import com.pinterest.yuvi.models.Point;
 
 import net.openhft.chronicle.core.values.LongValue;
@@ -19,9 +21,13 @@ import java.util.Collections;
 import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
+import java.util.concurrent.atomic.LongAdder;
 
 /**
  * The off heap metric store stores a snapshot of the metrics off heap.
+ *
+ * The series, points and bytes of the store are counted as the series are added, so getStats
+ * doesn't iterate the chronicle map.
  */
 public class OffHeapVarBitMetricStore implements MetricStore {
 
@@ -29,12 +35,20 @@ public class OffHeapVarBitMetricStore implements MetricStore {
 
   private static final int DEFAULT_VALUE_SIZE = 2000;
 
+  // Reading a series is too fast to be timed, so the reads are only counted.
+  private static final Counter SERIES_READS =
+      MetricsRegistry.getDefault().counter("offHeapMetricStore.getSeries");
+
   private Map<LongValue, ByteBuffer> timeSeries;
 
   private static final String offHeapNamePrefix = "yuvi_timeseries";
 
   private final String chunkInfo;
 
+  private final LongAdder seriesCount = new LongAdder();
+  private final LongAdder pointCount = new LongAdder();
+  private final LongAdder offHeapBytes = new LongAdder();
+
   public OffHeapVarBitMetricStore(long size, String chunkInfo) {
     this(size, DEFAULT_VALUE_SIZE, chunkInfo);
   }
@@ -69,6 +83,7 @@ public class OffHeapVarBitMetricStore implements MetricStore {
 
   @Override
   public List<Point> getSeries(long uuid) {
+    SERIES_READS.increment();
     final LongValue key = Values.newHeapInstance(LongValue.class);
     key.setValue(uuid);
     if (timeSeries.containsKey(key)) {
@@ -95,28 +110,41 @@ public class OffHeapVarBitMetricStore implements MetricStore {
     OffHeapVarBitMetricStore offHeapStore =
         new OffHeapVarBitMetricStore(timeSeriesMap.size(), maxSize, chunkInfo, dataDirectory);
 
-    timeSeriesMap.entrySet().forEach(e -> {
-      try {
-        VarBitTimeSeries series = e.getValue();
-
-        int serializedByteSize = series.getSerializedByteSize();
-        ByteBuffer serializedTimeSeriesBuffer = ByteBuffer.allocate(serializedByteSize);
-        series.serialize(serializedTimeSeriesBuffer);
-        // This is needed because JVM is big-endian but linux native memory is little-endian.
-        serializedTimeSeriesBuffer.flip();
-        offHeapStore.addPoint(e.getKey(), serializedTimeSeriesBuffer);
-      } catch (Exception ex) {
-        LOG.info("Moving entry {} in chunk {} to off heap failed with exception {}",
-            e.getKey(), chunkInfo, ex);
-      }
-    });
+    timeSeriesMap.entrySet().forEach(e -> offHeapStore.addSeries(e.getKey(), e.getValue()));
     return offHeapStore;
   }
 
+  /**
+   * Serialize a time series and add it to the store.
+   * @return false if the series failed to serialize and wasn't added. The failure is logged.
+   */
+  public boolean addSeries(long uuid, VarBitTimeSeries series) {
+    try {
+      int serializedByteSize = series.getSerializedByteSize();
+      ByteBuffer serializedTimeSeriesBuffer = ByteBuffer.allocate(serializedByteSize);
+      series.serialize(serializedTimeSeriesBuffer);
+      // This is needed because JVM is big-endian but linux native memory is little-endian.
+      serializedTimeSeriesBuffer.flip();
+      addPoint(uuid, serializedTimeSeriesBuffer);
+      pointCount.add(series.getSize());
+      return true;
+    } catch (Exception ex) {
+      LOG.error("Moving entry {} in chunk {} to off heap failed.", uuid, chunkInfo, ex);
+      return false;
+    }
+  }
+
   public void addPoint(long uuid, ByteBuffer series) {
     LongValue key = Values.newHeapInstance(LongValue.class);
     key.setValue(uuid);
-    timeSeries.put(key, series);
+    int byteSize = series.remaining();
+    ByteBuffer previousSeries = timeSeries.put(key, series);
+    if (previousSeries == null) {
+      seriesCount.increment();
+    } else {
+      offHeapBytes.add(-previousSeries.remaining());
+    }
+    offHeapBytes.add(byteSize);
   }
 
   @Override
@@ -127,9 +155,9 @@ public class OffHeapVarBitMetricStore implements MetricStore {
   @Override
   public Map<String, Object> getStats() {
     Map<String, Object> stats = new HashMap<>();
-    stats.put("MetricCount", new Double(timeSeries.size()));
-    stats.put("TimeSeriesByteSize",
-        timeSeries.values().stream().mapToInt(ts -> ts.capacity()).sum());
+    stats.put("MetricCount", new Double(seriesCount.sum()));
+    stats.put("PointCount", pointCount.sum());
+    stats.put("OffHeapByteSize", offHeapBytes.sum());
     return stats;
   }
 
@@ -0,0 +1,157 @@
+package com.pinterest.yuvi.metricstore.offheap;
+
+import com.pinterest.yuvi.metricstore.MetricStore;
+import com.pinterest.yuvi.metricstore.VarBitMetricStore;
+import com.pinterest.yuvi.metricstore.VarBitTimeSeries;
+import com.pinterest.yuvi.models.Point;
+
+import com.google.common.annotations.VisibleForTesting;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * A read only metric store that moves the series of a heap store to an off heap store a slice of
+ * series at a time. Until all the series are moved, a series is read from the heap store if it is
+ * still there and from the off heap store otherwise. A series is added to the off heap store
+ * before it is removed from the heap store, so a series can always be read from one of them. The
+ * memory of the heap series is freed as they are moved, so moving a chunk off heap doesn't hold
+ * two copies of all the series in memory.
+ *
+ * The heap store should be read only, so the series don't change while they are moved. A series
+ * that fails to move off heap is kept in the heap store, so it is never lost.
+ */
+public class SealingMetricStore implements MetricStore {
+
+  private static final Logger LOG = LoggerFactory.getLogger(SealingMetricStore.class);
+
+  private final VarBitMetricStore heapStore;
+  private final OffHeapVarBitMetricStore offHeapStore;
+  private final List<Long> uuids;
+  private final String chunkInfo;
+  // Written by the sealing thread and read by the threads that check if the store is sealed.
+  private volatile int sealedSeries;
+  private volatile int failedSeries;
+
+  public SealingMetricStore(VarBitMetricStore heapStore, String chunkInfo, String dataDirectory) {
+    this(heapStore, createOffHeapStore(heapStore, chunkInfo, dataDirectory), chunkInfo);
+  }
+
+  @VisibleForTesting
+  SealingMetricStore(VarBitMetricStore heapStore, OffHeapVarBitMetricStore offHeapStore,
+                     String chunkInfo) {
+    this.heapStore = heapStore;
+    this.offHeapStore = offHeapStore;
+    this.uuids = heapStore.getUuids();
+    this.chunkInfo = chunkInfo;
+    this.sealedSeries = 0;
+    this.failedSeries = 0;
+  }
+
+  private static OffHeapVarBitMetricStore createOffHeapStore(VarBitMetricStore heapStore,
+                                                             String chunkInfo,
+                                                             String dataDirectory) {
+    if (!heapStore.isReadOnly()) {
+      throw new IllegalArgumentException("Only a read only store can be sealed " + chunkInfo);
+    }
+    List<Long> uuids = heapStore.getUuids();
+    if (uuids.isEmpty()) {
+      throw new IllegalArgumentException("Can't seal an empty store " + chunkInfo);
+    }
+
+    int maxSize = 0;
+    for (long uuid : uuids) {
+      maxSize = Math.max(maxSize, heapStore.getTimeSeries(uuid).getSerializedByteSize());
+    }
+    return new OffHeapVarBitMetricStore(uuids.size(), maxSize, chunkInfo, dataDirectory);
+  }
+
+  /**
+   * Move the next slice of series off heap. It should only be called by a single thread. A series
+   * that fails to move off heap stays in the heap store, so it can still be read.
+   * @return the number of series moved off heap or kept on heap after a failure. 0 once all the
+   * series are moved.
+   */
+  public int sealSeries(int maxSeries) {
+    int end = Math.min(uuids.size(), sealedSeries + maxSeries);
+    for (int i = sealedSeries; i < end; i++) {
+      long uuid = uuids.get(i);
+      VarBitTimeSeries series = heapStore.getTimeSeries(uuid);
+      if (series != null) {
+        if (offHeapStore.addSeries(uuid, series)) {
+          heapStore.removeSeries(uuid);
+        } else {
+          failedSeries++;
+        }
+      }
+    }
+    int count = end - sealedSeries;
+    sealedSeries = end;
+    if (count > 0 && isSealed()) {
+      LOG.info("Moved {} series of {} off heap. {} series failed to move and are kept on heap.",
+          uuids.size() - failedSeries, chunkInfo, failedSeries);
+    }
+    return count;
+  }
+
+  /**
+   * @return the number of series that failed to move off heap and are kept in the heap store.
+   */
+  public int getFailedSeries() {
+    return failedSeries;
+  }
+
+  public boolean isSealed() {
+    return sealedSeries == uuids.size();
+  }
+
+  public OffHeapVarBitMetricStore getOffHeapStore() {
+    return offHeapStore;
+  }
+
+  @Override
+  public List<Point> getSeries(long uuid) {
+    List<Point> points = heapStore.getSeries(uuid);
+    if (!points.isEmpty()) {
+      return points;
+    }
+    return offHeapStore.getSeries(uuid);
+  }
+
+  @Override
+  public void addPoint(long uuid, long ts, double val) {
+    throw new UnsupportedOperationException("This is a read only metric store");
+  }
+
+  @Override
+  public Map<String, Object> getStats() {
+    Map<String, Object> stats = new HashMap<>();
+    heapStore.getStats().forEach((key, value) -> stats.put("heap_" + key, value));
+    offHeapStore.getStats().forEach((key, value) -> stats.put("offHeap_" + key, value));
+    return stats;
+  }
+
+  @Override
+  public Map getSeriesMap() {
+    return offHeapStore.getSeriesMap();
+  }
+
+  @Override
+  public void close() {
+    heapStore.close();
+    offHeapStore.close();
+  }
+
+  @Override
+  public boolean isReadOnly() {
+    return true;
+  }
+
+  @Override
+  public void setReadOnly(boolean readOnly) {
+    throw new UnsupportedOperationException("The store is read-only " + chunkInfo);
+  }
+}
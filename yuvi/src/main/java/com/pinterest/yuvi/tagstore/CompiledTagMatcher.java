@@ -0,0 +1,194 @@
+package com.pinterest.yuvi.tagstore;
+
+import java.util.HashSet;
+import java.util.Set;
+import java.util.function.Predicate;
+import java.util.regex.Pattern;
+
+/**
+ * A CompiledTagMatcher is a predicate on the values of a tag key that implements a slow path tag
+ * matcher like a wildcard, regex or case insensitive literal or matcher. Compiling a tag matcher
+ * parses the wildcard string, compiles the regex and lower cases the literals once, so the
+ * predicate only does the minimum work per tag value. Common wildcards like web-*, *.example.com
+ * and *web* are specialized into a single startsWith, endsWith or contains call.
+ *
+ * Since compiling a tag matcher is not free and the same queries are evaluated repeatedly, the
+ * tag store caches the compiled tag matchers.
+ *
+ * A compiled tag matcher also exposes a literal prefix that every matching value starts with, so
+ * the caller can skip the values without the prefix.
+ */
+final class CompiledTagMatcher implements Predicate<String> {
+
+  // The chars that end the literal prefix of a regex.
+  private static final String REGEX_META_CHARS = ".[]{}()\\*+?^$|";
+
+  private final String prefix;
+  private final Predicate<String> predicate;
+
+  private CompiledTagMatcher(String prefix, Predicate<String> predicate) {
+    this.prefix = prefix;
+    this.predicate = predicate;
+  }
+
+  /**
+   * @return the literal prefix of all the values matched by this tag matcher. It is empty if the
+   * values don't have a common prefix.
+   */
+  String getPrefix() {
+    return prefix;
+  }
+
+  @Override
+  public boolean test(String value) {
+    return predicate.test(value);
+  }
+
+  /**
+   * Compile a slow path tag matcher.
+   * @throws java.util.regex.PatternSyntaxException if the regex of a regex tag matcher is invalid.
+   * @throws IllegalArgumentException if the tag matcher is not a slow path tag matcher.
+   */
+  static CompiledTagMatcher compile(TagMatcher tagMatcher) {
+    switch (tagMatcher.type) {
+      case WILDCARD:
+        return compileWildcard(tagMatcher.tag.value, false);
+      case IWILDCARD:
+        return compileWildcard(tagMatcher.tag.value, true);
+      case REGEXP:
+        return compileRegEx(tagMatcher.tag.value);
+      case ILITERAL_OR:
+      case NOT_ILITERAL_OR:
+        return compileCaseInsensitiveOr(tagMatcher.tag.value);
+      default:
+        throw new IllegalArgumentException("Can't compile tag matcher " + tagMatcher);
+    }
+  }
+
+  private static CompiledTagMatcher compileWildcard(String wildcard, boolean caseInsensitive) {
+    String actual = caseInsensitive ? wildcard.toLowerCase() : wildcard;
+
+    // Parse wild card string
+    boolean hasPostfix;
+    boolean hasPrefix;
+    String[] components;
+
+    if (actual.charAt(0) == '*') {
+      hasPostfix = true;
+      while (actual.charAt(0) == '*') {
+        if (actual.length() < 2) {
+          break;
+        }
+        actual = actual.substring(1);
+      }
+    } else {
+      hasPostfix = false;
+    }
+
+    if (actual.charAt(actual.length() - 1) == '*') {
+      hasPrefix = true;
+      while (actual.charAt(actual.length() - 1) == '*') {
+        if (actual.length() < 2) {
+          break;
+        }
+        actual = actual.substring(0, actual.length() - 1);
+      }
+    } else {
+      hasPrefix = false;
+    }
+    if (actual.indexOf('*') > 0) {
+      components = actual.split("\\*");
+    } else {
+      components = new String[1];
+      components[0] = actual;
+    }
+
+    Predicate<String> predicate;
+    if (components.length == 1) {
+      final String component = components[0];
+      if (component.equals("*")) {  // match all
+        predicate = value -> true;
+      } else if (hasPrefix && !hasPostfix) {
+        predicate = value -> value.startsWith(component);
+      } else if (hasPostfix && !hasPrefix) {
+        predicate = value -> value.endsWith(component);
+      } else {
+        predicate = value -> value.contains(component);
+      }
+    } else {
+      predicate = value -> matchTagsWithWildcard(hasPostfix, hasPrefix, components, value);
+    }
+
+    if (caseInsensitive) {
+      final Predicate<String> caseSensitivePredicate = predicate;
+      return new CompiledTagMatcher("",
+          value -> caseSensitivePredicate.test(value.toLowerCase()));
+    }
+
+    // A case sensitive wildcard with a literal prefix only matches the values with that prefix.
+    String prefix = hasPrefix && !hasPostfix ? components[0] : "";
+    return new CompiledTagMatcher(prefix, predicate);
+  }
+
+  private static boolean matchTagsWithWildcard(boolean hasPostfix, boolean hasPrefix,
+                                               String[] components, String tagValue) {
+    if (hasPostfix && !hasPrefix && !tagValue.endsWith(components[components.length - 1])) {
+      return false;
+    }
+
+    if (hasPrefix && !hasPostfix && !tagValue.startsWith(components[0])) {
+      return false;
+    }
+
+    int idx = 0;
+    for (int i = 0; i < components.length; i++) {
+      if (tagValue.indexOf(components[i], idx) < 0) {
+        return false;
+      }
+      idx += components[i].length();
+    }
+
+    return true;
+  }
+
+  private static CompiledTagMatcher compileRegEx(String regex) {
+    final Pattern pattern = Pattern.compile(regex);
+    return new CompiledTagMatcher(getRegExLiteralPrefix(regex),
+        value -> pattern.matcher(value).find());
+  }
+
+  /**
+   * Return the literal prefix that every value matched by the regex must start with. Only simple
+   * patterns anchored with a ^ are considered, for all other patterns the prefix is empty and all
+   * the values are matched.
+   */
+  static String getRegExLiteralPrefix(String regex) {
+    if (!regex.startsWith("^") || regex.indexOf('|') >= 0) {
+      return "";
+    }
+
+    StringBuilder prefix = new StringBuilder();
+    int i = 1;
+    while (i < regex.length() && REGEX_META_CHARS.indexOf(regex.charAt(i)) < 0) {
+      prefix.append(regex.charAt(i));
+      i++;
+    }
+
+    // The last literal char is optional or repeated if it is followed by a quantifier.
+    if (prefix.length() > 0 && i < regex.length() && "?*{".indexOf(regex.charAt(i)) >= 0) {
+      prefix.setLength(prefix.length() - 1);
+    }
+    return prefix.toString();
+  }
+
+  private static CompiledTagMatcher compileCaseInsensitiveOr(String literals) {
+    final Set<String> lowerCaseLiterals = new HashSet<>();
+    for (String literal : literals.split("\\|")) {
+      if (!literal.isEmpty()) {
+        lowerCaseLiterals.add(literal.toLowerCase());
+      }
+    }
+    return new CompiledTagMatcher("",
+        value -> !value.isEmpty() && lowerCaseLiterals.contains(value.toLowerCase()));
+  }
+}
@@ -1,13 +1,18 @@
 package com.pinterest.yuvi.tagstore;
 
+import static com.pinterest.yuvi.tagstore.Metric.METRIC_SEPARATOR;
+import static com.pinterest.yuvi.tagstore.Metric.TAG_DELIMITER;
+
+import com.pinterest.yuvi.metrics.Counter;
+import com.pinterest.yuvi.metrics.LatencyHistogram;
+import com.pinterest.yuvi.metrics.MetricsRegistry;
+
 import com.google.common.annotations.VisibleForTesting;
 import net.openhft.chronicle.map.ChronicleMap;
-import org.roaringbitmap.FastAggregation;
 import org.roaringbitmap.ImmutableBitmapDataProvider;
 import org.roaringbitmap.PeekableIntIterator;
 import org.roaringbitmap.RoaringBitmap;
 import org.roaringbitmap.buffer.ImmutableRoaringBitmap;
-import org.roaringbitmap.buffer.MutableRoaringBitmap;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
@@ -18,15 +23,15 @@ import java.io.IOException;
 import java.nio.ByteBuffer;
 import java.util.ArrayList;
 import java.util.Collections;
+import java.util.Comparator;
 import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
 import java.util.Optional;
 import java.util.concurrent.ConcurrentHashMap;
 import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
 import java.util.function.Function;
-import java.util.function.Predicate;
-import java.util.regex.Pattern;
 import java.util.stream.Collectors;
 
 /**
@@ -37,15 +42,28 @@ import java.util.stream.Collectors;
  *
  * To achieve this, this class implements the tag store interface using an inverted index and a
  * forward index. The forward index will assign a metric id to each unique metric, useful for (1)
- * and (3) above. Since the forward index contains a large quantitiy of strings, for GC efficiency,
+ * and (3) above. Since the forward index contains a large number of metrics, for GC efficiency,
  * we store this map in off heap memory.
  *
+ * To keep the forward index small, the metric names, tag keys and tag values are assigned an int
+ * id by a string dictionary. A metric is stored as an array of the id of its metric name and the
+ * ids of the key and value of each tag, sorted by the raw tag. The full metric name is only
+ * re-constructed from the dictionary when it is needed by a query. The encoded metric is also the
+ * key of a series key map that maps a metric back to its id.
+ *
  * The inverted index will help with (2). It stores a mapping of strings to a list of metric ids.
  * For efficiency, the list of metric ids are stored in a roaring bitmap. Each query is translated
  * into a series of lookups and operations on a roaring bitmaps. For now, the metric index is on
  * heap because there is a cost to serialize and de-serialize the roaring bitmap every time a metric
  * is added or removed and it is not expected to be small. We also don't expect the index to be
  * persisted to disk because it can be re-constructed from the metricIdMap.
+ *
+ * The slow path tag matchers like wildcards and regexes match the values of a tag key. To avoid
+ * extracting the tag values from the metric names on every query, the distinct values of each
+ * tag key for a metric name are stored in a tag value index.
+ *
+ * The bytes of the serialized posting lists are counted as the metric index is updated, so
+ * getStats doesn't deserialize the posting lists. getIndexMapDistribution does.
  */
 public class InvertedIndexTagStore implements TagStore {
 
@@ -54,6 +72,8 @@ public class InvertedIndexTagStore implements TagStore {
   private static final int DEFAULT_METRIC_ID_MAP_SIZE = 10000;
   private static final int DEFAULT_METRIC_INDEX_SIZE = DEFAULT_METRIC_ID_MAP_SIZE;
   private static final int AVERAGE_METRIC_NAME_SIZE = 250;
+  // An encoded metric with a metric name and 8 tags.
+  private static final int AVERAGE_ENCODED_METRIC_SIZE = Integer.BYTES * (1 + 2 * 8);
   private static final int AVERAGE_METRIC_INDEX_SIZE = 100;
   private static final boolean DEFAULT_USE_OFFHEAP_ID_STORE = true;
   private static final boolean DEFAULT_USE_OFFHEAP_INDEX_STORE = true;
@@ -62,11 +82,30 @@ public class InvertedIndexTagStore implements TagStore {
 
   private static final RoaringBitmap EMPTY_BITMAP = new RoaringBitmap();
 
+  private static final int MAX_COMPILED_TAG_MATCHERS = 10000;
+
+  private static final LatencyHistogram GET_OR_CREATE_LATENCY =
+      MetricsRegistry.getDefault().histogram("tagStore.getOrCreate");
+  private static final LatencyHistogram GET_OR_CREATE_BATCH_LATENCY =
+      MetricsRegistry.getDefault().histogram("tagStore.getOrCreateBatch");
+  private static final Counter CREATED_METRICS =
+      MetricsRegistry.getDefault().counter("tagStore.createdMetrics");
+  private static final LatencyHistogram LOOKUP_LATENCY =
+      MetricsRegistry.getDefault().histogram("tagStore.lookupIds");
+  private static final LatencyHistogram METRIC_NAME_LATENCY =
+      MetricsRegistry.getDefault().histogram("tagStore.getMetricName");
+
   private Map<String, ByteBuffer> metricIndex;
   private final int metricIndexCapacity;
 
-  private Map<Integer, String> metricIdMap;
+  private Map<Integer, ByteBuffer> metricIdMap;
+  private Map<ByteBuffer, Integer> seriesKeyMap;
+  private final StringDictionary dictionary;
   private AtomicInteger tagStoreCounter;
+  // Only updated while creating or deleting metrics, which are synchronized.
+  private final AtomicLong postingListBytes = new AtomicLong();
+  private final TagValueIndex tagValueIndex;
+  private final Map<TagMatcher, CompiledTagMatcher> compiledTagMatchers;
   private final int metricIdMapCapacity;
 
   private final boolean useOffHeapIdStore;
@@ -98,27 +137,28 @@ public class InvertedIndexTagStore implements TagStore {
     metricIndexCapacity = 10 * metricIdMapCapacity;
     if (this.useOffHeapIdStore) {
       if (!dataDirectory.isEmpty()) {
-        File offHeapIdFile = new File(dataDirectory + "/tagStore_metricIdMap");
+        File offHeapIdFile = new File(dataDirectory + "/tagStore_encodedMetricIdMap");
         try {
-          this.metricIdMap = ChronicleMap.of(Integer.class, String.class)
+          this.metricIdMap = ChronicleMap.of(Integer.class, ByteBuffer.class)
               .entries(metricIdMapCapacity)
-              .averageValueSize(AVERAGE_METRIC_NAME_SIZE)
+              .averageValueSize(AVERAGE_ENCODED_METRIC_SIZE)
               .name("tagStore")
               .createPersistedTo(offHeapIdFile);
           LOG.info("Created an off heap tag store of size={} valueSize={} and persisted at {}",
-              metricIdMapCapacity, AVERAGE_METRIC_NAME_SIZE, offHeapIdFile.toString());
+              metricIdMapCapacity, AVERAGE_ENCODED_METRIC_SIZE, offHeapIdFile.toString());
         } catch (IOException e) {
           LOG.error("Failed to create an offheap store {} with error {}", offHeapIdFile,
               e.getMessage());
           throw new IllegalArgumentException("Failed to create an off heap store.", e);
         }
       } else {
-        this.metricIdMap = ChronicleMap.of(Integer.class, String.class)
-            .entries(metricIdMapCapacity)
-            .averageValueSize(AVERAGE_METRIC_NAME_SIZE)
-            .create();
-        LOG.info("Created an off heap tag store of size={} valueSize={}",
-            metricIdMapCapacity, AVERAGE_METRIC_NAME_SIZE);
+        this.metricIdMap = new ResizableChronicleMap<>("metricIdMap", metricIdMapCapacity,
+            entries -> ChronicleMap.of(Integer.class, ByteBuffer.class)
+                .entries(entries)
+                .averageValueSize(AVERAGE_ENCODED_METRIC_SIZE)
+                .create());
+        LOG.info("Created a resizable off heap tag store of size={} valueSize={}",
+            metricIdMapCapacity, AVERAGE_ENCODED_METRIC_SIZE);
       }
     } else {
       this.metricIdMap = new ConcurrentHashMap<>(metricIdMapCapacity);
@@ -143,12 +183,13 @@ public class InvertedIndexTagStore implements TagStore {
           throw new IllegalArgumentException("Failed to create an off heap store.", e);
         }
       } else {
-        this.metricIndex = ChronicleMap.of(String.class, ByteBuffer.class)
-            .entries(metricIndexCapacity)
-            .averageValueSize(AVERAGE_METRIC_INDEX_SIZE)
-            .averageKeySize(AVERAGE_METRIC_INDEX_SIZE)
-            .create();
-        LOG.info("Created an off heap inverted index store of size={} valueSize={}",
+        this.metricIndex = new ResizableChronicleMap<>("metricIndex", metricIndexCapacity,
+            entries -> ChronicleMap.of(String.class, ByteBuffer.class)
+                .entries(entries)
+                .averageValueSize(AVERAGE_METRIC_INDEX_SIZE)
+                .averageKeySize(AVERAGE_METRIC_INDEX_SIZE)
+                .create());
+        LOG.info("Created a resizable off heap inverted index store of size={} valueSize={}",
             metricIndexCapacity, AVERAGE_METRIC_INDEX_SIZE);
       }
     } else {
@@ -156,17 +197,52 @@ public class InvertedIndexTagStore implements TagStore {
       LOG.info("Created an on heap tag store with capacity {}", metricIndexCapacity);
     }
 
+    if (this.useOffHeapIndexStore) {
+      if (!dataDirectory.isEmpty()) {
+        File offHeapSeriesKeyFile = new File(dataDirectory + "/tagStore_seriesKeyMap");
+        try {
+          this.seriesKeyMap = ChronicleMap.of(ByteBuffer.class, Integer.class)
+              .entries(metricIdMapCapacity)
+              .averageKeySize(AVERAGE_ENCODED_METRIC_SIZE)
+              .name("seriesKeyStore")
+              .createPersistedTo(offHeapSeriesKeyFile);
+          LOG.info("Created an off heap series key store of size={} keySize={} and persisted at {}",
+              metricIdMapCapacity, AVERAGE_ENCODED_METRIC_SIZE, offHeapSeriesKeyFile.toString());
+        } catch (IOException e) {
+          LOG.error("Failed to create an offheap store {} with error {}", offHeapSeriesKeyFile,
+              e.getMessage());
+          throw new IllegalArgumentException("Failed to create an off heap store.", e);
+        }
+      } else {
+        this.seriesKeyMap = new ResizableChronicleMap<>("seriesKeyMap", metricIdMapCapacity,
+            entries -> ChronicleMap.of(ByteBuffer.class, Integer.class)
+                .entries(entries)
+                .averageKeySize(AVERAGE_ENCODED_METRIC_SIZE)
+                .create());
+        LOG.info("Created a resizable off heap series key store of size={} keySize={}",
+            metricIdMapCapacity, AVERAGE_ENCODED_METRIC_SIZE);
+      }
+    } else {
+      this.seriesKeyMap = new ConcurrentHashMap<>(metricIdMapCapacity);
+      LOG.info("Created an on heap series key store with capacity {}", metricIdMapCapacity);
+    }
+
     this.tagStoreCounter = new AtomicInteger(1);
     this.metricIdMapCapacity = metricIdMapCapacity;
+    this.dictionary = new StringDictionary();
+    this.tagValueIndex = new TagValueIndex();
+    this.compiledTagMatchers = new ConcurrentHashMap<>();
     LOG.info("Created an inverted index tag store.");
   }
 
   @Override
   public Optional<Integer> get(Metric m) {
-    if (metricIndex.containsKey(m.fullMetricName)) {
-      return Optional.of(lookupMetricIndex(m.fullMetricName).getIntIterator().next());
+    ByteBuffer encodedMetric = encode(m, false);
+    if (encodedMetric == null) {
+      // A metric with a string missing from the dictionary was never created.
+      return Optional.empty();
     }
-    return Optional.empty();
+    return Optional.ofNullable(seriesKeyMap.get(encodedMetric));
   }
 
   @Override
@@ -189,6 +265,10 @@ public class InvertedIndexTagStore implements TagStore {
 
   public RoaringBitmap lookupMetricIndex(String key) {
     ByteBuffer value = metricIndex.get(key);
+    if (value == null) {
+      // The key may have been deleted since it was looked up.
+      return new RoaringBitmap();
+    }
     ImmutableRoaringBitmap indexMap = new ImmutableRoaringBitmap(value);
     return indexMap.toRoaringBitmap();
   }
@@ -196,53 +276,53 @@ public class InvertedIndexTagStore implements TagStore {
   /**
    * This function fetches the ids in tag store that match the given query. In the current OpenTSDB
    * use case, a typical query consists of a metric name and a set of tag matchers. Currently, we
-   * can have only one tagMatcher per tag key and a tag matcher is not reused, so we inline the tag
-   * key and value parsing logic here. If tag matchers in slow path are used among queries, it is
-   * worth creating a specialized tag matcher class for each match type.
+   * can have only one tagMatcher per tag key.
+   *
+   * The query is evaluated in two phases. First, the posting lists of the metric name, the tag
+   * keys and the exact and literal or matchers are intersected, starting with the smallest posting
+   * list. Then, the slow path tag matchers are only evaluated on the ids that are left, so a query
+   * like cluster=x host=~regex only matches the regex on the hosts in cluster x.
+   *
+   * The not literal or matchers are evaluated by removing the ids with one of the values from the
+   * result directly, instead of matching all the other values. If a query only has not literal or
+   * matchers, the metrics must also have the tag keys, like a host=* matcher.
    */
-  private RoaringBitmap lookupIds(final Query q) {
-    Predicate<TagMatcher> notTagMatcher =
-        t -> (t.type == MatchType.NOT_LITERAL_OR || t.type == MatchType.NOT_ILITERAL_OR);
-
-    List<TagMatcher> inclusiveTagMatchers =
-        q.tagMatchers.stream().filter(notTagMatcher.negate()).collect(Collectors.toList());
-
-    List<TagMatcher> exclusionTagMatchers =
-        q.tagMatchers.stream().filter(notTagMatcher).collect(Collectors.toList());
-
-    // If no tag filters are specifed, then just match on metric name. If no exclusion tag filters
-    // are given just match on the included tag filters.
-    if ((inclusiveTagMatchers.isEmpty() && exclusionTagMatchers.isEmpty())
-        || (!inclusiveTagMatchers.isEmpty() && exclusionTagMatchers.isEmpty())) {
-
-      return getIncludedIds(q.metricName, inclusiveTagMatchers);
-    }
-
-    // If only exclusion tag matchers are specified, get all the metrics that match the wildcard
-    // tag and then remove the omit the ones that match the OR query.
-    // TODO: This case can be slightly faster if there is a function that computes negations.
-    if (inclusiveTagMatchers.isEmpty() && !exclusionTagMatchers.isEmpty()) {
-      inclusiveTagMatchers = exclusionTagMatchers.stream()
-          .map(matcher -> TagMatcher.wildcardMatch(matcher.tag.key, "*"))
-          .collect(Collectors.toList());
+  @Override
+  public RoaringBitmap lookupIds(final Query q) {
+    long startNs = System.nanoTime();
+    try {
+      return evaluate(q);
+    } finally {
+      LOOKUP_LATENCY.recordSince(startNs);
     }
-
-    // If both included and excluded tag matchers are given, do a difference operation.
-    RoaringBitmap inclusiveIds = getIncludedIds(q.metricName, inclusiveTagMatchers);
-    RoaringBitmap excludedIds = getExcludedIds(q.metricName, exclusionTagMatchers);
-    return RoaringBitmap.andNot(inclusiveIds, excludedIds);
   }
 
-  private RoaringBitmap getIncludedIds(String metricName, List<TagMatcher> tagMatchers) {
+  private RoaringBitmap evaluate(final Query q) {
     List<RoaringBitmap> andBitMaps = new ArrayList<>();
+    List<TagMatcher> notTagMatchers = new ArrayList<>();
+    List<TagMatcher> slowPathTagMatchers = new ArrayList<>();
+    boolean onlyNotTagMatchers = q.tagMatchers.stream().allMatch(InvertedIndexTagStore::isNot);
 
-    if (metricIndex.containsKey(metricName)) {
-      andBitMaps.add(lookupMetricIndex(metricName));
+    if (metricIndex.containsKey(q.metricName)) {
+      andBitMaps.add(lookupMetricIndex(q.metricName));
     } else {
       andBitMaps.add(EMPTY_BITMAP); // If no metric name is present, return empty bitmap
     }
 
-    for (TagMatcher t : tagMatchers) {
+    for (TagMatcher t : q.tagMatchers) {
+      if (isNot(t)) {
+        if (onlyNotTagMatchers) {
+          andBitMaps.add(metricIndex.containsKey(t.tag.key)
+              ? lookupMetricIndex(t.tag.key) : EMPTY_BITMAP);
+        }
+        if (t.type.equals(MatchType.NOT_LITERAL_OR)) {
+          notTagMatchers.add(t);
+        } else {
+          slowPathTagMatchers.add(t);
+        }
+        continue;
+      }
+
       if (metricIndex.containsKey(t.tag.key)) {
         // Include all metrics that include this tag key.
         andBitMaps.add(lookupMetricIndex(t.tag.key));
@@ -257,228 +337,125 @@ public class InvertedIndexTagStore implements TagStore {
         }
 
         if (t.type.equals(MatchType.EXACT)) {
-          matchExactTag(t, andBitMaps);
+          matchExactTag(q.metricName, t, andBitMaps);
           continue;
         }
 
         if (t.type.equals(MatchType.LITERAL_OR)) {
-          matchOr(t, andBitMaps);
-          continue;
-        }
-
-        // Slow path gets the values for the metric and then matches based on the logic.
-        Map<Integer, String> valuesWithMetricIds = getValuesForMetricKey(metricName, t.tag.key);
-
-        // wildcard and iwildcard
-        if (t.type.equals(MatchType.IWILDCARD) || t.type.equals(MatchType.WILDCARD)) {
-          matchWildcard(t, valuesWithMetricIds, andBitMaps);
-          continue;
-        }
-
-        if (t.type.equals(MatchType.ILITERAL_OR)) {
-          matchCaseInsensitiveOr(t, valuesWithMetricIds, andBitMaps);
+          matchOr(q.metricName, t, andBitMaps);
           continue;
         }
 
-        if (t.type.equals(MatchType.REGEXP)) {
-          matchRegEx(t, valuesWithMetricIds, andBitMaps);
-          continue;
-        }
+        // Slow path matches the distinct values of the tag key for the metric with the wildcard,
+        // iwildcard, iliteral_or and regex matchers. They are evaluated after the fast path.
+        slowPathTagMatchers.add(t);
       } else {
         andBitMaps.add(EMPTY_BITMAP);
       }
     }
-    RoaringBitmap result = FastAggregation.and(andBitMaps.iterator());
-    return result;
-  }
-
-  private void matchWildcard(TagMatcher t, Map<Integer, String> valuesWithMetricIds,
-                             List<RoaringBitmap> resultMap) {
-
-    final boolean caseInsensitive = t.type.equals(MatchType.IWILDCARD);
-    String actual = caseInsensitive ? t.tag.value.toLowerCase() : t.tag.value;
 
-    // Parse wild card string
-    boolean hasPostfix;
-    boolean hasPrefix;
-    String[] components;
-
-    if (actual.charAt(0) == '*') {
-      hasPostfix = true;
-      while (actual.charAt(0) == '*') {
-        if (actual.length() < 2) {
-          break;
-        }
-        actual = actual.substring(1);
-      }
-    } else {
-      hasPostfix = false;
-    }
-
-    if (actual.charAt(actual.length() - 1) == '*') {
-      hasPrefix = true;
-      while (actual.charAt(actual.length() - 1) == '*') {
-        if (actual.length() < 2) {
-          break;
-        }
-        actual = actual.substring(0, actual.length() - 1);
+    RoaringBitmap candidates = intersect(andBitMaps);
+    for (TagMatcher t : notTagMatchers) {
+      if (candidates.isEmpty()) {
+        break;
       }
-    } else {
-      hasPrefix = false;
-    }
-    if (actual.indexOf('*') > 0) {
-      components = actual.split("\\*");
-    } else {
-      components = new String[1];
-      components[0] = actual;
-    }
-
-    // Match the wildcard string
-    RoaringBitmap wildcardMatches = new RoaringBitmap();
-    valuesWithMetricIds.entrySet().stream()
-        .filter(entry -> matchTagsWithWildcard(hasPostfix, hasPrefix, components,
-            caseInsensitive ? entry.getValue().toLowerCase() : entry.getValue()))
-        .forEach(entry -> wildcardMatches.add(entry.getKey()));
-
-    if (wildcardMatches.getCardinality() > 0) {
-      resultMap.add(wildcardMatches);
-    } else {
-      resultMap.add(EMPTY_BITMAP);
+      candidates.andNot(lookupOr(q.metricName, t));
     }
+    return matchSlowPath(q.metricName, slowPathTagMatchers, candidates);
   }
 
-  private boolean matchTagsWithWildcard(boolean hasPostfix, boolean hasPrefix, String[] components,
-                                        String tagValue) {
-    if (tagValue == null) {
-      return false;
-    }
-
-    if (components.length == 1 && components[0].equals("*")) {  // match all
-      return true;
-    }
-
-    if (hasPostfix && !hasPrefix && !tagValue.endsWith(components[components.length - 1])) {
-      return false;
-    }
-
-    if (hasPrefix && !hasPostfix && !tagValue.startsWith(components[0])) {
-      return false;
-    }
-
-    int idx = 0;
-    for (int i = 0; i < components.length; i++) {
-      if (tagValue.indexOf(components[i], idx) < 0) {
-        return false;
-      }
-      idx += components[i].length();
-    }
-
-    return true;
+  private static boolean isNot(TagMatcher t) {
+    return t.type == MatchType.NOT_LITERAL_OR || t.type == MatchType.NOT_ILITERAL_OR;
   }
 
-  private RoaringBitmap getExcludedIds(String metricName, List<TagMatcher> tagMatchers) {
-    List<RoaringBitmap> andNotBitMaps = new ArrayList<>();
-
-    if (metricIndex.containsKey(metricName)) {
-      andNotBitMaps.add(lookupMetricIndex(metricName));
-    } else {
-      andNotBitMaps.add(EMPTY_BITMAP);
-    }
-
-    for (TagMatcher t : tagMatchers) {
-      if (metricIndex.containsKey(t.tag.key)) {
-        // Include all metrics that include this tag key.
-        andNotBitMaps.add(lookupMetricIndex(t.tag.key));
-
-        // Slow path gets the values for the metric and then matches based on the logic.
-        Map<Integer, String> valuesWithMetricIds = getValuesForMetricKey(metricName, t.tag.key);
-
-        if (t.type.equals(MatchType.NOT_LITERAL_OR)) {
-          matchOr(t, andNotBitMaps);
-          continue;
-        }
-
-        if (t.type.equals(MatchType.NOT_ILITERAL_OR)) {
-          matchCaseInsensitiveOr(t, valuesWithMetricIds, andNotBitMaps);
-          continue;
-        }
-      } else {
-        andNotBitMaps.add(EMPTY_BITMAP);
-      }
+  /**
+   * Intersect the bitmaps starting with the smallest bitmap, so the result shrinks as quickly as
+   * possible. Stop early if the result is empty.
+   */
+  private static RoaringBitmap intersect(List<RoaringBitmap> bitmaps) {
+    bitmaps.sort(Comparator.comparingInt(RoaringBitmap::getCardinality));
+    RoaringBitmap result = bitmaps.get(0).clone();
+    for (int i = 1; i < bitmaps.size() && !result.isEmpty(); i++) {
+      result.and(bitmaps.get(i));
     }
-    return FastAggregation.and(andNotBitMaps.iterator());
+    return result;
   }
 
-  private void matchExactTag(TagMatcher t, List<RoaringBitmap> resultMap) {
-    String rawTag = t.tag.key + "=" + t.tag.value;
-    if (metricIndex.containsKey(rawTag)) {
-      resultMap.add(lookupMetricIndex(rawTag));
-    } else {
-      resultMap.add(EMPTY_BITMAP);  // If not exact match is present, return empty bitmap.
-    }
+  private void matchExactTag(String metricName, TagMatcher t, List<RoaringBitmap> resultMap) {
+    // If no exact match is present, the lookup returns an empty bitmap.
+    resultMap.add(tagValueIndex.get(metricName, t.tag.key, t.tag.value));
   }
 
-  private void matchRegEx(TagMatcher t, Map<Integer, String> valuesWithMetricIds,
-                          List<RoaringBitmap> resultMap) {
-    Pattern pattern = Pattern.compile(t.tag.value);
-    RoaringBitmap regExpMatches = new RoaringBitmap();
-    valuesWithMetricIds.entrySet().stream()
-        .filter(entry -> pattern.matcher(entry.getValue()).find())
-        .forEach(entry -> regExpMatches.add(entry.getKey()));
-    if (regExpMatches.getCardinality() > 0) {
-      resultMap.add(regExpMatches);
-    } else {
-      resultMap.add(EMPTY_BITMAP);
-    }
+  private void matchOr(String metricName, TagMatcher t, List<RoaringBitmap> resultantMap) {
+    resultantMap.add(lookupOr(metricName, t));
   }
 
-  private void matchOr(TagMatcher t, List<RoaringBitmap> resultantMap) {
+  private RoaringBitmap lookupOr(String metricName, TagMatcher t) {
     // TODO: Add more validation for this expression here.
     final String[] split = t.tag.value.split("\\|");
-    List<RoaringBitmap> orMaps = new ArrayList<>();
-    for (int i = 0; i < split.length; i++) {
-      if (!split[i].isEmpty()) {
-        final String tagValuePair = t.tag.key + "=" + split[i];
-        if (metricIndex.containsKey(tagValuePair)) {
-          orMaps.add(lookupMetricIndex(tagValuePair));
-        }
-      }
-    }
-
-    if (orMaps.isEmpty()) {
-      resultantMap.add(EMPTY_BITMAP); // If no exact match is present, return empty result.
-    } else {
-      resultantMap.add(FastAggregation.or(orMaps.iterator()));
-    }
+    // If no exact match is present, the lookup returns an empty bitmap.
+    return tagValueIndex.get(metricName, t.tag.key, split);
   }
 
-  private void matchCaseInsensitiveOr(TagMatcher t, Map<Integer, String> valuesWithMetricIds,
-                                      List<RoaringBitmap> resultantMap) {
-
-    RoaringBitmap iLiteralMatches = new RoaringBitmap();
-    final String[] split = t.tag.value.split("\\|");
-
-    if (split.length > 0) {
-      valuesWithMetricIds.entrySet().stream()
-          .filter(entry -> caseInsensitiveTagValueMatch(split, entry.getValue()))
-          .forEach(entry -> iLiteralMatches.add(entry.getKey()));
+  /**
+   * Return the candidate ids that match all the slow path tag matchers. The ids matched by a
+   * not_iliteral_or matcher are removed from the candidates. The cheapest tag matchers are
+   * evaluated first and each tag matcher only matches the values of the candidates that are
+   * left. All the tag matchers are compiled even if there are no candidates, so an invalid regex
+   * always fails the query.
+   */
+  private RoaringBitmap matchSlowPath(String metricName, List<TagMatcher> tagMatchers,
+                                      RoaringBitmap candidates) {
+    List<TagMatcher> sortedTagMatchers = new ArrayList<>(tagMatchers);
+    sortedTagMatchers.sort(Comparator.comparingInt(t -> getSlowPathCost(t.type)));
+    List<CompiledTagMatcher> compiledTagMatchers = sortedTagMatchers.stream()
+        .map(this::compile)
+        .collect(Collectors.toList());
+
+    for (int i = 0; i < sortedTagMatchers.size() && !candidates.isEmpty(); i++) {
+      TagMatcher t = sortedTagMatchers.get(i);
+      CompiledTagMatcher compiledTagMatcher = compiledTagMatchers.get(i);
+      RoaringBitmap matches = tagValueIndex.match(metricName, t.tag.key,
+          compiledTagMatcher.getPrefix(), compiledTagMatcher, candidates);
+      if (t.type.equals(MatchType.NOT_ILITERAL_OR)) {
+        candidates.andNot(matches);
+      } else {
+        candidates.and(matches);
+      }
     }
+    return candidates;
+  }
 
-    if (iLiteralMatches.getCardinality() > 0) {
-      resultantMap.add(iLiteralMatches);
-    } else {
-      resultantMap.add(EMPTY_BITMAP);
+  /**
+   * A rough relative cost of matching a tag value with a slow path tag matcher.
+   */
+  private static int getSlowPathCost(MatchType type) {
+    switch (type) {
+      case ILITERAL_OR:
+      case NOT_ILITERAL_OR:
+        return 1;
+      case WILDCARD:
+      case IWILDCARD:
+        return 2;
+      default:
+        return 3;
     }
   }
 
-  private boolean caseInsensitiveTagValueMatch(String[] tags, String tagValue) {
-    for (int i = 0; i < tags.length; i++) {
-      if (!tags[i].isEmpty() && !tagValue.isEmpty()
-          && tags[i].toLowerCase().equals(tagValue.toLowerCase())) {
-        return true;
+  /**
+   * Return the compiled tag matcher from the cache or compile it. If the cache is full, it is
+   * cleared since the cached tag matchers are cheap to recompile.
+   */
+  private CompiledTagMatcher compile(TagMatcher t) {
+    CompiledTagMatcher compiledTagMatcher = compiledTagMatchers.get(t);
+    if (compiledTagMatcher == null) {
+      compiledTagMatcher = CompiledTagMatcher.compile(t);
+      if (compiledTagMatchers.size() >= MAX_COMPILED_TAG_MATCHERS) {
+        compiledTagMatchers.clear();
       }
+      compiledTagMatchers.put(t, compiledTagMatcher);
     }
-    return false;
+    return compiledTagMatcher;
   }
 
   /**
@@ -486,74 +463,120 @@ public class InvertedIndexTagStore implements TagStore {
    */
   @VisibleForTesting
   public Map<Integer, String> getValuesForMetricKey(String metricName, String key) {
-    List<RoaringBitmap> andBitMaps = new ArrayList<>();
-
-    if (metricIndex.containsKey(metricName)) {
-      andBitMaps.add(lookupMetricIndex(metricName));
-    } else {
-      andBitMaps.add(EMPTY_BITMAP);
-    }
-
-    if (metricIndex.containsKey(key)) {
-      andBitMaps.add(lookupMetricIndex(key));
-    } else {
-      andBitMaps.add(EMPTY_BITMAP);
-    }
+    return tagValueIndex.getValues(metricName, key);
+  }
 
-    RoaringBitmap resultBitMap = FastAggregation.and(andBitMaps.iterator());
-    HashMap<Integer, String> resultMap = new HashMap<>();
-    for (int i : resultBitMap.toArray()) {
-      resultMap.put(i, extractTagValueForTagKey(metricIdMap.get(i), key));
+  /**
+   * get the id of a metric if it exists or create an id for the metric and return it.
+   * @param m the metric to assign a metricId
+   * @return
+   */
+  @Override
+  public int getOrCreate(final Metric m) {
+    long startNs = System.nanoTime();
+    try {
+      Optional<Integer> optionalMetric = get(m);
+      return optionalMetric.isPresent() ? optionalMetric.get() : create(m);
+    } finally {
+      GET_OR_CREATE_LATENCY.recordSince(startNs);
     }
-    return resultMap;
   }
 
   /**
-   * Given a full metric string, extract the values for a given key. Currently, we only assume that
-   * a tagKey exists only once in metric name. Currently, OpenTSDB doesn't support repetitions of
-   * the tag key in a metric. So, we only extract the first value in this method.
+   * Get or create the ids of a batch of metrics. The missing metrics are created together, so the
+   * posting list of each metric name and tag key in the batch is only re-written once.
    */
-  private String extractTagValueForTagKey(String fullMetric, String key) {
-    int startingIndex = fullMetric.indexOf(key + "=");
-    if (startingIndex == -1) {
-      throw new IllegalArgumentException(
-          "Key: " + key + "should exist in metric name " + fullMetric);
+  @Override
+  public int[] getOrCreate(final List<Metric> metrics) {
+    long startNs = System.nanoTime();
+    int[] ids = new int[metrics.size()];
+    List<Integer> missingPositions = new ArrayList<>();
+    for (int i = 0; i < metrics.size(); i++) {
+      Optional<Integer> optionalMetric = get(metrics.get(i));
+      if (optionalMetric.isPresent()) {
+        ids[i] = optionalMetric.get();
+      } else {
+        missingPositions.add(i);
+      }
+    }
+    if (!missingPositions.isEmpty()) {
+      create(metrics, missingPositions, ids);
     }
-    int startValueIndex = startingIndex + key.length() + 1;
-    int endValueIndex = fullMetric.indexOf(" ", startValueIndex); // first space is end.
-    return fullMetric
-        .substring(startValueIndex, endValueIndex == -1 ? fullMetric.length() : endValueIndex);
+    GET_OR_CREATE_BATCH_LATENCY.recordSince(startNs);
+    return ids;
   }
 
   /**
-   * get the id of a metric if it exists or create an id for the metric and return it.
-   * TODO: Make this multi-threaded friendly.
-   * @param m the metric to assign a metricId
-   * @return
+   * Delete the given metrics from the metric index, the tag value index and the id maps, and
+   * release their strings from the dictionary. The metrics are removed from the indexes first, so
+   * a concurrent query doesn't find a metric whose name is already deleted.
    */
   @Override
-  public int getOrCreate(final Metric m) {
-    Optional<Integer> optionalMetric = get(m);
-    return optionalMetric.isPresent() ? optionalMetric.get() : create(m);
+  public synchronized void delete(RoaringBitmap ids) {
+    Map<String, RoaringBitmap> deletedPostings = new HashMap<>();
+    Map<Integer, ByteBuffer> deletedMetrics = new HashMap<>();
+    PeekableIntIterator idIterator = ids.getIntIterator();
+    while (idIterator.hasNext()) {
+      int id = idIterator.next();
+      ByteBuffer encodedMetric = metricIdMap.get(id);
+      if (encodedMetric == null) {
+        continue;
+      }
+      deletedMetrics.put(id, encodedMetric);
+
+      int start = encodedMetric.position();
+      String metricName = dictionary.getString(encodedMetric.getInt(start));
+      deletedPostings.computeIfAbsent(metricName, k -> new RoaringBitmap()).add(id);
+      for (int i = start + Integer.BYTES; i < encodedMetric.limit(); i += 2 * Integer.BYTES) {
+        String tagKey = dictionary.getString(encodedMetric.getInt(i));
+        String tagValue = dictionary.getString(encodedMetric.getInt(i + Integer.BYTES));
+        deletedPostings.computeIfAbsent(tagKey, k -> new RoaringBitmap()).add(id);
+        tagValueIndex.remove(metricName, tagKey, tagValue, id);
+      }
+    }
+    deletedPostings.forEach(this::removeFromMetricIndex);
+
+    deletedMetrics.forEach((id, encodedMetric) -> {
+      seriesKeyMap.remove(encodedMetric);
+      metricIdMap.remove(id);
+      for (int i = encodedMetric.position(); i < encodedMetric.limit(); i += Integer.BYTES) {
+        dictionary.release(encodedMetric.getInt(i));
+      }
+    });
+    LOG.info("Deleted {} metrics from the tag store.", deletedMetrics.size());
   }
 
   @Override
   public String getMetricName(final int metricId) {
-    return metricIdMap.getOrDefault(metricId, MISSING_METRIC);
+    long startNs = System.nanoTime();
+    String metricName = getMetricNameFromId(metricId);
+    METRIC_NAME_LATENCY.recordSince(startNs);
+    return metricName == null ? MISSING_METRIC : metricName;
   }
 
   @Override
   public Map<String, Object> getStats() {
     Map<String, Object> stats = new HashMap<>();
     stats.put("IndexMapSize", metricIndex.size());
-    stats.put("IndexMapDistribution",
-        metricIndex.entrySet().stream()
-            .map(entry -> lookupMetricIndex(entry.getKey()).getCardinality())
-            .collect(Collectors.groupingBy(Function.identity(), Collectors.counting())));
+    stats.put("PostingListByteSize", postingListBytes.get());
     stats.put("MetricIdMapSize", metricIdMap.size());
+    stats.put("SeriesKeyMapSize", seriesKeyMap.size());
+    stats.put("DictionarySize", dictionary.size());
+    stats.put("TagValueIndexSize", tagValueIndex.size());
+    stats.put("CompiledTagMatchersSize", compiledTagMatchers.size());
     return stats;
   }
 
+  /**
+   * @return the number of posting lists by the number of ids in them. It deserializes all the
+   * posting lists, so it is too expensive to be called often.
+   */
+  public Map<Integer, Long> getIndexMapDistribution() {
+    return metricIndex.keySet().stream()
+        .map(key -> lookupMetricIndex(key).getCardinality())
+        .collect(Collectors.groupingBy(Function.identity(), Collectors.counting()));
+  }
+
   /**
    * Set the maps to null explicitly so they can be GC'ed fast.
    */
@@ -563,6 +586,11 @@ public class InvertedIndexTagStore implements TagStore {
     this.metricIdMap = null;
     metricIndex.clear();
     this.metricIndex = null;
+    seriesKeyMap.clear();
+    this.seriesKeyMap = null;
+    dictionary.clear();
+    tagValueIndex.clear();
+    compiledTagMatchers.clear();
   }
 
   @Override
@@ -575,8 +603,75 @@ public class InvertedIndexTagStore implements TagStore {
     return metricIndex;
   }
 
+  /**
+   * @return the full metric name of the id or null if the metric is missing or being deleted.
+   */
   public String getMetricNameFromId(final int id) {
-    return metricIdMap.get(id);
+    ByteBuffer encodedMetric = metricIdMap.get(id);
+    return encodedMetric == null ? null : decode(encodedMetric);
+  }
+
+  /**
+   * Encode a metric as an array of ints: the id of the metric name followed by the ids of the key
+   * and value of each tag. The tags are sorted and de-duped by the raw tag, the same way as the
+   * full metric name, so a metric has a unique encoding.
+   *
+   * @param create if true, the strings missing from the dictionary are added to it. Otherwise,
+   *               null is returned if a string is missing from the dictionary.
+   */
+  private ByteBuffer encode(Metric m, boolean create) {
+    List<Tag> sortedTags = new ArrayList<>(m.tags);
+    sortedTags.sort(Comparator.comparing(tag -> tag.rawTag));
+
+    ByteBuffer encodedMetric = ByteBuffer.allocate(Integer.BYTES * (1 + 2 * sortedTags.size()));
+    if (!putId(encodedMetric, m.metricName, create)) {
+      return null;
+    }
+    String previousRawTag = null;
+    for (Tag tag : sortedTags) {
+      if (tag.rawTag.equals(previousRawTag)) {
+        continue;
+      }
+      if (!putId(encodedMetric, tag.key, create) || !putId(encodedMetric, tag.value, create)) {
+        return null;
+      }
+      previousRawTag = tag.rawTag;
+    }
+    encodedMetric.flip();
+    return encodedMetric;
+  }
+
+  private boolean putId(ByteBuffer encodedMetric, String s, boolean create) {
+    int id = create ? dictionary.acquire(s) : dictionary.get(s);
+    if (id == StringDictionary.MISSING_ID) {
+      return false;
+    }
+    encodedMetric.putInt(id);
+    return true;
+  }
+
+  /**
+   * Re-construct the full metric name of an encoded metric.
+   * @return the metric name or null if a string of the metric is no longer in the dictionary,
+   * since a concurrent delete releases the strings of the metric while it is decoded.
+   */
+  private String decode(ByteBuffer encodedMetric) {
+    int start = encodedMetric.position();
+    String metricName = dictionary.getString(encodedMetric.getInt(start));
+    if (metricName == null) {
+      return null;
+    }
+    StringBuilder fullMetricName = new StringBuilder(AVERAGE_METRIC_NAME_SIZE);
+    fullMetricName.append(metricName);
+    for (int i = start + Integer.BYTES; i < encodedMetric.limit(); i += 2 * Integer.BYTES) {
+      String tagKey = dictionary.getString(encodedMetric.getInt(i));
+      String tagValue = dictionary.getString(encodedMetric.getInt(i + Integer.BYTES));
+      if (tagKey == null || tagValue == null) {
+        return null;
+      }
+      fullMetricName.append(METRIC_SEPARATOR).append(tagKey).append(TAG_DELIMITER).append(tagValue);
+    }
+    return fullMetricName.toString();
   }
 
   /**
@@ -589,62 +684,119 @@ public class InvertedIndexTagStore implements TagStore {
    * TODO: Consider preventing further writes to the tag store once we hit capacity.
    */
   private int create(final Metric m) {
-    int newMetricId = tagStoreCounter.incrementAndGet();
-
-    /**
-     * Add an inverse lookup for each metric Id so it's easy to get the metric metricName back.
-     *
-     * We should update the metricIdMap first because if it fails the metricIndex will be in an
-     * inconsistent state since we are adding a metricId that was never created. Another reason is
-     * since metricIdMap is off heap there is a higher chance of failures than
-     * adding an element to the in-memory map.
-     */
-    metricIdMap.put(newMetricId, m.fullMetricName);
-
-    // Add an entry with full metric metricName.
-    addToMetricIndex(m.fullMetricName, newMetricId);
-
-    // Add an entry with metricName.
-    addToMetricIndex(m.metricName, newMetricId);
-
-    // For a mapping for each key and value.
-    for (Tag tag : m.tags) {
-      addToMetricIndex(tag.key, newMetricId);
-      addToMetricIndex(tag.rawTag, newMetricId);
-    }
+    int[] ids = new int[1];
+    create(Collections.singletonList(m), Collections.singletonList(0), ids);
+    return ids[0];
+  }
+
+  /**
+   * Create the metrics at the given positions of the list and store their ids at the same
+   * positions in ids. The posting list of each metric name and tag key is updated once for all the
+   * new metrics, since re-writing a posting list is the most expensive part of creating a metric.
+   *
+   * Creates and deletes are synchronized, so the metric index is updated by one thread at a time
+   * and a metric is only created once.
+   */
+  private synchronized void create(final List<Metric> metrics, final List<Integer> positions,
+                                   final int[] ids) {
+    int metricIndexSize = metricIndex.size();
+    Map<String, RoaringBitmap> newPostings = new HashMap<>();
+    for (int position : positions) {
+      Metric m = metrics.get(position);
+      // Another thread or an earlier metric in the batch may have created the metric since the
+      // lookup in getOrCreate.
+      Optional<Integer> existingMetricId = get(m);
+      if (existingMetricId.isPresent()) {
+        ids[position] = existingMetricId.get();
+        continue;
+      }
+
+      int newMetricId = tagStoreCounter.incrementAndGet();
+      CREATED_METRICS.increment();
+
+      /**
+       * Add an inverse lookup for each metric Id so it's easy to get the metric metricName back.
+       *
+       * We should update the metricIdMap first because if it fails the metricIndex will be in an
+       * inconsistent state since we are adding a metricId that was never created. Another reason
+       * is since metricIdMap is off heap there is a higher chance of failures than
+       * adding an element to the in-memory map.
+       */
+      ByteBuffer encodedMetric = encode(m, true);
+      metricIdMap.put(newMetricId, encodedMetric.duplicate());
+
+      // Add an entry with the encoded metric.
+      seriesKeyMap.put(encodedMetric.duplicate(), newMetricId);
+
+      // Add an entry with metricName.
+      newPostings.computeIfAbsent(m.metricName, k -> new RoaringBitmap()).add(newMetricId);
+
+      // For a mapping for each key and value. The values are looked up in the tag value index.
+      for (Tag tag : m.tags) {
+        newPostings.computeIfAbsent(tag.key, k -> new RoaringBitmap()).add(newMetricId);
+        tagValueIndex.add(m.metricName, tag, newMetricId);
+      }
+
+      // If the off heap tag store exceeds capacity print a warning once to prevent log spam. In
+      // practice, we can take up to 2x the number of keys than capacity, so this is not fatal
+      // yet. But once we hit 99% of capacity, chronicle map recommends a resize, so we should act
+      // when we see this warning. A persisted map is never re-sized. It can take more elements
+      // than its capacity because it pre-allocates a few slabs of memory for hash map and extends
+      // a slab when it's full until the map has reached capacity. This leads to slower hash lookup
+      // and insert performance. Once the capacity limit is hit it doesn't allocate any more slabs
+      // but inserts elements until the currently allocated slabs are full. So, you can insert more
+      // elements than the capacity but it can run over anytime once we hit the limit. Hence the a
+      // warning to resize the off heap.
+      // More info at: https://github.com/OpenHFT/Chronicle-Map/tree/master/spec
+      // The in memory off heap maps are resized online by the ResizableChronicleMap.
+      if (this.useOffHeapIdStore && !(metricIdMap instanceof ResizableChronicleMap)
+          && metricIdMap.size() == metricIdMapCapacity) {
+        LOG.warn("The off heap tag store has reached it's capacity of {}. Resize it.",
+            metricIdMapCapacity);
+      }
 
-    // If the off heap tag store exceeds capacity print a warning once to prevent log spam. In
-    // practice, we can take up to 2x the number of keys than capacity, so this is not fatal yet.
-    // But once we hit 99% of capacity, chronicle map recommends a resize, so we should act when
-    // we see this warning. The off-heap is never re-sized. It can take more elements than its
-    // capacity because it pre-allocates a few slabs of memory for hash map and extends a slab when
-    // it's full until the map has reached capacity. This leads to slower hash lookup and insert
-    // performance. Once the capacity limit is hit it doesn't allocate any more slabs but inserts
-    // elements until the currently allocated slabs are full. So, you can insert more elements than
-    // the capacity but it can run over anytime once we hit the limit. Hence the a warning to resize
-    // the off heap. More info at: https://github.com/OpenHFT/Chronicle-Map/tree/master/spec
-    if (this.useOffHeapIdStore && metricIdMap.size() == metricIdMapCapacity) {
-      LOG.warn("The off heap tag store has reached it's capacity of {}. Resize it.",
-          metricIdMapCapacity);
+      ids[position] = newMetricId;
     }
 
-    if (this.useOffHeapIndexStore && metricIndex.size() == metricIndexCapacity) {
+    newPostings.forEach(this::addToMetricIndex);
+
+    if (this.useOffHeapIndexStore && !(metricIndex instanceof ResizableChronicleMap)
+        && metricIndexSize < metricIndexCapacity && metricIndex.size() >= metricIndexCapacity) {
       LOG.warn("The off heap index store has reached it's capacity of {}. Resize it.",
           metricIndexCapacity);
     }
-
-    return newMetricId;
   }
 
-  // TODO: Add synchronization for accessing multiple threads.
-  private void addToMetricIndex(final String key, final Integer id) {
-    if (metricIndex.containsKey(key)) {
-      MutableRoaringBitmap currentMap = lookupMetricIndex(key).toMutableRoaringBitmap();
-      currentMap.add(id);
-      metricIndex.put(key, RoaringBitMapUtils.toByteBuffer(currentMap));
+  private void addToMetricIndex(final String key, final RoaringBitmap ids) {
+    ByteBuffer currentValue = metricIndex.get(key);
+    if (currentValue != null) {
+      int currentBytes = currentValue.remaining();
+      RoaringBitmap currentMap = new ImmutableRoaringBitmap(currentValue).toRoaringBitmap();
+      currentMap.or(ids);
+      putPostingList(key, currentBytes, RoaringBitMapUtils.toByteBuffer(currentMap));
     } else {
-      MutableRoaringBitmap newMap = MutableRoaringBitmap.bitmapOf(id);
-      metricIndex.put(key, RoaringBitMapUtils.toByteBuffer(newMap));
+      putPostingList(key, 0, RoaringBitMapUtils.toByteBuffer(ids));
+    }
+  }
+
+  private void removeFromMetricIndex(final String key, final RoaringBitmap ids) {
+    ByteBuffer currentValue = metricIndex.get(key);
+    if (currentValue != null) {
+      int currentBytes = currentValue.remaining();
+      RoaringBitmap currentMap = new ImmutableRoaringBitmap(currentValue).toRoaringBitmap();
+      currentMap.andNot(ids);
+      if (currentMap.isEmpty()) {
+        metricIndex.remove(key);
+        postingListBytes.addAndGet(-currentBytes);
+      } else {
+        putPostingList(key, currentBytes, RoaringBitMapUtils.toByteBuffer(currentMap));
+      }
     }
   }
+
+  private void putPostingList(String key, int currentBytes, ByteBuffer postingList) {
+    int newBytes = postingList.remaining();
+    metricIndex.put(key, postingList);
+    postingListBytes.addAndGet(newBytes - currentBytes);
+  }
 }
@@ -64,6 +64,58 @@ public final class Query {
     return new Query(metricName, matchers);
   }
 
+  /**
+   * Two queries are equal if they have the same metric name and the same tag matchers. Since there
+   * is only one tag matcher per tag key, the order of the tag matchers doesn't change the result of
+   * a query, so it is ignored here. A tag matcher is identified by its type, key and value. The raw
+   * tag string is ignored since it depends on how the tag matcher was created.
+   */
+  @Override
+  public boolean equals(Object o) {
+    if (this == o) {
+      return true;
+    }
+    if (o == null || getClass() != o.getClass()) {
+      return false;
+    }
+
+    Query query = (Query) o;
+
+    if (!metricName.equals(query.metricName)
+        || tagMatchers.size() != query.tagMatchers.size()) {
+      return false;
+    }
+    for (TagMatcher t : tagMatchers) {
+      if (!query.hasEquivalentTagMatcher(t)) {
+        return false;
+      }
+    }
+    return true;
+  }
+
+  private boolean hasEquivalentTagMatcher(TagMatcher tagMatcher) {
+    for (TagMatcher t : tagMatchers) {
+      if (t.type == tagMatcher.type
+          && t.tag.key.equals(tagMatcher.tag.key)
+          && t.tag.value.equals(tagMatcher.tag.value)) {
+        return true;
+      }
+    }
+    return false;
+  }
+
+  /**
+   * The hash code is independent of the order of the tag matchers to be consistent with equals.
+   */
+  @Override
+  public int hashCode() {
+    int result = metricName.hashCode();
+    for (TagMatcher t : tagMatchers) {
+      result += 31 * (31 * t.type.hashCode() + t.tag.key.hashCode()) + t.tag.value.hashCode();
+    }
+    return result;
+  }
+
   @Override
   public String toString() {
     return "Query{" +
@@ -0,0 +1,235 @@
+package com.pinterest.yuvi.tagstore;
+
+import com.google.common.annotations.VisibleForTesting;
+import net.openhft.chronicle.map.ChronicleMap;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.Closeable;
+import java.util.AbstractMap;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.ReadWriteLock;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+import java.util.function.LongFunction;
+
+/**
+ * A chronicle map is created with a fixed number of entries. Once it is full, lookups slow down
+ * and inserts can fail. This class wraps a chronicle map and grows it online when it is close to
+ * its capacity.
+ *
+ * When the number of entries crosses the resize threshold, a new map with twice the capacity is
+ * created in the background and all the entries are copied to it. Reads and writes go to the old
+ * map during the copy and the keys written during the copy are tracked. Once the copy is done,
+ * the writes are briefly blocked while the tracked keys are copied again and the new map is
+ * swapped in. The old map is closed after a delay, so the in-flight reads on it can finish.
+ *
+ * Reads are lock free. Writes take a shared lock, so they don't block each other.
+ *
+ * Only in memory maps are resized, since a persisted map would be re-opened with its original
+ * capacity and file on a restart.
+ */
+class ResizableChronicleMap<K, V> extends AbstractMap<K, V> implements Closeable {
+
+  private static final Logger LOG = LoggerFactory.getLogger(ResizableChronicleMap.class);
+
+  static final double RESIZE_THRESHOLD = 0.8;
+  private static final int OLD_MAP_CLOSE_DELAY_SECS = 60;
+
+  private static final ScheduledExecutorService resizeExecutor =
+      Executors.newSingleThreadScheduledExecutor(runnable -> {
+        Thread thread = new Thread(runnable, "ResizableChronicleMap-resizer");
+        thread.setDaemon(true);
+        return thread;
+      });
+
+  private final String name;
+  private final LongFunction<ChronicleMap<K, V>> mapFactory;
+  private final ReadWriteLock swapLock = new ReentrantReadWriteLock();
+  private final AtomicBoolean resizing = new AtomicBoolean(false);
+  private final AtomicLong size;
+
+  private volatile ChronicleMap<K, V> map;
+  private volatile long capacity;
+  private volatile Set<K> keysWrittenDuringResize;
+
+  /**
+   * @param mapFactory creates an empty chronicle map with the given number of entries.
+   */
+  ResizableChronicleMap(String name, long capacity, LongFunction<ChronicleMap<K, V>> mapFactory) {
+    this.name = name;
+    this.mapFactory = mapFactory;
+    this.capacity = capacity;
+    this.map = mapFactory.apply(capacity);
+    this.size = new AtomicLong(0);
+  }
+
+  @Override
+  public V get(Object key) {
+    return map.get(key);
+  }
+
+  @Override
+  public V getOrDefault(Object key, V defaultValue) {
+    return map.getOrDefault(key, defaultValue);
+  }
+
+  @Override
+  public boolean containsKey(Object key) {
+    return map.containsKey(key);
+  }
+
+  @Override
+  public V put(K key, V value) {
+    V oldValue;
+    swapLock.readLock().lock();
+    try {
+      oldValue = map.put(key, value);
+      trackWrite(key);
+    } finally {
+      swapLock.readLock().unlock();
+    }
+
+    if (oldValue == null) {
+      maybeResize(size.incrementAndGet());
+    }
+    return oldValue;
+  }
+
+  @Override
+  @SuppressWarnings("unchecked")
+  public V remove(Object key) {
+    V oldValue;
+    swapLock.readLock().lock();
+    try {
+      oldValue = map.remove(key);
+      trackWrite((K) key);
+    } finally {
+      swapLock.readLock().unlock();
+    }
+
+    if (oldValue != null) {
+      size.decrementAndGet();
+    }
+    return oldValue;
+  }
+
+  @Override
+  public int size() {
+    return map.size();
+  }
+
+  @Override
+  public void clear() {
+    swapLock.writeLock().lock();
+    try {
+      map.clear();
+      size.set(0);
+    } finally {
+      swapLock.writeLock().unlock();
+    }
+  }
+
+  @Override
+  public Set<Entry<K, V>> entrySet() {
+    return map.entrySet();
+  }
+
+  @Override
+  public void close() {
+    swapLock.writeLock().lock();
+    try {
+      map.close();
+    } finally {
+      swapLock.writeLock().unlock();
+    }
+  }
+
+  @VisibleForTesting
+  long getCapacity() {
+    return capacity;
+  }
+
+  @VisibleForTesting
+  boolean isResizing() {
+    return resizing.get();
+  }
+
+  private void trackWrite(K key) {
+    Set<K> keys = keysWrittenDuringResize;
+    if (keys != null) {
+      keys.add(key);
+    }
+  }
+
+  private void maybeResize(long currentSize) {
+    if (currentSize >= RESIZE_THRESHOLD * capacity && resizing.compareAndSet(false, true)) {
+      LOG.info("Map {} has {} entries with a capacity of {}. Resizing it.",
+          name, currentSize, capacity);
+      resizeExecutor.execute(this::resize);
+    }
+  }
+
+  /**
+   * Copy all the entries to a new map with twice the capacity and swap it in. Only one resize
+   * should run at a time.
+   */
+  @VisibleForTesting
+  void resize() {
+    ChronicleMap<K, V> newMap = null;
+    try {
+      long newCapacity = 2 * capacity;
+      newMap = mapFactory.apply(newCapacity);
+
+      // Block the writes briefly, so all the writes after this point are tracked.
+      swapLock.writeLock().lock();
+      try {
+        keysWrittenDuringResize = ConcurrentHashMap.newKeySet();
+      } finally {
+        swapLock.writeLock().unlock();
+      }
+
+      ChronicleMap<K, V> oldMap = map;
+      for (Map.Entry<K, V> entry : oldMap.entrySet()) {
+        newMap.put(entry.getKey(), entry.getValue());
+      }
+
+      swapLock.writeLock().lock();
+      try {
+        // Copy the keys written during the copy again, since the copy may have missed them.
+        for (K key : keysWrittenDuringResize) {
+          V value = oldMap.get(key);
+          if (value == null) {
+            newMap.remove(key);
+          } else {
+            newMap.put(key, value);
+          }
+        }
+        keysWrittenDuringResize = null;
+        map = newMap;
+        capacity = newCapacity;
+        size.set(newMap.size());
+      } finally {
+        swapLock.writeLock().unlock();
+      }
+
+      resizeExecutor.schedule(oldMap::close, OLD_MAP_CLOSE_DELAY_SECS, TimeUnit.SECONDS);
+      LOG.info("Resized map {} to a capacity of {} with {} entries.",
+          name, newCapacity, newMap.size());
+    } catch (RuntimeException e) {
+      keysWrittenDuringResize = null;
+      if (newMap != null && newMap != map) {
+        newMap.close();
+      }
+      LOG.error("Failed to resize map {}.", name, e);
+    } finally {
+      resizing.set(false);
+    }
+  }
+}
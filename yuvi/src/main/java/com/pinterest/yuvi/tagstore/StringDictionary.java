@@ -0,0 +1,90 @@
+package com.pinterest.yuvi.tagstore;
+
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * A StringDictionary assigns a unique int id to a string. The tag store uses it to store a metric
+ * as an array of ids of the metric name, the tag keys and the tag values instead of the full metric
+ * name. Since the number of distinct metric names, tag keys and tag values is much smaller than the
+ * number of metrics, the dictionary is stored on heap.
+ *
+ * The dictionary counts the references to each string, so a string can be removed once the last
+ * metric using it is deleted. The ids of the removed strings are not re-used.
+ *
+ * Reads are lock free. Adding and releasing a reference is synchronized.
+ */
+class StringDictionary {
+
+  static final int MISSING_ID = -1;
+
+  private final Map<String, Integer> ids;
+  private final Map<Integer, String> strings;
+  private final Map<Integer, Integer> refCounts;
+  private int nextId;
+
+  StringDictionary() {
+    ids = new ConcurrentHashMap<>();
+    strings = new ConcurrentHashMap<>();
+    refCounts = new HashMap<>();
+    nextId = 0;
+  }
+
+  /**
+   * @return the id of the string or MISSING_ID if the string is not in the dictionary.
+   */
+  int get(String s) {
+    return ids.getOrDefault(s, MISSING_ID);
+  }
+
+  /**
+   * Add a reference to the string.
+   * @return the id of the string. If the string is not in the dictionary, a new id is assigned.
+   */
+  synchronized int acquire(String s) {
+    Integer id = ids.get(s);
+    if (id == null) {
+      id = nextId++;
+      // Add the string before the id, so the string of an id is always present.
+      strings.put(id, s);
+      ids.put(s, id);
+    }
+    refCounts.merge(id, 1, Integer::sum);
+    return id;
+  }
+
+  /**
+   * Release a reference to the string with the given id. The string is removed from the dictionary
+   * when there are no references left.
+   */
+  synchronized void release(int id) {
+    Integer refCount = refCounts.get(id);
+    if (refCount == null) {
+      return;
+    }
+    if (refCount > 1) {
+      refCounts.put(id, refCount - 1);
+    } else {
+      refCounts.remove(id);
+      ids.remove(strings.remove(id));
+    }
+  }
+
+  /**
+   * @return the string with the given id or null if the id is not in the dictionary.
+   */
+  String getString(int id) {
+    return strings.get(id);
+  }
+
+  int size() {
+    return ids.size();
+  }
+
+  synchronized void clear() {
+    ids.clear();
+    strings.clear();
+    refCounts.clear();
+  }
+}
@@ -1,5 +1,7 @@
 package com.pinterest.yuvi.tagstore;
 
+import org.roaringbitmap.RoaringBitmap;
+
 import java.util.List;
 import java.util.Map;
 import java.util.Optional;
@@ -37,6 +39,13 @@ public interface TagStore {
    */
   public int getOrCreate(Metric metric);
 
+  /**
+   * Return the ids of a batch of metrics, creating the ones that don't exist.
+   * @param metrics
+   * @return the id of each metric at the same position as the metric.
+   */
+  int[] getOrCreate(List<Metric> metrics);
+
   /**
    * Lookup the metric idss that match a given metric query.
    * @param metricQuery
@@ -44,6 +53,14 @@ public interface TagStore {
    */
   public List<Integer> lookup(Query metricQuery);
 
+  /**
+   * Lookup the metric ids that match a given metric query as a bitmap, so the caller can cheaply
+   * intersect them with other ids.
+   * @param metricQuery
+   * @return a new bitmap that can be modified by the caller.
+   */
+  RoaringBitmap lookupIds(Query metricQuery);
+
   /**
    * Return the name given an ID.
    * @param uuid
@@ -51,6 +68,13 @@ public interface TagStore {
    */
   String getMetricName(int uuid);
 
+  /**
+   * Delete the metrics with the given ids, so the tag store only holds the metrics that are still
+   * stored in a chunk. The ids of the deleted metrics are not re-used.
+   * @param uuids the ids of the metrics to delete.
+   */
+  void delete(RoaringBitmap uuids);
+
   Map<String, Object> getStats();
 
   void close();
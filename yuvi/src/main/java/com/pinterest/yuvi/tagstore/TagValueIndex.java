@@ -0,0 +1,199 @@
+package com.pinterest.yuvi.tagstore;
+
+import static com.pinterest.yuvi.tagstore.Metric.METRIC_SEPARATOR;
+
+import org.roaringbitmap.PeekableIntIterator;
+import org.roaringbitmap.RoaringBitmap;
+
+import java.util.HashMap;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.function.Predicate;
+
+/**
+ * The slow path tag matchers like wildcard, regex and case insensitive matchers need to match the
+ * values of a tag key for all the metrics with a given metric name. Instead of looking up the name
+ * of every matching metric and extracting the tag value from it on every query, this index stores
+ * the distinct values of a tag key for a metric name along with a posting list of the metric ids
+ * with that value. So, a tag matcher only needs to match each distinct value once.
+ *
+ * The values are kept sorted, so exact matches are a single lookup and a prefix match only scans
+ * the range of values that start with the prefix.
+ *
+ * The index is updated incrementally when a metric is created in or deleted from the tag store. It
+ * is stored on heap since the number of distinct values is much smaller than the number of metrics.
+ */
+class TagValueIndex {
+
+  private final Map<String, TagValues> index;
+
+  TagValueIndex() {
+    index = new ConcurrentHashMap<>();
+  }
+
+  void add(String metricName, Tag tag, int metricId) {
+    // Add the id inside compute, so it can't race with a remove that drops the tag values.
+    index.compute(getKey(metricName, tag.key), (k, tagValues) -> {
+      TagValues values = tagValues == null ? new TagValues() : tagValues;
+      values.add(tag.value, metricId);
+      return values;
+    });
+  }
+
+  /**
+   * Remove the metric id from the posting list of the value. The values without any ids and the
+   * tag keys without any values are dropped from the index.
+   */
+  void remove(String metricName, String tagKey, String value, int metricId) {
+    index.computeIfPresent(getKey(metricName, tagKey),
+        (k, tagValues) -> tagValues.remove(value, metricId) ? null : tagValues);
+  }
+
+  /**
+   * Return the ids of the metrics with the given metric name that have one of the given values for
+   * the tag key.
+   */
+  RoaringBitmap get(String metricName, String tagKey, String... values) {
+    TagValues tagValues = index.get(getKey(metricName, tagKey));
+    if (tagValues == null) {
+      return new RoaringBitmap();
+    }
+    return tagValues.get(values);
+  }
+
+  /**
+   * Return the ids of the metrics with the given metric name whose value for the tag key is
+   * accepted by the predicate.
+   */
+  RoaringBitmap match(String metricName, String tagKey, Predicate<String> predicate) {
+    return match(metricName, tagKey, "", predicate);
+  }
+
+  /**
+   * Return the ids of the metrics with the given metric name whose value for the tag key starts
+   * with the prefix and is accepted by the predicate. Only the values starting with the prefix are
+   * passed to the predicate.
+   */
+  RoaringBitmap match(String metricName, String tagKey, String prefix,
+                      Predicate<String> predicate) {
+    return match(metricName, tagKey, prefix, predicate, null);
+  }
+
+  /**
+   * Same as the match above, but only the values of the given candidate ids are passed to the
+   * predicate, and the scan stops once all the candidates are matched. The returned ids may include
+   * ids that are not candidates, so the caller should intersect the result with the candidates. If
+   * the candidates are null, all values are matched.
+   */
+  RoaringBitmap match(String metricName, String tagKey, String prefix,
+                      Predicate<String> predicate, RoaringBitmap candidates) {
+    TagValues tagValues = index.get(getKey(metricName, tagKey));
+    if (tagValues == null) {
+      return new RoaringBitmap();
+    }
+    return tagValues.match(prefix, predicate, candidates);
+  }
+
+  /**
+   * Return the value of a tag key for every metric with the given metric name.
+   */
+  Map<Integer, String> getValues(String metricName, String tagKey) {
+    TagValues tagValues = index.get(getKey(metricName, tagKey));
+    if (tagValues == null) {
+      return new HashMap<>();
+    }
+    return tagValues.getValues();
+  }
+
+  int size() {
+    return index.size();
+  }
+
+  void clear() {
+    index.clear();
+  }
+
+  private static String getKey(String metricName, String tagKey) {
+    return metricName + METRIC_SEPARATOR + tagKey;
+  }
+
+  /**
+   * The distinct values of a tag key for a metric name and the ids of the metrics with that value.
+   * Since the posting lists are mutable, all access to them is synchronized.
+   */
+  private static final class TagValues {
+
+    private final TreeMap<String, RoaringBitmap> postings = new TreeMap<>();
+
+    synchronized void add(String value, int metricId) {
+      postings.computeIfAbsent(value, v -> new RoaringBitmap()).add(metricId);
+    }
+
+    /**
+     * @return true if there are no values left.
+     */
+    synchronized boolean remove(String value, int metricId) {
+      RoaringBitmap ids = postings.get(value);
+      if (ids != null) {
+        ids.remove(metricId);
+        if (ids.isEmpty()) {
+          postings.remove(value);
+        }
+      }
+      return postings.isEmpty();
+    }
+
+    synchronized RoaringBitmap get(String[] values) {
+      RoaringBitmap result = new RoaringBitmap();
+      for (String value : values) {
+        RoaringBitmap ids = postings.get(value);
+        if (ids != null) {
+          result.or(ids);
+        }
+      }
+      return result;
+    }
+
+    /**
+     * Only the values with the prefix are scanned. A value is skipped if none of its ids are
+     * candidates that are not matched yet, and the scan stops once every candidate is matched.
+     */
+    synchronized RoaringBitmap match(String prefix, Predicate<String> predicate,
+                                     RoaringBitmap candidates) {
+      RoaringBitmap result = new RoaringBitmap();
+      RoaringBitmap unmatched = candidates == null ? null : candidates.clone();
+      for (Map.Entry<String, RoaringBitmap> entry : postings.tailMap(prefix, true).entrySet()) {
+        if (!entry.getKey().startsWith(prefix)) {
+          break;  // All the values with the prefix are before this value.
+        }
+        if (unmatched != null) {
+          if (unmatched.isEmpty()) {
+            break;
+          }
+          if (!RoaringBitmap.intersects(entry.getValue(), unmatched)) {
+            continue;
+          }
+        }
+        if (predicate.test(entry.getKey())) {
+          result.or(entry.getValue());
+          if (unmatched != null) {
+            unmatched.andNot(entry.getValue());
+          }
+        }
+      }
+      return result;
+    }
+
+    synchronized Map<Integer, String> getValues() {
+      Map<Integer, String> values = new HashMap<>();
+      for (Map.Entry<String, RoaringBitmap> entry : postings.entrySet()) {
+        PeekableIntIterator ids = entry.getValue().getIntIterator();
+        while (ids.hasNext()) {
+          values.put(ids.next(), entry.getKey());
+        }
+      }
+      return values;
+    }
+  }
+}
@@ -2,50 +2,230 @@ package com.pinterest.yuvi.writer;
 
 import com.pinterest.yuvi.chunk.ChunkManager;
 
+import com.google.common.annotations.VisibleForTesting;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
 import java.io.IOException;
-import java.nio.charset.Charset;
-import java.nio.file.Files;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
 import java.nio.file.Path;
-import java.util.stream.Stream;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayDeque;
+import java.util.Deque;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.atomic.AtomicLong;
 
 /**
  * This class reads metrics from a local file and adds them the chunk. This task only ingests the
  * metrics from the file once.
+ *
+ * The file is memory mapped in regions, and the reading thread only splits a region into line
+ * aligned blocks, which touches a few bytes per block. A pool of scanner threads copies each block
+ * out of the mapping, splits it into lines and shards the lines by series in parallel. The sharded
+ * lines of the blocks are handed to a MetricIngestPool in file order, whose workers parse the UTF-8
+ * bytes of the lines and ingest them in batches in parallel. Since all the lines of a series are
+ * ingested by the same worker in file order, the points of a series are added in the order of the
+ * file. The number of lines, the invalid and delayed metrics and the throughput are logged once the
+ * file is ingested.
  */
 public class FileMetricWriter implements MetricWriter {
 
   private static final Logger LOG = LoggerFactory.getLogger(FileMetricWriter.class);
 
+  private static final int DEFAULT_BLOCK_SIZE = 4 * 1024 * 1024;
+  // A mapped region can't be larger than 2GB.
+  private static final long DEFAULT_REGION_SIZE = 1024 * 1024 * 1024;
+  private static final int QUEUE_SIZE = 4;
+  private static final int MAX_SCANNED_BLOCKS_PER_THREAD = 2;
+
   final Path metricsFilePath;
 
   final ChunkManager chunkManager;
 
+  private final int numThreads;
+  private final int blockSize;
+  private final long regionSize;
+
+  private final AtomicLong lines = new AtomicLong();
+  private final AtomicLong validMetrics = new AtomicLong();
+  private final AtomicLong invalidMetrics = new AtomicLong();
+  private final AtomicLong delayedMetrics = new AtomicLong();
+  private volatile long durationMs = 0;
+
   public FileMetricWriter(Path metricsFilePath, ChunkManager chunkManager) {
+    this(metricsFilePath, chunkManager, Runtime.getRuntime().availableProcessors());
+  }
+
+  public FileMetricWriter(Path metricsFilePath, ChunkManager chunkManager, int numThreads) {
+    this(metricsFilePath, chunkManager, numThreads, DEFAULT_BLOCK_SIZE, DEFAULT_REGION_SIZE);
+  }
+
+  @VisibleForTesting
+  FileMetricWriter(Path metricsFilePath, ChunkManager chunkManager, int numThreads,
+                   int blockSize, long regionSize) {
+    if (numThreads <= 0 || blockSize <= 0 || regionSize < blockSize) {
+      throw new IllegalArgumentException("Invalid file metric writer params: numThreads "
+          + numThreads + " blockSize " + blockSize + " regionSize " + regionSize);
+    }
     this.metricsFilePath = metricsFilePath;
     this.chunkManager = chunkManager;
+    this.numThreads = numThreads;
+    this.blockSize = blockSize;
+    this.regionSize = regionSize;
   }
 
   @Override
   public void start() {
-    try {
-      try (Stream<String> lines = Files.lines(metricsFilePath, Charset.defaultCharset())) {
-        lines.forEachOrdered(line -> {
-          if (line == null || line.isEmpty()) { // Ignore empty lines
-            return;
+    long startTimeNs = System.nanoTime();
+    MetricIngestPool ingestPool = new MetricIngestPool(chunkManager, numThreads, QUEUE_SIZE);
+    ExecutorService scanners = Executors.newFixedThreadPool(numThreads, runnable -> {
+      Thread thread = new Thread(runnable, "FileMetricWriter-scanner");
+      thread.setDaemon(true);
+      return thread;
+    });
+    // The blocks being scanned, in file order. Bounding them bounds the memory of the copies.
+    Deque<Future<LineBatch[]>> scannedBlocks = new ArrayDeque<>();
+    Semaphore appliedBatches = new Semaphore(0);
+    int submittedBatches = 0;
+    try (FileChannel channel = FileChannel.open(metricsFilePath, StandardOpenOption.READ)) {
+      long fileSize = channel.size();
+      long position = 0;
+      while (position < fileSize) {
+        long mappedSize = Math.min(fileSize - position, regionSize);
+        MappedByteBuffer region = channel.map(FileChannel.MapMode.READ_ONLY, position, mappedSize);
+        // Only ingest the complete lines of a region. The last line is read with the next region.
+        int regionEnd = (int) mappedSize;
+        if (position + mappedSize < fileSize) {
+          regionEnd = lastIndexOf(region, 0, regionEnd) + 1;
+          if (regionEnd == 0) {
+            throw new IOException("Line at position " + position + " is longer than "
+                + regionSize + " bytes.");
+          }
+        }
+
+        int blockStart = 0;
+        while (blockStart < regionEnd) {
+          int blockEnd = blockStart + blockSize;
+          if (blockEnd >= regionEnd) {
+            blockEnd = regionEnd;
+          } else {
+            int lastNewLine = lastIndexOf(region, blockStart, blockEnd);
+            // If a line is longer than a block, extend the block to the end of the line.
+            blockEnd = lastNewLine >= 0
+                ? lastNewLine + 1 : indexOf(region, blockEnd, regionEnd) + 1;
           }
-          try {
-            chunkManager.addMetric(line);
-          } catch (Exception e) {
-            LOG.info("Error ingesting line {} with exception {}", line, e);
+          if (scannedBlocks.size() == MAX_SCANNED_BLOCKS_PER_THREAD * numThreads) {
+            submittedBatches = submittedBatches
+                + submitLines(scannedBlocks.remove().get(), ingestPool, appliedBatches);
           }
-        });
+          ByteBuffer block = region.duplicate();
+          block.position(blockStart).limit(blockEnd);
+          scannedBlocks.add(scanners.submit(() -> scanLines(block, ingestPool)));
+          blockStart = blockEnd;
+        }
+        position = position + regionEnd;
+      }
+      while (!scannedBlocks.isEmpty()) {
+        submittedBatches = submittedBatches
+            + submitLines(scannedBlocks.remove().get(), ingestPool, appliedBatches);
       }
-    } catch (IOException e) {
+      appliedBatches.acquire(submittedBatches);
+    } catch (IOException | ExecutionException e) {
       LOG.info("Caught exception when ingesting metrics from a file", e);
+    } catch (InterruptedException e) {
+      LOG.info("Interrupted when ingesting metrics from a file", e);
+      Thread.currentThread().interrupt();
+    } finally {
+      scanners.shutdownNow();
+      ingestPool.close();
     }
+
+    durationMs = Math.max(1, (System.nanoTime() - startTimeNs) / 1000000);
+    LOG.info("Ingested {} lines from {} in {} ms ({} lines/sec) with {} valid metrics, {} invalid "
+            + "metrics and {} delayed metrics", lines.get(), metricsFilePath, durationMs,
+        lines.get() * 1000 / durationMs, validMetrics.get(), invalidMetrics.get(),
+        delayedMetrics.get());
+  }
+
+  /**
+   * Copy the block out of the mapping and shard its non empty lines by series. It runs on the
+   * scanner threads.
+   * @return the lines of each ingest worker.
+   */
+  private LineBatch[] scanLines(ByteBuffer mappedBlock, MetricIngestPool ingestPool) {
+    byte[] block = new byte[mappedBlock.remaining()];
+    mappedBlock.get(block);
+    LineBatch[] shards = new LineBatch[ingestPool.getNumWorkers()];
+    for (int i = 0; i < shards.length; i++) {
+      shards[i] = new LineBatch();
+    }
+    int blockLines = 0;
+    int lineStart = 0;
+    while (lineStart < block.length) {
+      int lineEnd = lineStart;
+      while (lineEnd < block.length && block[lineEnd] != '\n') {
+        lineEnd++;
+      }
+      int nextLineStart = lineEnd + 1;
+      if (lineEnd > lineStart && block[lineEnd - 1] == '\r') {
+        lineEnd--;
+      }
+      if (lineEnd > lineStart) { // Ignore empty lines
+        int length = lineEnd - lineStart;
+        shards[ingestPool.getWorker(block, lineStart, length)].add(block, lineStart, length);
+        blockLines++;
+      }
+      lineStart = nextLineStart;
+    }
+    lines.addAndGet(blockLines);
+    return shards;
+  }
+
+  /**
+   * Queue the lines of a block on the ingest workers. The blocks are submitted in file order.
+   * @return the number of queued batches.
+   */
+  private int submitLines(LineBatch[] shards, MetricIngestPool ingestPool,
+                          Semaphore appliedBatches) throws InterruptedException {
+    int submittedBatches = 0;
+    for (int i = 0; i < shards.length; i++) {
+      if (shards[i].size() > 0) {
+        ingestPool.put(i, shards[i], result -> {
+          validMetrics.addAndGet(result.validMetrics);
+          invalidMetrics.addAndGet(result.invalidMetrics);
+          delayedMetrics.addAndGet(result.delayedMetrics);
+          appliedBatches.release();
+        });
+        submittedBatches++;
+      }
+    }
+    return submittedBatches;
+  }
+
+  private static int lastIndexOf(MappedByteBuffer buffer, int start, int end) {
+    for (int i = end - 1; i >= start; i--) {
+      if (buffer.get(i) == '\n') {
+        return i;
+      }
+    }
+    return -1;
+  }
+
+  private static int indexOf(MappedByteBuffer buffer, int start, int end) {
+    for (int i = start; i < end; i++) {
+      if (buffer.get(i) == '\n') {
+        return i;
+      }
+    }
+    return end - 1;
   }
 
   @Override
@@ -56,4 +236,14 @@ public class FileMetricWriter implements MetricWriter {
   public ChunkManager getChunkManager() {
     return chunkManager;
   }
+
+  public Map<String, Object> getStats() {
+    Map<String, Object> stats = new HashMap<>();
+    stats.put("lines", lines.get());
+    stats.put("validMetrics", validMetrics.get());
+    stats.put("invalidMetrics", invalidMetrics.get());
+    stats.put("delayedMetrics", delayedMetrics.get());
+    stats.put("durationMs", durationMs);
+    return stats;
+  }
 }
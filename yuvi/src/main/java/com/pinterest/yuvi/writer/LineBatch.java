@@ -0,0 +1,56 @@
+package com.pinterest.yuvi.writer;
+
+import java.util.Arrays;
+
+/**
+ * A batch of metric lines stored as slices of byte arrays, like the messages in a Kafka record.
+ * The lines are not copied or decoded into strings.
+ */
+public class LineBatch {
+
+  private static final int INITIAL_SIZE = 16;
+
+  private byte[][] arrays;
+  private int[] offsets;
+  private int[] lengths;
+  private int size;
+
+  public LineBatch() {
+    this.arrays = new byte[INITIAL_SIZE][];
+    this.offsets = new int[INITIAL_SIZE];
+    this.lengths = new int[INITIAL_SIZE];
+    this.size = 0;
+  }
+
+  /**
+   * Add the line stored in data[offset, offset + length) to the batch. The data is not copied, so
+   * it shouldn't be modified while the batch is in use.
+   */
+  public void add(byte[] data, int offset, int length) {
+    if (size == arrays.length) {
+      arrays = Arrays.copyOf(arrays, 2 * size);
+      offsets = Arrays.copyOf(offsets, 2 * size);
+      lengths = Arrays.copyOf(lengths, 2 * size);
+    }
+    arrays[size] = data;
+    offsets[size] = offset;
+    lengths[size] = length;
+    size++;
+  }
+
+  public byte[] getArray(int i) {
+    return arrays[i];
+  }
+
+  public int getOffset(int i) {
+    return offsets[i];
+  }
+
+  public int getLength(int i) {
+    return lengths[i];
+  }
+
+  public int size() {
+    return size;
+  }
+}
@@ -0,0 +1,155 @@
+package com.pinterest.yuvi.writer;
+
+import com.pinterest.yuvi.chunk.AddMetricsResult;
+import com.pinterest.yuvi.chunk.ChunkManager;
+import com.pinterest.yuvi.metricandtagstore.MetricBatch;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.function.Consumer;
+
+/**
+ * A MetricIngestPool parses and ingests batches of metric lines into a ChunkManager on a pool of
+ * worker threads, so a metric writer isn't limited to the single thread reading the metrics.
+ *
+ * The metrics are sharded across the workers by a hash of the series, so all the points of a
+ * series are ingested by the same worker in the order they were submitted. Each worker parses the
+ * lines with its own OpenTsdbLineParser, so the metric cache of a worker only holds the series of
+ * its shard. Each worker has a bounded queue of batches. submit doesn't block when the queue is
+ * full, so the caller can apply back pressure on the source of the metrics instead.
+ */
+public class MetricIngestPool {
+
+  private static final Logger LOG = LoggerFactory.getLogger(MetricIngestPool.class);
+
+  private final ChunkManager chunkManager;
+  private final List<BlockingQueue<IngestBatch>> queues;
+  private final List<Thread> workers;
+  private volatile boolean running;
+
+  public MetricIngestPool(ChunkManager chunkManager, int numWorkers, int queueSize) {
+    if (chunkManager == null || numWorkers <= 0 || queueSize <= 0) {
+      throw new IllegalArgumentException("Invalid ingest pool params: numWorkers " + numWorkers
+          + " queueSize " + queueSize);
+    }
+
+    this.chunkManager = chunkManager;
+    this.queues = new ArrayList<>(numWorkers);
+    this.workers = new ArrayList<>(numWorkers);
+    this.running = true;
+    for (int i = 0; i < numWorkers; i++) {
+      BlockingQueue<IngestBatch> queue = new ArrayBlockingQueue<>(queueSize);
+      OpenTsdbLineParser parser = new OpenTsdbLineParser();
+      Thread worker = new Thread(() -> ingest(queue, parser), "MetricIngestPool-worker-" + i);
+      worker.setDaemon(true);
+      queues.add(queue);
+      workers.add(worker);
+      worker.start();
+    }
+    LOG.info("Started {} ingest workers with a queue size of {}", numWorkers, queueSize);
+  }
+
+  public int getNumWorkers() {
+    return queues.size();
+  }
+
+  /**
+   * @return the worker that ingests the metric line stored in data[offset, offset + length).
+   */
+  public int getWorker(byte[] data, int offset, int length) {
+    return Math.floorMod(OpenTsdbLineParser.seriesHash(data, offset, length), queues.size());
+  }
+
+  /**
+   * Queue a batch of metric lines on a worker. The batch should only contain lines that getWorker
+   * maps to the worker.
+   * @param onApplied called by the worker with the counts of the batch once the metrics are
+   *                  ingested, even if some of them are invalid.
+   * @return false if the queue of the worker is full and the batch is not queued.
+   */
+  public boolean submit(int worker, LineBatch lines, Consumer<AddMetricsResult> onApplied) {
+    return queues.get(worker).offer(new IngestBatch(lines, onApplied));
+  }
+
+  /**
+   * Queue a batch of metric lines on a worker like submit, but wait for space in the queue of the
+   * worker if it's full.
+   */
+  public void put(int worker, LineBatch lines, Consumer<AddMetricsResult> onApplied)
+      throws InterruptedException {
+    queues.get(worker).put(new IngestBatch(lines, onApplied));
+  }
+
+  /**
+   * @return true if the queue of any worker is full.
+   */
+  public boolean isFull() {
+    for (BlockingQueue<IngestBatch> queue : queues) {
+      if (queue.remainingCapacity() == 0) {
+        return true;
+      }
+    }
+    return false;
+  }
+
+  /**
+   * Stop the workers. The batches still in the queues are dropped.
+   */
+  public void close() {
+    running = false;
+    workers.forEach(Thread::interrupt);
+  }
+
+  private void ingest(BlockingQueue<IngestBatch> queue, OpenTsdbLineParser parser) {
+    while (running) {
+      IngestBatch batch;
+      try {
+        batch = queue.take();
+      } catch (InterruptedException e) {
+        continue;
+      }
+
+      AddMetricsResult result = new AddMetricsResult(0, batch.lines.size(), 0);
+      try {
+        LineBatch lines = batch.lines;
+        MetricBatch points = new MetricBatch();
+        int invalidMetrics = 0;
+        for (int i = 0; i < lines.size(); i++) {
+          try {
+            parser.parse(lines.getArray(i), lines.getOffset(i), lines.getLength(i), points);
+          } catch (Exception e) {
+            // Invalid metrics are counted in the result, so only log them at debug level.
+            LOG.debug("Invalid metric string {}", new String(lines.getArray(i),
+                lines.getOffset(i), lines.getLength(i), StandardCharsets.UTF_8), e);
+            invalidMetrics = invalidMetrics + 1;
+          }
+        }
+        AddMetricsResult pointsResult = chunkManager.addPoints(points);
+        result = new AddMetricsResult(pointsResult.validMetrics,
+            invalidMetrics + pointsResult.invalidMetrics, pointsResult.delayedMetrics);
+      } catch (Exception e) {
+        LOG.error("Error ingesting metrics", e);
+      } finally {
+        batch.onApplied.accept(result);
+      }
+    }
+    LOG.info("Stopped ingest worker {}", Thread.currentThread().getName());
+  }
+
+  private static final class IngestBatch {
+
+    final LineBatch lines;
+    final Consumer<AddMetricsResult> onApplied;
+
+    IngestBatch(LineBatch lines, Consumer<AddMetricsResult> onApplied) {
+      this.lines = lines;
+      this.onApplied = onApplied;
+    }
+  }
+}
@@ -0,0 +1,248 @@
+package com.pinterest.yuvi.writer;
+
+import com.pinterest.yuvi.metricandtagstore.MetricBatch;
+import com.pinterest.yuvi.tagstore.Metric;
+
+import com.google.common.annotations.VisibleForTesting;
+
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * Parses OpenTSDB put lines of the form "put metricName ts value tag1=value1 tag2=value2..." from
+ * UTF-8 bytes, without decoding the line into a String.
+ *
+ * The timestamp and value are parsed from the bytes directly. Values that can't be parsed exactly
+ * by the fast path, like values with an exponent or more than 15 digits, fall back to
+ * Double.parseDouble. The Metric of a line is looked up in a cache keyed by the bytes of the
+ * metric name and the tags, so no strings are created for a series that was seen before. The
+ * cache is cleared when it has maxCachedMetrics entries.
+ *
+ * A parser is not thread safe.
+ */
+public class OpenTsdbLineParser {
+
+  public static final int DEFAULT_MAX_CACHED_METRICS = 1 << 18;
+
+  // Both the mantissa and the power of ten are exact doubles, so a single division is exact.
+  private static final int MAX_FAST_PATH_DIGITS = 15;
+  private static final double[] POWERS_OF_TEN = {
+      1e0, 1e1, 1e2, 1e3, 1e4, 1e5, 1e6, 1e7, 1e8, 1e9, 1e10, 1e11, 1e12, 1e13, 1e14, 1e15};
+  private static final int MAX_FAST_PATH_LONG_DIGITS = 18;
+
+  private final int maxCachedMetrics;
+  private final int mask;
+  private final byte[][] keys;
+  private final int[] hashes;
+  private final Metric[] metrics;
+  private int cachedMetrics;
+
+  public OpenTsdbLineParser() {
+    this(DEFAULT_MAX_CACHED_METRICS);
+  }
+
+  public OpenTsdbLineParser(int maxCachedMetrics) {
+    if (maxCachedMetrics <= 0) {
+      throw new IllegalArgumentException("maxCachedMetrics should be positive: "
+          + maxCachedMetrics);
+    }
+    this.maxCachedMetrics = maxCachedMetrics;
+    // Keep the load factor of the cache at or under 0.5.
+    int capacity = Integer.highestOneBit(Math.max(1, 2 * maxCachedMetrics - 1)) * 2;
+    this.mask = capacity - 1;
+    this.keys = new byte[capacity][];
+    this.hashes = new int[capacity];
+    this.metrics = new Metric[capacity];
+    this.cachedMetrics = 0;
+  }
+
+  /**
+   * Parse the line stored in data[offset, offset + length) and add the point to the batch.
+   * @throws IllegalArgumentException if the line is not a valid put line.
+   */
+  public void parse(byte[] data, int offset, int length, MetricBatch batch) {
+    int end = offset + length;
+    int putStart = skipSpaces(data, offset, end);
+    int putEnd = tokenEnd(data, putStart, end);
+    if (putEnd - putStart != 3
+        || data[putStart] != 'p' || data[putStart + 1] != 'u' || data[putStart + 2] != 't') {
+      throw new IllegalArgumentException("Metric doesn't start with a put: "
+          + toString(data, offset, length));
+    }
+    int nameStart = skipSpaces(data, putEnd, end);
+    int nameEnd = tokenEnd(data, nameStart, end);
+    int tsStart = skipSpaces(data, nameEnd, end);
+    int tsEnd = tokenEnd(data, tsStart, end);
+    int valueStart = skipSpaces(data, tsEnd, end);
+    int valueEnd = tokenEnd(data, valueStart, end);
+    if (nameStart == nameEnd || tsStart == tsEnd || valueStart == valueEnd) {
+      throw new IllegalArgumentException("Invalid metric string " + toString(data, offset, length));
+    }
+    int tagsStart = skipSpaces(data, valueEnd, end);
+    int tagsEnd = end;
+    while (tagsEnd > tagsStart && data[tagsEnd - 1] == ' ') {
+      tagsEnd--;
+    }
+
+    long ts = parseLong(data, tsStart, tsEnd);
+    double value = parseDouble(data, valueStart, valueEnd);
+    batch.add(getMetric(data, nameStart, nameEnd, tagsStart, tagsEnd), ts, value);
+  }
+
+  @VisibleForTesting
+  int getCachedMetrics() {
+    return cachedMetrics;
+  }
+
+  private Metric getMetric(byte[] data, int nameStart, int nameEnd, int tagsStart, int tagsEnd) {
+    int hash = hash(hash(31 * hash(0, data, nameStart, nameEnd) + ' ', data, tagsStart, tagsEnd));
+    int slot = hash & mask;
+    while (keys[slot] != null) {
+      if (hashes[slot] == hash
+          && matches(keys[slot], data, nameStart, nameEnd, tagsStart, tagsEnd)) {
+        return metrics[slot];
+      }
+      slot = (slot + 1) & mask;
+    }
+
+    String metricName = new String(data, nameStart, nameEnd - nameStart, StandardCharsets.UTF_8);
+    List<String> rawTags = tagsStart == tagsEnd ? Collections.emptyList()
+        : Arrays.asList(
+            new String(data, tagsStart, tagsEnd - tagsStart, StandardCharsets.UTF_8).split(" "));
+    Metric metric = new Metric(metricName, rawTags);
+
+    if (cachedMetrics >= maxCachedMetrics) {
+      Arrays.fill(keys, null);
+      Arrays.fill(metrics, null);
+      cachedMetrics = 0;
+      slot = hash & mask;
+    }
+    byte[] key = new byte[nameEnd - nameStart + 1 + tagsEnd - tagsStart];
+    System.arraycopy(data, nameStart, key, 0, nameEnd - nameStart);
+    key[nameEnd - nameStart] = ' ';
+    System.arraycopy(data, tagsStart, key, nameEnd - nameStart + 1, tagsEnd - tagsStart);
+    keys[slot] = key;
+    hashes[slot] = hash;
+    metrics[slot] = metric;
+    cachedMetrics++;
+    return metric;
+  }
+
+  private static boolean matches(byte[] key, byte[] data, int nameStart, int nameEnd,
+                                 int tagsStart, int tagsEnd) {
+    int nameLength = nameEnd - nameStart;
+    if (key.length != nameLength + 1 + tagsEnd - tagsStart) {
+      return false;
+    }
+    for (int i = 0; i < nameLength; i++) {
+      if (key[i] != data[nameStart + i]) {
+        return false;
+      }
+    }
+    for (int i = nameLength + 1, j = tagsStart; j < tagsEnd; i++, j++) {
+      if (key[i] != data[j]) {
+        return false;
+      }
+    }
+    return true;
+  }
+
+  /**
+   * A hash of the metric name and the tags of the put line stored in data[offset, offset + length).
+   * The hash doesn't depend on the order of the tags, so all the lines of a series have the same
+   * hash. The line is not validated.
+   */
+  public static int seriesHash(byte[] data, int offset, int length) {
+    int end = offset + length;
+    int start = skipSpaces(data, tokenEnd(data, skipSpaces(data, offset, end), end), end);
+    int metricNameHash = hash(0, data, start, tokenEnd(data, start, end));
+    // Skip the metric name, the timestamp and the value.
+    for (int i = 0; i < 3; i++) {
+      start = skipSpaces(data, tokenEnd(data, start, end), end);
+    }
+    int tagsHash = 0;
+    while (start < end) {
+      int tokenEnd = tokenEnd(data, start, end);
+      tagsHash = tagsHash + hash(0, data, start, tokenEnd);
+      start = skipSpaces(data, tokenEnd, end);
+    }
+    return 31 * metricNameHash + tagsHash;
+  }
+
+  private static int skipSpaces(byte[] data, int start, int end) {
+    while (start < end && data[start] == ' ') {
+      start++;
+    }
+    return start;
+  }
+
+  private static int tokenEnd(byte[] data, int start, int end) {
+    while (start < end && data[start] != ' ') {
+      start++;
+    }
+    return start;
+  }
+
+  private static int hash(int hash, byte[] data, int start, int end) {
+    for (int i = start; i < end; i++) {
+      hash = 31 * hash + data[i];
+    }
+    return hash;
+  }
+
+  private static int hash(int hash) {
+    return hash ^ (hash >>> 16);
+  }
+
+  static long parseLong(byte[] data, int start, int end) {
+    if (end - start <= MAX_FAST_PATH_LONG_DIGITS) {
+      long value = 0;
+      int i = start;
+      for (; i < end && data[i] >= '0' && data[i] <= '9'; i++) {
+        value = 10 * value + (data[i] - '0');
+      }
+      if (i == end) {
+        return value;
+      }
+    }
+    return Long.parseLong(toString(data, start, end - start));
+  }
+
+  static double parseDouble(byte[] data, int start, int end) {
+    int i = start;
+    boolean negative = false;
+    if (i < end && data[i] == '-') {
+      negative = true;
+      i++;
+    }
+    long mantissa = 0;
+    int digits = 0;
+    int fractionDigits = 0;
+    boolean seenDot = false;
+    for (; i < end; i++) {
+      byte b = data[i];
+      if (b >= '0' && b <= '9' && digits < MAX_FAST_PATH_DIGITS) {
+        mantissa = 10 * mantissa + (b - '0');
+        digits++;
+        if (seenDot) {
+          fractionDigits++;
+        }
+      } else if (b == '.' && !seenDot) {
+        seenDot = true;
+      } else {
+        break;
+      }
+    }
+    if (i < end || digits == 0) {
+      return Double.parseDouble(toString(data, start, end - start));
+    }
+    double value = mantissa / POWERS_OF_TEN[fractionDigits];
+    return negative ? -value : value;
+  }
+
+  private static String toString(byte[] data, int offset, int length) {
+    return new String(data, offset, length, StandardCharsets.UTF_8);
+  }
+}
@@ -1,21 +1,32 @@
 package com.pinterest.yuvi.writer.kafka;
 
+import com.pinterest.yuvi.chunk.AddMetricsResult;
 import com.pinterest.yuvi.chunk.ChunkManager;
-import com.pinterest.yuvi.chunk.ReadOnlyChunkInsertionException;
-import com.pinterest.yuvi.thrift.TextMessage;
+import com.pinterest.yuvi.metrics.Counter;
+import com.pinterest.yuvi.metrics.LatencyHistogram;
+import com.pinterest.yuvi.metrics.MetricsRegistry;
+import com.pinterest.yuvi.writer.LineBatch;
+import com.pinterest.yuvi.writer.MetricIngestPool;
 import com.pinterest.yuvi.writer.MetricWriter;
 
 import org.apache.kafka.clients.consumer.ConsumerRecord;
 import org.apache.kafka.clients.consumer.ConsumerRecords;
 import org.apache.kafka.clients.consumer.KafkaConsumer;
+import org.apache.kafka.clients.consumer.OffsetAndMetadata;
 import org.apache.kafka.common.TopicPartition;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
+import java.util.ArrayDeque;
+import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.Collection;
+import java.util.HashMap;
 import java.util.List;
+import java.util.Map;
 import java.util.Properties;
-import java.util.concurrent.RejectedExecutionException;
+import java.util.Queue;
+import java.util.concurrent.atomic.AtomicInteger;
 
 /**
  * KafkaMetricWriter ingests metrics wrapped in a TextMessage from Kafka into a Yuvi ChunkManager.
@@ -27,6 +38,18 @@ import java.util.concurrent.RejectedExecutionException;
  * If both a kafkaTopicName and kafkaTopicPartition are specified, we will assign the consumer to
  * that partition. If kafkaTopicPartition is empty, we will subscribe to the entire topic.
  *
+ * The polling thread only walks the serialized TextMessages with a ThriftTextMessageScanner and
+ * shards the metrics by series across a MetricIngestPool, which parses and ingests them on
+ * ingestThreads threads. The metrics are passed as slices of the record bytes, so no TextMessage
+ * or String is created per metric. When the queue of an ingest thread
+ * is full, the assigned partitions are paused until the queued metrics are ingested. If auto commit
+ * is disabled, the offsets of a poll are committed only after all its metrics are ingested.
+ *
+ * On a rebalance, the offsets of the ingested polls are committed before the partitions are
+ * revoked and the pending offsets of the revoked partitions are dropped, so they are never
+ * committed after another consumer owns the partitions. The newly assigned partitions are paused
+ * if the ingest threads are still behind.
+ *
  * TODO: Support ingesting messages in OpenTSDB JSON format from Kafka.
  */
 public class KafkaMetricWriter implements MetricWriter {
@@ -36,17 +59,48 @@ public class KafkaMetricWriter implements MetricWriter {
   // Log delayed metrics to a different logger to reduce log spam.
   private static Logger DELAYED_METRICS_LOG = LoggerFactory.getLogger("DELAYED_METRICS");
 
-  private final ChunkManager chunkManager;
+  private static final Counter RECORDS =
+      MetricsRegistry.getDefault().counter("kafkaMetricWriter.records");
+  private static final Counter VALID_METRICS =
+      MetricsRegistry.getDefault().counter("kafkaMetricWriter.validMetrics");
+  private static final Counter INVALID_METRICS =
+      MetricsRegistry.getDefault().counter("kafkaMetricWriter.invalidMetrics");
+  private static final Counter DELAYED_METRICS =
+      MetricsRegistry.getDefault().counter("kafkaMetricWriter.delayedMetrics");
+  private static final LatencyHistogram INSERT_RECORDS_LATENCY =
+      MetricsRegistry.getDefault().histogram("kafkaMetricWriter.insertRecords");
+
+  public static final int DEFAULT_INGEST_THREADS = 1;
+  public static final int DEFAULT_INGEST_QUEUE_SIZE = 4;
+
+  private final MetricIngestPool ingestPool;
 
-  private final KafkaConsumer consumer;
+  private final KafkaConsumer<byte[], byte[]> consumer;
   private final String kafkaTopic;
   private final int kafkaTopicPartition;
+  private final boolean autoCommit;
   private long kafkaPollTimeoutMs = 100;
 
+  // Batches that didn't fit in the queue of their ingest thread, per ingest thread.
+  private final List<Queue<PendingBatch>> pendingBatches;
+  // Polls whose offsets are not committed yet, in the order they were polled.
+  private final Queue<PollOffsets> uncommittedPolls = new ArrayDeque<>();
+  private boolean paused = false;
+
   public KafkaMetricWriter(ChunkManager chunkManager, String kafkaTopicName,
                            String kafkaTopicPartition, String kafkaBootStrapServers,
                            String kafkaClientGroup, String kafkaAutoCommit,
                            String kafkaAutoCommitInterval, String kafkaSessionTimeout) {
+    this(chunkManager, kafkaTopicName, kafkaTopicPartition, kafkaBootStrapServers,
+        kafkaClientGroup, kafkaAutoCommit, kafkaAutoCommitInterval, kafkaSessionTimeout,
+        DEFAULT_INGEST_THREADS, DEFAULT_INGEST_QUEUE_SIZE);
+  }
+
+  public KafkaMetricWriter(ChunkManager chunkManager, String kafkaTopicName,
+                           String kafkaTopicPartition, String kafkaBootStrapServers,
+                           String kafkaClientGroup, String kafkaAutoCommit,
+                           String kafkaAutoCommitInterval, String kafkaSessionTimeout,
+                           int ingestThreads, int ingestQueueSize) {
 
     LOG.info("Kafka params are: kafkaTopicName: {}, kafkaTopicPartition: {}, "
             + "kafkaBootstrapServers:{}, kafkaClientGroup: {}, kafkaAutoCommit:{}, "
@@ -64,7 +118,12 @@ public class KafkaMetricWriter implements MetricWriter {
       throw new IllegalArgumentException("Kafka params can't be null or empty.");
     }
 
-    this.chunkManager = chunkManager;
+    this.ingestPool = new MetricIngestPool(chunkManager, ingestThreads, ingestQueueSize);
+    this.pendingBatches = new ArrayList<>(ingestThreads);
+    for (int i = 0; i < ingestThreads; i++) {
+      pendingBatches.add(new ArrayDeque<>());
+    }
+    this.autoCommit = Boolean.parseBoolean(kafkaAutoCommit.trim());
 
     // Create kafka consumer
     this.kafkaTopic = kafkaTopicName;
@@ -79,13 +138,12 @@ public class KafkaMetricWriter implements MetricWriter {
     props.put("session.timeout.ms", sessionTimeoutMs);
     props.put("heartbeat.interval.ms", sessionTimeoutMs/3);
     props.put("key.deserializer", "org.apache.kafka.common.serialization.ByteArrayDeserializer");
-    props.put("value.deserializer", "com.pinterest.yuvi.writer.kafka.ThriftTextMessageDeserializer");
+    props.put("value.deserializer", "org.apache.kafka.common.serialization.ByteArrayDeserializer");
     this.consumer = new KafkaConsumer<>(props);
     if (kafkaTopicPartition.isEmpty()) {
       this.kafkaTopicPartition = -1;
       LOG.info("Subscribing to kafka topic {}", this.kafkaTopic);
-      consumer.subscribe(Arrays.asList(this.kafkaTopic),
-          new MetricsConsumerRebalanceListener());
+      consumer.subscribe(Arrays.asList(this.kafkaTopic), new IngestRebalanceListener());
     } else {
       this.kafkaTopicPartition = new Integer(kafkaTopicPartition);
       LOG.info("Assigned to kafka topic {} and partition {}",
@@ -99,7 +157,9 @@ public class KafkaMetricWriter implements MetricWriter {
 
     while (true) {
       try {
-        ConsumerRecords<byte[], TextMessage> records;
+        commitIngestedOffsets();
+        submitPendingBatches();
+        ConsumerRecords<byte[], byte[]> records;
         records = consumer.poll(kafkaPollTimeoutMs);
         LOG.debug("Fetched records." + records.count());
 
@@ -108,46 +168,185 @@ public class KafkaMetricWriter implements MetricWriter {
         } catch (Exception e) {
           LOG.error("Error processing messages from Kafka", e);
         }
-      } catch (RejectedExecutionException e) {
-        // This case shouldn't happen since there is only one thread queuing tasks here and we check
-        // that the queue is empty before polling kafka.
-        LOG.error("Rejected execution shouldn't happen ", e);
       } catch (Exception e) {
         LOG.error("Unhandled exception ", e);
       }
     }
   }
 
-  private void insertRecords(ConsumerRecords<byte[], TextMessage> records) {
-    int validMetrics = 0;
-    int invalidMetrics = 0;
-    int delayedMetrics = 0;
+  /**
+   * Shard the metrics from a poll by series and queue them on the ingest threads.
+   */
+  private void insertRecords(ConsumerRecords<byte[], byte[]> records) {
+    if (records.isEmpty()) {
+      return;
+    }
+
+    long startNs = System.nanoTime();
     int recordCount = 0;
-    for (ConsumerRecord<byte[], TextMessage> record : records) {
+    int metricCount = 0;
+    LineBatch[] shards = new LineBatch[ingestPool.getNumWorkers()];
+    for (int i = 0; i < shards.length; i++) {
+      shards[i] = new LineBatch();
+    }
+    Map<TopicPartition, OffsetAndMetadata> offsets = new HashMap<>();
+    for (ConsumerRecord<byte[], byte[]> record : records) {
       recordCount = recordCount + 1;
-      List<String> metrics = record.value().getMessages();
-      for (String metric: metrics) {
-        try {
-          chunkManager.addMetric(metric);
-          validMetrics = validMetrics + 1;
-        } catch (ReadOnlyChunkInsertionException e) {
-          // DELAYED_METRICS_LOG.debug("Error ingesting metric {}", metric);
-          delayedMetrics = delayedMetrics + 1;
-        } catch (Exception e) {
-          LOG.error("Error ingesting metric {}", metric, e);
-          invalidMetrics = invalidMetrics + 1;
+      try {
+        metricCount = metricCount + ThriftTextMessageScanner.scan(record.value(),
+            (data, offset, length) ->
+                shards[ingestPool.getWorker(data, offset, length)].add(data, offset, length));
+      } catch (Exception e) {
+        LOG.error("Failed to parse the text message at offset {} of {}-{}", record.offset(),
+            record.topic(), record.partition(), e);
+      }
+      offsets.put(new TopicPartition(record.topic(), record.partition()),
+          new OffsetAndMetadata(record.offset() + 1));
+    }
+
+    PollOffsets pollOffsets = new PollOffsets(offsets);
+    for (int i = 0; i < shards.length; i++) {
+      if (shards[i].size() > 0) {
+        pollOffsets.remainingBatches.incrementAndGet();
+        pendingBatches.get(i).add(new PendingBatch(shards[i], pollOffsets));
+      }
+    }
+    uncommittedPolls.add(pollOffsets);
+    LOG.info("Queued {} records with {} metrics", recordCount, metricCount);
+    RECORDS.add(recordCount);
+    submitPendingBatches();
+    INSERT_RECORDS_LATENCY.recordSince(startNs);
+  }
+
+  /**
+   * Queue the pending batches on the ingest threads in order. If a batch doesn't fit in the queue
+   * of its ingest thread, pause the assigned partitions so the polls only send heartbeats until
+   * the ingest threads catch up.
+   */
+  private void submitPendingBatches() {
+    boolean hasPendingBatches = false;
+    for (int i = 0; i < pendingBatches.size(); i++) {
+      Queue<PendingBatch> pending = pendingBatches.get(i);
+      while (!pending.isEmpty()) {
+        PendingBatch batch = pending.peek();
+        if (!ingestPool.submit(i, batch.metrics, batch.pollOffsets::onBatchIngested)) {
+          break;
         }
+        pending.remove();
       }
+      hasPendingBatches = hasPendingBatches || !pending.isEmpty();
+    }
+
+    if (hasPendingBatches && !paused) {
+      LOG.info("Ingest queues are full. Pausing partitions {}", consumer.assignment());
+      consumer.pause(consumer.assignment());
+      paused = true;
+    } else if (!hasPendingBatches && paused) {
+      LOG.info("Resuming partitions {}", consumer.paused());
+      consumer.resume(consumer.paused());
+      paused = false;
+    }
+  }
+
+  /**
+   * Commit the offsets of the polls whose metrics are all ingested. The offsets are committed in
+   * poll order, so an offset is never committed before the metrics preceding it are ingested.
+   */
+  private void commitIngestedOffsets() {
+    Map<TopicPartition, OffsetAndMetadata> offsets = getIngestedOffsets();
+    if (!autoCommit && !offsets.isEmpty()) {
+      consumer.commitAsync(offsets, (committedOffsets, e) -> {
+        if (e != null) {
+          LOG.error("Failed to commit offsets {}", committedOffsets, e);
+        }
+      });
+    }
+  }
+
+  private Map<TopicPartition, OffsetAndMetadata> getIngestedOffsets() {
+    Map<TopicPartition, OffsetAndMetadata> offsets = new HashMap<>();
+    while (!uncommittedPolls.isEmpty() && uncommittedPolls.peek().remainingBatches.get() == 0) {
+      offsets.putAll(uncommittedPolls.remove().offsets);
     }
-    LOG.info("Processed {} records with {} valid metrics, {} invalid metrics, {} delayed metrics",
-        recordCount, validMetrics, invalidMetrics, delayedMetrics);
+    return offsets;
   }
 
   public void close() {
     // TODO: Close consumer properly.
+    ingestPool.close();
     if (consumer != null) {
       LOG.info("Closing kafka consumer");
       consumer.close();
     }
   }
+
+  /**
+   * The rebalance callbacks run in the polling thread inside consumer.poll, so they can use the
+   * state of the writer without locking.
+   */
+  private final class IngestRebalanceListener extends MetricsConsumerRebalanceListener {
+
+    @Override
+    public void onPartitionsRevoked(Collection<TopicPartition> partitions) {
+      super.onPartitionsRevoked(partitions);
+      Map<TopicPartition, OffsetAndMetadata> offsets = getIngestedOffsets();
+      if (!autoCommit && !offsets.isEmpty()) {
+        try {
+          consumer.commitSync(offsets);
+        } catch (Exception e) {
+          LOG.error("Failed to commit offsets {} before a rebalance", offsets, e);
+        }
+      }
+      // The metrics of the pending batches are still ingested, but their offsets are not
+      // committed, since the new owner of the partitions commits its own offsets.
+      for (PollOffsets pollOffsets : uncommittedPolls) {
+        pollOffsets.offsets.keySet().removeAll(partitions);
+      }
+    }
+
+    @Override
+    public void onPartitionsAssigned(Collection<TopicPartition> partitions) {
+      super.onPartitionsAssigned(partitions);
+      if (paused) {
+        LOG.info("Ingest queues are full. Pausing assigned partitions {}", partitions);
+        consumer.pause(partitions);
+      }
+    }
+  }
+
+  /**
+   * The metrics of a poll for a single ingest thread.
+   */
+  private static final class PendingBatch {
+
+    final LineBatch metrics;
+    final PollOffsets pollOffsets;
+
+    PendingBatch(LineBatch metrics, PollOffsets pollOffsets) {
+      this.metrics = metrics;
+      this.pollOffsets = pollOffsets;
+    }
+  }
+
+  /**
+   * The offsets of a poll and the number of its batches that are not ingested yet.
+   */
+  private static final class PollOffsets {
+
+    final Map<TopicPartition, OffsetAndMetadata> offsets;
+    final AtomicInteger remainingBatches = new AtomicInteger();
+
+    PollOffsets(Map<TopicPartition, OffsetAndMetadata> offsets) {
+      this.offsets = offsets;
+    }
+
+    void onBatchIngested(AddMetricsResult result) {
+      LOG.info("Processed a batch with {} valid metrics, {} invalid metrics, {} delayed metrics",
+          result.validMetrics, result.invalidMetrics, result.delayedMetrics);
+      VALID_METRICS.add(result.validMetrics);
+      INVALID_METRICS.add(result.invalidMetrics);
+      DELAYED_METRICS.add(result.delayedMetrics);
+      remainingBatches.decrementAndGet();
+    }
+  }
 }
@@ -0,0 +1,88 @@
+package com.pinterest.yuvi.writer.kafka;
+
+import com.pinterest.yuvi.metricandtagstore.MetricBatch;
+import com.pinterest.yuvi.tagstore.Metric;
+import com.pinterest.yuvi.thrift.PointMessage;
+
+import org.apache.kafka.common.serialization.Deserializer;
+import org.apache.thrift.TDeserializer;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.Arrays;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Deserializes a PointMessage into a MetricBatch that can be ingested with
+ * ChunkManager.addPoints. Each series key is parsed once per message, so the points themselves
+ * don't need any string parsing.
+ */
+public class ThriftPointMessageDeserializer implements Deserializer<MetricBatch> {
+
+  private static Logger LOG = LoggerFactory.getLogger(ThriftPointMessageDeserializer.class);
+  private final TDeserializer deserializer = new TDeserializer();
+
+  @Override
+  public void configure(Map<String, ?> config, boolean isKey) {
+  }
+
+  @Override
+  public MetricBatch deserialize(String topic, byte[] data) {
+    try {
+      PointMessage pointMessage = new PointMessage();
+      deserializer.deserialize(pointMessage, data);
+      return toMetricBatch(pointMessage);
+    } catch (Exception e) {
+      LOG.error("Failed to parse a point message of {} bytes", data.length, e);
+      return null;
+    }
+  }
+
+  /**
+   * Convert a PointMessage into a MetricBatch. The points of a series with an invalid series key
+   * are dropped.
+   */
+  public static MetricBatch toMetricBatch(PointMessage pointMessage) {
+    List<String> seriesKeys = pointMessage.getSeriesKeys();
+    List<Integer> seriesIndexes = pointMessage.getSeriesIndexes();
+    List<Long> timestamps = pointMessage.getTimestamps();
+    List<Double> values = pointMessage.getValues();
+    if (seriesIndexes.size() != timestamps.size() || seriesIndexes.size() != values.size()) {
+      throw new IllegalArgumentException("Point message has " + seriesIndexes.size()
+          + " series indexes, " + timestamps.size() + " timestamps and " + values.size()
+          + " values.");
+    }
+
+    Metric[] metrics = new Metric[seriesKeys.size()];
+    for (int i = 0; i < metrics.length; i++) {
+      try {
+        metrics[i] = parseSeriesKey(seriesKeys.get(i));
+      } catch (Exception e) {
+        LOG.error("Invalid series key {}", seriesKeys.get(i), e);
+      }
+    }
+
+    MetricBatch batch = new MetricBatch();
+    for (int i = 0; i < seriesIndexes.size(); i++) {
+      int seriesIndex = seriesIndexes.get(i);
+      if (seriesIndex < 0 || seriesIndex >= metrics.length) {
+        throw new IllegalArgumentException("Invalid series index " + seriesIndex);
+      }
+      if (metrics[seriesIndex] != null) {
+        batch.add(metrics[seriesIndex], timestamps.get(i), values.get(i));
+      }
+    }
+    return batch;
+  }
+
+  private static Metric parseSeriesKey(String seriesKey) {
+    String[] seriesKeyParts = seriesKey.split(" ");
+    return new Metric(seriesKeyParts[0].trim(),
+        Arrays.asList(seriesKeyParts).subList(1, seriesKeyParts.length));
+  }
+
+  @Override
+  public void close() {
+  }
+}
@@ -22,7 +22,7 @@ public class ThriftTextMessageDeserializer implements Deserializer<TextMessage>
   @Override
   public TextMessage deserialize(String topic, byte[] data) {
     try {
-      TextMessage textMessage = TextMessage.class.newInstance();
+      TextMessage textMessage = new TextMessage();
       deserializer.deserialize(textMessage, data);
       return textMessage;
     } catch (Exception e) {
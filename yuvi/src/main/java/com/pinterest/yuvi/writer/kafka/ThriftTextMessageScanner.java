@@ -0,0 +1,155 @@
+package com.pinterest.yuvi.writer.kafka;
+
+import org.apache.thrift.protocol.TType;
+
+/**
+ * Walks a TextMessage serialized with the thrift binary protocol and passes each message to a
+ * consumer as a slice of the serialized bytes. Unlike ThriftTextMessageDeserializer, it doesn't
+ * create a TextMessage or a String per message, so the messages can be parsed directly from the
+ * bytes of the Kafka record. The other fields of the TextMessage are skipped.
+ */
+public final class ThriftTextMessageScanner {
+
+  private static final short MESSAGES_FIELD_ID = 1;
+
+  /**
+   * Receives the slice data[offset, offset + length) holding the UTF-8 bytes of a message.
+   */
+  public interface MessageConsumer {
+    void accept(byte[] data, int offset, int length);
+  }
+
+  private final byte[] data;
+  private int position;
+
+  private ThriftTextMessageScanner(byte[] data) {
+    this.data = data;
+    this.position = 0;
+  }
+
+  /**
+   * Pass the messages of the serialized TextMessage to the consumer in order.
+   * @return the number of messages.
+   * @throws IllegalArgumentException if the data is not a valid TextMessage.
+   */
+  public static int scan(byte[] data, MessageConsumer consumer) {
+    if (data == null) {
+      throw new IllegalArgumentException("Text message can't be null");
+    }
+    return new ThriftTextMessageScanner(data).scanMessages(consumer);
+  }
+
+  private int scanMessages(MessageConsumer consumer) {
+    int messageCount = -1;
+    while (true) {
+      byte fieldType = readByte();
+      if (fieldType == TType.STOP) {
+        break;
+      }
+      short fieldId = readI16();
+      if (fieldId == MESSAGES_FIELD_ID && fieldType == TType.LIST) {
+        byte elementType = readByte();
+        int size = readLength();
+        if (elementType != TType.STRING) {
+          throw new IllegalArgumentException("Invalid messages list in a text message.");
+        }
+        for (int i = 0; i < size; i++) {
+          int length = readLength();
+          consumer.accept(data, position, length);
+          position = position + length;
+        }
+        messageCount = size;
+      } else {
+        skip(fieldType);
+      }
+    }
+    if (messageCount < 0) {
+      throw new IllegalArgumentException("Required field messages is missing in a text message.");
+    }
+    return messageCount;
+  }
+
+  private void skip(byte type) {
+    switch (type) {
+      case TType.BOOL:
+      case TType.BYTE:
+        advance(1);
+        break;
+      case TType.I16:
+        advance(2);
+        break;
+      case TType.I32:
+        advance(4);
+        break;
+      case TType.I64:
+      case TType.DOUBLE:
+        advance(8);
+        break;
+      case TType.STRING:
+        advance(readLength());
+        break;
+      case TType.STRUCT:
+        while (true) {
+          byte fieldType = readByte();
+          if (fieldType == TType.STOP) {
+            break;
+          }
+          readI16();
+          skip(fieldType);
+        }
+        break;
+      case TType.MAP: {
+        byte keyType = readByte();
+        byte valueType = readByte();
+        int size = readLength();
+        for (int i = 0; i < size; i++) {
+          skip(keyType);
+          skip(valueType);
+        }
+        break;
+      }
+      case TType.SET:
+      case TType.LIST: {
+        byte elementType = readByte();
+        int size = readLength();
+        for (int i = 0; i < size; i++) {
+          skip(elementType);
+        }
+        break;
+      }
+      default:
+        throw new IllegalArgumentException("Invalid thrift type " + type + " in a text message.");
+    }
+  }
+
+  private void advance(int length) {
+    if (length > data.length - position) {
+      throw new IllegalArgumentException("Text message is truncated.");
+    }
+    position = position + length;
+  }
+
+  private byte readByte() {
+    advance(1);
+    return data[position - 1];
+  }
+
+  private short readI16() {
+    advance(2);
+    return (short) (((data[position - 2] & 0xff) << 8) | (data[position - 1] & 0xff));
+  }
+
+  private int readI32() {
+    advance(4);
+    return ((data[position - 4] & 0xff) << 24) | ((data[position - 3] & 0xff) << 16)
+        | ((data[position - 2] & 0xff) << 8) | (data[position - 1] & 0xff);
+  }
+
+  private int readLength() {
+    int length = readI32();
+    if (length < 0 || length > data.length - position) {
+      throw new IllegalArgumentException("Invalid length " + length + " in a text message.");
+    }
+    return length;
+  }
+}
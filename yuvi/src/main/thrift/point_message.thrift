@@ -0,0 +1,16 @@
+// PointMessage class takes in a batch of points in a binary format as input. Unlike a TextMessage,
+// the timestamps and values are not encoded as strings, so they don't need to be parsed.
+//
+// Each series in the batch is stored once in seriesKeys as "metricName tag1=value1 tag2=value2".
+// The i-th point of the batch belongs to the series seriesKeys[seriesIndexes[i]] and has the
+// timestamp timestamps[i] in seconds and the value values[i].
+
+namespace java com.pinterest.yuvi.thrift
+
+struct PointMessage {
+  1: required list<string> seriesKeys;
+  2: required list<i32> seriesIndexes;
+  3: required list<i64> timestamps;
+  4: required list<double> values;
+  5: optional string host;
+}
@@ -0,0 +1,271 @@
+package com.pinterest.yuvi.chunk;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotSame;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+import com.pinterest.yuvi.metrics.Counter;
+import com.pinterest.yuvi.metrics.MetricsRegistry;
+import com.pinterest.yuvi.models.Point;
+import com.pinterest.yuvi.models.TimeSeries;
+import com.pinterest.yuvi.tagstore.Query;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import java.time.Duration;
+import java.util.AbstractMap;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Map;
+import java.util.stream.Collectors;
+
+public class ChunkCompactionTaskTest {
+
+  private ChunkManager chunkManager;
+  private ChunkCompactionTask compactionTask;
+
+  private final long startTimeSecs = 1488499200;  // Fri, 03 Mar 2017 00:00:00 UTC
+  private final long twoHoursSecs = 2 * 3600;
+
+  private final String testMetricName = "testMetric";
+  private final String inputTagString1 = "host=h1 dc=dc1";
+  private final String inputTagString2 = "host=h2 dc=dc1";
+
+  @Before
+  public void setUp() {
+    chunkManager = new ChunkManager("test", 1000);
+    compactionTask = new ChunkCompactionTask(chunkManager);
+  }
+
+  private void addPoints(String tags, long startTs, long endTs) {
+    for (long ts = startTs; ts < endTs; ts = ts + 600) {
+      chunkManager.addMetric(MetricUtils.makeMetricString(testMetricName, tags, ts, ts % 100));
+    }
+  }
+
+  private static List<Point> expectedPoints(long startTs, long endTs) {
+    List<Point> points = new ArrayList<>();
+    for (long ts = startTs; ts < endTs; ts = ts + 600) {
+      points.add(new Point(ts, ts % 100));
+    }
+    return points;
+  }
+
+  private void toReadOnlyChunksBefore(long endTimeSecs) {
+    chunkManager.toReadOnlyChunks(chunkManager.getChunkMap().entrySet().stream()
+        .filter(entry -> entry.getValue().info().endTimeSecs <= endTimeSecs)
+        .filter(entry -> !entry.getValue().isReadOnly())
+        .collect(Collectors.toList()));
+  }
+
+  private Map<String, List<Point>> query(long startTs, long endTs) {
+    return chunkManager.query(Query.parse(testMetricName), startTs, endTs, QueryAggregation.NONE)
+        .stream()
+        .collect(Collectors.toMap(TimeSeries::getMetric, TimeSeries::getPoints));
+  }
+
+  @Test(expected = IllegalArgumentException.class)
+  public void testInvalidBlockDuration() {
+    new ChunkCompactionTask(chunkManager, Duration.ofHours(5));
+  }
+
+  @Test
+  public void testCompactChunks() {
+    // 4 blocks of 6 hours, where the last block is still on heap.
+    addPoints(inputTagString1, startTimeSecs, startTimeSecs + 24 * 3600);
+    addPoints(inputTagString2, startTimeSecs + twoHoursSecs, startTimeSecs + 4 * 3600);
+    assertEquals(12, chunkManager.getChunkMap().size());
+    assertEquals(0, compactionTask.compactChunks());
+
+    Map<String, List<Point>> expectedResult = query(startTimeSecs, startTimeSecs + 24 * 3600);
+    assertEquals(expectedPoints(startTimeSecs, startTimeSecs + 24 * 3600),
+        expectedResult.get(testMetricName + " dc=dc1 host=h1"));
+    assertEquals(expectedPoints(startTimeSecs + twoHoursSecs, startTimeSecs + 4 * 3600),
+        expectedResult.get(testMetricName + " dc=dc1 host=h2"));
+
+    // The second block isn't compacted since its last chunk still accepts writes.
+    toReadOnlyChunksBefore(startTimeSecs + 10 * 3600);
+    assertEquals(1, compactionTask.compactChunks());
+    assertEquals(10, chunkManager.getChunkMap().size());
+    Chunk compactedChunk = chunkManager.getChunkMap().get(startTimeSecs);
+    assertTrue(compactedChunk.isReadOnly());
+    assertEquals(startTimeSecs, compactedChunk.info().startTimeSecs);
+    assertEquals(startTimeSecs + 6 * 3600, compactedChunk.info().endTimeSecs);
+    assertFalse(chunkManager.getChunkMap().containsKey(startTimeSecs + twoHoursSecs));
+    assertFalse(chunkManager.getChunkMap().containsKey(startTimeSecs + 2 * twoHoursSecs));
+    assertEquals(expectedResult, query(startTimeSecs, startTimeSecs + 24 * 3600));
+    assertEquals(0, compactionTask.compactChunks());
+
+    toReadOnlyChunksBefore(startTimeSecs + 18 * 3600);
+    assertEquals(2, compactionTask.compactChunks());
+    assertEquals(6, chunkManager.getChunkMap().size());
+    assertEquals(expectedResult, query(startTimeSecs, startTimeSecs + 24 * 3600));
+
+    // A 12 hour task compacts the 6 hour blocks.
+    ChunkCompactionTask twelveHourTask =
+        new ChunkCompactionTask(chunkManager, Duration.ofHours(12));
+    assertEquals(1, twelveHourTask.compactChunks());
+    assertEquals(5, chunkManager.getChunkMap().size());
+    assertEquals(startTimeSecs + 12 * 3600,
+        chunkManager.getChunkMap().get(startTimeSecs).info().endTimeSecs);
+    assertEquals(expectedResult, query(startTimeSecs, startTimeSecs + 24 * 3600));
+  }
+
+  @Test
+  public void testLatePointsForCompactedChunk() {
+    addPoints(inputTagString1, startTimeSecs, startTimeSecs + 8 * 3600);
+    toReadOnlyChunksBefore(startTimeSecs + 6 * 3600);
+    assertEquals(1, compactionTask.compactChunks());
+    Chunk compactedChunk = chunkManager.getChunkMap().get(startTimeSecs);
+
+    // A late point for a compacted chunk gets the compacted chunk instead of a new chunk.
+    assertSame(compactedChunk, chunkManager.getChunk(startTimeSecs + twoHoursSecs + 1));
+    // The compacted chunk is cached in the ring slot of the timestamp.
+    Counter ringHits = MetricsRegistry.getDefault().counter("chunkManager.getChunk.ringHits");
+    long hits = ringHits.get();
+    assertSame(compactedChunk, chunkManager.getChunk(startTimeSecs + twoHoursSecs + 2));
+    assertEquals(hits + 1, ringHits.get());
+    AddMetricsResult result = chunkManager.addMetrics(Arrays.asList(
+        MetricUtils.makeMetricString(testMetricName, inputTagString1, startTimeSecs + 4000, 1),
+        MetricUtils.makeMetricString(testMetricName, inputTagString1, startTimeSecs + 8000, 1)));
+    assertEquals(0, result.validMetrics);
+    assertEquals(2, result.delayedMetrics);
+    assertEquals(2, chunkManager.getChunkMap().size());
+    assertEquals(expectedPoints(startTimeSecs, startTimeSecs + 8 * 3600),
+        query(startTimeSecs, startTimeSecs + 8 * 3600).get(testMetricName + " dc=dc1 host=h1"));
+  }
+
+  @Test
+  public void testCompactSealedLateChunks() {
+    chunkManager = new ChunkManager("test", 1000, "", ChunkManager.DEFAULT_QUERY_CACHE_SIZE_BYTES,
+        ChunkManager.DEFAULT_CHUNK_DURATION, Duration.ZERO, true);
+    compactionTask = new ChunkCompactionTask(chunkManager);
+    addPoints(inputTagString1, startTimeSecs, startTimeSecs + 8 * 3600);
+    toReadOnlyChunksBefore(startTimeSecs + 6 * 3600);
+    // A late point that replaces a point of a read only chunk and a late point between points.
+    chunkManager.addMetrics(Arrays.asList(
+        MetricUtils.makeMetricString(testMetricName, inputTagString1, startTimeSecs + 600, 7),
+        MetricUtils.makeMetricString(testMetricName, inputTagString1,
+            startTimeSecs + twoHoursSecs + 1, 8)));
+    List<Point> expectedPoints = expectedPoints(startTimeSecs, startTimeSecs + 8 * 3600);
+    expectedPoints.set(1, new Point(startTimeSecs + 600, 7));
+    expectedPoints.add(new Point(startTimeSecs + twoHoursSecs + 1, 8));
+
+    // The late chunks are merged into the compacted chunk once they are sealed.
+    assertEquals(2, chunkManager.getLateChunkMap().size());
+    chunkManager.sealLateChunks(new ArrayList<>(chunkManager.getLateChunkMap().entrySet()),
+        ChunkManager.DEFAULT_SEAL_SLICE_SIZE, Thread::yield);
+    assertEquals(2, chunkManager.getSealedLateChunkMap().size());
+    assertEquals(1, compactionTask.compactChunks());
+    assertTrue(chunkManager.getSealedLateChunkMap().isEmpty());
+    assertEquals(2, chunkManager.getChunkMap().size());
+    expectedPoints.sort(Comparator.comparingLong(Point::getTs));
+    assertEquals(expectedPoints,
+        query(startTimeSecs, startTimeSecs + 8 * 3600).get(testMetricName + " dc=dc1 host=h1"));
+
+    // The late points of a compacted chunk are merged into a new compacted chunk.
+    Chunk compactedChunk = chunkManager.getChunkMap().get(startTimeSecs);
+    chunkManager.addMetric(MetricUtils.makeMetricString(testMetricName, inputTagString1,
+        startTimeSecs + 4 * 3600 + 1, 9));
+    assertEquals(0, compactionTask.compactChunks());
+    chunkManager.sealLateChunks(new ArrayList<>(chunkManager.getLateChunkMap().entrySet()),
+        ChunkManager.DEFAULT_SEAL_SLICE_SIZE, Thread::yield);
+    assertEquals(1, compactionTask.compactChunks());
+    Chunk recompactedChunk = chunkManager.getChunkMap().get(startTimeSecs);
+    assertNotSame(compactedChunk, recompactedChunk);
+    assertEquals(compactedChunk.info().endTimeSecs, recompactedChunk.info().endTimeSecs);
+    assertFalse(compactedChunk.info().dataSet.equals(recompactedChunk.info().dataSet));
+    assertTrue(chunkManager.getSealedLateChunkMap().isEmpty());
+    assertEquals(2, chunkManager.getChunkMap().size());
+    expectedPoints.add(new Point(startTimeSecs + 4 * 3600 + 1, 9));
+    expectedPoints.sort(Comparator.comparingLong(Point::getTs));
+    assertEquals(expectedPoints,
+        query(startTimeSecs, startTimeSecs + 8 * 3600).get(testMetricName + " dc=dc1 host=h1"));
+  }
+
+  @Test
+  public void testCompactRemovedChunks() {
+    addPoints(inputTagString1, startTimeSecs, startTimeSecs + 4 * 3600);
+    toReadOnlyChunksBefore(startTimeSecs + 4 * 3600);
+    List<Chunk> chunks = Arrays.asList(chunkManager.getChunk(startTimeSecs),
+        chunkManager.getChunk(startTimeSecs + twoHoursSecs));
+
+    // A chunk deleted during the compaction is not added back to the chunk manager.
+    chunkManager.getChunkMap().remove(startTimeSecs + twoHoursSecs);
+    assertNull(chunkManager.compactChunks(chunks));
+    assertSame(chunks.get(0), chunkManager.getChunkMap().get(startTimeSecs));
+    assertEquals(1, chunkManager.getChunkMap().size());
+  }
+
+  @Test
+  public void testSkipChunksBeingMovedOffHeap() {
+    addPoints(inputTagString1, startTimeSecs, startTimeSecs + 8 * 3600);
+    addPoints(inputTagString2, startTimeSecs, startTimeSecs + 8 * 3600);
+    Map<String, List<Point>> expectedResult = query(startTimeSecs, startTimeSecs + 8 * 3600);
+    toReadOnlyChunksBefore(startTimeSecs + 4 * 3600);
+
+    // The block isn't compacted while its last chunk is moved off heap a series at a time.
+    List<Integer> compactedBlocks = new ArrayList<>();
+    Chunk lastChunk = chunkManager.getChunk(startTimeSecs + 4 * 3600);
+    chunkManager.toReadOnlyChunks(Arrays.asList(
+        new AbstractMap.SimpleEntry<>(startTimeSecs + 4 * 3600, lastChunk)), 1,
+        () -> compactedBlocks.add(compactionTask.compactChunks()));
+    assertEquals(Arrays.asList(0), compactedBlocks);
+    assertEquals(4, chunkManager.getChunkMap().size());
+
+    assertEquals(1, compactionTask.compactChunks());
+    assertEquals(expectedResult, query(startTimeSecs, startTimeSecs + 8 * 3600));
+  }
+
+  @Test
+  public void testCompactSealedHeadChunks() {
+    addPoints(inputTagString1, startTimeSecs, startTimeSecs + 5 * 3600);
+    Chunk headChunk = chunkManager.getChunk(startTimeSecs + 2 * twoHoursSecs);
+    assertEquals(headChunk.info(), chunkManager.sealHeadChunk());
+    addPoints(inputTagString1, startTimeSecs + 5 * 3600, startTimeSecs + 6 * 3600);
+    Map<String, List<Point>> expectedResult = query(startTimeSecs, startTimeSecs + 6 * 3600);
+    assertEquals(expectedPoints(startTimeSecs, startTimeSecs + 6 * 3600),
+        expectedResult.get(testMetricName + " dc=dc1 host=h1"));
+
+    // The sealed head chunk is merged into the compacted chunk of its block.
+    toReadOnlyChunksBefore(startTimeSecs + 6 * 3600);
+    assertEquals(1, compactionTask.compactChunks());
+    assertTrue(chunkManager.getSealedHeadChunkMap().isEmpty());
+    assertEquals(1, chunkManager.getChunkMap().size());
+    assertEquals(expectedResult, query(startTimeSecs, startTimeSecs + 6 * 3600));
+    Chunk compactedChunk = chunkManager.getChunkMap().get(startTimeSecs);
+    assertEquals(expectedPoints(startTimeSecs, startTimeSecs + 6 * 3600),
+        compactedChunk.query(Query.parse(testMetricName)).get(0).getPoints());
+  }
+
+  @Test
+  public void testRemoveStaleChunksAfterCompaction() {
+    addPoints(inputTagString1, startTimeSecs, startTimeSecs + 8 * 3600);
+    toReadOnlyChunksBefore(startTimeSecs + 6 * 3600);
+    List<Map.Entry<Long, Chunk>> staleChunks = chunkManager.getChunkMap().entrySet().stream()
+        .filter(entry -> entry.getKey() == startTimeSecs)
+        .map(entry -> new AbstractMap.SimpleEntry<>(entry.getKey(), entry.getValue()))
+        .collect(Collectors.toList());
+    assertEquals(1, compactionTask.compactChunks());
+    Chunk compactedChunk = chunkManager.getChunkMap().get(startTimeSecs);
+
+    // The compacted chunk under the key of a listed stale chunk is not removed.
+    chunkManager.removeStaleChunks(staleChunks);
+    assertSame(compactedChunk, chunkManager.getChunkMap().get(startTimeSecs));
+    assertEquals(expectedPoints(startTimeSecs, startTimeSecs + 8 * 3600),
+        query(startTimeSecs, startTimeSecs + 8 * 3600).get(testMetricName + " dc=dc1 host=h1"));
+  }
+
+  @Test(expected = IllegalArgumentException.class)
+  public void testCompactWritableChunks() {
+    addPoints(inputTagString1, startTimeSecs, startTimeSecs + 4 * 3600);
+    chunkManager.compactChunks(Arrays.asList(chunkManager.getChunk(startTimeSecs),
+        chunkManager.getChunk(startTimeSecs + twoHoursSecs)));
+  }
+}
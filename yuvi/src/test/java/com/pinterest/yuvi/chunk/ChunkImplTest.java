@@ -17,7 +17,9 @@ import org.hamcrest.collection.IsIterableContainingInOrder;
 import org.junit.Assert;
 import org.junit.Before;
 import org.junit.Test;
+import org.roaringbitmap.RoaringBitmap;
 
+import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.Collections;
 import java.util.List;
@@ -158,4 +160,29 @@ public class ChunkImplTest {
             new TimeSeries(testMetricName1 + " dc=dc1 host=h1", Collections.singletonList(p1)),
             new TimeSeries(testMetricName1 + " dc=dc1 host=h2", Collections.singletonList(p1))));
   }
+
+  @Test
+  public void testQueryIds() {
+    parseAndAddOpenTSDBMetric(makeMetricString("testMetric1", "host=h1", testTs, testValue), chunk);
+    parseAndAddOpenTSDBMetric(makeMetricString("testMetric1", "host=h2", testTs, testValue), chunk);
+    MetricsAndTagStoreImpl store = (MetricsAndTagStoreImpl) ((ChunkImpl) chunk).getStore();
+    RoaringBitmap ids = store.getTagStore().lookupIds(Query.parse("testMetric1 host=*"));
+    int otherChunkId = 1000;
+    ids.add(otherChunkId);
+    RoaringBitmap queryIds = ids.clone();
+
+    // Only the ids in the chunk are returned, with the names from the given lookup.
+    List<Integer> lookedUpIds = new ArrayList<>();
+    List<TimeSeries> series = chunk.query(ids, id -> {
+      lookedUpIds.add(id);
+      return "name" + lookedUpIds.size();
+    });
+    assertEquals(Arrays.asList(
+        new TimeSeries("name1", Collections.singletonList(new Point(testTs, testValue))),
+        new TimeSeries("name2", Collections.singletonList(new Point(testTs, testValue)))),
+        series);
+    assertFalse(lookedUpIds.contains(otherChunkId));
+    assertEquals(queryIds, ids);
+    assertTrue(chunk.query(RoaringBitmap.bitmapOf(otherChunkId), id -> "").isEmpty());
+  }
 }
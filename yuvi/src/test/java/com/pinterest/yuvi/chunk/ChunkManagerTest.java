@@ -1,12 +1,21 @@
 package com.pinterest.yuvi.chunk;
 
 import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotEquals;
+import static org.junit.Assert.assertNotSame;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
 import static org.junit.Assert.assertThat;
 import static org.junit.Assert.assertTrue;
 import static org.junit.Assert.fail;
 
+import com.pinterest.yuvi.metricandtagstore.MetricBatch;
+import com.pinterest.yuvi.metricandtagstore.MetricsAndTagStoreImpl;
+import com.pinterest.yuvi.metricstore.offheap.OffHeapVarBitMetricStore;
 import com.pinterest.yuvi.models.Point;
 import com.pinterest.yuvi.models.TimeSeries;
+import com.pinterest.yuvi.tagstore.Metric;
 import com.pinterest.yuvi.tagstore.Query;
 
 import org.hamcrest.collection.IsIterableContainingInAnyOrder;
@@ -15,12 +24,16 @@ import org.junit.Rule;
 import org.junit.Test;
 import org.junit.rules.ExpectedException;
 
+import java.time.Duration;
 import java.time.Instant;
+import java.util.AbstractMap;
 import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.Collections;
 import java.util.List;
 import java.util.Map;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.atomic.AtomicInteger;
 
 public class ChunkManagerTest {
 
@@ -89,6 +102,295 @@ public class ChunkManagerTest {
     assertEquals(12, chunkManager.getChunkMap().size());
   }
 
+  @Test
+  public void testChunkDuration() {
+    assertEquals(ChunkManager.DEFAULT_CHUNK_DURATION, chunkManager.getChunkDuration());
+
+    Duration halfHour = Duration.ofMinutes(30);
+    ChunkManager halfHourChunkManager = new ChunkManager("test", 1000, "",
+        ChunkManager.DEFAULT_QUERY_CACHE_SIZE_BYTES, halfHour);
+    assertEquals(halfHour, halfHourChunkManager.getChunkDuration());
+    Chunk chunk = halfHourChunkManager.getChunk(startTime + 1799);
+    assertEquals(startTime, chunk.info().startTimeSecs);
+    assertEquals(startTime + 1800, chunk.info().endTimeSecs);
+    Chunk nextChunk = halfHourChunkManager.getChunk(startTime + 1800);
+    assertEquals(startTime + 1800, nextChunk.info().startTimeSecs);
+    assertEquals(startTime + 3600, nextChunk.info().endTimeSecs);
+
+    Duration fourHours = Duration.ofHours(4);
+    ChunkManager fourHourChunkManager = new ChunkManager("test", 1000, "",
+        ChunkManager.DEFAULT_QUERY_CACHE_SIZE_BYTES, fourHours);
+    // The first point of a series is the last second of the 4 hour chunk, but it still fits in the
+    // block header of the series.
+    fourHourChunkManager.addMetric(
+        MetricUtils.makeMetricString(testMetricName, inputTagString, startTime + 4 * 3600 - 2, 1));
+    fourHourChunkManager.addMetric(
+        MetricUtils.makeMetricString(testMetricName, inputTagString, startTime + 4 * 3600 - 1, 2));
+    assertEquals(1, fourHourChunkManager.getChunkMap().size());
+    Chunk fourHourChunk = fourHourChunkManager.getChunk(startTime);
+    assertEquals(startTime + 4 * 3600, fourHourChunk.info().endTimeSecs);
+    List<TimeSeries> timeSeries = fourHourChunkManager.query(Query.parse(testMetricName),
+        startTime, startTime + 4 * 3600, QueryAggregation.NONE);
+    assertEquals(1, timeSeries.size());
+    assertEquals(Arrays.asList(new Point(startTime + 4 * 3600 - 2, 1),
+        new Point(startTime + 4 * 3600 - 1, 2)), timeSeries.get(0).getPoints());
+  }
+
+  @Test
+  public void testStoreLatePoints() {
+    ChunkManager lateChunkManager = new ChunkManager("test", 1000, "",
+        ChunkManager.DEFAULT_QUERY_CACHE_SIZE_BYTES, ChunkManager.DEFAULT_CHUNK_DURATION,
+        Duration.ofSeconds(60), true);
+    lateChunkManager.addMetric(
+        MetricUtils.makeMetricString(testMetricName, inputTagString, startTime + 20, 2));
+    lateChunkManager.addMetric(
+        MetricUtils.makeMetricString(testMetricName, inputTagString, startTime + 10, 1));
+    lateChunkManager.addMetric(
+        MetricUtils.makeMetricString(testMetricName, inputTagString, startTimePlusTwoHours, 4));
+    lateChunkManager.toReadOnlyChunks(Collections.singletonList(
+        new AbstractMap.SimpleEntry<>(startTime, lateChunkManager.getChunk(startTime))));
+    assertTrue(lateChunkManager.getChunk(startTime).isReadOnly());
+
+    // Late points for the read only chunk are stored in a late chunk.
+    lateChunkManager.addMetric(
+        MetricUtils.makeMetricString(testMetricName, inputTagString, startTime + 30, 3));
+    AddMetricsResult result = lateChunkManager.addMetrics(Arrays.asList(
+        MetricUtils.makeMetricString(testMetricName, "host=h2 dc=dc1", startTime + 40, 5)));
+    assertEquals(1, result.validMetrics);
+    assertEquals(0, result.delayedMetrics);
+    assertEquals(1, lateChunkManager.getLateChunkMap().size());
+    Chunk lateChunk = lateChunkManager.getLateChunkMap().get(startTime);
+    assertFalse(lateChunk.isReadOnly());
+    assertEquals(startTime, lateChunk.info().startTimeSecs);
+    assertEquals(startTimePlusTwoHours, lateChunk.info().endTimeSecs);
+
+    // Queries merge the late points with the points of the read only chunk.
+    List<TimeSeries> timeSeries = lateChunkManager.query(Query.parse(testMetricName + " host=h1"),
+        startTime, startTimePlusFourHours, QueryAggregation.NONE);
+    assertEquals(1, timeSeries.size());
+    assertEquals(Arrays.asList(new Point(startTime + 10, 1), new Point(startTime + 20, 2),
+        new Point(startTime + 30, 3), new Point(startTimePlusTwoHours, 4)),
+        timeSeries.get(0).getPoints());
+    assertEquals(2, lateChunkManager.query(Query.parse(testMetricName), startTime,
+        startTimePlusTwoHours, QueryAggregation.NONE).size());
+
+    // The late chunk is deleted with the stale chunk.
+    lateChunkManager.removeStaleChunks(Collections.singletonList(
+        new AbstractMap.SimpleEntry<>(startTime, lateChunkManager.getChunk(startTime))));
+    assertTrue(lateChunkManager.getLateChunkMap().isEmpty());
+    assertEquals(1, lateChunkManager.query(Query.parse(testMetricName), startTime,
+        startTimePlusFourHours, QueryAggregation.NONE).size());
+  }
+
+  @Test
+  public void testStoreLatePointsWhileChunkIsMadeReadOnly() throws Exception {
+    ChunkManager lateChunkManager = new ChunkManager("test", 1000, "",
+        ChunkManager.DEFAULT_QUERY_CACHE_SIZE_BYTES, ChunkManager.DEFAULT_CHUNK_DURATION,
+        Duration.ZERO, true);
+    int pointsPerWriter = 20000;
+    lateChunkManager.addMetric(
+        MetricUtils.makeMetricString(testMetricName, "host=h0", startTime, testValue));
+    CountDownLatch started = new CountDownLatch(2);
+    AtomicInteger delayedMetrics = new AtomicInteger();
+
+    // One writer adds single points and the other adds batches, while the chunk is made read only.
+    Thread pointWriter = new Thread(() -> {
+      started.countDown();
+      for (int i = 1; i <= pointsPerWriter; i++) {
+        try {
+          lateChunkManager.addMetric(MetricUtils.makeMetricString(
+              testMetricName, "host=h" + (i % 10), startTime + i / 10, testValue));
+        } catch (ReadOnlyChunkInsertionException e) {
+          delayedMetrics.incrementAndGet();
+        }
+      }
+    });
+    Thread batchWriter = new Thread(() -> {
+      started.countDown();
+      List<String> batch = new ArrayList<>();
+      for (int i = 0; i < pointsPerWriter; i++) {
+        batch.add(MetricUtils.makeMetricString(
+            testMetricName, "host=b" + (i % 10), startTime + i / 10, testValue));
+        if (batch.size() == 100) {
+          delayedMetrics.addAndGet(lateChunkManager.addMetrics(batch).delayedMetrics);
+          batch.clear();
+        }
+      }
+    });
+    pointWriter.start();
+    batchWriter.start();
+    started.await();
+    lateChunkManager.toReadOnlyChunks(Collections.singletonList(
+        new AbstractMap.SimpleEntry<>(startTime, lateChunkManager.getChunk(startTime))));
+    pointWriter.join();
+    batchWriter.join();
+
+    assertEquals(0, delayedMetrics.get());
+    assertTrue(lateChunkManager.getChunk(startTime).isReadOnly());
+    List<TimeSeries> timeSeries = lateChunkManager.query(Query.parse(testMetricName), startTime,
+        startTimePlusTwoHours, QueryAggregation.NONE);
+    assertEquals(20, timeSeries.size());
+    assertEquals(2 * pointsPerWriter + 1,
+        timeSeries.stream().mapToInt(series -> series.getPoints().size()).sum());
+  }
+
+  @Test
+  public void testSealHeadChunk() {
+    assertNull(chunkManager.sealHeadChunk());
+    chunkManager.addMetric(
+        MetricUtils.makeMetricString(testMetricName, inputTagString, startTime + 10, 1));
+    chunkManager.addMetric(
+        MetricUtils.makeMetricString(testMetricName, inputTagString, startTimePlusTwoHours, 2));
+    Chunk firstChunk = chunkManager.getChunk(startTime);
+    Chunk headChunk = chunkManager.getChunk(startTimePlusTwoHours);
+
+    // The head chunk is moved off heap and a new head chunk takes the rest of its points.
+    assertEquals(headChunk.info(), chunkManager.sealHeadChunk());
+    assertSame(firstChunk, chunkManager.getChunk(startTime));
+    Chunk newHeadChunk = chunkManager.getChunk(startTimePlusTwoHours);
+    assertNotSame(headChunk, newHeadChunk);
+    assertFalse(newHeadChunk.isReadOnly());
+    assertEquals(startTimePlusTwoHours, newHeadChunk.info().startTimeSecs);
+    assertEquals(startTimePlusFourHours, newHeadChunk.info().endTimeSecs);
+    assertNotEquals(headChunk.info(), newHeadChunk.info());
+    assertTrue(headChunk.isReadOnly());
+    assertEquals(1, chunkManager.getSealedHeadChunkMap().size());
+    Chunk sealedChunk = chunkManager.getSealedHeadChunkMap().get(headChunk.info());
+    assertTrue(((MetricsAndTagStoreImpl) ((ChunkImpl) sealedChunk).getStore()).getMetricStore()
+        instanceof OffHeapVarBitMetricStore);
+
+    long ts = startTimePlusTwoHours;
+    AddMetricsResult result = chunkManager.addMetrics(Arrays.asList(
+        MetricUtils.makeMetricString(testMetricName, inputTagString, ts + 10, 3),
+        MetricUtils.makeMetricString(testMetricName, inputTagString, ts + 20, 4)));
+    assertEquals(2, result.validMetrics);
+
+    // Queries merge the points of the sealed and the new head chunk.
+    List<Point> expectedPoints = Arrays.asList(new Point(startTime + 10, 1),
+        new Point(startTimePlusTwoHours, 2), new Point(startTimePlusTwoHours + 10, 3),
+        new Point(startTimePlusTwoHours + 20, 4));
+    List<TimeSeries> timeSeries = chunkManager.query(Query.parse(testMetricName), startTime,
+        startTimePlusFourHours, QueryAggregation.NONE);
+    assertEquals(1, timeSeries.size());
+    assertEquals(expectedPoints, timeSeries.get(0).getPoints());
+    assertEquals(10.0, chunkManager.query(Query.parse(testMetricName), startTime,
+        startTimePlusFourHours, QueryAggregation.ZIMSUM).get(0).getPoints().stream()
+        .mapToDouble(Point::getVal).sum(), 0);
+
+    // The head chunk can be sealed again.
+    assertEquals(newHeadChunk.info(), chunkManager.sealHeadChunk());
+    assertEquals(2, chunkManager.getSealedHeadChunkMap().size());
+    assertEquals(expectedPoints, chunkManager.query(Query.parse(testMetricName), startTime,
+        startTimePlusFourHours, QueryAggregation.NONE).get(0).getPoints());
+
+    // The sealed head chunks are deleted with the stale chunk of their time range.
+    chunkManager.removeStaleChunks(Collections.singletonList(new AbstractMap.SimpleEntry<>(
+        startTimePlusTwoHours, chunkManager.getChunk(startTimePlusTwoHours))));
+    assertTrue(chunkManager.getSealedHeadChunkMap().isEmpty());
+    assertEquals(Collections.singletonList(new Point(startTime + 10, 1)),
+        chunkManager.query(Query.parse(testMetricName), startTime, startTimePlusFourHours,
+            QueryAggregation.NONE).get(0).getPoints());
+  }
+
+  @Test
+  public void testToReadOnlyChunksAfterSealHeadChunk() {
+    chunkManager.addMetric(
+        MetricUtils.makeMetricString(testMetricName, inputTagString, startTime + 10, 1));
+    Chunk headChunk = chunkManager.getChunk(startTime);
+    List<Map.Entry<Long, Chunk>> expiredChunks =
+        Collections.singletonList(new AbstractMap.SimpleEntry<>(startTime, headChunk));
+    assertEquals(headChunk.info(), chunkManager.sealHeadChunk());
+    chunkManager.addMetric(
+        MetricUtils.makeMetricString(testMetricName, inputTagString, startTime + 20, 2));
+    Chunk newHeadChunk = chunkManager.getChunk(startTime);
+
+    // A chunk that was replaced by sealHeadChunk is not sealed again over the new head chunk.
+    chunkManager.toReadOnlyChunks(expiredChunks);
+    assertSame(newHeadChunk, chunkManager.getChunkMap().get(startTime));
+    assertFalse(newHeadChunk.isReadOnly());
+    assertEquals(1, chunkManager.getSealedHeadChunkMap().size());
+    assertEquals(Arrays.asList(new Point(startTime + 10, 1), new Point(startTime + 20, 2)),
+        chunkManager.query(Query.parse(testMetricName), startTime, startTimePlusTwoHours,
+            QueryAggregation.NONE).get(0).getPoints());
+  }
+
+  @Test(expected = IllegalArgumentException.class)
+  public void testInvalidReorderWindow() {
+    new ChunkManager("test", 1000, "", ChunkManager.DEFAULT_QUERY_CACHE_SIZE_BYTES,
+        Duration.ofMinutes(30), Duration.ofMinutes(30), false);
+  }
+
+  @Test
+  public void testInvalidChunkDuration() {
+    for (Duration duration : Arrays.asList(Duration.ZERO, Duration.ofSeconds(-1),
+        Duration.ofMillis(1500), ChunkManager.MAX_CHUNK_DURATION.plusSeconds(1))) {
+      try {
+        new ChunkManager("test", 1000, "", ChunkManager.DEFAULT_QUERY_CACHE_SIZE_BYTES, duration);
+        fail("Expected an exception for chunk duration " + duration);
+      } catch (IllegalArgumentException e) {
+        // expected
+      }
+    }
+  }
+
+  @Test
+  public void testGetChunkAfterChunkMapChanges() {
+    chunkManager.addMetric(MetricUtils.makeMetricString(
+        testMetricName, inputTagString, startTime + 1, testValue));
+    Chunk chunk = chunkManager.getChunk(startTime + 1);
+    assertSame(chunk, chunkManager.getChunk(startTime + 2));
+
+    // Chunks whose lookup slots collide are still returned correctly.
+    long collidingStartTime = startTime + 64 * ChunkManager.DEFAULT_CHUNK_DURATION.getSeconds();
+    Chunk collidingChunk = chunkManager.getChunk(collidingStartTime);
+    assertNotSame(chunk, collidingChunk);
+    assertEquals(collidingStartTime, collidingChunk.info().startTimeSecs);
+    assertSame(chunk, chunkManager.getChunk(startTime + 3));
+    assertSame(collidingChunk, chunkManager.getChunk(collidingStartTime + 1));
+
+    // A chunk replaced by a read only chunk is not returned.
+    chunkManager.toReadOnlyChunks(
+        Collections.singletonList(new AbstractMap.SimpleEntry<>(startTime, chunk)));
+    Chunk readOnlyChunk = chunkManager.getChunk(startTime + 4);
+    assertNotSame(chunk, readOnlyChunk);
+    assertSame(chunkManager.getChunkMap().get(startTime), readOnlyChunk);
+    assertTrue(readOnlyChunk.isReadOnly());
+
+    // A new chunk is created for a removed chunk.
+    chunkManager.removeStaleChunks(
+        Collections.singletonList(new AbstractMap.SimpleEntry<>(startTime, readOnlyChunk)));
+    Chunk newChunk = chunkManager.getChunk(startTime + 5);
+    assertNotSame(readOnlyChunk, newChunk);
+    assertFalse(newChunk.isReadOnly());
+    assertSame(chunkManager.getChunkMap().get(startTime), newChunk);
+  }
+
+  @Test
+  public void testToReadOnlyChunksInSlices() {
+    for (int i = 0; i < 5; i++) {
+      chunkManager.addMetric(MetricUtils.makeMetricString(testMetricName, "host=h" + i,
+          startTime + 1, i));
+      chunkManager.addMetric(MetricUtils.makeMetricString(testMetricName, "host=h" + i,
+          startTime + 2, i + 1));
+    }
+    List<TimeSeries> expectedTimeSeries = chunkManager.query(Query.parse(testMetricName),
+        startTime, startTimePlusTwoHours, QueryAggregation.NONE);
+    assertEquals(5, expectedTimeSeries.size());
+
+    Chunk chunk = chunkManager.getChunk(startTime);
+    chunkManager.toReadOnlyChunks(
+        Collections.singletonList(new AbstractMap.SimpleEntry<>(startTime, chunk)), 2);
+    Chunk readOnlyChunk = chunkManager.getChunk(startTime);
+    assertNotSame(chunk, readOnlyChunk);
+    assertTrue(readOnlyChunk.isReadOnly());
+    assertEquals(chunk.info(), readOnlyChunk.info());
+    // All the series are moved off heap.
+    assertEquals(0.0, chunk.getStats().get("metricStore_MetricCount"));
+    assertThat(chunkManager.query(Query.parse(testMetricName), startTime, startTimePlusTwoHours,
+        QueryAggregation.NONE),
+        IsIterableContainingInAnyOrder.containsInAnyOrder(expectedTimeSeries.toArray()));
+  }
+
   private void checkSameChunkReturnedForNextTwoHours(Chunk testChunk, long startTime) {
     assertEquals(testChunk, chunkManager.getChunk(startTime + 1));
     assertEquals(testChunk, chunkManager.getChunk(startTime + 10));
@@ -362,6 +664,140 @@ public class ChunkManagerTest {
         chunkManager.getChunkMap().get(startTimePlusFourHours).info().startTimeSecs);
   }
 
+  @Test
+  public void testRemoveStaleSeries() {
+    chunkManager.addMetric(MetricUtils.makeMetricString(
+        testMetricName, "host=h1", startTime + 1, testValue));
+    chunkManager.addMetric(MetricUtils.makeMetricString(
+        testMetricName, "host=h2", startTime + 1, testValue));
+    chunkManager.addMetric(MetricUtils.makeMetricString(
+        testMetricName, "host=h2", startTimePlusTwoHours + 1, testValue));
+    Map<String, Object> tagStoreStats = chunkManager.getTagStore().getStats();
+    assertEquals(2, tagStoreStats.get("MetricIdMapSize"));
+
+    // The series ids are carried over to the read only chunk.
+    chunkManager.toReadOnlyChunks(Collections.singletonList(
+        new AbstractMap.SimpleEntry<>(startTime, chunkManager.getChunkMap().get(startTime))));
+    assertEquals(2, chunkManager.getChunkMap().get(startTime).getSeriesIds().getCardinality());
+
+    // Only the series that are not in a live chunk are deleted from the tag store.
+    chunkManager.removeStaleChunks(Collections.singletonList(
+        new AbstractMap.SimpleEntry<>(startTime, chunkManager.getChunkMap().get(startTime))));
+    tagStoreStats = chunkManager.getTagStore().getStats();
+    assertEquals(1, tagStoreStats.get("MetricIdMapSize"));
+    assertEquals(Collections.singletonList(new TimeSeries(testMetricName + " host=h2",
+            Collections.singletonList(new Point(startTimePlusTwoHours + 1, testValue)))),
+        chunkManager.query(Query.parse(testMetricName + " host=*"), startTime,
+            startTimePlusFourHours, QueryAggregation.NONE));
+
+    // A deleted series is created again when it is written to a live chunk.
+    chunkManager.addMetric(MetricUtils.makeMetricString(
+        testMetricName, "host=h1", startTimePlusTwoHours + 2, testValue));
+    assertEquals(Collections.singletonList(new TimeSeries(testMetricName + " host=h1",
+            Collections.singletonList(new Point(startTimePlusTwoHours + 2, testValue)))),
+        chunkManager.query(Query.parse(testMetricName + " host=h1"), startTime,
+            startTimePlusFourHours, QueryAggregation.NONE));
+
+    chunkManager.removeStaleChunks(new ArrayList<>(chunkManager.getChunkMap().entrySet()));
+    assertEquals(0, chunkManager.getTagStore().getStats().get("MetricIdMapSize"));
+    assertEquals(0, chunkManager.getTagStore().getStats().get("DictionarySize"));
+  }
+
+  @Test
+  public void testAddMetrics() {
+    AddMetricsResult result = chunkManager.addMetrics(Arrays.asList(
+        MetricUtils.makeMetricString(testMetricName, "host=h1 dc=dc1", startTime + 1, 1),
+        MetricUtils.makeMetricString(testMetricName, "host=h2", startTime + 2, 2),
+        MetricUtils.makeMetricString(testMetricName, "dc=dc1 host=h1", startTime + 3, 3),
+        "put " + testMetricName + " invalidTs 1 host=h1",
+        "get " + testMetricName + " 1 1 host=h1",
+        MetricUtils.makeMetricString(testMetricName, "host=h1 dc=dc1",
+            startTimePlusTwoHours + 1, 4)));
+    assertEquals(4, result.validMetrics);
+    assertEquals(2, result.invalidMetrics);
+    assertEquals(0, result.delayedMetrics);
+    assertEquals(2, chunkManager.getChunkMap().size());
+
+    // The points of a series are grouped across tag orders and stay in the order of the batch.
+    assertEquals(Collections.singletonList(new TimeSeries(expectedMetricName, Arrays.asList(
+            new Point(startTime + 1, 1), new Point(startTime + 3, 3),
+            new Point(startTimePlusTwoHours + 1, 4)))),
+        chunkManager.query(Query.parse(testMetricName + " host=h1"), startTime,
+            startTimePlusFourHours, QueryAggregation.NONE));
+
+    // The metrics of read only chunks are delayed.
+    chunkManager.toReadOnlyChunks(Collections.singletonList(
+        new AbstractMap.SimpleEntry<>(startTime, chunkManager.getChunkMap().get(startTime))));
+    result = chunkManager.addMetrics(Arrays.asList(
+        MetricUtils.makeMetricString(testMetricName, "host=h1", startTime + 4, 5),
+        MetricUtils.makeMetricString(testMetricName, "host=h2", startTime + 4, 5),
+        MetricUtils.makeMetricString(testMetricName, "host=h2", startTimePlusTwoHours + 4, 5)));
+    assertEquals(1, result.validMetrics);
+    assertEquals(0, result.invalidMetrics);
+    assertEquals(2, result.delayedMetrics);
+  }
+
+  @Test
+  public void testAddPoints() {
+    Metric h1 = new Metric(testMetricName, Arrays.asList("host=h1", "dc=dc1"));
+    Metric h2 = new Metric(testMetricName, Collections.singletonList("host=h2"));
+    MetricBatch points = new MetricBatch();
+    points.add(h1, startTime + 1, 1);
+    points.add(h2, startTime + 2, 2);
+    points.add(h1, -1, 3);
+    points.add(h1, startTimePlusTwoHours + 1, 4);
+    AddMetricsResult result = chunkManager.addPoints(points);
+    assertEquals(3, result.validMetrics);
+    assertEquals(1, result.invalidMetrics);
+    assertEquals(0, result.delayedMetrics);
+    assertEquals(2, chunkManager.getChunkMap().size());
+
+    assertEquals(Collections.singletonList(new TimeSeries(expectedMetricName, Arrays.asList(
+            new Point(startTime + 1, 1), new Point(startTimePlusTwoHours + 1, 4)))),
+        chunkManager.query(Query.parse(testMetricName + " host=h1"), startTime,
+            startTimePlusFourHours, QueryAggregation.NONE));
+  }
+
+  @Test
+  public void testQueryCache() {
+    chunkManager.addMetric(MetricUtils.makeMetricString(
+        testMetricName, inputTagString1, startTime + 1, testValue));
+    chunkManager.addMetric(MetricUtils.makeMetricString(
+        testMetricName, inputTagString1, startTimePlusTwoHours + 1, testValue));
+    final Query query = Query.parse(testMetricName + " host=h1");
+    final List<TimeSeries> expectedResult = Collections.singletonList(
+        new TimeSeries(expectedMetricName, Arrays.asList(new Point(startTime + 1, testValue),
+            new Point(startTimePlusTwoHours + 1, testValue))));
+
+    // Chunks that accept writes are not cached.
+    assertEquals(expectedResult,
+        chunkManager.query(query, startTime, startTimePlusFourHours, QueryAggregation.NONE));
+    assertEquals(0, chunkManager.getQueryCache().getStats().get("entries"));
+
+    // Only read only chunks are cached.
+    chunkManager.toReadOnlyChunks(Collections.singletonList(
+        new AbstractMap.SimpleEntry<>(startTime, chunkManager.getChunkMap().get(startTime))));
+    assertEquals(expectedResult,
+        chunkManager.query(query, startTime, startTimePlusFourHours, QueryAggregation.NONE));
+    assertEquals(1, chunkManager.getQueryCache().getStats().get("entries"));
+    assertEquals(0L, chunkManager.getQueryCache().getStats().get("hits"));
+
+    // The head chunk is queried for new data and merged with the cached results.
+    chunkManager.addMetric(MetricUtils.makeMetricString(
+        testMetricName, inputTagString1, startTimePlusTwoHours + 2, testValue));
+    assertEquals(Collections.singletonList(new TimeSeries(expectedMetricName,
+            Arrays.asList(new Point(startTime + 1, testValue),
+                new Point(startTimePlusTwoHours + 1, testValue),
+                new Point(startTimePlusTwoHours + 2, testValue)))),
+        chunkManager.query(query, startTime, startTimePlusFourHours, QueryAggregation.NONE));
+    assertEquals(1L, chunkManager.getQueryCache().getStats().get("hits"));
+
+    // Removing a chunk invalidates its cached results.
+    chunkManager.removeStaleChunks(Collections.singletonList(
+        new AbstractMap.SimpleEntry<>(startTime, chunkManager.getChunkMap().get(startTime))));
+    assertEquals(0, chunkManager.getQueryCache().getStats().get("entries"));
+  }
+
   @Test(expected =  ReadOnlyChunkInsertionException.class)
   public void testReadOnlyChunkInsertion() {
     assertTrue(chunkManager.getChunkMap().isEmpty());
@@ -0,0 +1,84 @@
+package com.pinterest.yuvi.chunk;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+
+import com.pinterest.yuvi.models.Point;
+import com.pinterest.yuvi.models.TimeSeries;
+import com.pinterest.yuvi.tagstore.Query;
+
+import org.junit.Test;
+
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+
+public class ChunkQueryCacheTest {
+
+  private final ChunkInfo chunkInfo1 = new ChunkInfo("test_1", 1, 2);
+  private final ChunkInfo chunkInfo2 = new ChunkInfo("test_2", 2, 3);
+  private final Query query1 = Query.parse("metric host=h1");
+  private final Query query2 = Query.parse("metric host=h2");
+  private final List<TimeSeries> result1 = Collections.singletonList(
+      new TimeSeries("metric host=h1", Arrays.asList(new Point(1, 1), new Point(2, 2))));
+  private final List<TimeSeries> result2 = Collections.singletonList(
+      new TimeSeries("metric host=h2", Arrays.asList(new Point(1, 1), new Point(2, 2))));
+
+  @Test
+  public void testGetAndPut() {
+    ChunkQueryCache cache = new ChunkQueryCache(10000);
+    assertNull(cache.get(chunkInfo1, query1));
+
+    cache.put(chunkInfo1, query1, result1);
+    cache.put(chunkInfo2, query1, result2);
+    assertEquals(result1, cache.get(chunkInfo1, query1));
+    assertEquals(result1, cache.get(new ChunkInfo("test_1", 1, 2), Query.parse("metric host=h1")));
+    assertEquals(result2, cache.get(chunkInfo2, query1));
+    assertNull(cache.get(chunkInfo1, query2));
+    assertEquals(2, cache.getStats().get("entries"));
+    assertEquals(3L, cache.getStats().get("hits"));
+    assertEquals(2L, cache.getStats().get("misses"));
+  }
+
+  @Test
+  public void testInvalidate() {
+    ChunkQueryCache cache = new ChunkQueryCache(10000);
+    cache.put(chunkInfo1, query1, result1);
+    cache.put(chunkInfo1, query2, result2);
+    cache.put(chunkInfo2, query1, result1);
+
+    cache.invalidate(chunkInfo1);
+    assertNull(cache.get(chunkInfo1, query1));
+    assertNull(cache.get(chunkInfo1, query2));
+    assertEquals(result1, cache.get(chunkInfo2, query1));
+    assertEquals(1, cache.getStats().get("entries"));
+  }
+
+  @Test
+  public void testLruEviction() {
+    ChunkQueryCache cache = new ChunkQueryCache(700);
+    cache.put(chunkInfo1, query1, result1);
+    cache.put(chunkInfo1, query2, result2);
+    assertEquals(result1, cache.get(chunkInfo1, query1));
+
+    // Adding a third entry evicts the least recently used entry.
+    cache.put(chunkInfo2, query1, result1);
+    assertNull(cache.get(chunkInfo1, query2));
+    assertEquals(result1, cache.get(chunkInfo1, query1));
+    assertEquals(result1, cache.get(chunkInfo2, query1));
+    assertEquals(1L, cache.getStats().get("evictions"));
+  }
+
+  @Test
+  public void testDisabledCache() {
+    ChunkQueryCache cache = new ChunkQueryCache(0);
+    cache.put(chunkInfo1, query1, result1);
+    assertNull(cache.get(chunkInfo1, query1));
+    assertEquals(0, cache.getStats().get("entries"));
+  }
+
+  @Test(expected = IllegalArgumentException.class)
+  public void testNegativeCacheSize() {
+    new ChunkQueryCache(-1);
+  }
+}
@@ -0,0 +1,80 @@
+package com.pinterest.yuvi.chunk;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import java.util.concurrent.atomic.AtomicLong;
+
+public class HeapPressureSealTaskTest {
+
+  private ChunkManager chunkManager;
+  private HeapPressureSealTask task;
+  private double heapUsage;
+  private final AtomicLong clockSecs = new AtomicLong();
+
+  private final long startTimeSecs = 1488499200;  // Fri, 03 Mar 2017 00:00:00 UTC
+  private final String testMetricName = "testMetric";
+  private final String inputTagString = "host=h1 dc=dc1";
+
+  @Before
+  public void setUp() {
+    chunkManager = new ChunkManager("test", 1000);
+    task = new HeapPressureSealTask(chunkManager, 0.8, 60, () -> heapUsage, clockSecs::get);
+    clockSecs.set(startTimeSecs);
+  }
+
+  private void addPoint(long ts) {
+    chunkManager.addMetric(MetricUtils.makeMetricString(testMetricName, inputTagString, ts, 1));
+  }
+
+  @Test(expected = IllegalArgumentException.class)
+  public void testInvalidHeapUsageThreshold() {
+    new HeapPressureSealTask(chunkManager, 1.5, 60);
+  }
+
+  @Test(expected = IllegalArgumentException.class)
+  public void testInvalidMinSealInterval() {
+    new HeapPressureSealTask(chunkManager, 0.8, -1);
+  }
+
+  @Test
+  public void testHeapUsage() {
+    double usage = HeapPressureSealTask.getHeapUsage();
+    assertTrue(usage > 0 && usage <= 1);
+  }
+
+  @Test
+  public void testSealIfHeapIsFull() {
+    addPoint(startTimeSecs + 10);
+    Chunk headChunk = chunkManager.getChunk(startTimeSecs);
+
+    heapUsage = 0.5;
+    assertNull(task.sealIfHeapIsFull());
+    assertFalse(headChunk.isReadOnly());
+
+    heapUsage = 0.9;
+    assertEquals(headChunk.info(), task.sealIfHeapIsFull());
+    assertTrue(headChunk.isReadOnly());
+    assertEquals(1, chunkManager.getSealedHeadChunkMap().size());
+
+    // The new head chunk is not sealed until the min seal interval passes.
+    addPoint(startTimeSecs + 20);
+    Chunk newHeadChunk = chunkManager.getChunk(startTimeSecs);
+    clockSecs.addAndGet(59);
+    assertNull(task.sealIfHeapIsFull());
+    assertFalse(newHeadChunk.isReadOnly());
+    clockSecs.addAndGet(1);
+    assertEquals(newHeadChunk.info(), task.sealIfHeapIsFull());
+    assertEquals(2, chunkManager.getSealedHeadChunkMap().size());
+
+    // An empty head chunk is not sealed.
+    clockSecs.addAndGet(60);
+    assertNull(task.sealIfHeapIsFull());
+    assertEquals(2, chunkManager.getSealedHeadChunkMap().size());
+  }
+}
@@ -4,6 +4,8 @@ import static com.pinterest.yuvi.chunk.ChunkManager.DEFAULT_CHUNK_DURATION;
 import static com.pinterest.yuvi.chunk.ChunkManagerTest.getReadOnlyChunkCount;
 import static com.pinterest.yuvi.chunk.OffHeapChunkManagerTask.DEFAULT_METRICS_DELAY_SECS;
 import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotEquals;
 import static org.junit.Assert.assertThat;
 import static org.junit.Assert.assertTrue;
 
@@ -15,10 +17,13 @@ import org.hamcrest.collection.IsIterableContainingInAnyOrder;
 import org.junit.Before;
 import org.junit.Test;
 
+import java.time.Duration;
 import java.time.Instant;
 import java.util.Arrays;
 import java.util.Collections;
 import java.util.List;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
 
 public class OffHeapChunkManagerTaskTest {
 
@@ -48,6 +53,40 @@ public class OffHeapChunkManagerTaskTest {
     offHeapChunkManagerTask = new OffHeapChunkManagerTask(chunkManager);
   }
 
+  @Test
+  public void testSealLateChunksPastCutOff() {
+    ChunkManager lateChunkManager = new ChunkManager("test", 1000, "",
+        ChunkManager.DEFAULT_QUERY_CACHE_SIZE_BYTES, DEFAULT_CHUNK_DURATION, Duration.ZERO, true);
+    OffHeapChunkManagerTask lateChunkManagerTask = new OffHeapChunkManagerTask(lateChunkManager);
+    lateChunkManager.addMetric(
+        MetricUtils.makeMetricString(testMetricName, inputTagString1, startTimeSecs + 10, 1));
+    assertEquals(1, lateChunkManagerTask.detectChunksPastCutOff(startTimePlusTwoHoursSecs));
+
+    // The late chunk of the read only chunk is sealed once it is past the cut off.
+    lateChunkManager.addMetric(
+        MetricUtils.makeMetricString(testMetricName, inputTagString1, startTimeSecs + 20, 2));
+    Chunk lateChunk = lateChunkManager.getLateChunkMap().get(startTimeSecs);
+    assertEquals(0, lateChunkManagerTask.detectChunksPastCutOff(startTimePlusTwoHoursSecs - 1));
+    assertEquals(1, lateChunkManagerTask.detectChunksPastCutOff(startTimePlusTwoHoursSecs));
+    assertTrue(lateChunkManager.getLateChunkMap().isEmpty());
+    assertEquals(1, lateChunkManager.getSealedLateChunkMap().size());
+    assertTrue(ChunkManager.isSealed(
+        lateChunkManager.getSealedLateChunkMap().get(lateChunk.info())));
+
+    // The later late points are added to a new late chunk.
+    lateChunkManager.addMetric(
+        MetricUtils.makeMetricString(testMetricName, inputTagString1, startTimeSecs + 30, 3));
+    Chunk newLateChunk = lateChunkManager.getLateChunkMap().get(startTimeSecs);
+    assertFalse(newLateChunk.isReadOnly());
+    assertNotEquals(lateChunk.info(), newLateChunk.info());
+
+    List<TimeSeries> timeSeries = lateChunkManager.query(Query.parse(testMetricName),
+        startTimeSecs, startTimePlusTwoHoursSecs, QueryAggregation.NONE);
+    assertEquals(1, timeSeries.size());
+    assertEquals(Arrays.asList(new Point(startTimeSecs + 10, 1), new Point(startTimeSecs + 20, 2),
+        new Point(startTimeSecs + 30, 3)), timeSeries.get(0).getPoints());
+  }
+
   @Test
   public void testDetectChunksPastCutOff() {
     assertTrue(chunkManager.getChunkMap().isEmpty());
@@ -754,4 +793,56 @@ public class OffHeapChunkManagerTaskTest {
     assertEquals(1, deleteStaleData(startTimeSecs + 3600 * 10));
     assertTrue(chunkManager.getChunkMap().isEmpty());
   }
+
+  @Test
+  public void testJitter() {
+    final int metricsDelaySecs = 5 * 60;
+    final int staleDataDelaySecs = 4 * 3600;
+    offHeapChunkManagerTask = new OffHeapChunkManagerTask(chunkManager, metricsDelaySecs,
+        staleDataDelaySecs, 600, 0, 0, new Random(1));
+    int jitterSecs = offHeapChunkManagerTask.getJitterSecs();
+    assertTrue(jitterSecs >= 0 && jitterSecs <= 600);
+
+    chunkManager.addMetric(MetricUtils.makeMetricString(
+        testMetricName, inputTagString1, startTimeSecs + 1, testValue));
+    long chunkEndTimeSecs = startTimePlusTwoHoursSecs;
+    assertEquals(0, detectReadOnlyChunks(chunkEndTimeSecs + metricsDelaySecs + jitterSecs - 1));
+    assertEquals(1, detectReadOnlyChunks(chunkEndTimeSecs + metricsDelaySecs + jitterSecs));
+    assertEquals(0, deleteStaleData(chunkEndTimeSecs + staleDataDelaySecs + jitterSecs - 1));
+    assertEquals(1, deleteStaleData(chunkEndTimeSecs + staleDataDelaySecs + jitterSecs));
+    assertTrue(chunkManager.getChunkMap().isEmpty());
+  }
+
+  @Test(expected = IllegalArgumentException.class)
+  public void testInvalidJitter() {
+    new OffHeapChunkManagerTask(chunkManager, 0, 0, -1, 0, 0);
+  }
+
+  @Test
+  public void testThrottleSealing() {
+    // Without limits, throttling doesn't wait.
+    long startNs = System.nanoTime();
+    for (int i = 0; i < 10; i++) {
+      offHeapChunkManagerTask.throttleSealing();
+    }
+    assertTrue(System.nanoTime() - startNs < TimeUnit.SECONDS.toNanos(1));
+
+    // Each slice takes 100ms at 10 slices per second. The first slice isn't delayed.
+    offHeapChunkManagerTask = new OffHeapChunkManagerTask(chunkManager, 0, 0, 0,
+        10 * ChunkManager.DEFAULT_SEAL_SLICE_SIZE, 0);
+    startNs = System.nanoTime();
+    for (int i = 0; i < 3; i++) {
+      offHeapChunkManagerTask.throttleSealing();
+    }
+    assertTrue(System.nanoTime() - startNs >= TimeUnit.MILLISECONDS.toNanos(150));
+  }
+
+  @Test
+  public void testThrottleSealingWithoutQueries() {
+    offHeapChunkManagerTask = new OffHeapChunkManagerTask(chunkManager, 0, 0, 0, 0, 1);
+    long startNs = System.nanoTime();
+    offHeapChunkManagerTask.throttleSealing();
+    assertTrue(System.nanoTime() - startNs
+        < TimeUnit.MILLISECONDS.toNanos(OffHeapChunkManagerTask.MAX_QUERY_WAIT_MS));
+  }
 }
@@ -130,5 +130,28 @@ public class MetricsAndTagStoreImplTest extends TestCase {
             new TimeSeries(testMetricName1 + " dc=dc1 host=h2", Collections.singletonList(p1))));
   }
 
+  public void testSharedTagStore() {
+    final String testMetricName1 = "testMetric1";
+    final Metric testMetric1 = new Metric(testMetricName1, Arrays.asList("host=h1", "dc=dc1"));
+    final Metric testMetric2 = new Metric(testMetricName1, Arrays.asList("host=h2", "dc=dc1"));
+    MetricsAndTagStoreImpl ms2 = new MetricsAndTagStoreImpl(ms.getTagStore(),
+        new VarBitMetricStore());
+    assertTrue(ms2.isEmpty());
+
+    ms.addPoint(testMetric1, ts, value);
+    ms2.addPoint(testMetric2, ts * 2, value * 2);
+    ms2.addPoint(testMetric1, ts * 3, value * 3);
+
+    // Each store only returns the series it has data for.
+    assertThat(ms.getSeries(Query.parse(testMetricName1 + " dc=dc1")),
+        IsIterableContainingInOrder.contains(new TimeSeries(testMetricName1 + " dc=dc1 host=h1",
+            Collections.singletonList(new Point(ts, value)))));
+    assertTrue(ms.getSeries(Query.parse(testMetricName1 + " host=h2")).isEmpty());
+    assertEquals(2, ms2.getSeries(Query.parse(testMetricName1 + " dc=dc1")).size());
+    assertEquals(1, ms.getSeriesIds().getCardinality());
+    assertEquals(2, ms2.getSeriesIds().getCardinality());
+    assertFalse(ms2.isEmpty());
+  }
+
   // TODO: Query corrupt tag store and metric store.
 }
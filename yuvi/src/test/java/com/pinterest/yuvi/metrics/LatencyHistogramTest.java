@@ -0,0 +1,70 @@
+package com.pinterest.yuvi.metrics;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import org.junit.Test;
+
+import java.util.Map;
+
+public class LatencyHistogramTest {
+
+  @Test
+  public void testEmpty() {
+    LatencyHistogram histogram = new LatencyHistogram();
+    assertEquals(0, histogram.getCount());
+    assertEquals(0, histogram.getMax());
+    assertEquals(0, histogram.getMean(), 0);
+    assertEquals(0, histogram.getPercentile(99));
+  }
+
+  @Test
+  public void testBuckets() {
+    long[] values = {0, 1, 15, 16, 17, 31, 32, 33, 1000, 123456789L, Long.MAX_VALUE};
+    int lastBucket = -1;
+    for (long value : values) {
+      int bucket = LatencyHistogram.getBucket(value);
+      assertTrue(bucket >= lastBucket);
+      // The bucket of a value contains the value and is at most 1/16th of the value wide.
+      long bucketMax = LatencyHistogram.getBucketMax(bucket);
+      assertTrue(value <= bucketMax);
+      assertTrue(bucket == 0 || LatencyHistogram.getBucketMax(bucket - 1) < value);
+      assertTrue(bucketMax - value <= value / 16);
+      lastBucket = bucket;
+    }
+    assertEquals(LatencyHistogram.getBucket(15) + 1, LatencyHistogram.getBucket(16));
+    assertEquals(LatencyHistogram.getBucket(32), LatencyHistogram.getBucket(33));
+  }
+
+  @Test
+  public void testPercentiles() {
+    LatencyHistogram histogram = new LatencyHistogram();
+    for (long value = 1; value <= 1000; value++) {
+      histogram.record(value * 1000);
+    }
+    histogram.record(-5);
+
+    assertEquals(1001, histogram.getCount());
+    assertEquals(1000000, histogram.getMax());
+    assertEquals(500500000.0 / 1001, histogram.getMean(), 0.001);
+    assertEquals(0, histogram.getPercentile(0));
+    assertEquals(1000000, histogram.getPercentile(100));
+    assertPercentile(500000, histogram.getPercentile(50));
+    assertPercentile(990000, histogram.getPercentile(99));
+
+    Map<String, Object> stats = histogram.getStats();
+    assertEquals(1001L, stats.get("count"));
+    assertEquals(histogram.getPercentile(90), stats.get("p90Ns"));
+    assertEquals(1000000L, stats.get("maxNs"));
+  }
+
+  private static void assertPercentile(long expected, long actual) {
+    assertTrue(actual + " is not close to " + expected,
+        actual >= expected && actual <= expected + expected / 16);
+  }
+
+  @Test(expected = IllegalArgumentException.class)
+  public void testInvalidPercentile() {
+    new LatencyHistogram().getPercentile(101);
+  }
+}
@@ -0,0 +1,61 @@
+package com.pinterest.yuvi.metrics;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+import com.pinterest.yuvi.chunk.ChunkManager;
+import com.pinterest.yuvi.chunk.QueryAggregation;
+import com.pinterest.yuvi.tagstore.Query;
+
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Map;
+
+public class MetricsRegistryTest {
+
+  @Test
+  public void testSnapshot() {
+    MetricsRegistry registry = new MetricsRegistry();
+    assertTrue(registry.snapshot().isEmpty());
+
+    Counter counter = registry.counter("b.counter");
+    assertSame(counter, registry.counter("b.counter"));
+    counter.increment();
+    counter.add(2);
+    LatencyHistogram histogram = registry.histogram("a.latency");
+    assertSame(histogram, registry.histogram("a.latency"));
+    histogram.record(100);
+
+    Map<String, Object> snapshot = registry.snapshot();
+    assertEquals(Arrays.asList("a.latency", "b.counter"), new ArrayList<>(snapshot.keySet()));
+    assertEquals(3L, snapshot.get("b.counter"));
+    assertEquals(1L, ((Map<?, ?>) snapshot.get("a.latency")).get("count"));
+  }
+
+  @Test
+  public void testChunkManagerMetrics() {
+    MetricsRegistry registry = MetricsRegistry.getDefault();
+    long addedMetrics = registry.histogram("chunkManager.addMetric").getCount();
+    long queries = registry.histogram("chunkManager.query").getCount();
+    long lookups = registry.histogram("tagStore.lookupIds").getCount();
+    long storeReads = registry.histogram("metricAndTagStore.getSeries").getCount();
+    long decodedSeries = registry.counter("metricStore.getSeries").get();
+    long points = registry.counter("metricStore.addPoint").get();
+
+    ChunkManager chunkManager = new ChunkManager("test", 1000);
+    chunkManager.addMetric("put testMetric 1488499200 1 host=h1");
+    chunkManager.addMetric("put testMetric 1488499260 2 host=h1");
+    chunkManager.query(Query.parse("testMetric"), 1488499200, 1488506400, QueryAggregation.NONE);
+
+    assertEquals(addedMetrics + 2, registry.histogram("chunkManager.addMetric").getCount());
+    assertEquals(points + 2, registry.counter("metricStore.addPoint").get());
+    assertEquals(queries + 1, registry.histogram("chunkManager.query").getCount());
+    assertEquals(lookups + 1, registry.histogram("tagStore.lookupIds").getCount());
+    assertEquals(storeReads + 1, registry.histogram("metricAndTagStore.getSeries").getCount());
+    assertEquals(decodedSeries + 1, registry.counter("metricStore.getSeries").get());
+    assertTrue(registry.snapshot().containsKey("chunkManager.getChunk.ringHits"));
+  }
+}
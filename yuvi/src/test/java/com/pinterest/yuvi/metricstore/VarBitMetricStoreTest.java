@@ -7,6 +7,7 @@ import org.junit.Test;
 
 import java.time.Instant;
 import java.util.List;
+import java.util.Map;
 
 public class VarBitMetricStoreTest extends TestCase {
 
@@ -68,4 +69,65 @@ public class VarBitMetricStoreTest extends TestCase {
     assertEquals(ts + 3, points42.get(1).getTs());
     assertEquals(value + 3, points42.get(1).getVal());
   }
+
+  @Test
+  public void testStats() {
+    VarBitMetricStore store = new VarBitMetricStore();
+    long ts = 1488499200;
+    for (long uuid = 0; uuid < 10; uuid++) {
+      for (int i = 0; i < 100 * (uuid + 1); i++) {
+        store.addPoint(uuid, ts + i * 60, i % 7);
+      }
+    }
+
+    // The counters match the sizes of the series.
+    long capacityWords = 0;
+    long dataWords = 0;
+    for (long uuid = 0; uuid < 10; uuid++) {
+      Map<String, Double> seriesStats = store.getTimeSeries(uuid).getStats();
+      capacityWords += seriesStats.get("timestamps_capacity") + seriesStats.get("values_capacity");
+      dataWords += seriesStats.get("timestamps_dataLength") + seriesStats.get("values_dataLength");
+    }
+    Map<String, Object> stats = store.getStats();
+    assertEquals(10.0, stats.get("MetricCount"));
+    assertEquals(5500L, stats.get("PointCount"));
+    assertEquals(capacityWords * Long.BYTES, stats.get("HeapByteSize"));
+    long encodedBytes = (Long) stats.get("EncodedByteSize");
+    assertTrue(encodedBytes > dataWords * Long.BYTES);
+    assertTrue(encodedBytes <= (dataWords + 20) * Long.BYTES);
+    assertEquals(capacityWords * Long.BYTES - encodedBytes, stats.get("SlackByteSize"));
+
+    store.removeSeries(9);
+    assertEquals(9.0, store.getStats().get("MetricCount"));
+    assertEquals(4500L, store.getStats().get("PointCount"));
+    for (long uuid = 0; uuid < 9; uuid++) {
+      store.removeSeries(uuid);
+    }
+    assertEquals(0L, store.getStats().get("PointCount"));
+    assertEquals(0L, store.getStats().get("HeapByteSize"));
+    assertEquals(0L, store.getStats().get("SlackByteSize"));
+  }
+
+  @Test
+  public void testStatsWithReorderBuffer() {
+    VarBitMetricStore store =
+        new VarBitMetricStore(10, VarBitTimeSeries.BLOCK_HEADER_OFFSET_SECS, 600);
+    long ts = 1488499200;
+    for (int i = 0; i < 100; i++) {
+      store.addPoint(1, ts + i * 60, i);
+    }
+    // The last 10 points are in the reorder buffer.
+    assertEquals(100L, store.getStats().get("PointCount"));
+    long slackBytes = (Long) store.getStats().get("SlackByteSize");
+    assertTrue(slackBytes >= 0);
+
+    // Once the store is read only, the buffered points are encoded.
+    store.setReadOnly(true);
+    assertEquals(100L, store.getStats().get("PointCount"));
+    assertTrue((Long) store.getStats().get("SlackByteSize") > slackBytes);
+    store.removeSeries(1);
+    assertEquals(0L, store.getStats().get("PointCount"));
+    assertEquals(0L, store.getStats().get("EncodedByteSize"));
+    assertEquals(0L, store.getStats().get("HeapByteSize"));
+  }
 }
@@ -11,6 +11,7 @@ import org.junit.Test;
 import org.junit.rules.ExpectedException;
 
 import java.math.BigInteger;
+import java.nio.ByteBuffer;
 import java.time.Instant;
 import java.util.ArrayList;
 import java.util.Arrays;
@@ -52,6 +53,114 @@ public class VarBitTimeSeriesTest {
         62);
   }
 
+  @Test
+  public void testTimeSeriesCustomBlockHeaderOffset() {
+    // 4 hour blocks start at 08:00.
+    long blockHeader = Instant.parse("2016-12-03T08:00:00.00Z").getEpochSecond();
+    VarBitTimeSeries series = new VarBitTimeSeries(4 * 3600);
+    long lastSecondOfBlock = blockHeader + 4 * 3600 - 1;
+    series.append(lastSecondOfBlock, 1);
+    series.append(lastSecondOfBlock + 60, 2);
+    checkFirstTwoValues(series.getTimestamps().read(), blockHeader, 4 * 3600 - 1);
+    assertEquals(
+        Arrays.asList(new Point(lastSecondOfBlock, 1), new Point(lastSecondOfBlock + 60, 2)),
+        series.read().getPoints());
+  }
+
+  @Test
+  public void testInvalidBlockHeaderOffset() {
+    thrown.expect(IllegalArgumentException.class);
+    new VarBitTimeSeries(VarBitTimeSeries.MAX_BLOCK_HEADER_OFFSET_SECS + 1);
+  }
+
+  @Test
+  public void testReorderBuffer() {
+    long ts = startTime.getEpochSecond();
+    VarBitTimeSeries series = new VarBitTimeSeries(VarBitTimeSeries.BLOCK_HEADER_OFFSET_SECS, 60);
+    series.append(ts + 30, 2);
+    series.append(ts, 1);
+    series.append(ts + 30, 3);
+    // The buffered points are returned in the order of their timestamps.
+    assertEquals(3, series.getSize());
+    assertEquals(Arrays.asList(new Point(ts, 1), new Point(ts + 30, 2), new Point(ts + 30, 3)),
+        series.read().getPoints());
+
+    // Points older than the reorder window are encoded in order.
+    series.append(ts + 90, 4);
+    series.append(ts + 60, 5);
+    assertEquals(5, series.getSize());
+    assertEquals(Arrays.asList(new Point(ts, 1), new Point(ts + 30, 2), new Point(ts + 30, 3),
+        new Point(ts + 60, 5), new Point(ts + 90, 4)), series.read().getPoints());
+
+    // A point older than the encoded points is encoded out of order.
+    series.append(ts + 10, 6);
+    series.flush();
+    assertEquals(Arrays.asList(new Point(ts, 1), new Point(ts + 30, 2), new Point(ts + 30, 3),
+        new Point(ts + 10, 6), new Point(ts + 60, 5), new Point(ts + 90, 4)),
+        series.read().getPoints());
+  }
+
+  @Test
+  public void testReorderBufferSerialization() throws Exception {
+    long ts = startTime.getEpochSecond();
+    VarBitTimeSeries jitteryTimeSeries = new VarBitTimeSeries();
+    VarBitTimeSeries reorderedTimeSeries =
+        new VarBitTimeSeries(VarBitTimeSeries.BLOCK_HEADER_OFFSET_SECS, 60);
+    List<Point> expectedPoints = new ArrayList<>();
+    for (int i = 0; i < 100; i++) {
+      // Every other pair of points arrives out of order.
+      long pointTs = ts + 10 * (i % 2 == 0 ? i + 1 : i - 1);
+      jitteryTimeSeries.append(pointTs, i);
+      reorderedTimeSeries.append(pointTs, i);
+      expectedPoints.add(new Point(ts + 10 * i, i % 2 == 0 ? i + 1 : i - 1));
+    }
+
+    ByteBuffer buffer = ByteBuffer.allocate(reorderedTimeSeries.getSerializedByteSize());
+    reorderedTimeSeries.serialize(buffer);
+    buffer.flip();
+    assertEquals(expectedPoints, VarBitTimeSeries.deserialize(buffer).getPoints());
+    assertTrue(reorderedTimeSeries.getSerializedByteSize()
+        < jitteryTimeSeries.getSerializedByteSize());
+  }
+
+  @Test
+  public void testSerializedByteSizeDoesNotFlush() throws Exception {
+    long ts = startTime.getEpochSecond();
+    VarBitTimeSeries series =
+        new VarBitTimeSeries(VarBitTimeSeries.BLOCK_HEADER_OFFSET_SECS, 6000);
+    assertEquals(4 + 2 * 5, series.getSerializedByteSize());
+    for (int i = 0; i < 20; i++) {
+      series.append(ts + 10 * (i % 2 == 0 ? i + 1 : i - 1), i * 1.5);
+    }
+    series.append(ts + 5000, 2);
+    series.append(ts + 5000, 2);
+    series.append(ts + 5060, -1e100);
+    TimeSeriesCounters counters = new TimeSeriesCounters();
+    series.addTo(counters);
+    int encodedBits = series.getTimestamps().bitOffset() + series.getValues().bitOffset();
+    List<Point> points = series.read().getPoints();
+
+    int serializedByteSize = series.getSerializedByteSize();
+    assertEquals(encodedBits, series.getTimestamps().bitOffset() + series.getValues().bitOffset());
+    assertEquals(points, series.read().getPoints());
+    TimeSeriesCounters newCounters = new TimeSeriesCounters();
+    series.addTo(newCounters);
+    assertEquals(counters.getEncodedBytes(), newCounters.getEncodedBytes());
+
+    // The buffered points are counted with the largest encoding, so the size is a bound until the
+    // series is flushed.
+    ByteBuffer buffer = ByteBuffer.allocate(serializedByteSize);
+    series.serialize(buffer);
+    assertTrue(buffer.position() < serializedByteSize);
+    assertEquals(buffer.position(), series.getSerializedByteSize());
+  }
+
+  @Test
+  public void testInvalidReorderWindow() {
+    thrown.expect(IllegalArgumentException.class);
+    new VarBitTimeSeries(VarBitTimeSeries.BLOCK_HEADER_OFFSET_SECS, -1);
+  }
+
   @Test
   public void testMinTimestamp() {
     VarBitTimeSeries series = new VarBitTimeSeries();
@@ -27,6 +27,28 @@ public class OffHeapVarBitMetricStoreTest {
     assertTrue(store.getSeries(2).isEmpty());
   }
 
+  @Test
+  public void testStats() {
+    VarBitMetricStore heapStore = new VarBitMetricStore();
+    long ts = Instant.now().getEpochSecond();
+    for (long uuid = 0; uuid < 5; uuid++) {
+      for (int i = 0; i <= uuid; i++) {
+        heapStore.addPoint(uuid, ts + i, i);
+      }
+    }
+    Map<Long, VarBitTimeSeries> seriesMap = getSeriesMap(heapStore);
+    OffHeapVarBitMetricStore offHeapStore =
+        OffHeapVarBitMetricStore.toOffHeapStore(seriesMap, testFileName, "");
+
+    Map<String, Object> stats = offHeapStore.getStats();
+    assertEquals(5.0, stats.get("MetricCount"));
+    assertEquals(15L, stats.get("PointCount"));
+    long serializedBytes =
+        seriesMap.values().stream().mapToLong(VarBitTimeSeries::getSerializedByteSize).sum();
+    assertEquals(serializedBytes, stats.get("OffHeapByteSize"));
+    offHeapStore.close();
+  }
+
   @Test(expected = UnsupportedOperationException.class)
   public void testReadOnlyStore() {
     MetricStore store = new OffHeapVarBitMetricStore(1, testFileName);
@@ -0,0 +1,106 @@
+package com.pinterest.yuvi.metricstore.offheap;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import com.pinterest.yuvi.metricstore.VarBitMetricStore;
+import com.pinterest.yuvi.metricstore.VarBitTimeSeries;
+import com.pinterest.yuvi.models.Point;
+
+import org.junit.Test;
+
+import java.time.Instant;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+
+public class SealingMetricStoreTest {
+
+  private final long ts = Instant.parse("2016-12-03T10:01:02.00Z").getEpochSecond();
+
+  private VarBitMetricStore makeHeapStore(int numSeries) {
+    VarBitMetricStore heapStore = new VarBitMetricStore();
+    for (long uuid = 0; uuid < numSeries; uuid++) {
+      heapStore.addPoint(uuid, ts, uuid);
+      heapStore.addPoint(uuid, ts + 60, uuid + 1);
+    }
+    heapStore.setReadOnly(true);
+    return heapStore;
+  }
+
+  private static List<Point> expectedPoints(long ts, long uuid) {
+    return Arrays.asList(new Point(ts, uuid), new Point(ts + 60, uuid + 1));
+  }
+
+  @Test(expected = IllegalArgumentException.class)
+  public void testSealWritableStore() {
+    VarBitMetricStore heapStore = new VarBitMetricStore();
+    heapStore.addPoint(1, ts, 1);
+    new SealingMetricStore(heapStore, "test", "");
+  }
+
+  @Test(expected = IllegalArgumentException.class)
+  public void testSealEmptyStore() {
+    VarBitMetricStore heapStore = new VarBitMetricStore();
+    heapStore.setReadOnly(true);
+    new SealingMetricStore(heapStore, "test", "");
+  }
+
+  @Test(expected = UnsupportedOperationException.class)
+  public void testReadOnlyStore() {
+    new SealingMetricStore(makeHeapStore(1), "test", "").addPoint(1, ts, 1);
+  }
+
+  @Test
+  public void testSealSeries() {
+    VarBitMetricStore heapStore = makeHeapStore(5);
+    SealingMetricStore store = new SealingMetricStore(heapStore, "test", "");
+    assertFalse(store.isSealed());
+
+    List<Integer> slices = new ArrayList<>();
+    do {
+      // All the series can be read while they are moved off heap.
+      for (long uuid = 0; uuid < 5; uuid++) {
+        assertEquals(expectedPoints(ts, uuid), store.getSeries(uuid));
+      }
+      assertTrue(store.getSeries(5).isEmpty());
+      slices.add(store.sealSeries(2));
+      assertEquals(5 - slices.stream().mapToInt(Integer::intValue).sum(),
+          heapStore.getUuids().size());
+    } while (slices.get(slices.size() - 1) > 0);
+
+    assertEquals(Arrays.asList(2, 2, 1, 0), slices);
+    assertTrue(store.isSealed());
+    assertNull(heapStore.getTimeSeries(0));
+    assertEquals(5, store.getOffHeapStore().getSeriesMap().size());
+    for (long uuid = 0; uuid < 5; uuid++) {
+      assertEquals(expectedPoints(ts, uuid), store.getSeries(uuid));
+      assertEquals(expectedPoints(ts, uuid), store.getOffHeapStore().getSeries(uuid));
+    }
+  }
+
+  @Test
+  public void testFailedSeriesStayOnHeap() {
+    VarBitMetricStore heapStore = makeHeapStore(3);
+    OffHeapVarBitMetricStore offHeapStore = new OffHeapVarBitMetricStore(3, "test") {
+      @Override
+      public boolean addSeries(long uuid, VarBitTimeSeries series) {
+        return uuid != 1 && super.addSeries(uuid, series);
+      }
+    };
+    SealingMetricStore store = new SealingMetricStore(heapStore, offHeapStore, "test");
+    assertEquals(3, store.sealSeries(10));
+    assertTrue(store.isSealed());
+    assertEquals(1, store.getFailedSeries());
+
+    // The series that failed to move off heap is still read from the heap store.
+    assertEquals(Collections.singletonList(1L), heapStore.getUuids());
+    assertEquals(2, offHeapStore.getSeriesMap().size());
+    for (long uuid = 0; uuid < 3; uuid++) {
+      assertEquals(expectedPoints(ts, uuid), store.getSeries(uuid));
+    }
+  }
+}
@@ -0,0 +1,113 @@
+package com.pinterest.yuvi.tagstore;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import org.junit.Test;
+
+import java.util.regex.PatternSyntaxException;
+
+public class CompiledTagMatcherTest {
+
+  private static final String HOST_TAG = "host";
+
+  private static CompiledTagMatcher compileWildcard(String wildcard, boolean caseInsensitive) {
+    return CompiledTagMatcher.compile(caseInsensitive
+        ? TagMatcher.iwildcardMatch(HOST_TAG, wildcard)
+        : TagMatcher.wildcardMatch(HOST_TAG, wildcard));
+  }
+
+  @Test
+  public void testWildcard() {
+    CompiledTagMatcher prefix = compileWildcard("web-*", false);
+    assertEquals("web-", prefix.getPrefix());
+    assertTrue(prefix.test("web-01"));
+    assertFalse(prefix.test("db-web-01"));
+
+    CompiledTagMatcher suffix = compileWildcard("*.example.com", false);
+    assertEquals("", suffix.getPrefix());
+    assertTrue(suffix.test("web-01.example.com"));
+    assertFalse(suffix.test("web-01.example.com.au"));
+
+    CompiledTagMatcher contains = compileWildcard("*web*", false);
+    assertEquals("", contains.getPrefix());
+    assertTrue(contains.test("db-web-01"));
+    assertFalse(contains.test("db-01"));
+
+    CompiledTagMatcher components = compileWildcard("web-*.example*", false);
+    assertEquals("web-", components.getPrefix());
+    assertTrue(components.test("web-01.example.com"));
+    assertFalse(components.test("db-01.example.com"));
+    assertFalse(components.test("web-01.test.com"));
+
+    CompiledTagMatcher all = compileWildcard("**", false);
+    assertTrue(all.test("web-01"));
+    assertTrue(all.test(""));
+  }
+
+  @Test
+  public void testCaseInsensitiveWildcard() {
+    CompiledTagMatcher prefix = compileWildcard("WEB-*", true);
+    assertEquals("", prefix.getPrefix());
+    assertTrue(prefix.test("web-01"));
+    assertTrue(prefix.test("Web-01"));
+    assertFalse(prefix.test("db-01"));
+
+    CompiledTagMatcher suffix = compileWildcard("*.Example.com", true);
+    assertTrue(suffix.test("WEB-01.EXAMPLE.COM"));
+    assertFalse(suffix.test("web-01.example.org"));
+  }
+
+  @Test
+  public void testRegEx() {
+    CompiledTagMatcher anchored =
+        CompiledTagMatcher.compile(TagMatcher.regExMatch(HOST_TAG, "^web-\\d+$"));
+    assertEquals("web-", anchored.getPrefix());
+    assertTrue(anchored.test("web-01"));
+    assertFalse(anchored.test("web-01a"));
+
+    CompiledTagMatcher unanchored =
+        CompiledTagMatcher.compile(TagMatcher.regExMatch(HOST_TAG, "web-\\d+"));
+    assertEquals("", unanchored.getPrefix());
+    assertTrue(unanchored.test("db-web-01"));
+    assertFalse(unanchored.test("db-01"));
+  }
+
+  @Test(expected = PatternSyntaxException.class)
+  public void testInvalidRegEx() {
+    CompiledTagMatcher.compile(TagMatcher.regExMatch(HOST_TAG, "web-\\d(3"));
+  }
+
+  @Test
+  public void testRegExLiteralPrefix() {
+    assertEquals("web-", CompiledTagMatcher.getRegExLiteralPrefix("^web-\\d+"));
+    assertEquals("web-01", CompiledTagMatcher.getRegExLiteralPrefix("^web-01$"));
+    assertEquals("web-0", CompiledTagMatcher.getRegExLiteralPrefix("^web-01?"));
+    assertEquals("web-0", CompiledTagMatcher.getRegExLiteralPrefix("^web-01*"));
+    assertEquals("web-0", CompiledTagMatcher.getRegExLiteralPrefix("^web-01{2}"));
+    assertEquals("web-01", CompiledTagMatcher.getRegExLiteralPrefix("^web-01+"));
+    assertEquals("web", CompiledTagMatcher.getRegExLiteralPrefix("^web.01"));
+    assertEquals("", CompiledTagMatcher.getRegExLiteralPrefix("web-01"));
+    assertEquals("", CompiledTagMatcher.getRegExLiteralPrefix("^web-01|^db"));
+    assertEquals("", CompiledTagMatcher.getRegExLiteralPrefix("^(web|db)"));
+    assertEquals("", CompiledTagMatcher.getRegExLiteralPrefix("^"));
+  }
+
+  @Test
+  public void testCaseInsensitiveOr() {
+    CompiledTagMatcher or =
+        CompiledTagMatcher.compile(TagMatcher.literalOrMatch(HOST_TAG, "Web-01|DB-01||", true));
+    assertEquals("", or.getPrefix());
+    assertTrue(or.test("web-01"));
+    assertTrue(or.test("WEB-01"));
+    assertTrue(or.test("db-01"));
+    assertFalse(or.test("web-02"));
+    assertFalse(or.test(""));
+  }
+
+  @Test(expected = IllegalArgumentException.class)
+  public void testCompileFastPathMatcher() {
+    CompiledTagMatcher.compile(TagMatcher.literalOrMatch(HOST_TAG, "web-01", false));
+  }
+}
@@ -3,6 +3,7 @@ package com.pinterest.yuvi.tagstore;
 import static java.util.Collections.emptyList;
 import static org.hamcrest.CoreMatchers.is;
 import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
 import static org.junit.Assert.assertThat;
 import static org.junit.Assert.assertTrue;
 import static org.junit.Assert.fail;
@@ -10,13 +11,17 @@ import static org.junit.Assert.fail;
 import com.google.common.collect.ImmutableMap;
 import org.junit.Before;
 import org.junit.Test;
+import org.roaringbitmap.RoaringBitmap;
 
+import java.nio.ByteBuffer;
 import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.Collections;
 import java.util.HashSet;
 import java.util.List;
 import java.util.Set;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
 import java.util.regex.PatternSyntaxException;
 
 public class InvertedIndexTagStoreTest {
@@ -41,52 +46,176 @@ public class InvertedIndexTagStoreTest {
 
     assertEquals(ids.get(0), store.get(new Metric(METRIC1, Collections.singletonList("k1=v1"))).get());
     assertEquals(store.getMetricNameFromId(ids.get(0)), "metric.1 k1=v1");
-    assertEquals(4, store.getMetricIndex().size());
+    assertEquals(2, store.getMetricIndex().size());
     assertEquals(1, store.lookupMetricIndex(METRIC1).getCardinality());
     assertEquals(1, store.lookupMetricIndex("k1").getCardinality());
-    assertEquals(1, store.lookupMetricIndex("k1=v1").getCardinality());
-    assertEquals(1, store.lookupMetricIndex("metric.1 k1=v1").getCardinality());
+    assertEquals(3, store.getStats().get("DictionarySize"));
+    assertEquals(1, store.getStats().get("SeriesKeyMapSize"));
 
     ids.add(store.getOrCreate(new Metric(METRIC1, Collections.singletonList("k1=v2"))));
     assertEquals(ids.get(1), store.get(new Metric(METRIC1, Collections.singletonList("k1=v2"))).get());
     assertEquals(store.getMetricNameFromId(ids.get(1)), "metric.1 k1=v2");
-    assertEquals(6, store.getMetricIndex().size());
+    assertEquals(2, store.getMetricIndex().size());
     assertEquals(2, store.lookupMetricIndex(METRIC1).getCardinality());
     assertEquals(2, store.lookupMetricIndex("k1").getCardinality());
-    assertEquals(1, store.lookupMetricIndex("k1=v1").getCardinality());
-    assertEquals(1, store.lookupMetricIndex("k1=v2").getCardinality());
-    assertEquals(1, store.lookupMetricIndex("metric.1 k1=v1").getCardinality());
-    assertEquals(1, store.lookupMetricIndex("metric.1 k1=v2").getCardinality());
+    assertEquals(4, store.getStats().get("DictionarySize"));
+    assertEquals(2, store.getStats().get("SeriesKeyMapSize"));
 
     ids.add(store.getOrCreate(new Metric(METRIC1, Collections.singletonList("k2=v1"))));
     assertEquals(ids.get(2), store.get(new Metric(METRIC1, Collections.singletonList("k2=v1"))).get());
     assertEquals(store.getMetricNameFromId(ids.get(2)), "metric.1 k2=v1");
-    assertEquals(9, store.getMetricIndex().size());
+    assertEquals(3, store.getMetricIndex().size());
     assertEquals(3, store.lookupMetricIndex(METRIC1).getCardinality());
     assertEquals(2, store.lookupMetricIndex("k1").getCardinality());
     assertEquals(1, store.lookupMetricIndex("k2").getCardinality());
-    assertEquals(1, store.lookupMetricIndex("k1=v1").getCardinality());
-    assertEquals(1, store.lookupMetricIndex("k1=v2").getCardinality());
-    assertEquals(1, store.lookupMetricIndex("k2=v1").getCardinality());
-    assertEquals(1, store.lookupMetricIndex("metric.1 k1=v1").getCardinality());
-    assertEquals(1, store.lookupMetricIndex("metric.1 k1=v2").getCardinality());
-    assertEquals(1, store.lookupMetricIndex("metric.1 k2=v1").getCardinality());
+    assertEquals(5, store.getStats().get("DictionarySize"));
 
     ids.add(store.getOrCreate(new Metric(METRIC2, Arrays.asList("k2=v1"))));
     assertEquals(ids.get(3), store.get(new Metric(METRIC2, Arrays.asList("k2=v1"))).get());
     assertEquals(store.getMetricNameFromId(ids.get(3)), "metric.2 k2=v1");
-    assertEquals(11, store.getMetricIndex().size());
+    assertEquals(4, store.getMetricIndex().size());
     assertEquals(3, store.lookupMetricIndex(METRIC1).getCardinality());
     assertEquals(1, store.lookupMetricIndex(METRIC2).getCardinality());
     assertEquals(2, store.lookupMetricIndex("k1").getCardinality());
     assertEquals(2, store.lookupMetricIndex("k2").getCardinality());
-    assertEquals(1, store.lookupMetricIndex("k1=v1").getCardinality());
-    assertEquals(1, store.lookupMetricIndex("k1=v2").getCardinality());
-    assertEquals(1, store.lookupMetricIndex("k1=v1").getCardinality());
-    assertEquals(1, store.lookupMetricIndex("metric.1 k1=v1").getCardinality());
-    assertEquals(1, store.lookupMetricIndex("metric.1 k1=v2").getCardinality());
-    assertEquals(1, store.lookupMetricIndex("metric.1 k2=v1").getCardinality());
-    assertEquals(1, store.lookupMetricIndex("metric.2 k2=v1").getCardinality());
+    assertEquals(6, store.getStats().get("DictionarySize"));
+    assertEquals(4, store.getStats().get("SeriesKeyMapSize"));
+  }
+
+  @Test
+  public void testEncodedMetricName() {
+    ids.add(store.getOrCreate(new Metric(METRIC1, Arrays.asList("k2=v2", "k1=v1", "k1=v1"))));
+    ids.add(store.getOrCreate(new Metric(METRIC1, Arrays.asList("a.b=1", "a=1"))));
+    ids.add(store.getOrCreate(new Metric(METRIC1, Arrays.asList("k1=v1=v2", " k2=v2 "))));
+    ids.add(store.getOrCreate(new Metric(METRIC2, emptyList())));
+
+    // The name is the same as the full metric name, with the tags sorted as raw tags.
+    assertEquals("metric.1 k1=v1 k2=v2", store.getMetricName(ids.get(0)));
+    assertEquals("metric.1 a.b=1 a=1", store.getMetricName(ids.get(1)));
+    assertEquals("metric.1 k1=v1=v2 k2=v2", store.getMetricName(ids.get(2)));
+    assertEquals(METRIC2, store.getMetricName(ids.get(3)));
+    assertEquals("", store.getMetricName(100));
+    assertEquals(null, store.getMetricNameFromId(100));
+
+    // The order and duplicates of the tags don't change the metric.
+    assertEquals(ids.get(0),
+        store.get(new Metric(METRIC1, Arrays.asList("k1=v1", "k2=v2"))).get());
+    assertEquals(ids.get(0).intValue(),
+        store.getOrCreate(new Metric(METRIC1, Arrays.asList("k2=v2", "k2=v2", "k1=v1"))));
+    assertEquals(ids.get(1), store.get(new Metric(METRIC1, Arrays.asList("a=1", "a.b=1"))).get());
+    assertEquals(ids.get(3), store.get(new Metric(METRIC2, Collections.singletonList(""))).get());
+    assertFalse(store.get(new Metric(METRIC1, Collections.singletonList("k1=v1"))).isPresent());
+    assertFalse(store.get(new Metric(METRIC1, Collections.singletonList("k3=v1"))).isPresent());
+    assertFalse(store.get(new Metric(METRIC3, Collections.singletonList("k1=v1"))).isPresent());
+    assertEquals(4, store.getStats().get("SeriesKeyMapSize"));
+  }
+
+  @Test
+  public void testPostingListByteSize() {
+    assertEquals(0L, store.getStats().get("PostingListByteSize"));
+    ids.add(store.getOrCreate(new Metric(METRIC1, Arrays.asList("host=h1", "dc=dc1"))));
+    ids.add(store.getOrCreate(new Metric(METRIC1, Arrays.asList("host=h2", "dc=dc1"))));
+    ids.add(store.getOrCreate(new Metric(METRIC2, Arrays.asList("host=h1", "rack=r1"))));
+    assertEquals(getPostingListBytes(), store.getStats().get("PostingListByteSize"));
+    // metric.2 and rack have a single id, metric.1 and dc have 2 ids and host has 3 ids.
+    assertEquals(ImmutableMap.of(1, 2L, 2, 2L, 3, 1L), store.getIndexMapDistribution());
+
+    store.delete(RoaringBitmap.bitmapOf(ids.get(0)));
+    assertEquals(getPostingListBytes(), store.getStats().get("PostingListByteSize"));
+    store.delete(RoaringBitmap.bitmapOf(ids.get(1), ids.get(2)));
+    assertEquals(0L, store.getStats().get("PostingListByteSize"));
+  }
+
+  private long getPostingListBytes() {
+    return store.getMetricIndex().values().stream().mapToLong(ByteBuffer::remaining).sum();
+  }
+
+  @Test
+  public void testDelete() {
+    ids.add(store.getOrCreate(new Metric(METRIC1, Arrays.asList("host=h1", "dc=dc1"))));
+    ids.add(store.getOrCreate(new Metric(METRIC1, Arrays.asList("host=h2", "dc=dc1"))));
+    ids.add(store.getOrCreate(new Metric(METRIC2, Arrays.asList("host=h1", "rack=r1"))));
+    assertEquals(9, store.getStats().get("DictionarySize"));
+
+    store.delete(RoaringBitmap.bitmapOf(ids.get(0), 100));
+    assertEquals("", store.getMetricName(ids.get(0)));
+    assertFalse(store.get(new Metric(METRIC1, Arrays.asList("host=h1", "dc=dc1"))).isPresent());
+    assertEquals(Collections.singletonList(ids.get(1)), query(METRIC1 + " dc=dc1"));
+    assertEquals(Collections.singletonList(ids.get(1)), query(METRIC1 + " host=*"));
+    assertEquals(Collections.singletonList(ids.get(2)), query(METRIC2 + " host=h1"));
+    assertEquals(2, store.getStats().get("MetricIdMapSize"));
+    assertEquals(2, store.getStats().get("SeriesKeyMapSize"));
+    // h1 is still used by metric.2.
+    assertEquals(9, store.getStats().get("DictionarySize"));
+
+    // The keys and strings that are no longer used are removed.
+    store.delete(RoaringBitmap.bitmapOf(ids.get(1), ids.get(2)));
+    assertTrue(query(METRIC1 + " host=*").isEmpty());
+    assertTrue(query(METRIC2 + " host=h1").isEmpty());
+    assertEquals(0, store.getMetricIndex().size());
+    assertEquals(0, store.getStats().get("MetricIdMapSize"));
+    assertEquals(0, store.getStats().get("SeriesKeyMapSize"));
+    assertEquals(0, store.getStats().get("DictionarySize"));
+    assertEquals(0, store.getStats().get("TagValueIndexSize"));
+
+    // A deleted metric gets a new id when it is created again.
+    int newId = store.getOrCreate(new Metric(METRIC1, Arrays.asList("host=h1", "dc=dc1")));
+    assertFalse(ids.contains(newId));
+    assertEquals("metric.1 dc=dc1 host=h1", store.getMetricName(newId));
+    assertEquals(Collections.singletonList(newId), query(METRIC1 + " host=h1"));
+  }
+
+  @Test
+  public void testGetMetricNameWhileDeleting() throws Exception {
+    AtomicBoolean done = new AtomicBoolean(false);
+    AtomicInteger id = new AtomicInteger(-1);
+    List<String> badNames = Collections.synchronizedList(new ArrayList<>());
+    Thread reader = new Thread(() -> {
+      while (!done.get()) {
+        String name = store.getMetricName(id.get());
+        if (!name.isEmpty() && !name.startsWith("metric.1 host=h")) {
+          badNames.add(name);
+        }
+      }
+    });
+    reader.start();
+    for (int i = 0; i < 10000; i++) {
+      id.set(store.getOrCreate(new Metric(METRIC1, Collections.singletonList("host=h" + i))));
+      store.delete(RoaringBitmap.bitmapOf(id.get()));
+    }
+    done.set(true);
+    reader.join();
+    assertEquals(Collections.emptyList(), badNames);
+  }
+
+  @Test
+  public void testOnHeapStore() {
+    store = new InvertedIndexTagStore(100, 100, "", false, false);
+    ids.add(store.getOrCreate(new Metric(METRIC1, Arrays.asList("k2=v2", "k1=v1"))));
+    ids.add(store.getOrCreate(new Metric(METRIC1, Collections.singletonList("k1=v1"))));
+
+    assertEquals(ids.get(0), store.get(new Metric(METRIC1, Arrays.asList("k1=v1", "k2=v2"))).get());
+    assertEquals(ids.get(1), store.get(new Metric(METRIC1, Arrays.asList("k1=v1"))).get());
+    assertEquals("metric.1 k1=v1 k2=v2", store.getMetricName(ids.get(0)));
+    assertEquals(Arrays.asList(ids.get(0), ids.get(1)), query("metric.1 k1=v1"));
+  }
+
+  @Test
+  public void testGrowBeyondCapacity() throws InterruptedException {
+    store = new InvertedIndexTagStore(100, 100);
+    for (int i = 0; i < 5000; i++) {
+      ids.add(store.getOrCreate(new Metric(METRIC1, Collections.singletonList("host=h" + i))));
+      if (i % 50 == 0) {
+        Thread.sleep(1);  // Give the background resize time to catch up.
+      }
+    }
+
+    for (int i = 0; i < 5000; i++) {
+      Metric metric = new Metric(METRIC1, Collections.singletonList("host=h" + i));
+      assertEquals(ids.get(i), store.get(metric).get());
+      assertEquals(metric.fullMetricName, store.getMetricName(ids.get(i)));
+    }
+    assertEquals(5000, query(METRIC1).size());
   }
 
   @Test
@@ -309,6 +438,106 @@ public class InvertedIndexTagStoreTest {
     query(makeRegExQuery(METRIC1, HOST_TAG, "ogg-\\d(3.ops.ankh.morpork.com"));
   }
 
+  @Test
+  public void testAnchoredRegExMatch() {
+    ids.add(store.getOrCreate(new Metric(METRIC1, Collections.singletonList("host=web-01"))));
+    ids.add(store.getOrCreate(new Metric(METRIC1, Collections.singletonList("host=web-02"))));
+    ids.add(store.getOrCreate(new Metric(METRIC1, Collections.singletonList("host=we"))));
+    ids.add(store.getOrCreate(new Metric(METRIC1, Collections.singletonList("host=db-01"))));
+
+    assertEquals(Arrays.asList(ids.get(0), ids.get(1)),
+        query(makeRegExQuery(METRIC1, HOST_TAG, "^web-\\d+$")));
+    assertEquals(Collections.singletonList(ids.get(0)),
+        query(makeRegExQuery(METRIC1, HOST_TAG, "^web-01")));
+    assertEquals(Arrays.asList(ids.get(0), ids.get(1), ids.get(2)),
+        query(makeRegExQuery(METRIC1, HOST_TAG, "^web?")));
+    assertEquals(Arrays.asList(ids.get(0), ids.get(1), ids.get(3)),
+        query(makeRegExQuery(METRIC1, HOST_TAG, "^(web|db)-")));
+    assertEquals(Arrays.asList(ids.get(0), ids.get(3)),
+        query(makeRegExQuery(METRIC1, HOST_TAG, "^web-01|^db")));
+    assertTrue(query(makeRegExQuery(METRIC1, HOST_TAG, "^app")).isEmpty());
+
+    // The compiled matchers are reused by repeated queries.
+    assertEquals(6, store.getStats().get("CompiledTagMatchersSize"));
+    query(makeRegExQuery(METRIC1, HOST_TAG, "^web-01"));
+    assertEquals(6, store.getStats().get("CompiledTagMatchersSize"));
+  }
+
+  @Test
+  public void testSlowPathOnCandidates() {
+    ids.add(store.getOrCreate(new Metric(METRIC1, Arrays.asList("cluster=c1", "host=web-01"))));
+    ids.add(store.getOrCreate(new Metric(METRIC1, Arrays.asList("cluster=c1", "host=db-01"))));
+    ids.add(store.getOrCreate(new Metric(METRIC1, Arrays.asList("cluster=c2", "host=web-02"))));
+    ids.add(store.getOrCreate(new Metric(METRIC1, Arrays.asList("cluster=c2", "host=Web-03"))));
+    ids.add(store.getOrCreate(new Metric(METRIC2, Arrays.asList("cluster=c1", "host=web-04"))));
+
+    assertEquals(Collections.singletonList(ids.get(0)), query(new Query(METRIC1, Arrays.asList(
+        TagMatcher.exactMatch(new Tag("cluster", "c1")),
+        TagMatcher.regExMatch(HOST_TAG, "^web")))));
+    assertEquals(Collections.singletonList(ids.get(2)), query(new Query(METRIC1, Arrays.asList(
+        TagMatcher.regExMatch(HOST_TAG, "^web"),
+        TagMatcher.literalOrMatch("cluster", "c2|c3", false)))));
+    assertEquals(Arrays.asList(ids.get(2), ids.get(3)), query(new Query(METRIC1, Arrays.asList(
+        TagMatcher.iwildcardMatch(HOST_TAG, "web*"),
+        TagMatcher.notLiteralOrMatch("cluster", "C1", true)))));
+    assertTrue(query(new Query(METRIC1, Arrays.asList(
+        TagMatcher.exactMatch(new Tag("cluster", "c3")),
+        TagMatcher.regExMatch(HOST_TAG, "^web")))).isEmpty());
+  }
+
+  @Test(expected = PatternSyntaxException.class)
+  public void testFailedRegExQueryWithoutCandidates() {
+    ids.add(store.getOrCreate(new Metric(METRIC1, Arrays.asList("cluster=c1", "host=web-01"))));
+
+    query(new Query(METRIC1, Arrays.asList(TagMatcher.exactMatch(new Tag("cluster", "c2")),
+        TagMatcher.regExMatch(HOST_TAG, "web-\\d(3"))));
+  }
+
+  @Test
+  public void testNotTagMatchers() {
+    ids.add(store.getOrCreate(new Metric(METRIC1, Arrays.asList("cluster=c1", "host=web-01"))));
+    ids.add(store.getOrCreate(new Metric(METRIC1, Arrays.asList("cluster=c1", "host=canary-01"))));
+    ids.add(store.getOrCreate(new Metric(METRIC1, Arrays.asList("cluster=c2", "host=web-02"))));
+    ids.add(store.getOrCreate(new Metric(METRIC1, Collections.singletonList("cluster=c2"))));
+
+    // A query with only not matchers requires the tag key.
+    assertEquals(Arrays.asList(ids.get(0), ids.get(2)), query(new Query(METRIC1,
+        Collections.singletonList(TagMatcher.notLiteralOrMatch(HOST_TAG, "canary-01", false)))));
+    assertTrue(query(new Query(METRIC1,
+        Collections.singletonList(TagMatcher.notLiteralOrMatch("dc", "dc1", false)))).isEmpty());
+
+    // Each not matcher excludes its values independently.
+    assertEquals(Collections.singletonList(ids.get(0)), query(new Query(METRIC1, Arrays.asList(
+        TagMatcher.notLiteralOrMatch(HOST_TAG, "canary-01", false),
+        TagMatcher.notLiteralOrMatch("cluster", "C2", true)))));
+
+    // With other matchers, a not matcher doesn't require the tag key.
+    assertEquals(Arrays.asList(ids.get(2), ids.get(3)), query(new Query(METRIC1, Arrays.asList(
+        TagMatcher.exactMatch(new Tag("cluster", "c2")),
+        TagMatcher.notLiteralOrMatch(HOST_TAG, "canary-01", false)))));
+    assertEquals(Arrays.asList(ids.get(0), ids.get(1)), query(new Query(METRIC1, Arrays.asList(
+        TagMatcher.exactMatch(new Tag("cluster", "c1")),
+        TagMatcher.notLiteralOrMatch("dc", "dc1", false)))));
+  }
+
+  @Test
+  public void testPrefixWildcardMatch() {
+    ids.add(store.getOrCreate(new Metric(METRIC1, Collections.singletonList("host=web-01"))));
+    ids.add(store.getOrCreate(new Metric(METRIC1, Collections.singletonList("host=web-02"))));
+    ids.add(store.getOrCreate(new Metric(METRIC1, Collections.singletonList("host=db-web-01"))));
+    ids.add(store.getOrCreate(new Metric(METRIC2, Collections.singletonList("host=web-03"))));
+
+    assertEquals(Arrays.asList(ids.get(0), ids.get(1)),
+        query(makeWildcardQuery(METRIC1, HOST_TAG, "web-*", false)));
+    assertEquals(Collections.singletonList(ids.get(0)),
+        query(makeWildcardQuery(METRIC1, HOST_TAG, "web-0*1*", false)));
+    assertEquals(Arrays.asList(ids.get(0), ids.get(2)),
+        query(makeWildcardQuery(METRIC1, HOST_TAG, "*web-01", false)));
+    assertEquals(Collections.singletonList(ids.get(3)),
+        query(makeWildcardQuery(METRIC2, HOST_TAG, "web-*", false)));
+    assertTrue(query(makeWildcardQuery(METRIC1, HOST_TAG, "app-*", false)).isEmpty());
+  }
+
   private Query makeRegExQuery(String metricName, String tagKey, String regEx) {
     final List<TagMatcher> tagMatchers =
             Collections.singletonList(TagMatcher.regExMatch(tagKey, regEx));
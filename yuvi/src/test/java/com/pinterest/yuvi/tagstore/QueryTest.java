@@ -1,6 +1,7 @@
 package com.pinterest.yuvi.tagstore;
 
 import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotEquals;
 import static org.junit.Assert.assertTrue;
 
 import org.junit.Test;
@@ -52,6 +53,23 @@ public class QueryTest {
         q5.tagMatchers.get(1));
   }
 
+  @Test
+  public void testQueryEquality() {
+    assertEquals(Query.parse("metric k1=v1 k2=*"), Query.parse("metric k2=* k1=v1"));
+    assertEquals(Query.parse("metric k1=v1 k2=*").hashCode(),
+        Query.parse("metric k2=* k1=v1").hashCode());
+    assertEquals(Query.parse("metric k1=v1"),
+        new Query(metric, Arrays.asList(TagMatcher.exactMatch(new Tag("k1", "v1")))));
+    assertEquals(Query.parse("metric k1=v1").hashCode(),
+        new Query(metric, Arrays.asList(TagMatcher.exactMatch(new Tag("k1", "v1")))).hashCode());
+
+    assertNotEquals(Query.parse("metric k1=v1"), Query.parse("metric1 k1=v1"));
+    assertNotEquals(Query.parse("metric k1=v1"), Query.parse("metric k1=v2"));
+    assertNotEquals(Query.parse("metric k1=v1"), Query.parse("metric k1=v1 k2=v2"));
+    assertNotEquals(Query.parse("metric k1=*"),
+        new Query(metric, Arrays.asList(TagMatcher.iwildcardMatch("k1", "*"))));
+  }
+
   @Test(expected = IllegalArgumentException.class)
   public void testNullMetricName() {
     new Query(null, Collections.emptyList());
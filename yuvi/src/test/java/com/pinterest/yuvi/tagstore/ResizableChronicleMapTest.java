@@ -0,0 +1,130 @@
+package com.pinterest.yuvi.tagstore;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import net.openhft.chronicle.map.ChronicleMap;
+import org.junit.Test;
+
+import java.nio.ByteBuffer;
+
+public class ResizableChronicleMapTest {
+
+  private static ResizableChronicleMap<Integer, String> makeMap(long capacity) {
+    return new ResizableChronicleMap<>("test", capacity,
+        entries -> ChronicleMap.of(Integer.class, String.class)
+            .entries(entries)
+            .averageValueSize(10)
+            .create());
+  }
+
+  private static void waitForResize(ResizableChronicleMap<?, ?> map, long capacity)
+      throws InterruptedException {
+    for (int i = 0; i < 1000 && (map.isResizing() || map.getCapacity() < capacity); i++) {
+      Thread.sleep(10);
+    }
+  }
+
+  @Test
+  public void testMapOperations() {
+    ResizableChronicleMap<Integer, String> map = makeMap(100);
+    assertNull(map.put(1, "v1"));
+    assertEquals("v1", map.put(1, "v2"));
+    assertNull(map.put(2, "v3"));
+
+    assertEquals("v2", map.get(1));
+    assertEquals("default", map.getOrDefault(3, "default"));
+    assertTrue(map.containsKey(2));
+    assertEquals(2, map.size());
+    assertEquals(2, map.entrySet().size());
+
+    assertEquals("v3", map.remove(2));
+    assertNull(map.remove(2));
+    assertFalse(map.containsKey(2));
+    assertEquals(1, map.size());
+
+    map.clear();
+    assertEquals(0, map.size());
+    map.close();
+  }
+
+  @Test
+  public void testResize() {
+    ResizableChronicleMap<Integer, String> map = makeMap(1000);
+    for (int i = 0; i < 500; i++) {
+      map.put(i, "v" + i);
+    }
+    map.remove(0);
+
+    map.resize();
+    assertEquals(2000, map.getCapacity());
+    assertEquals(499, map.size());
+    assertNull(map.get(0));
+    for (int i = 1; i < 500; i++) {
+      assertEquals("v" + i, map.get(i));
+    }
+    map.close();
+  }
+
+  @Test
+  public void testResizeOnInsert() throws InterruptedException {
+    ResizableChronicleMap<Integer, String> map = makeMap(1000);
+    for (int i = 0; i < 10000; i++) {
+      map.put(i, "v" + i);
+      if (i % 500 == 0) {
+        waitForResize(map, 0);
+      }
+    }
+    waitForResize(map, 16000);
+
+    assertEquals(16000, map.getCapacity());
+    assertEquals(10000, map.size());
+    for (int i = 0; i < 10000; i++) {
+      assertEquals("v" + i, map.get(i));
+    }
+    map.close();
+  }
+
+  @Test
+  public void testWritesDuringResize() throws InterruptedException {
+    ResizableChronicleMap<ByteBuffer, Integer> map =
+        new ResizableChronicleMap<>("test", 100000,
+            entries -> ChronicleMap.of(ByteBuffer.class, Integer.class)
+                .entries(entries)
+                .averageKeySize(8)
+                .create());
+    for (int i = 0; i < 20000; i++) {
+      map.put(key(i), i);
+    }
+
+    Thread writer = new Thread(() -> {
+      for (int i = 0; i < 20000; i++) {
+        map.put(key(i), -i);
+        map.put(key(20000 + i), i);
+        if (i % 2 == 0) {
+          map.remove(key(i));
+        }
+      }
+    });
+    writer.start();
+    map.resize();
+    writer.join();
+
+    assertEquals(200000, map.getCapacity());
+    assertEquals(30000, map.size());
+    for (int i = 0; i < 20000; i++) {
+      assertEquals(i % 2 == 0 ? null : -i, map.get(key(i)));
+      assertEquals(i, map.get(key(20000 + i)).intValue());
+    }
+    map.close();
+  }
+
+  private static ByteBuffer key(int i) {
+    ByteBuffer key = ByteBuffer.allocate(8);
+    key.putInt(i).putInt(i * 31);
+    key.flip();
+    return key;
+  }
+}
@@ -0,0 +1,55 @@
+package com.pinterest.yuvi.tagstore;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotEquals;
+import static org.junit.Assert.assertNull;
+
+import org.junit.Test;
+
+public class StringDictionaryTest {
+
+  @Test
+  public void testAcquire() {
+    StringDictionary dictionary = new StringDictionary();
+    assertEquals(StringDictionary.MISSING_ID, dictionary.get("host"));
+    assertNull(dictionary.getString(0));
+
+    int hostId = dictionary.acquire("host");
+    int valueId = dictionary.acquire("web-01");
+    assertNotEquals(hostId, valueId);
+    assertEquals(hostId, dictionary.acquire("host"));
+    assertEquals(hostId, dictionary.get("host"));
+    assertEquals(valueId, dictionary.get("web-01"));
+    assertEquals("host", dictionary.getString(hostId));
+    assertEquals("web-01", dictionary.getString(valueId));
+    assertEquals(2, dictionary.size());
+
+    dictionary.clear();
+    assertEquals(StringDictionary.MISSING_ID, dictionary.get("host"));
+    assertNull(dictionary.getString(hostId));
+    assertEquals(0, dictionary.size());
+  }
+
+  @Test
+  public void testRelease() {
+    StringDictionary dictionary = new StringDictionary();
+    int hostId = dictionary.acquire("host");
+    dictionary.acquire("host");
+    int valueId = dictionary.acquire("web-01");
+
+    dictionary.release(hostId);
+    assertEquals(hostId, dictionary.get("host"));
+    assertEquals("host", dictionary.getString(hostId));
+
+    dictionary.release(hostId);
+    assertEquals(StringDictionary.MISSING_ID, dictionary.get("host"));
+    assertNull(dictionary.getString(hostId));
+    assertEquals(1, dictionary.size());
+
+    // Releasing a missing id is a no-op and the ids are not re-used.
+    dictionary.release(hostId);
+    assertNotEquals(hostId, dictionary.acquire("host"));
+    assertNotEquals(valueId, dictionary.get("host"));
+    assertEquals(2, dictionary.size());
+  }
+}
@@ -0,0 +1,174 @@
+package com.pinterest.yuvi.tagstore;
+
+import static org.hamcrest.CoreMatchers.is;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertThat;
+import static org.junit.Assert.assertTrue;
+
+import com.google.common.collect.ImmutableMap;
+import com.google.common.collect.ImmutableSet;
+import org.junit.Before;
+import org.junit.Test;
+import org.roaringbitmap.RoaringBitmap;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+
+public class TagValueIndexTest {
+
+  private static final String METRIC1 = "metric.1";
+  private static final String METRIC2 = "metric.2";
+
+  private TagValueIndex index;
+
+  @Before
+  public void setup() {
+    index = new TagValueIndex();
+  }
+
+  @Test
+  public void testMatch() {
+    assertTrue(index.match(METRIC1, "host", value -> true).isEmpty());
+
+    index.add(METRIC1, Tag.parseTag("host=web-1"), 1);
+    index.add(METRIC1, Tag.parseTag("host=web-2"), 2);
+    index.add(METRIC1, Tag.parseTag("host=db-1"), 3);
+    index.add(METRIC1, Tag.parseTag("host=web-1"), 4);
+    index.add(METRIC1, Tag.parseTag("dc=dc1"), 1);
+    index.add(METRIC2, Tag.parseTag("host=web-1"), 5);
+
+    assertEquals(RoaringBitmap.bitmapOf(1, 2, 4),
+        index.match(METRIC1, "host", value -> value.startsWith("web")));
+    assertEquals(RoaringBitmap.bitmapOf(3),
+        index.match(METRIC1, "host", value -> value.equals("db-1")));
+    assertEquals(RoaringBitmap.bitmapOf(1), index.match(METRIC1, "dc", value -> true));
+    assertEquals(RoaringBitmap.bitmapOf(5), index.match(METRIC2, "host", value -> true));
+    assertTrue(index.match(METRIC1, "host", value -> false).isEmpty());
+    assertTrue(index.match(METRIC2, "dc", value -> true).isEmpty());
+    assertEquals(3, index.size());
+  }
+
+  @Test
+  public void testGet() {
+    assertTrue(index.get(METRIC1, "host", "web-1").isEmpty());
+
+    index.add(METRIC1, Tag.parseTag("host=web-1"), 1);
+    index.add(METRIC1, Tag.parseTag("host=web-2"), 2);
+    index.add(METRIC1, Tag.parseTag("host=web-1"), 3);
+    index.add(METRIC2, Tag.parseTag("host=web-2"), 4);
+
+    assertEquals(RoaringBitmap.bitmapOf(1, 3), index.get(METRIC1, "host", "web-1"));
+    assertEquals(RoaringBitmap.bitmapOf(1, 2, 3), index.get(METRIC1, "host", "web-1", "web-2"));
+    assertEquals(RoaringBitmap.bitmapOf(2), index.get(METRIC1, "host", "web-2", "web-3", ""));
+    assertEquals(RoaringBitmap.bitmapOf(4), index.get(METRIC2, "host", "web-1", "web-2"));
+    assertTrue(index.get(METRIC1, "host", "web-3").isEmpty());
+    assertTrue(index.get(METRIC1, "dc", "web-1").isEmpty());
+  }
+
+  @Test
+  public void testRemove() {
+    index.add(METRIC1, Tag.parseTag("host=web-1"), 1);
+    index.add(METRIC1, Tag.parseTag("host=web-1"), 2);
+    index.add(METRIC1, Tag.parseTag("host=web-2"), 3);
+    index.add(METRIC2, Tag.parseTag("host=web-1"), 4);
+
+    index.remove(METRIC1, "host", "web-1", 1);
+    index.remove(METRIC1, "host", "web-3", 2);
+    index.remove(METRIC1, "dc", "web-1", 2);
+    assertEquals(RoaringBitmap.bitmapOf(2, 3), index.get(METRIC1, "host", "web-1", "web-2"));
+    assertEquals(2, index.size());
+
+    // The values and tag keys without any ids are dropped.
+    index.remove(METRIC1, "host", "web-1", 2);
+    assertEquals(1, index.getValues(METRIC1, "host").size());
+    index.remove(METRIC1, "host", "web-2", 3);
+    assertTrue(index.get(METRIC1, "host", "web-1", "web-2").isEmpty());
+    assertEquals(1, index.size());
+
+    index.add(METRIC1, Tag.parseTag("host=web-1"), 5);
+    assertEquals(RoaringBitmap.bitmapOf(5), index.get(METRIC1, "host", "web-1"));
+    assertEquals(RoaringBitmap.bitmapOf(4), index.get(METRIC2, "host", "web-1"));
+  }
+
+  @Test
+  public void testPrefixMatch() {
+    index.add(METRIC1, Tag.parseTag("host=web-1"), 1);
+    index.add(METRIC1, Tag.parseTag("host=web-10"), 2);
+    index.add(METRIC1, Tag.parseTag("host=web-2"), 3);
+    index.add(METRIC1, Tag.parseTag("host=we"), 4);
+    index.add(METRIC1, Tag.parseTag("host=wf"), 5);
+
+    Set<String> scanned = new HashSet<>();
+    assertEquals(RoaringBitmap.bitmapOf(1, 2),
+        index.match(METRIC1, "host", "web-1", value -> scanned.add(value)));
+    assertEquals(ImmutableSet.of("web-1", "web-10"), scanned);
+
+    assertEquals(RoaringBitmap.bitmapOf(1, 2, 3, 4),
+        index.match(METRIC1, "host", "we", value -> true));
+    assertEquals(RoaringBitmap.bitmapOf(3),
+        index.match(METRIC1, "host", "web-", value -> value.endsWith("2")));
+    assertTrue(index.match(METRIC1, "host", "db", value -> true).isEmpty());
+    assertEquals(RoaringBitmap.bitmapOf(1, 2, 3, 4, 5),
+        index.match(METRIC1, "host", "", value -> true));
+
+    index.add(METRIC1, Tag.parseTag("host=web-\uFFFF"), 6);
+    assertEquals(RoaringBitmap.bitmapOf(1, 2, 3, 6),
+        index.match(METRIC1, "host", "web-", value -> true));
+  }
+
+  @Test
+  public void testMatchCandidates() {
+    index.add(METRIC1, Tag.parseTag("host=web-1"), 1);
+    index.add(METRIC1, Tag.parseTag("host=web-2"), 2);
+    index.add(METRIC1, Tag.parseTag("host=web-3"), 3);
+    index.add(METRIC1, Tag.parseTag("host=web-1"), 4);
+
+    Set<String> scanned = new HashSet<>();
+    assertEquals(RoaringBitmap.bitmapOf(1, 3, 4),
+        index.match(METRIC1, "host", "", scanned::add, RoaringBitmap.bitmapOf(3, 4)));
+    assertEquals(ImmutableSet.of("web-1", "web-3"), scanned);
+
+    assertTrue(index.match(METRIC1, "host", "", value -> true, new RoaringBitmap()).isEmpty());
+    assertEquals(RoaringBitmap.bitmapOf(1, 2, 3, 4),
+        index.match(METRIC1, "host", "", value -> true, null));
+  }
+
+  @Test
+  public void testMatchStopsOnceCandidatesAreMatched() {
+    index.add(METRIC1, Tag.parseTag("host=web-1"), 1);
+    index.add(METRIC1, Tag.parseTag("host=web-2"), 2);
+    index.add(METRIC1, Tag.parseTag("host=web-3"), 3);
+    index.add(METRIC1, Tag.parseTag("host=web-4"), 1);
+
+    List<String> scanned = new ArrayList<>();
+    assertEquals(RoaringBitmap.bitmapOf(1, 2),
+        index.match(METRIC1, "host", "web", scanned::add, RoaringBitmap.bitmapOf(1, 2)));
+    assertEquals(Arrays.asList("web-1", "web-2"), scanned);
+
+    // A value without any unmatched candidates is not scanned.
+    scanned.clear();
+    assertEquals(RoaringBitmap.bitmapOf(1, 3),
+        index.match(METRIC1, "host", "web", scanned::add, RoaringBitmap.bitmapOf(1, 3)));
+    assertEquals(Arrays.asList("web-1", "web-3"), scanned);
+  }
+
+  @Test
+  public void testGetValues() {
+    assertTrue(index.getValues(METRIC1, "host").isEmpty());
+
+    index.add(METRIC1, Tag.parseTag("host=web-1"), 1);
+    index.add(METRIC1, Tag.parseTag("host=web-2"), 2);
+    index.add(METRIC1, Tag.parseTag("host=web-1"), 3);
+
+    assertThat(ImmutableMap.of(1, "web-1", 2, "web-2", 3, "web-1"),
+        is(index.getValues(METRIC1, "host")));
+    assertTrue(index.getValues(METRIC2, "host").isEmpty());
+
+    index.clear();
+    assertTrue(index.getValues(METRIC1, "host").isEmpty());
+    assertEquals(0, index.size());
+  }
+}
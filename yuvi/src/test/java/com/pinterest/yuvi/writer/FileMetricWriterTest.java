@@ -0,0 +1,93 @@
+package com.pinterest.yuvi.writer;
+
+import static org.junit.Assert.assertEquals;
+
+import com.pinterest.yuvi.chunk.ChunkManager;
+import com.pinterest.yuvi.chunk.MetricUtils;
+import com.pinterest.yuvi.chunk.QueryAggregation;
+import com.pinterest.yuvi.models.Point;
+import com.pinterest.yuvi.models.TimeSeries;
+import com.pinterest.yuvi.tagstore.Query;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+
+public class FileMetricWriterTest {
+
+  @Rule
+  public final TemporaryFolder temporaryFolder = new TemporaryFolder();
+
+  private final long startTime = 1488499200;  // Fri, 03 Mar 2017 00:00:00 UTC
+  private final int numHosts = 10;
+  private final int numPoints = 100;
+
+  private Path writeMetricsFile() throws IOException {
+    StringBuilder metrics = new StringBuilder();
+    for (int i = 0; i < numPoints; i++) {
+      for (int j = 0; j < numHosts; j++) {
+        metrics.append(MetricUtils.makeMetricString("testMetric", "host=h" + j + " dc=dc1",
+            startTime + i, i));
+        metrics.append(j % 2 == 0 ? "\n" : "\r\n");
+      }
+      metrics.append("\n");
+    }
+    metrics.append("put testMetric invalidTs 1 host=h1\n");
+    metrics.append("invalid metric\n");
+    // The last line doesn't end with a new line.
+    metrics.append(MetricUtils.makeMetricString("testMetric", "host=h0 dc=dc1",
+        startTime + numPoints, numPoints));
+    Path path = temporaryFolder.newFile("metrics.txt").toPath();
+    Files.write(path, metrics.toString().getBytes(StandardCharsets.UTF_8));
+    return path;
+  }
+
+  private void checkMetrics(FileMetricWriter writer) {
+    Map<String, Object> stats = writer.getStats();
+    assertEquals((long) numHosts * numPoints + 3, stats.get("lines"));
+    assertEquals((long) numHosts * numPoints + 1, stats.get("validMetrics"));
+    assertEquals(2L, stats.get("invalidMetrics"));
+    assertEquals(0L, stats.get("delayedMetrics"));
+
+    for (int j = 0; j < numHosts; j++) {
+      List<Point> points = new ArrayList<>();
+      for (int i = 0; i < (j == 0 ? numPoints + 1 : numPoints); i++) {
+        points.add(new Point(startTime + i, i));
+      }
+      List<TimeSeries> timeSeries = writer.getChunkManager().query(
+          Query.parse("testMetric host=h" + j), startTime, startTime + 3600, QueryAggregation.NONE);
+      assertEquals(1, timeSeries.size());
+      assertEquals(points, timeSeries.get(0).getPoints());
+    }
+  }
+
+  @Test
+  public void testStart() throws IOException {
+    FileMetricWriter writer =
+        new FileMetricWriter(writeMetricsFile(), new ChunkManager("test", 1000), 4);
+    writer.start();
+    checkMetrics(writer);
+  }
+
+  @Test
+  public void testStartWithSmallBlocksAndRegions() throws IOException {
+    // Lines are longer than the block size and cross the region boundaries.
+    FileMetricWriter writer =
+        new FileMetricWriter(writeMetricsFile(), new ChunkManager("test", 1000), 3, 16, 1000);
+    writer.start();
+    checkMetrics(writer);
+  }
+
+  @Test(expected = IllegalArgumentException.class)
+  public void testInvalidParams() {
+    new FileMetricWriter(temporaryFolder.getRoot().toPath(), new ChunkManager("test", 1000), 0);
+  }
+}
@@ -0,0 +1,137 @@
+package com.pinterest.yuvi.writer;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import com.pinterest.yuvi.chunk.AddMetricsResult;
+import com.pinterest.yuvi.chunk.ChunkManager;
+import com.pinterest.yuvi.chunk.MetricUtils;
+import com.pinterest.yuvi.chunk.QueryAggregation;
+import com.pinterest.yuvi.models.Point;
+import com.pinterest.yuvi.models.TimeSeries;
+import com.pinterest.yuvi.tagstore.Query;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicReference;
+
+public class MetricIngestPoolTest {
+
+  private final long startTime = 1488499200;  // Fri, 03 Mar 2017 00:00:00 UTC
+
+  private ChunkManager chunkManager;
+  private MetricIngestPool ingestPool;
+
+  @Before
+  public void setUp() {
+    chunkManager = new ChunkManager("test", 1000);
+  }
+
+  @After
+  public void tearDown() {
+    if (ingestPool != null) {
+      ingestPool.close();
+    }
+  }
+
+  private static byte[] bytes(String line) {
+    return line.getBytes(StandardCharsets.UTF_8);
+  }
+
+  private static LineBatch lines(String... lines) {
+    LineBatch batch = new LineBatch();
+    // Store the lines in a single array like the messages of a Kafka record.
+    byte[] data = bytes(String.join("", lines));
+    int offset = 0;
+    for (String line : lines) {
+      batch.add(data, offset, bytes(line).length);
+      offset = offset + bytes(line).length;
+    }
+    return batch;
+  }
+
+  @Test(expected = IllegalArgumentException.class)
+  public void testInvalidNumWorkers() {
+    new MetricIngestPool(chunkManager, 0, 1);
+  }
+
+  @Test
+  public void testGetWorker() {
+    ingestPool = new MetricIngestPool(chunkManager, 4, 1);
+    assertEquals(4, ingestPool.getNumWorkers());
+
+    for (int i = 0; i < 10; i++) {
+      byte[] line = bytes(MetricUtils.makeMetricString("testMetric", "host=h" + i + " dc=dc1",
+          startTime, i));
+      int worker = ingestPool.getWorker(line, 0, line.length);
+      assertTrue(worker >= 0 && worker < 4);
+      // All the points of a series are ingested by the same worker.
+      byte[] otherLine = bytes(MetricUtils.makeMetricString("testMetric", "dc=dc1 host=h" + i,
+          startTime + 1, 2 * i));
+      assertEquals(worker, ingestPool.getWorker(otherLine, 0, otherLine.length));
+    }
+  }
+
+  @Test
+  public void testSubmit() throws InterruptedException {
+    ingestPool = new MetricIngestPool(chunkManager, 2, 1);
+    LineBatch metrics = lines(
+        MetricUtils.makeMetricString("testMetric", "host=h1 dc=dc1", startTime + 1, 1),
+        MetricUtils.makeMetricString("testMetric", "host=h1 dc=dc1", startTime + 2, 2),
+        "invalid metric");
+    CountDownLatch applied = new CountDownLatch(1);
+    AtomicReference<AddMetricsResult> result = new AtomicReference<>();
+    assertTrue(ingestPool.submit(0, metrics, batchResult -> {
+      result.set(batchResult);
+      applied.countDown();
+    }));
+    assertTrue(applied.await(10, TimeUnit.SECONDS));
+    assertEquals(2, result.get().validMetrics);
+    assertEquals(1, result.get().invalidMetrics);
+    assertEquals(0, result.get().delayedMetrics);
+
+    List<TimeSeries> timeSeries = chunkManager.query(Query.parse("testMetric"), startTime,
+        startTime + 10, QueryAggregation.NONE);
+    assertEquals(1, timeSeries.size());
+    assertEquals(Arrays.asList(new Point(startTime + 1, 1), new Point(startTime + 2, 2)),
+        timeSeries.get(0).getPoints());
+  }
+
+  @Test
+  public void testSubmitToFullQueue() throws InterruptedException {
+    ingestPool = new MetricIngestPool(chunkManager, 1, 1);
+    LineBatch metrics =
+        lines(MetricUtils.makeMetricString("testMetric", "host=h1 dc=dc1", startTime + 1, 1));
+
+    // Block the worker in the callback of the first batch.
+    CountDownLatch started = new CountDownLatch(1);
+    CountDownLatch unblock = new CountDownLatch(1);
+    assertTrue(ingestPool.submit(0, metrics, result -> {
+      started.countDown();
+      try {
+        unblock.await();
+      } catch (InterruptedException e) {
+        Thread.currentThread().interrupt();
+      }
+    }));
+    assertTrue(started.await(10, TimeUnit.SECONDS));
+
+    CountDownLatch applied = new CountDownLatch(1);
+    assertFalse(ingestPool.isFull());
+    assertTrue(ingestPool.submit(0, metrics, result -> applied.countDown()));
+    assertTrue(ingestPool.isFull());
+    assertFalse(ingestPool.submit(0, metrics, result -> applied.countDown()));
+
+    unblock.countDown();
+    assertTrue(applied.await(10, TimeUnit.SECONDS));
+    assertFalse(ingestPool.isFull());
+  }
+}
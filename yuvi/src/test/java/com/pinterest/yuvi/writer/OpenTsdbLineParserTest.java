@@ -0,0 +1,135 @@
+package com.pinterest.yuvi.writer;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotSame;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.fail;
+
+import com.pinterest.yuvi.metricandtagstore.MetricBatch;
+
+import org.junit.Test;
+
+import java.nio.charset.StandardCharsets;
+
+public class OpenTsdbLineParserTest {
+
+  private final OpenTsdbLineParser parser = new OpenTsdbLineParser();
+
+  private void parse(OpenTsdbLineParser parser, String line, MetricBatch batch) {
+    // Surround the line with other bytes to check that only the slice is parsed.
+    byte[] data = ("xx " + line + " yy").getBytes(StandardCharsets.UTF_8);
+    parser.parse(data, 3, line.getBytes(StandardCharsets.UTF_8).length, batch);
+  }
+
+  @Test
+  public void testParse() {
+    MetricBatch batch = new MetricBatch();
+    parse(parser, "put testMetric 100 1.5 host=h1 dc=dc1", batch);
+    parse(parser, "put testMetric 101 -2 dc=dc1 host=h1", batch);
+    parse(parser, "put  testMetric  102  3e2  host=h1   dc=dc1 ", batch);
+    parse(parser, "put testMetric 103 4", batch);
+    parse(parser, "put tëstMetric 104 5 host=h1", batch);
+
+    assertEquals(5, batch.size());
+    assertEquals("testMetric dc=dc1 host=h1", batch.getMetric(0).fullMetricName);
+    assertEquals("testMetric dc=dc1 host=h1", batch.getMetric(1).fullMetricName);
+    assertEquals("testMetric dc=dc1 host=h1", batch.getMetric(2).fullMetricName);
+    assertEquals("testMetric", batch.getMetric(3).fullMetricName);
+    assertEquals("tëstMetric host=h1", batch.getMetric(4).fullMetricName);
+    assertEquals(100, batch.getTimestamp(0));
+    assertEquals(102, batch.getTimestamp(2));
+    assertEquals(1.5, batch.getValue(0), 0);
+    assertEquals(-2, batch.getValue(1), 0);
+    assertEquals(300, batch.getValue(2), 0);
+    assertEquals(4, batch.getValue(3), 0);
+  }
+
+  @Test
+  public void testMetricCache() {
+    MetricBatch batch = new MetricBatch();
+    parse(parser, "put testMetric 100 1 host=h1 dc=dc1", batch);
+    parse(parser, "put testMetric 101 2 host=h1 dc=dc1", batch);
+    parse(parser, "put testMetric 102 3 dc=dc1 host=h1", batch);
+    parse(parser, "put testMetric 103 4 host=h2 dc=dc1", batch);
+    assertSame(batch.getMetric(0), batch.getMetric(1));
+    // Lines with a different tag order are cached separately.
+    assertNotSame(batch.getMetric(0), batch.getMetric(2));
+    assertEquals(batch.getMetric(0).fullMetricName, batch.getMetric(2).fullMetricName);
+    assertNotSame(batch.getMetric(0), batch.getMetric(3));
+    assertEquals(3, parser.getCachedMetrics());
+
+    // The cache is cleared when it's full.
+    OpenTsdbLineParser smallParser = new OpenTsdbLineParser(2);
+    parse(smallParser, "put testMetric 100 1 host=h1", batch);
+    parse(smallParser, "put testMetric 100 1 host=h2", batch);
+    assertEquals(2, smallParser.getCachedMetrics());
+    parse(smallParser, "put testMetric 100 1 host=h3", batch);
+    assertEquals(1, smallParser.getCachedMetrics());
+    parse(smallParser, "put testMetric 100 1 host=h3", batch);
+    assertEquals(1, smallParser.getCachedMetrics());
+    assertSame(batch.getMetric(batch.size() - 1), batch.getMetric(batch.size() - 2));
+  }
+
+  @Test
+  public void testParseDouble() {
+    String[] values = {"0", "-0", "1", "0.1", "123.456", "-98765.4321", "1.", ".5",
+        "123456789012345", "1234567890.12345", "0.000000000000001", "1234567890123456789",
+        "9007199254740993", "1e10", "-1.5E-3", "NaN", "Infinity", "+3", "0.30000000000000004"};
+    for (String value : values) {
+      byte[] data = value.getBytes(StandardCharsets.UTF_8);
+      assertEquals(value, Double.doubleToLongBits(Double.parseDouble(value)),
+          Double.doubleToLongBits(OpenTsdbLineParser.parseDouble(data, 0, data.length)));
+    }
+  }
+
+  @Test
+  public void testParseLong() {
+    String[] values = {"0", "1488499200", "123456789012345678", "1234567890123456789", "-5"};
+    for (String value : values) {
+      byte[] data = value.getBytes(StandardCharsets.UTF_8);
+      assertEquals(Long.parseLong(value), OpenTsdbLineParser.parseLong(data, 0, data.length));
+    }
+  }
+
+  @Test
+  public void testInvalidLines() {
+    String[] lines = {"", "get testMetric 100 1 host=h1", "putx testMetric 100 1", "put",
+        "put testMetric 100", "put testMetric abc 1 host=h1", "put testMetric 100 abc host=h1",
+        "put testMetric 100 1 host"};
+    MetricBatch batch = new MetricBatch();
+    for (String line : lines) {
+      try {
+        parse(parser, line, batch);
+        fail("Parsed an invalid line " + line);
+      } catch (IllegalArgumentException e) {
+        // Expected.
+      }
+    }
+    assertEquals(0, batch.size());
+  }
+
+  @Test
+  public void testSeriesHash() {
+    assertEquals(seriesHash("put testMetric 100 1.0 host=h1 dc=dc1"),
+        seriesHash("put testMetric 200 2.0 dc=dc1 host=h1"));
+    assertEquals(seriesHash("put testMetric 100 1.0 host=h1 dc=dc1"),
+        seriesHash("put  testMetric 200 2.0 dc=dc1  host=h1 "));
+    assertNotEqualsHash("put testMetric 100 1.0 host=h1 dc=dc1",
+        "put testMetric 100 1.0 host=h2 dc=dc1");
+    assertNotEqualsHash("put testMetric 100 1.0 host=h1 dc=dc1",
+        "put testMetric2 100 1.0 host=h1 dc=dc1");
+    assertNotEqualsHash("put testMetric 100 1.0 host=h1 dc=dc1",
+        "put testMetric 100 1.0 host=h1");
+  }
+
+  private static int seriesHash(String line) {
+    byte[] data = line.getBytes(StandardCharsets.UTF_8);
+    return OpenTsdbLineParser.seriesHash(data, 0, data.length);
+  }
+
+  private static void assertNotEqualsHash(String line1, String line2) {
+    if (seriesHash(line1) == seriesHash(line2)) {
+      fail(line1 + " and " + line2 + " have the same series hash");
+    }
+  }
+}
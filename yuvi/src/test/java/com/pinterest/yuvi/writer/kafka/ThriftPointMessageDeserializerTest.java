@@ -0,0 +1,79 @@
+package com.pinterest.yuvi.writer.kafka;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+
+import com.pinterest.yuvi.metricandtagstore.MetricBatch;
+import com.pinterest.yuvi.thrift.PointMessage;
+
+import org.apache.thrift.TException;
+import org.apache.thrift.TSerializer;
+import org.junit.Test;
+
+import java.util.Arrays;
+import java.util.Collections;
+
+public class ThriftPointMessageDeserializerTest {
+
+  private final ThriftPointMessageDeserializer deserializer = new ThriftPointMessageDeserializer();
+
+  private byte[] serialize(PointMessage pointMessage) throws TException {
+    return new TSerializer().serialize(pointMessage);
+  }
+
+  @Test
+  public void testDeserialize() throws TException {
+    PointMessage pointMessage = new PointMessage()
+        .setSeriesKeys(Arrays.asList("testMetric host=h1 dc=dc1", "testMetric host=h2"))
+        .setSeriesIndexes(Arrays.asList(0, 1, 0))
+        .setTimestamps(Arrays.asList(100L, 101L, 102L))
+        .setValues(Arrays.asList(1.0, 2.0, 3.0));
+
+    MetricBatch batch = deserializer.deserialize("test", serialize(pointMessage));
+    assertEquals(3, batch.size());
+    assertEquals("testMetric dc=dc1 host=h1", batch.getMetric(0).fullMetricName);
+    assertEquals("testMetric host=h2", batch.getMetric(1).fullMetricName);
+    // The points of a series share a metric.
+    assertSame(batch.getMetric(0), batch.getMetric(2));
+    assertEquals(100L, batch.getTimestamp(0));
+    assertEquals(101L, batch.getTimestamp(1));
+    assertEquals(102L, batch.getTimestamp(2));
+    assertEquals(1.0, batch.getValue(0), 0);
+    assertEquals(2.0, batch.getValue(1), 0);
+    assertEquals(3.0, batch.getValue(2), 0);
+  }
+
+  @Test
+  public void testInvalidSeriesKey() throws TException {
+    PointMessage pointMessage = new PointMessage()
+        .setSeriesKeys(Arrays.asList("testMetric host", "testMetric host=h2"))
+        .setSeriesIndexes(Arrays.asList(0, 1))
+        .setTimestamps(Arrays.asList(100L, 101L))
+        .setValues(Arrays.asList(1.0, 2.0));
+
+    MetricBatch batch = deserializer.deserialize("test", serialize(pointMessage));
+    assertEquals(1, batch.size());
+    assertEquals("testMetric host=h2", batch.getMetric(0).fullMetricName);
+    assertEquals(101L, batch.getTimestamp(0));
+  }
+
+  @Test
+  public void testInvalidMessage() throws TException {
+    PointMessage missingValues = new PointMessage()
+        .setSeriesKeys(Collections.singletonList("testMetric host=h1"))
+        .setSeriesIndexes(Arrays.asList(0, 0))
+        .setTimestamps(Arrays.asList(100L, 101L))
+        .setValues(Collections.singletonList(1.0));
+    assertNull(deserializer.deserialize("test", serialize(missingValues)));
+
+    PointMessage invalidSeriesIndex = new PointMessage()
+        .setSeriesKeys(Collections.singletonList("testMetric host=h1"))
+        .setSeriesIndexes(Collections.singletonList(1))
+        .setTimestamps(Collections.singletonList(100L))
+        .setValues(Collections.singletonList(1.0));
+    assertNull(deserializer.deserialize("test", serialize(invalidSeriesIndex)));
+
+    assertNull(deserializer.deserialize("test", new byte[] {1, 2, 3}));
+  }
+}
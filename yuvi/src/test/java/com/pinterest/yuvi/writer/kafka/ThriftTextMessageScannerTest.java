@@ -0,0 +1,60 @@
+package com.pinterest.yuvi.writer.kafka;
+
+import static org.junit.Assert.assertEquals;
+
+import com.pinterest.yuvi.thrift.TextMessage;
+
+import org.apache.thrift.TException;
+import org.apache.thrift.TSerializer;
+import org.junit.Test;
+
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+
+public class ThriftTextMessageScannerTest {
+
+  private static List<String> scan(byte[] data) {
+    List<String> messages = new ArrayList<>();
+    int messageCount = ThriftTextMessageScanner.scan(data, (bytes, offset, length) ->
+        messages.add(new String(bytes, offset, length, StandardCharsets.UTF_8)));
+    assertEquals(messageCount, messages.size());
+    return messages;
+  }
+
+  @Test
+  public void testScan() throws TException {
+    List<String> messages = Arrays.asList("put testMetric 100 1 host=h1", "",
+        "put tëstMetric 101 2 host=h2");
+    TextMessage textMessage = new TextMessage()
+        .setMessages(messages)
+        .setHost("host1")
+        .setFilename("metrics.txt");
+    assertEquals(messages, scan(new TSerializer().serialize(textMessage)));
+
+    TextMessage emptyMessage = new TextMessage().setMessages(Collections.emptyList());
+    assertEquals(Collections.emptyList(), scan(new TSerializer().serialize(emptyMessage)));
+  }
+
+  @Test(expected = IllegalArgumentException.class)
+  public void testMissingMessages() {
+    // A struct with only the host field.
+    byte[] data = {11, 0, 2, 0, 0, 0, 1, 'h', 0};
+    scan(data);
+  }
+
+  @Test(expected = IllegalArgumentException.class)
+  public void testTruncatedMessage() throws TException {
+    byte[] data = new TSerializer().serialize(
+        new TextMessage().setMessages(Collections.singletonList("put testMetric 100 1")));
+    scan(Arrays.copyOf(data, data.length - 5));
+  }
+
+  @Test(expected = IllegalArgumentException.class)
+  public void testInvalidType() {
+    byte[] data = {99, 0, 1, 0};
+    scan(data);
+  }
+}